@@ -4,10 +4,13 @@ import java.io.Serializable;
 
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
 
+import org.beginningee6.book.chapter04.support.PooledSequenceGenerator;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 @Entity
 @Table(name = "book_ex01")
 public class Book01 implements Serializable {
@@ -15,7 +18,9 @@ public class Book01 implements Serializable {
 	private static final long serialVersionUID = 1L;
 
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "book_ex01_id")
+    @GenericGenerator(name = "book_ex01_id", strategy = PooledSequenceGenerator.STRATEGY,
+    		parameters = @Parameter(name = "sequence_name", value = "book_ex01_seq"))
     private Long id;
     private String title;
     private Float price;
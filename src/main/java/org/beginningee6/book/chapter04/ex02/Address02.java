@@ -7,6 +7,10 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.Table;
 
+import org.beginningee6.book.chapter04.support.PooledSequenceGenerator;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 /**
  * Customer02エンティティにフィールドとして１対１にマッピングされる
  * 被所有側のエンティティクラス。
@@ -25,7 +29,9 @@ public class Address02 implements Serializable {
 	private static final long serialVersionUID = 1L;
 
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = "address_ex02_id")
+    @GenericGenerator(name = "address_ex02_id", strategy = PooledSequenceGenerator.STRATEGY,
+    		parameters = @Parameter(name = "sequence_name", value = "address_ex02_seq"))
     private Long id;
     private String street1;
     private String city;
@@ -9,6 +9,10 @@ import javax.persistence.JoinColumn;
 import javax.persistence.OneToOne;
 import javax.persistence.Table;
 
+import org.beginningee6.book.chapter04.support.PooledSequenceGenerator;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 /**
  * Address02エンティティをフィールドとして
  * 持つ所有側のエンティティクラス。
@@ -30,7 +34,9 @@ public class Customer02 implements Serializable {
 	private static final long serialVersionUID = 1L;
 
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = "customer_ex02_id")
+    @GenericGenerator(name = "customer_ex02_id", strategy = PooledSequenceGenerator.STRATEGY,
+    		parameters = @Parameter(name = "sequence_name", value = "customer_ex02_seq"))
     private Long id;
     private String firstName;
     private String lastName;
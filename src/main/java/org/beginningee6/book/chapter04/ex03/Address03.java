@@ -7,6 +7,10 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.Table;
 
+import org.beginningee6.book.chapter04.support.PooledSequenceGenerator;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 /**
  * Customer03エンティティにフィールドとして１対１にマッピングされる
  * 被所有側のエンティティクラス。
@@ -24,7 +28,9 @@ public class Address03 implements Serializable {
 	private static final long serialVersionUID = 1L;
 
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = "address_ex03_id")
+    @GenericGenerator(name = "address_ex03_id", strategy = PooledSequenceGenerator.STRATEGY,
+    		parameters = @Parameter(name = "sequence_name", value = "address_ex03_seq"))
     private Long id;
     private String street1;
     private String city;
@@ -10,6 +10,10 @@ import javax.persistence.JoinColumn;
 import javax.persistence.OneToOne;
 import javax.persistence.Table;
 
+import org.beginningee6.book.chapter04.support.PooledSequenceGenerator;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 /**
  * Address04エンティティをフィールドとして
  * 持つ所有側のエンティティクラス。
@@ -35,7 +39,9 @@ public class Customer04 implements Serializable {
 	private static final long serialVersionUID = 1L;
 
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = "customer_ex04_id")
+    @GenericGenerator(name = "customer_ex04_id", strategy = PooledSequenceGenerator.STRATEGY,
+    		parameters = @Parameter(name = "sequence_name", value = "customer_ex04_seq"))
     private Long id;
     private String firstName;
     private String lastName;
@@ -7,21 +7,38 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.Table;
 
+import org.beginningee6.book.chapter04.support.PooledSequenceGenerator;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Parameter;
+
 /**
  * Customer05エンティティにフィールドとして１対１にマッピングされる
  * 被所有側のエンティティクラス。
  * 
  * Customer05エンティティでPERSIST（永続化）とREMOVE（削除）操作に対して
  * カスケードが行われるように指定されている。
+ * 
+ * Hibernateの＠Tableアノテーションにより、CustomerKeysetPager05でzipcodeを
+ * ソートキーとする場合のために、zipcodeとidの組に索引を作成している。
+ * また、countryを条件とする検索やcountryによるグループ化のために、
+ * countryとidの組にも索引を作成している。Customer05との結合に
+ * 必要なidも含むため、これらの検索では表を読まずに索引のみを読む。
  */
 @Entity
 @Table(name = "address_ex05")
+@org.hibernate.annotations.Table(appliesTo = "address_ex05", indexes = {
+		@Index(name = "address_ex05_zipcode_id", columnNames = {"zipcode", "id"}),
+		@Index(name = "address_ex05_country_id", columnNames = {"country", "id"})
+})
 public class Address05 implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = "address_ex05_id")
+    @GenericGenerator(name = "address_ex05_id", strategy = PooledSequenceGenerator.STRATEGY,
+    		parameters = @Parameter(name = "sequence_name", value = "address_ex05_seq"))
     private Long id;
     private String street1;
     private String city;
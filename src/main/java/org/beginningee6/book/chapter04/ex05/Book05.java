@@ -2,23 +2,59 @@ package org.beginningee6.book.chapter04.ex05;
 
 import java.io.Serializable;
 
+import javax.persistence.Cacheable;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.Table;
-
+import javax.persistence.UniqueConstraint;
+
+import org.beginningee6.book.chapter04.support.PooledSequenceGenerator;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.NaturalId;
+import org.hibernate.annotations.NaturalIdCache;
+import org.hibernate.annotations.Parameter;
+
+/**
+ * 更新よりも参照が多いエンティティとして、第2レベルキャッシュに
+ * 保持されるエンティティ。
+ * 
+ * ＠Cacheableにより、EntityManagerをまたいで共有されるキャッシュの
+ * 対象となる。CacheConcurrencyStrategy.READ_WRITEでは、更新中の
+ * エンティティのキャッシュはロックされ、コミット後に新しい値で
+ * 置き換えられるため、古い値が読み込まれることはない。
+ * 
+ * isbnは＠NaturalIdにより自然キーとする。一意制約（索引）は＠Tableの
+ * uniqueConstraintsで名前を指定して作成する（Hibernate 4.2が自然キーに
+ * 対して生成する索引名"_UniqueKey"はDerbyでは使用できないため）。
+ * ＠NaturalIdCacheにより、isbnから主キーへの対応もキャッシュされるため、
+ * NaturalIdLookup.find()でisbnにより検索する場合は、キャッシュにあれば
+ * データベースにアクセスしない。
+ * 自然キーは変更できないため、永続化した後にsetIsbn()で値を変更すると
+ * フラッシュ時に例外が発生する。
+ */
 @Entity
-@Table(name = "book_ex05")
+@Table(name = "book_ex05", uniqueConstraints = @UniqueConstraint(name = "book_ex05_isbn", columnNames = "isbn"))
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@NaturalIdCache
 public class Book05 implements Serializable {
 	private static final long serialVersionUID = 1L;
 
 	@Id
-    @GeneratedValue
+    @GeneratedValue(generator = "book_ex05_id")
+    @GenericGenerator(name = "book_ex05_id", strategy = PooledSequenceGenerator.STRATEGY,
+    		parameters = @Parameter(name = "sequence_name", value = "book_ex05_seq"))
     private Long id;
     private String title;
     private Float price;
     private String description;
-    private String isbn;
+    @NaturalId
+    @Column(nullable = false)
+    private String isbn;		// 自然キー（変更不可）
     private String editor;
     private Integer nbOfPage;
     private Boolean illustrations;
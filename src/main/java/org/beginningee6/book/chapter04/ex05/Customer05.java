@@ -2,6 +2,7 @@ package org.beginningee6.book.chapter04.ex05;
 
 import java.io.Serializable;
 
+import javax.persistence.Cacheable;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -12,40 +13,99 @@ import javax.persistence.JoinColumn;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToOne;
+import javax.persistence.QueryHint;
 import javax.persistence.Table;
 
+import org.beginningee6.book.chapter04.support.PooledSequenceGenerator;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.FetchMode;
+import org.hibernate.annotations.FetchProfile;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.ejb.QueryHints;
+
 /**
  * Address05エンティティをフィールドとして
  * 持つ所有側のエンティティクラス。
  * 
  * ＠NamedQueriesと＠NamedQueryアノテーションにより、
- * 4つの名前付きクエリが定義されている。
+ * 6つの名前付きクエリが定義されている。
  * 
  * "findAll" 			Customer05からデータを全て取得する。
  * Customer05.FIND_ALL	Customer05からデータを全て取得する（定数文字列使用）。
  * "findVincent"		Customer05からfirstNameが'Vincent'のデータを全て取得する。
  * "findWithParam"		Customer05からfirstNameがパラメータで指定された値のデータを全て取得する。
+ * Customer05.FIND_ALL_WITH_ADDRESS
+ * 						Customer05.FIND_ALLと同じ検索で、Address05も同時に取得する。
+ * Customer05.FIND_WITH_PARAM_WITH_ADDRESS
+ * 						"findWithParam"と同じ検索で、Address05も同時に取得する。
  * 
  * また、＠OneToOneアノテーションにより、
  * Address05エンティティへの１対１（一方向）のリレーションが設定されており、cascade属性で
  * PERSIST（永続化）とREMOVE（削除）操作に対してカスケードが行われるように指定されている。
+ * 
+ * addressは遅延ロード（FetchType.LAZY）のため、検索したCustomer05ごとに
+ * getAddress()のプロパティを参照すると、1件ごとにSELECT文が発行される（N+1問題）。
+ * 呼び出し側がAddress05も使用する場合は、以下のいずれかで同時に取得する。
+ * 
+ * ・"LEFT JOIN FETCH c.address"を指定した名前付きクエリ（～_WITH_ADDRESS）を使用する。
+ * ・HibernateのSessionでフェッチプロファイルCustomer05.WITH_ADDRESSを有効にし、
+ * 　EntityManager.find()で主キーにより検索する。
+ * 
+ * Hibernateの＠Tableアノテーションにより、CustomerKeysetPager05のソートキーと
+ * idの組に索引を作成し、キーセット方式のページングで読み込む行を
+ * 各ページの行のみに限定している。これらの索引は、firstName、ageを
+ * 条件とする検索（"findWithParam"など）にも使用される。
+ * また、lastName（とfirstName）を条件とする検索のために、
+ * lastNameとfirstNameの組にも索引を作成している。
+ * 索引はスキーマの生成時（hibernate.hbm2ddl.auto）に作成される。
+ * 
+ * "findWithParam"は、ヒント"org.hibernate.cacheable"により検索結果が
+ * クエリキャッシュに保持され、同じパラメータでの検索はデータベースに
+ * アクセスしない（QueryResultCacheを参照）。クエリキャッシュには検索結果の
+ * 主キーのみが保持されるため、Customer05自身も第2レベルキャッシュ
+ * （＠Cacheable）の対象としている。
  */
 @Entity
 @Table(name = "customer_ex05")
+@org.hibernate.annotations.Table(appliesTo = "customer_ex05", indexes = {
+		@Index(name = "customer_ex05_first_name_id", columnNames = {"first_name", "id"}),
+		@Index(name = "customer_ex05_age_id", columnNames = {"age", "id"}),
+		@Index(name = "customer_ex05_last_name_first_name", columnNames = {"lastName", "first_name"})
+})
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @NamedQueries({		// 名前付きクエリの定義
         @NamedQuery(name = "findAll", query = "SELECT c FROM Customer05 c"),
         @NamedQuery(name = Customer05.FIND_ALL, query = "SELECT c FROM Customer05 c"),
         @NamedQuery(name = "findVincent", query = "SELECT c FROM Customer05 c WHERE c.firstName = 'Vincent'"),
-        @NamedQuery(name = "findWithParam", query = "SELECT c FROM Customer05 c WHERE c.firstName = :fname")
+        @NamedQuery(name = "findWithParam", query = "SELECT c FROM Customer05 c WHERE c.firstName = :fname",
+        		hints = @QueryHint(name = QueryHints.HINT_CACHEABLE, value = "true")),
+        @NamedQuery(name = Customer05.FIND_ALL_WITH_ADDRESS,
+        		query = "SELECT c FROM Customer05 c LEFT JOIN FETCH c.address"),
+        @NamedQuery(name = Customer05.FIND_WITH_PARAM_WITH_ADDRESS,
+        		query = "SELECT c FROM Customer05 c LEFT JOIN FETCH c.address WHERE c.firstName = :fname")
+})
+@FetchProfile(name = Customer05.WITH_ADDRESS, fetchOverrides = {	// フェッチプロファイルの定義
+		@FetchProfile.FetchOverride(entity = Customer05.class, association = "address", mode = FetchMode.JOIN)
 })
 public class Customer05 implements Serializable {
 
     public static final String FIND_ALL = "Customer.findAll";
+    public static final String FIND_ALL_WITH_ADDRESS = "Customer.findAllWithAddress";
+    public static final String FIND_WITH_PARAM_WITH_ADDRESS = "Customer.findWithParamWithAddress";
+
+    /** addressを結合して同時に取得するフェッチプロファイルの名前 */
+    public static final String WITH_ADDRESS = "Customer.withAddress";
 
     private static final long serialVersionUID = 1L;
 
 	@Id
-    @GeneratedValue
+    @GeneratedValue(generator = "customer_ex05_id")
+    @GenericGenerator(name = "customer_ex05_id", strategy = PooledSequenceGenerator.STRATEGY,
+    		parameters = @Parameter(name = "sequence_name", value = "customer_ex05_seq"))
     private Long id;
 	@Column(name = "first_name")
     private String firstName;
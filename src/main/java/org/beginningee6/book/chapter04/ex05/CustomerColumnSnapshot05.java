@@ -0,0 +1,412 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+/**
+ * Customer05とAddress05を結合した行を、列ごとの配列としてメモリ上に
+ * 保持するスナップショット（列指向）。
+ *
+ * 年齢の分布、ageの最小値（DynamicQueryTest.testSubquery）、国ごとの数、
+ * firstNameのDISTINCTといった集計は、Derbyで実行すると毎回表全体を
+ * 読み込むが、このスナップショットに対して実行すればデータベースに
+ * アクセスせず、配列の走査のみで結果が得られる。
+ *
+ * 各列は以下のように保持する。
+ *
+ * ・id			long[]
+ * ・age			int[]（nullの行はBitSetで保持する）
+ * ・firstName	辞書（異なる値の一覧）の番号のint[]
+ * ・country		辞書の番号のint[]
+ *
+ * 検索はselect()で全ての行を選択した後、Selectionの条件のメソッド
+ * （ageBetween()、countryIn()など）で絞り込み、集計のメソッド
+ * （count()、minAge()、countByCountry()など）を呼び出す。
+ *
+ * <pre>
+ * CustomerColumnSnapshot05 snapshot = new CustomerColumnSnapshot05();
+ * snapshot.refresh(em);
+ * Integer minAge = snapshot.select().minAge();
+ * List&lt;Long&gt; youngest = snapshot.select().ageBetween(minAge, minAge).ids();
+ * </pre>
+ *
+ * スナップショットはrefresh()を呼び出した時点のデータであり、以降の
+ * データベースの変更は次のrefresh()まで反映されない。refresh()は新しい
+ * 列を作成してから置き換えるため、実行中の検索には影響しない。
+ */
+public class CustomerColumnSnapshot05 {
+
+	private static final String LOAD_QUERY =
+			"SELECT c.id, c.firstName, c.age, a.id, a.country " +
+			"FROM Customer05 c LEFT JOIN c.address a " +
+			"ORDER BY c.id";
+
+	private static final int FETCH_SIZE = 500;
+
+	private static final int NULL_CODE = -1;
+
+	private volatile Columns columns = new Columns(0, new long[0], new int[0], new BitSet(),
+			new Dictionary(), new int[0], new Dictionary(), new int[0]);
+
+	private volatile long refreshedAt;
+
+	/**
+	 * データベースから全ての行を読み込み、スナップショットを作り直す。
+	 * 読み込みはJDBCのカーソルから1行ずつ行い、エンティティは生成しない。
+	 */
+	public void refresh(EntityManager em) {
+		Builder builder = new Builder();
+
+		ScrollableResults results = em.unwrap(Session.class).createQuery(LOAD_QUERY)
+				.setReadOnly(true)
+				.setFetchSize(FETCH_SIZE)
+				.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (results.next()) {
+				builder.add((Long) results.get(0), (String) results.get(1),
+						(Integer) results.get(2), results.get(3) != null, (String) results.get(4));
+			}
+		} finally {
+			results.close();
+		}
+
+		columns = builder.build();
+		refreshedAt = System.currentTimeMillis();
+	}
+
+	/** 最後にrefresh()を実行した時刻（未実行の場合は0） */
+	public long getRefreshedAt() {
+		return refreshedAt;
+	}
+
+	/** スナップショットの行数 */
+	public int size() {
+		return columns.size;
+	}
+
+	/**
+	 * 全ての行を選択する。
+	 */
+	public Selection select() {
+		Columns current = columns;
+		BitSet rows = new BitSet(current.size);
+		rows.set(0, current.size);
+		return new Selection(current, rows);
+	}
+
+	/**
+	 * スナップショットから選択した行の集合。
+	 *
+	 * 条件のメソッドは、この集合をさらに絞り込んだ新しいSelectionを返す
+	 * （条件はANDで結合される）。元のSelectionは変更されない。
+	 */
+	public static class Selection {
+
+		private final Columns columns;
+		private final BitSet rows;
+
+		private Selection(Columns columns, BitSet rows) {
+			this.columns = columns;
+			this.rows = rows;
+		}
+
+		/** ageがmin以上max以下の行（ageがnullの行は含まない） */
+		public Selection ageBetween(int min, int max) {
+			BitSet result = new BitSet(columns.size);
+			int[] ages = columns.ages;
+			for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+				if (ages[i] >= min && ages[i] <= max && !columns.nullAges.get(i)) {
+					result.set(i);
+				}
+			}
+			return new Selection(columns, result);
+		}
+
+		/** firstNameが指定した値のいずれかと等しい行 */
+		public Selection firstNameIn(String... firstNames) {
+			return codeIn(columns.firstNameCodes, columns.firstNames, firstNames);
+		}
+
+		/** address.countryが指定した値のいずれかと等しい行 */
+		public Selection countryIn(String... countries) {
+			return codeIn(columns.countryCodes, columns.countries, countries);
+		}
+
+		/**
+		 * 辞書の番号の列を、値の代わりに番号で比較して絞り込む。
+		 * 辞書にない値とnullは、SQLのIN述語と同様にどの行とも一致しない。
+		 */
+		private Selection codeIn(int[] codes, Dictionary dictionary, String[] values) {
+			BitSet wanted = new BitSet(dictionary.size());
+			for (String value : values) {
+				int code = value == null ? NULL_CODE : dictionary.codeOf(value);
+				if (code != NULL_CODE) {
+					wanted.set(code);
+				}
+			}
+
+			BitSet result = new BitSet(columns.size);
+			for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+				if (codes[i] != NULL_CODE && wanted.get(codes[i])) {
+					result.set(i);
+				}
+			}
+			return new Selection(columns, result);
+		}
+
+		/** 選択した行の数（COUNT(c)） */
+		public int count() {
+			return rows.cardinality();
+		}
+
+		/** 選択した行のidをidの昇順で返す */
+		public List<Long> ids() {
+			List<Long> ids = new ArrayList<Long>(count());
+			for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+				ids.add(columns.ids[i]);
+			}
+			return ids;
+		}
+
+		/** ageの最小値（MIN(c.age)）。対象の行がなければnull */
+		public Integer minAge() {
+			boolean found = false;
+			int min = Integer.MAX_VALUE;
+			for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+				if (!columns.nullAges.get(i)) {
+					min = Math.min(min, columns.ages[i]);
+					found = true;
+				}
+			}
+			return found ? min : null;
+		}
+
+		/** ageの最大値（MAX(c.age)）。対象の行がなければnull */
+		public Integer maxAge() {
+			boolean found = false;
+			int max = Integer.MIN_VALUE;
+			for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+				if (!columns.nullAges.get(i)) {
+					max = Math.max(max, columns.ages[i]);
+					found = true;
+				}
+			}
+			return found ? max : null;
+		}
+
+		/** ageの平均値（AVG(c.age)）。対象の行がなければnull */
+		public Double averageAge() {
+			long sum = 0;
+			int count = 0;
+			for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+				if (!columns.nullAges.get(i)) {
+					sum += columns.ages[i];
+					count++;
+				}
+			}
+			return count == 0 ? null : (double) sum / count;
+		}
+
+		/**
+		 * ageをbucketWidth歳ごとに区切った分布を返す。キーは各区間の下限
+		 * （0～9歳は0、10～19歳は10）、値はその区間の行の数。
+		 * ageがnullの行は含まない。
+		 */
+		public SortedMap<Integer, Long> ageHistogram(int bucketWidth) {
+			if (bucketWidth < 1) {
+				throw new IllegalArgumentException("bucketWidth must be positive: " + bucketWidth);
+			}
+			SortedMap<Integer, Long> histogram = new TreeMap<Integer, Long>();
+			for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+				if (!columns.nullAges.get(i)) {
+					int bucket = (int) Math.floor((double) columns.ages[i] / bucketWidth) * bucketWidth;
+					Long count = histogram.get(bucket);
+					histogram.put(bucket, count == null ? 1L : count + 1);
+				}
+			}
+			return histogram;
+		}
+
+		/**
+		 * address.countryごとの行の数を、countryの昇順（nullは最後）で返す。
+		 * 「GROUP BY c.address.country ORDER BY c.address.country」と同じ
+		 * 結果となる（addressがない行は含まない）。
+		 */
+		public List<CustomerCountryCountDTO05> countByCountry() {
+			long[] counts = new long[columns.countries.size()];
+			for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+				if (columns.countryCodes[i] != NULL_CODE) {
+					counts[columns.countryCodes[i]]++;
+				}
+			}
+
+			List<CustomerCountryCountDTO05> results = new ArrayList<CustomerCountryCountDTO05>();
+			for (int code : columns.countries.sortedCodes()) {
+				if (counts[code] > 0) {
+					results.add(new CustomerCountryCountDTO05(columns.countries.valueOf(code), counts[code]));
+				}
+			}
+			return results;
+		}
+
+		/**
+		 * firstNameの異なる値を昇順で返す（SELECT DISTINCT c.firstName）。
+		 * nullは含まない。
+		 */
+		public List<String> distinctFirstNames() {
+			BitSet present = new BitSet(columns.firstNames.size());
+			for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+				if (columns.firstNameCodes[i] != NULL_CODE) {
+					present.set(columns.firstNameCodes[i]);
+				}
+			}
+
+			List<String> results = new ArrayList<String>(present.cardinality());
+			for (int code : columns.firstNames.sortedCodes()) {
+				if (present.get(code)) {
+					results.add(columns.firstNames.valueOf(code));
+				}
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * 文字列の列の辞書。異なる値ごとに0からの番号を割り当てる。
+	 * countryのnullには番号が割り当てられ、addressがない行はNULL_CODEとなる
+	 * （GROUP BYでは、countryがnullの行は1つのグループとなるが、
+	 * addressがない行は結合により除かれるため）。
+	 */
+	private static class Dictionary {
+
+		private final List<String> values = new ArrayList<String>();
+		private final Map<String, Integer> codes = new HashMap<String, Integer>();
+		private int[] sortedCodes;
+
+		int encode(String value) {
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = values.size();
+				values.add(value);
+				codes.put(value, code);
+			}
+			return code;
+		}
+
+		/** 値の番号。辞書にない値はNULL_CODE */
+		int codeOf(String value) {
+			Integer code = codes.get(value);
+			return code == null ? NULL_CODE : code;
+		}
+
+		String valueOf(int code) {
+			return values.get(code);
+		}
+
+		int size() {
+			return values.size();
+		}
+
+		/** 値の昇順（nullは最後）に並べた番号。構築後に一度だけ求める */
+		int[] sortedCodes() {
+			return sortedCodes;
+		}
+
+		void freeze() {
+			List<String> sorted = new ArrayList<String>(values);
+			sorted.remove(null);
+			Collections.sort(sorted);
+			if (codes.containsKey(null)) {
+				sorted.add(null);
+			}
+			sortedCodes = new int[sorted.size()];
+			for (int i = 0; i < sortedCodes.length; i++) {
+				sortedCodes[i] = codes.get(sorted.get(i));
+			}
+		}
+	}
+
+	/**
+	 * 1回のrefresh()で作成される列の組（作成後は変更しない）。
+	 */
+	private static class Columns {
+
+		final int size;
+		final long[] ids;
+		final int[] ages;
+		final BitSet nullAges;
+		final Dictionary firstNames;
+		final int[] firstNameCodes;
+		final Dictionary countries;
+		final int[] countryCodes;
+
+		Columns(int size, long[] ids, int[] ages, BitSet nullAges,
+				Dictionary firstNames, int[] firstNameCodes,
+				Dictionary countries, int[] countryCodes) {
+			this.size = size;
+			this.ids = ids;
+			this.ages = ages;
+			this.nullAges = nullAges;
+			this.firstNames = firstNames;
+			this.firstNameCodes = firstNameCodes;
+			this.countries = countries;
+			this.countryCodes = countryCodes;
+			firstNames.freeze();
+			countries.freeze();
+		}
+	}
+
+	/**
+	 * 読み込んだ行を列ごとの配列に追加していくクラス。
+	 * 配列は容量が足りなくなるたびに2倍に拡張する。
+	 */
+	private static class Builder {
+
+		private int size;
+		private long[] ids = new long[FETCH_SIZE];
+		private int[] ages = new int[FETCH_SIZE];
+		private final BitSet nullAges = new BitSet();
+		private final Dictionary firstNames = new Dictionary();
+		private int[] firstNameCodes = new int[FETCH_SIZE];
+		private final Dictionary countries = new Dictionary();
+		private int[] countryCodes = new int[FETCH_SIZE];
+
+		void add(Long id, String firstName, Integer age, boolean hasAddress, String country) {
+			if (size == ids.length) {
+				int capacity = size * 2;
+				ids = Arrays.copyOf(ids, capacity);
+				ages = Arrays.copyOf(ages, capacity);
+				firstNameCodes = Arrays.copyOf(firstNameCodes, capacity);
+				countryCodes = Arrays.copyOf(countryCodes, capacity);
+			}
+
+			ids[size] = id;
+			if (age == null) {
+				nullAges.set(size);
+			} else {
+				ages[size] = age;
+			}
+			firstNameCodes[size] = firstName == null ? NULL_CODE : firstNames.encode(firstName);
+			countryCodes[size] = hasAddress ? countries.encode(country) : NULL_CODE;
+			size++;
+		}
+
+		Columns build() {
+			return new Columns(size, ids, ages, nullAges,
+					firstNames, firstNameCodes, countries, countryCodes);
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.cache.spi.UpdateTimestampsCache;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.proxy.HibernateProxy;
+
+/**
+ * address.countryごとのCustomer05の数をメモリ上に保持し、
+ * Customer05とAddress05の変更のたびに差分のみ更新する集計クラス。
+ *
+ * DynamicQueryTest.testGROUP_BYの以下の検索は、実行するたびに全ての
+ * Customer05とAddress05を結合して集計するため、顧客数に比例して遅くなる。
+ *
+ * SELECT NEW ...CustomerCountryCountDTO05(c.address.country, COUNT(c))
+ * FROM Customer05 c GROUP BY c.address.country ORDER BY c.address.country ASC
+ *
+ * getCounts()はこの検索と同じ結果をデータベースにアクセスせずに返し、
+ * 処理量は国の数のみに比例する。HAVING句に相当する絞り込みは
+ * getCounts(Having)で指定する。
+ *
+ * register()でEntityManagerFactoryのイベント（POST_INSERT、POST_UPDATE、
+ * POST_DELETE）のリスナとして登録され、以下の変更をトランザクションの
+ * コミット後に反映する（ロールバックされた変更は反映されない）。
+ * Hibernate 4.2のPOST_COMMIT_～イベントはロールバック時にも発生するため
+ * 使用していない。
+ *
+ * ・Customer05の追加、削除
+ * ・Customer05のaddressの変更
+ * ・Address05のcountryの変更
+ *
+ * 差分を求めるため、Customer05ごとに参照するAddress05の主キーと、
+ * 参照されているAddress05ごとにcountryも保持する。
+ *
+ * JPQLの一括更新、一括削除はエンティティのイベントを発生させないため、
+ * executeUpdate()で実行すること。一括操作では変更された行がわからないため、
+ * コミット後に次の参照時に全体を再集計する（初回の参照時も同様）。
+ *
+ * executeUpdate()を使わない一括操作やネイティブSQLによる変更に備えて、
+ * クエリキャッシュが有効な場合は、Hibernateの更新タイムスタンプキャッシュ
+ * （UpdateTimestampsCache）が保持するcustomer_ex05、address_ex05の
+ * 最終更新時刻を参照時と差分の反映時に確認する。集計に反映した時刻より
+ * 後にコミットされた変更があれば、次の参照時に全体を再集計する。
+ * ただし、差分を反映したトランザクションと同じトランザクション内の
+ * 一括操作や、そのコミットの直後にコミットされた変更は検出できない。
+ */
+public class CustomerCountryCounter05 implements PostInsertEventListener,
+		PostUpdateEventListener, PostDeleteEventListener {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String LOAD_QUERY =
+			"SELECT c.id, a.id, a.country FROM Customer05 c JOIN c.address a";
+
+	/**
+	 * HAVING句に相当する、集計結果の絞り込み条件
+	 */
+	public interface Having {
+		boolean accept(String country, long count);
+	}
+
+	/** GROUP BYのORDER BY country ASCと同じく、nullを最後とする順序 */
+	private static final Comparator<String> COUNTRY_ORDER = new Comparator<String>() {
+		public int compare(String c1, String c2) {
+			if (c1 == null) {
+				return c2 == null ? 0 : 1;
+			}
+			return c2 == null ? -1 : c1.compareTo(c2);
+		}
+	};
+
+	private final transient EntityManagerFactory emf;
+
+	/** 更新タイムスタンプキャッシュ（クエリキャッシュが無効の場合はnull） */
+	private final transient UpdateTimestampsCache timestamps;
+
+	/** Customer05、Address05のテーブル名 */
+	private final Set<Serializable> spaces = new LinkedHashSet<Serializable>();
+
+	/** 集計に反映済みの変更の時刻（更新タイムスタンプキャッシュの時刻） */
+	private long syncedTimestamp;
+
+	/** countryごとのCustomer05の数（0件の国は保持しない） */
+	private final SortedMap<String, Long> counts = new TreeMap<String, Long>(COUNTRY_ORDER);
+
+	/** Customer05の主キー → 参照するAddress05の主キー */
+	private final Map<Object, Object> customerAddresses = new HashMap<Object, Object>();
+
+	/** Customer05から参照されているAddress05の主キー → country */
+	private final Map<Object, String> addressCountries = new HashMap<Object, String>();
+
+	/** Customer05から参照されているAddress05の主キー → 参照しているCustomer05の数 */
+	private final Map<Object, Integer> addressReferences = new HashMap<Object, Integer>();
+
+	/** 次の参照時に全体を再集計する必要があるかどうか */
+	private boolean stale = true;
+
+	private CustomerCountryCounter05(EntityManagerFactory emf, SessionFactoryImplementor sessionFactory) {
+		this.emf = emf;
+		this.timestamps = sessionFactory.getUpdateTimestampsCache();
+		spaces.addAll(Arrays.asList(sessionFactory.getEntityPersister(Customer05.class.getName()).getQuerySpaces()));
+		spaces.addAll(Arrays.asList(sessionFactory.getEntityPersister(Address05.class.getName()).getQuerySpaces()));
+	}
+
+	/**
+	 * EntityManagerFactoryのイベントリスナとして登録した集計を返す。
+	 * 同じEntityManagerFactoryに対しては1度だけ呼び出すこと。
+	 */
+	public static CustomerCountryCounter05 register(EntityManagerFactory emf) {
+		SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor)
+				((HibernateEntityManagerFactory) emf).getSessionFactory();
+		CustomerCountryCounter05 counter = new CustomerCountryCounter05(emf, sessionFactory);
+
+		EventListenerRegistry registry =
+				sessionFactory.getServiceRegistry().getService(EventListenerRegistry.class);
+		registry.appendListeners(EventType.POST_INSERT, counter);
+		registry.appendListeners(EventType.POST_UPDATE, counter);
+		registry.appendListeners(EventType.POST_DELETE, counter);
+		return counter;
+	}
+
+	/**
+	 * countryごとのCustomer05の数を、countryの昇順で返す。
+	 */
+	public List<CustomerCountryCountDTO05> getCounts() {
+		return getCounts(null);
+	}
+
+	/**
+	 * countryごとのCustomer05の数のうち、条件を満たすものをcountryの昇順で返す。
+	 * havingがnullの場合は全てを返す。
+	 */
+	public synchronized List<CustomerCountryCountDTO05> getCounts(Having having) {
+		if (stale || isModifiedSince(syncedTimestamp)) {
+			load();
+		}
+
+		List<CustomerCountryCountDTO05> results = new ArrayList<CustomerCountryCountDTO05>(counts.size());
+		for (Map.Entry<String, Long> entry : counts.entrySet()) {
+			if (having == null || having.accept(entry.getKey(), entry.getValue())) {
+				results.add(new CustomerCountryCountDTO05(entry.getKey(), entry.getValue()));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * 数がminCount以上の国のみを選ぶ条件（HAVING COUNT(c) >= minCount）
+	 */
+	public static Having minCount(final long minCount) {
+		return new Having() {
+			public boolean accept(String country, long count) {
+				return count >= minCount;
+			}
+		};
+	}
+
+	/**
+	 * Customer05、Address05に対するJPQLの一括更新、一括削除を実行する。
+	 * トランザクションがコミットされると、次の参照時に全体を再集計する。
+	 */
+	public int executeUpdate(EntityManager em, Query query) {
+		int count = query.executeUpdate();
+		((EventSource) em.unwrap(Session.class)).getActionQueue().registerProcess(
+				new AfterTransactionCompletionProcess() {
+					public void doAfterTransactionCompletion(boolean success, SessionImplementor session) {
+						if (success) {
+							invalidate();
+						}
+					}
+				});
+		return count;
+	}
+
+	/**
+	 * 保持している集計を破棄し、次の参照時に全体を再集計する。
+	 */
+	public synchronized void invalidate() {
+		stale = true;
+		counts.clear();
+		customerAddresses.clear();
+		addressCountries.clear();
+		addressReferences.clear();
+	}
+
+	/**
+	 * timestampより後に、Customer05、Address05のテーブルへの変更が
+	 * コミットされたかどうか。
+	 */
+	private boolean isModifiedSince(long timestamp) {
+		if (timestamps == null) {
+			return false;
+		}
+		long now = nextTimestamp();
+		for (Serializable space : spaces) {
+			Long lastUpdate = (Long) timestamps.getRegion().get(space);
+			// 現在より後の時刻は、コミット前のトランザクションが事前に設定したもの
+			if (lastUpdate != null && lastUpdate > timestamp && lastUpdate <= now) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private long nextTimestamp() {
+		return timestamps == null ? 0 : timestamps.getRegion().nextTimestamp();
+	}
+
+	/** 反映していない変更がコミットされていれば、保持している集計を破棄する */
+	private synchronized void checkModified() {
+		if (!stale && isModifiedSince(syncedTimestamp)) {
+			invalidate();
+		}
+	}
+
+	private void load() {
+		invalidate();
+
+		// 集計中にコミットされた変更は、次の参照時に検出する
+		long timestamp = nextTimestamp();
+		EntityManager em = emf.createEntityManager();
+		try {
+			@SuppressWarnings("unchecked")
+			List<Object[]> rows = em.createQuery(LOAD_QUERY).getResultList();
+			for (Object[] row : rows) {
+				addCustomer(row[0], row[1], (String) row[2]);
+			}
+		} finally {
+			em.close();
+		}
+		syncedTimestamp = timestamp;
+		stale = false;
+	}
+
+	public void onPostInsert(PostInsertEvent event) {
+		if (event.getEntity() instanceof Customer05) {
+			afterCommit(event.getSession(), event.getEntity(), null);
+		}
+	}
+
+	public void onPostUpdate(PostUpdateEvent event) {
+		if (event.getEntity() instanceof Customer05 || event.getEntity() instanceof Address05) {
+			afterCommit(event.getSession(), event.getEntity(), null);
+		}
+	}
+
+	public void onPostDelete(PostDeleteEvent event) {
+		if (event.getEntity() instanceof Customer05) {
+			afterCommit(event.getSession(), null, event.getId());
+		}
+	}
+
+	/**
+	 * トランザクションがコミットされた場合のみ、エンティティの変更を集計に反映する。
+	 * entityは追加、更新されたエンティティ、removedIdは削除されたCustomer05の主キー。
+	 *
+	 * このトランザクションの変更により更新タイムスタンプキャッシュの時刻が
+	 * 更新される前（フラッシュ時と完了直後）に、反映していない変更を確認し、
+	 * Hibernateが時刻を更新した後に、反映済みの時刻を進める。
+	 */
+	private void afterCommit(EventSource session, final Object entity, final Object removedId) {
+		checkModified();
+		session.getActionQueue().registerProcess(new AfterTransactionCompletionProcess() {
+			public void doAfterTransactionCompletion(boolean success, SessionImplementor session) {
+				checkModified();
+				if (!success) {
+					return;
+				}
+				if (entity instanceof Customer05) {
+					updateCustomer((Customer05) entity);
+				} else if (entity instanceof Address05) {
+					updateAddress((Address05) entity);
+				} else {
+					removeCustomer(removedId);
+				}
+			}
+		});
+		if (timestamps != null) {
+			session.getTransaction().registerSynchronization(new Synchronization() {
+				public void beforeCompletion() {
+				}
+
+				public void afterCompletion(int status) {
+					// ロールバックした場合も、Hibernateは事前に設定した時刻を更新する
+					synced();
+				}
+			});
+		}
+	}
+
+	private synchronized void synced() {
+		if (!stale) {
+			syncedTimestamp = nextTimestamp();
+		}
+	}
+
+	private synchronized void updateCustomer(Customer05 customer) {
+		if (stale) {
+			return;
+		}
+		Address05 address = customer.getAddress();
+		Object addressId = address == null ? null : idOf(address);
+		Object oldAddressId = customerAddresses.get(customer.getId());
+		if (addressId == null ? oldAddressId == null : addressId.equals(oldAddressId)) {
+			return;	// addressが変更されていない
+		}
+
+		removeCustomer(customer.getId());
+		if (address != null) {
+			// 既に参照されているAddress05のcountryは保持している値を使用する
+			String country = addressCountries.containsKey(addressId)
+					? addressCountries.get(addressId) : address.getCountry();
+			addCustomer(customer.getId(), addressId, country);
+		}
+	}
+
+	/** プロキシを初期化せずにAddress05の主キーを取得する */
+	private static Object idOf(Address05 address) {
+		if (address instanceof HibernateProxy) {
+			return ((HibernateProxy) address).getHibernateLazyInitializer().getIdentifier();
+		}
+		return address.getId();
+	}
+
+	private synchronized void updateAddress(Address05 address) {
+		if (stale || !addressCountries.containsKey(address.getId())) {
+			return;	// Customer05から参照されていないAddress05は集計に影響しない
+		}
+		String oldCountry = addressCountries.put(address.getId(), address.getCountry());
+		int references = addressReferences.get(address.getId());
+		add(oldCountry, -references);
+		add(address.getCountry(), references);
+	}
+
+	private void addCustomer(Object customerId, Object addressId, String country) {
+		customerAddresses.put(customerId, addressId);
+		Integer references = addressReferences.get(addressId);
+		if (references == null) {
+			addressCountries.put(addressId, country);
+			references = 0;
+		}
+		addressReferences.put(addressId, references + 1);
+		add(addressCountries.get(addressId), 1);
+	}
+
+	private synchronized void removeCustomer(Object customerId) {
+		if (stale) {
+			return;
+		}
+		Object addressId = customerAddresses.remove(customerId);
+		if (addressId == null) {
+			return;
+		}
+		add(addressCountries.get(addressId), -1);
+		int references = addressReferences.get(addressId) - 1;
+		if (references == 0) {
+			addressReferences.remove(addressId);
+			addressCountries.remove(addressId);
+		} else {
+			addressReferences.put(addressId, references);
+		}
+	}
+
+	private void add(String country, long delta) {
+		Long count = counts.get(country);
+		long newCount = (count == null ? 0 : count) + delta;
+		if (newCount == 0) {
+			counts.remove(country);
+		} else {
+			counts.put(country, newCount);
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+/**
+ * CSVファイルから顧客データを読み込み、Customer05/Address05エンティティの
+ * 組として永続化する一括取り込みクラス。
+ *
+ * 1つのEntityManagerで全ての行を1トランザクションで永続化すると、
+ * 永続性コンテキストに管理対象のエンティティが蓄積され続けるため、
+ * 大量のデータではヒープを使い果たしてしまう。
+ *
+ * このクラスでは、ファイルを1行ずつ読み込みながら、チャンクサイズ件ごとに
+ * コミットしてEntityManager.clear()で永続性コンテキストを空にするため、
+ * 入力の件数に関係なく使用するメモリは一定となる。
+ *
+ * また、チェックポイントファイルを指定すると、チャンクのコミットごとに
+ * コミット済みの行数を記録する。取り込みが途中で失敗した場合は、
+ * 同じチェックポイントファイルを指定して再実行すると、コミット済みの
+ * 行を読み飛ばして続きから取り込みを再開する。
+ * 全ての行の取り込みが完了すると、チェックポイントファイルは削除される。
+ *
+ * CSVファイルの1行目はヘッダ行として読み飛ばす。2行目以降の各行は
+ * 以下の順で項目を持つこと（"で囲んだ項目には,や""を含めることができる）。
+ *
+ * firstName,lastName,email,age,street1,city,zipcode,country
+ */
+public class CustomerCsvImporter05 {
+
+	private static final Logger logger = Logger.getLogger(CustomerCsvImporter05.class.getName());
+
+	/** チャンクサイズの既定値 */
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+	private static final int COLUMNS = 8;
+
+	private final EntityManagerFactory emf;
+
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private File checkpointFile;
+
+	public CustomerCsvImporter05(EntityManagerFactory emf) {
+		this.emf = emf;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * 1回のトランザクションでコミットする行数を設定する。
+	 * JDBCのバッチサイズ（hibernate.jdbc.batch_size）の倍数にしておくと、
+	 * 各バッチ実行でまとめて送信される行数が揃う。
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public File getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	/**
+	 * コミット済みの行数を記録するチェックポイントファイルを設定する。
+	 * nullの場合（既定）はチェックポイントを記録せず、再開もしない。
+	 */
+	public void setCheckpointFile(File checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+
+	/**
+	 * UTF-8で記述されたCSVファイルを取り込む。
+	 */
+	public Result importFile(File csvFile) throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(csvFile), "UTF-8");
+		try {
+			return importFrom(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Readerから読み込んだCSVを取り込む。Readerのクローズは呼び出し側で行う。
+	 */
+	public Result importFrom(Reader reader) throws IOException {
+		BufferedReader in = new BufferedReader(reader);
+
+		long resumeFrom = readCheckpoint();
+		long startTime = System.nanoTime();
+
+		long lineNumber = 0;
+		long skipped = 0;
+		long imported = 0;
+		int chunks = 0;
+
+		EntityManager em = createEntityManager();
+		try {
+			EntityTransaction tx = em.getTransaction();
+			int inChunk = 0;
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				if (lineNumber == 1 || line.length() == 0) {
+					continue;	// ヘッダ行と空行は読み飛ばす
+				}
+				if (skipped < resumeFrom) {
+					skipped++;		// 前回までにコミット済みの行
+					continue;
+				}
+
+				Customer05 customer = toCustomer(parseLine(line, lineNumber), lineNumber);
+
+				if (inChunk == 0) {
+					tx.begin();
+				}
+				em.persist(customer);	// Address05もカスケードにより永続化される
+				inChunk++;
+
+				if (inChunk == chunkSize) {
+					commitChunk(em, tx);
+					imported += inChunk;
+					inChunk = 0;
+					chunks++;
+					writeCheckpoint(resumeFrom + imported);
+				}
+			}
+
+			if (inChunk > 0) {
+				commitChunk(em, tx);
+				imported += inChunk;
+				chunks++;
+			}
+		} finally {
+			if (em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
+			}
+			em.close();
+		}
+
+		deleteCheckpoint();
+
+		Result result = new Result(imported, skipped, chunks, System.nanoTime() - startTime);
+		logger.info(result.toString());
+		return result;
+	}
+
+	/**
+	 * 取り込みに使用するEntityManagerを作成する。
+	 * PersistenceContextMonitorなどで包む場合はオーバーライドすること。
+	 */
+	protected EntityManager createEntityManager() {
+		return emf.createEntityManager();
+	}
+
+	private void commitChunk(EntityManager em, EntityTransaction tx) {
+		tx.commit();
+		// 永続性コンテキストを空にし、コミット済みのエンティティを解放する
+		em.clear();
+	}
+
+	private static Customer05 toCustomer(List<String> fields, long lineNumber) {
+		if (fields.size() != COLUMNS) {
+			throw new IllegalArgumentException("Line " + lineNumber + ": expected "
+					+ COLUMNS + " columns but found " + fields.size());
+		}
+
+		Integer age;
+		try {
+			age = fields.get(3).length() == 0 ? null : Integer.valueOf(fields.get(3).trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Line " + lineNumber
+					+ ": invalid age '" + fields.get(3) + "'", e);
+		}
+
+		Customer05 customer = new Customer05(fields.get(0), fields.get(1), fields.get(2), age);
+		customer.setAddress(new Address05(fields.get(4), fields.get(5), fields.get(6), fields.get(7)));
+		return customer;
+	}
+
+	/**
+	 * CSVの1行を項目に分割する。
+	 * "で囲まれた項目では、,を項目の区切りとみなさず、""を"とみなす。
+	 */
+	static List<String> parseLine(String line, long lineNumber) {
+		List<String> fields = new ArrayList<String>(COLUMNS);
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"') {
+					if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+						field.append('"');
+						i++;
+					} else {
+						quoted = false;
+					}
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		if (quoted) {
+			throw new IllegalArgumentException("Line " + lineNumber + ": unterminated quote");
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	private long readCheckpoint() throws IOException {
+		if (checkpointFile == null || !checkpointFile.exists()) {
+			return 0;
+		}
+		BufferedReader in = new BufferedReader(
+				new InputStreamReader(new FileInputStream(checkpointFile), "UTF-8"));
+		try {
+			String value = in.readLine();
+			return value == null ? 0 : Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid checkpoint file: " + checkpointFile, e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * コミット済みの行数をチェックポイントファイルに記録する。
+	 * 書き込み途中で失敗しても記録が壊れないよう、一時ファイルに
+	 * 書き込んでから置き換える。
+	 */
+	private void writeCheckpoint(long committedRows) throws IOException {
+		if (checkpointFile == null) {
+			return;
+		}
+		File tmp = new File(checkpointFile.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			out.write(String.valueOf(committedRows));
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(checkpointFile)) {
+			// renameで上書きできないプラットフォームでは、削除してから置き換える
+			if (!checkpointFile.delete() || !tmp.renameTo(checkpointFile)) {
+				throw new IOException("Could not write checkpoint file: " + checkpointFile);
+			}
+		}
+	}
+
+	private void deleteCheckpoint() throws IOException {
+		if (checkpointFile != null && checkpointFile.exists() && !checkpointFile.delete()) {
+			throw new IOException("Could not delete checkpoint file: " + checkpointFile);
+		}
+	}
+
+	/**
+	 * 取り込みの結果。
+	 */
+	public static class Result {
+
+		private final long importedRows;
+		private final long skippedRows;
+		private final int chunks;
+		private final long elapsedNanos;
+
+		Result(long importedRows, long skippedRows, int chunks, long elapsedNanos) {
+			this.importedRows = importedRows;
+			this.skippedRows = skippedRows;
+			this.chunks = chunks;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/** 今回の実行で永続化した行数 */
+		public long getImportedRows() {
+			return importedRows;
+		}
+
+		/** チェックポイントにより読み飛ばした（前回までにコミット済みの）行数 */
+		public long getSkippedRows() {
+			return skippedRows;
+		}
+
+		/** 今回の実行でコミットしたチャンクの数 */
+		public int getChunks() {
+			return chunks;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/** 1秒あたりに永続化した行数 */
+		public double getRowsPerSecond() {
+			return elapsedNanos == 0 ? 0 : importedRows * 1000000000.0 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return "Result [importedRows=" + importedRows + ", skippedRows="
+					+ skippedRows + ", chunks=" + chunks + ", elapsedMillis="
+					+ elapsedNanos / 1000000 + ", rowsPerSecond="
+					+ Math.round(getRowsPerSecond()) + "]";
+		}
+	}
+}
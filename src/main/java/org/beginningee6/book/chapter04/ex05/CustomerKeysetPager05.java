@@ -0,0 +1,256 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+/**
+ * Customer05エンティティを、キーセット（シーク）方式でページ単位に
+ * 取得するクラス。
+ *
+ * setFirstResult()によるページングでは、データベースは読み飛ばす行も
+ * 全て読み込んでソートしてから捨てるため、後ろのページほど時間がかかる。
+ *
+ * このクラスでは、前のページの最後の行の（ソートキー, id）をカーソルとして
+ * 保持し、次のページを以下の条件で検索する。
+ *
+ * WHERE ソートキー >= :key AND (ソートキー > :key OR id > :id)
+ * ORDER BY ソートキー, id
+ *
+ * 読み飛ばす行が発生しないため、（ソートキー, id）に索引があれば
+ * 何ページ目であってもほぼ一定の時間で取得できる。
+ * ソートキーが同じ値の行の順序はidで一意に決まるため、ページの境界で
+ * 行が重複したり欠落したりすることはない。
+ *
+ * ソートキーの値がnullの行は、Derbyの昇順のソートと同じく最後に（idの順に）
+ * 並ぶ。また、ZIPCODEでソートする場合、addressがnullのCustomer05は
+ * 検索されない（ORDER BY c.address.zipcodeと同じく内部結合となる）。
+ *
+ * 使用例：
+ *
+ * CustomerKeysetPager05 pager =
+ * 		new CustomerKeysetPager05(em, CustomerKeysetPager05.Order.AGE, 20);
+ * CustomerKeysetPager05.Page page = pager.firstPage();
+ * while (page.hasNext()) {
+ * 	page = pager.nextPage(page.getNextCursor());
+ * }
+ */
+public class CustomerKeysetPager05 {
+
+	/**
+	 * ソートキー。
+	 *
+	 * ソートキーが同じ値の行の順序を一意に決めるidには、ソートキーと
+	 * 同じテーブルの主キーを使用する（ZIPCODEではAddress05のid）。
+	 * これにより、（ソートキー, id）の索引の順に行を読み込むことができる。
+	 */
+	public enum Order {
+		FIRST_NAME("c.firstName", "c.id", ""),
+		AGE("c.age", "c.id", ""),
+		ZIPCODE("a.zipcode", "a.id", "JOIN c.address a ");
+
+		private final String path;
+		private final String idPath;
+		private final String join;
+
+		private Order(String path, String idPath, String join) {
+			this.path = path;
+			this.idPath = idPath;
+			this.join = join;
+		}
+
+		/** ソートキーのパス式 */
+		public String getPath() {
+			return path;
+		}
+
+		/** ソートキーが同じ値の行の順序を決めるidのパス式 */
+		public String getIdPath() {
+			return idPath;
+		}
+
+		/** ソートキーのパス式で使用する結合（「FROM Customer05 c」に続ける） */
+		public String getJoin() {
+			return join;
+		}
+	}
+
+	private final EntityManager em;
+	private final Order order;
+	private final int pageSize;
+
+	private final String firstPageJpql;
+	private final String nextPageJpql;
+	private final String nullKeyPageJpql;
+	private final String firstNullKeyPageJpql;
+
+	public CustomerKeysetPager05(EntityManager em, Order order, int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+		}
+		this.em = em;
+		this.order = order;
+		this.pageSize = pageSize;
+
+		String key = order.getPath();
+		String id = order.getIdPath();
+		String select = "SELECT c, " + key + ", " + id + " FROM Customer05 c " + order.join;
+
+		// OR条件で索引の検索範囲が決まらなくなるのを避けるため、
+		// 「key >= :key」を独立した条件として記述する。
+		// また、Derbyでは「key >= :key」を索引の開始位置として使用した場合に
+		// 索引の末尾にあるnullの行が返されることがあるため、
+		// 「key IS NOT NULL」を明示する
+		this.firstPageJpql = select
+				+ "WHERE " + key + " IS NOT NULL ORDER BY " + key + ", " + id;
+		this.nextPageJpql = select
+				+ "WHERE " + key + " >= :key AND " + key + " IS NOT NULL"
+				+ " AND (" + key + " > :key OR " + id + " > :id)"
+				+ " ORDER BY " + key + ", " + id;
+		// nullのキーの行もORDER BYは索引と同じ（key, id）とする
+		this.firstNullKeyPageJpql = select
+				+ "WHERE " + key + " IS NULL ORDER BY " + key + ", " + id;
+		this.nullKeyPageJpql = select
+				+ "WHERE " + key + " IS NULL AND " + id + " > :id ORDER BY " + key + ", " + id;
+	}
+
+	public Order getOrder() {
+		return order;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * 最初のページを取得する。
+	 */
+	public Page firstPage() {
+		return fetch(em.createQuery(firstPageJpql, Object[].class), true);
+	}
+
+	/**
+	 * カーソルが指す行の次の行から始まるページを取得する。
+	 */
+	public Page nextPage(Cursor after) {
+		if (after == null) {
+			return firstPage();
+		}
+		if (after.getOrder() != order) {
+			throw new IllegalArgumentException("Cursor for " + after.getOrder()
+					+ " cannot be used with " + order);
+		}
+
+		if (after.getKey() == null) {
+			TypedQuery<Object[]> query = em.createQuery(nullKeyPageJpql, Object[].class);
+			query.setParameter("id", after.getId());
+			return fetch(query, false);
+		}
+
+		TypedQuery<Object[]> query = em.createQuery(nextPageJpql, Object[].class);
+		query.setParameter("key", after.getKey());
+		query.setParameter("id", after.getId());
+		return fetch(query, true);
+	}
+
+	/**
+	 * 1件多く取得し、次のページがあるかどうかを判定する。
+	 *
+	 * ソートキーの値がnullの行はnull以外の行の後に並ぶため、null以外の行が
+	 * ページの途中で尽きた場合は、残りをnullの行の先頭から取得する。
+	 */
+	private Page fetch(TypedQuery<Object[]> query, boolean continueWithNullKeys) {
+		query.setMaxResults(pageSize + 1);
+		List<Object[]> rows = new ArrayList<Object[]>(query.getResultList());
+
+		if (continueWithNullKeys && rows.size() <= pageSize) {
+			TypedQuery<Object[]> nullKeys = em.createQuery(firstNullKeyPageJpql, Object[].class);
+			nullKeys.setMaxResults(pageSize + 1 - rows.size());
+			rows.addAll(nullKeys.getResultList());
+		}
+
+		int size = Math.min(rows.size(), pageSize);
+		List<Customer05> customers = new ArrayList<Customer05>(size);
+		for (int i = 0; i < size; i++) {
+			customers.add((Customer05) rows.get(i)[0]);
+		}
+
+		Cursor next = null;
+		if (rows.size() > pageSize) {
+			Object[] last = rows.get(pageSize - 1);
+			next = new Cursor(order, last[1], (Long) last[2]);
+		}
+		return new Page(customers, next);
+	}
+
+	/**
+	 * 取得したページ。
+	 */
+	public static class Page {
+
+		private final List<Customer05> customers;
+		private final Cursor nextCursor;
+
+		Page(List<Customer05> customers, Cursor nextCursor) {
+			this.customers = Collections.unmodifiableList(customers);
+			this.nextCursor = nextCursor;
+		}
+
+		public List<Customer05> getCustomers() {
+			return customers;
+		}
+
+		/** 次のページがあるかどうか */
+		public boolean hasNext() {
+			return nextCursor != null;
+		}
+
+		/** 次のページを取得するためのカーソル（最後のページではnull） */
+		public Cursor getNextCursor() {
+			return nextCursor;
+		}
+	}
+
+	/**
+	 * ページの最後の行の（ソートキー, id）を表すカーソル。
+	 * 画面などを経由して次のリクエストに引き継げるよう、シリアライズ可能とする。
+	 */
+	public static final class Cursor implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Order order;
+		private final Object key;
+		private final Long id;
+
+		public Cursor(Order order, Object key, Long id) {
+			if (order == null || id == null) {
+				throw new IllegalArgumentException("order and id must not be null");
+			}
+			this.order = order;
+			this.key = key;
+			this.id = id;
+		}
+
+		public Order getOrder() {
+			return order;
+		}
+
+		public Object getKey() {
+			return key;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		@Override
+		public String toString() {
+			return "Cursor [order=" + order + ", key=" + key + ", id=" + id + "]";
+		}
+	}
+}
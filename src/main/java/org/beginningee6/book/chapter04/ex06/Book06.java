@@ -2,12 +2,23 @@ package org.beginningee6.book.chapter04.ex06;
 
 import java.io.Serializable;
 
+import javax.persistence.Cacheable;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 import javax.persistence.Version;
 
+import org.beginningee6.book.chapter04.support.PooledSequenceGenerator;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.NaturalId;
+import org.hibernate.annotations.NaturalIdCache;
+import org.hibernate.annotations.Parameter;
+
 /**
  * データベース更新における排他制御の
  * 仕組みとして＠Versionアノテーションを
@@ -31,15 +42,30 @@ import javax.persistence.Version;
  * データ更新有無のチェックはバージョン番号を持つフィールドに
  * ＠Versionアノテーションを付与する事により、自動的に行われる。
  * 
+ * また、第2レベルキャッシュ（＠Cacheable）の対象とする。
+ * キャッシュにはバージョン番号も保持され、READ_WRITEでは
+ * コミット後に新しいバージョン番号とともに置き換えられる。
+ * キャッシュから読み込んだエンティティを更新する場合も、
+ * バージョン番号による更新有無のチェックはデータベースに
+ * 対して行われる。
+ * 
+ * isbnは自然キー（＠NaturalId）とし、isbnから主キーへの対応も
+ * キャッシュする（＠NaturalIdCache）。詳細はBook05を参照。
+ * 
  */
 @Entity
-@Table(name = "book_ex06")
+@Table(name = "book_ex06", uniqueConstraints = @UniqueConstraint(name = "book_ex06_isbn", columnNames = "isbn"))
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@NaturalIdCache
 public class Book06 implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
 	@Id
-    @GeneratedValue
+    @GeneratedValue(generator = "book_ex06_id")
+    @GenericGenerator(name = "book_ex06_id", strategy = PooledSequenceGenerator.STRATEGY,
+    		parameters = @Parameter(name = "sequence_name", value = "book_ex06_seq"))
     private Long id;
 	
     @Version
@@ -48,7 +74,9 @@ public class Book06 implements Serializable {
     private String title;
     private Float price;
     private String description;
-    private String isbn;
+    @NaturalId
+    @Column(nullable = false)
+    private String isbn;		// 自然キー（変更不可）
     private Integer nbOfPage;
     private Boolean illustrations;
 
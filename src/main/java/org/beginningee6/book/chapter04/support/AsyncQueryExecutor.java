@@ -0,0 +1,290 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.EntityType;
+
+import org.hibernate.ejb.QueryHints;
+
+/**
+ * 名前付きクエリやJPQLのクエリを、呼び出し元のスレッドをブロックせずに
+ * 実行し、検索結果をCompletableFutureで返すクラス。
+ *
+ * クエリは、このクラスが所有するthreads個のスレッドで実行される。
+ * スレッドごとに専用のEntityManagerを1つ持ち（EntityManagerのプール）、
+ * 同時に実行されるクエリはthreads件まで、実行を待つクエリはqueueCapacity件
+ * までとなる。待ちがqueueCapacity件を超えると、返されるCompletableFutureは
+ * RejectedExecutionExceptionで例外終了する。
+ *
+ * 複数のCustomer05やBook05の検索を並行に実行し、CompletableFuture.allOf()などで
+ * 結果を待ち合わせることができる。
+ *
+ * クエリごとにタイムアウトを指定できる。タイムアウトした場合は、
+ * CompletableFutureがTimeoutExceptionで例外終了する。実行を待っていたクエリは
+ * 実行されず、実行中のクエリはJDBCのクエリタイムアウト（ヒント
+ * javax.persistence.query.timeoutに指定した同じ値。Hibernateが秒単位に
+ * 四捨五入するため、0.5秒未満のタイムアウトでは中断されない）により中断される。
+ * CompletableFutureをcancel()した場合も、実行を待っているクエリは実行されないが、
+ * すでに実行中のクエリは中断されず、最後まで実行される（結果は破棄される）。
+ *
+ * 以下の点に注意すること。
+ *
+ * ・検索結果のエンティティは、クエリの実行後にEntityManagerがクリアされる
+ *   ため切り離された状態となる。遅延ロードされる関連（Customer05のaddressなど）
+ *   が必要な場合は、JOIN FETCHで同時に取得すること。
+ * ・クエリはトランザクションの外で実行される（更新には使用しないこと）。
+ * ・使い終わったらclose()を呼び出し、スレッドとEntityManagerを解放すること。
+ */
+public class AsyncQueryExecutor implements Closeable {
+
+	/**
+	 * EntityManagerを使用して行う処理。
+	 */
+	public interface Work<T> {
+		T execute(EntityManager em);
+	}
+
+	private static final AtomicInteger EXECUTORS = new AtomicInteger();
+
+	private final ThreadPoolExecutor executor;
+	private final ScheduledExecutorService timer;
+	private final BlockingQueue<EntityManager> entityManagers;
+
+	public AsyncQueryExecutor(EntityManagerFactory emf, int threads, int queueCapacity) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		}
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+		}
+
+		String name = "async-query-" + EXECUTORS.incrementAndGet();
+
+		// スレッドと同じ数のEntityManagerを用意し、実行中のクエリが
+		// 1つずつ借りて返す
+		entityManagers = new ArrayBlockingQueue<EntityManager>(threads);
+		for (int i = 0; i < threads; i++) {
+			entityManagers.add(emf.createEntityManager());
+		}
+
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory(name));
+		timer = Executors.newSingleThreadScheduledExecutor(threadFactory(name + "-timer"));
+	}
+
+	private static ThreadFactory threadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * 名前付きクエリを実行し、検索結果を返す。
+	 *
+	 * @param parameters	名前付きパラメータの値（パラメータがない場合は空のMap）
+	 * @param timeout		タイムアウト（0以下の場合はタイムアウトしない）
+	 */
+	public <T> CompletableFuture<List<T>> namedQuery(final String name, final Class<T> resultClass,
+			final Map<String, ?> parameters, final long timeout, final TimeUnit unit) {
+		return submit(new Work<List<T>>() {
+			public List<T> execute(EntityManager em) {
+				return resultList(em.createNamedQuery(name, resultClass), parameters, timeout, unit);
+			}
+		}, timeout, unit);
+	}
+
+	/**
+	 * JPQLのクエリを実行し、検索結果を返す。
+	 *
+	 * @param parameters	名前付きパラメータの値（パラメータがない場合は空のMap）
+	 * @param timeout		タイムアウト（0以下の場合はタイムアウトしない）
+	 */
+	public <T> CompletableFuture<List<T>> query(final String jpql, final Class<T> resultClass,
+			final Map<String, ?> parameters, final long timeout, final TimeUnit unit) {
+		return submit(new Work<List<T>>() {
+			public List<T> execute(EntityManager em) {
+				return resultList(em.createQuery(jpql, resultClass), parameters, timeout, unit);
+			}
+		}, timeout, unit);
+	}
+
+	/**
+	 * 主キーによりエンティティを検索する。見つからない場合はnullを返す。
+	 *
+	 * HibernateのEntityManager.find()はクエリタイムアウトのヒントを無視するため、
+	 * タイムアウトを指定した場合は、第2レベルキャッシュにない限り
+	 * 主キーで検索するクエリとして実行する。
+	 *
+	 * @param timeout		タイムアウト（0以下の場合はタイムアウトしない）
+	 */
+	public <T> CompletableFuture<T> find(final Class<T> entityClass, final Object primaryKey,
+			final long timeout, final TimeUnit unit) {
+		return submit(new Work<T>() {
+			public T execute(EntityManager em) {
+				if (timeout <= 0
+						|| em.getEntityManagerFactory().getCache().contains(entityClass, primaryKey)) {
+					return em.find(entityClass, primaryKey);
+				}
+				List<T> result = resultList(byId(em, entityClass, primaryKey),
+						Collections.<String, Object>emptyMap(), timeout, unit);
+				return result.isEmpty() ? null : result.get(0);
+			}
+		}, timeout, unit);
+	}
+
+	/** 主キーによりエンティティを検索するクエリ */
+	private static <T> TypedQuery<T> byId(EntityManager em, Class<T> entityClass, Object primaryKey) {
+		EntityType<T> type = em.getMetamodel().entity(entityClass);
+		CriteriaBuilder cb = em.getCriteriaBuilder();
+		CriteriaQuery<T> criteria = cb.createQuery(entityClass);
+		Root<T> root = criteria.from(type);
+		criteria.where(cb.equal(root.get(type.getId(type.getIdType().getJavaType())), primaryKey));
+		return em.createQuery(criteria);
+	}
+
+	/**
+	 * プールのEntityManagerを使用して任意の処理を実行し、その結果を返す。
+	 *
+	 * @param timeout		タイムアウト（0以下の場合はタイムアウトしない）
+	 */
+	public <T> CompletableFuture<T> submit(Work<T> work, final long timeout, final TimeUnit unit) {
+		final QueryTask<T> task = new QueryTask<T>(work);
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.result.completeExceptionally(e);
+			return task.result;
+		}
+
+		final ScheduledFuture<?> timeoutTask;
+		if (timeout > 0) {
+			timeoutTask = timer.schedule(new Runnable() {
+				public void run() {
+					// 結果を待っているスレッドが再開する前に取り除く
+					executor.remove(task);
+					task.result.completeExceptionally(new TimeoutException(
+							"query did not complete within " + timeout + " " + unit));
+				}
+			}, timeout, unit);
+		} else {
+			timeoutTask = null;
+		}
+
+		// 呼び出し元がキャンセルした場合やタイムアウトした場合は、
+		// 実行を待っているクエリを取り除く
+		task.result.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T value, Throwable e) {
+				if (timeoutTask != null) {
+					timeoutTask.cancel(false);
+				}
+				if (e != null) {
+					executor.remove(task);
+				}
+			}
+		});
+		return task.result;
+	}
+
+	/**
+	 * 1件のクエリの実行。
+	 *
+	 * 実行中のスレッドへの割り込みは行わない（組み込みモードのDerbyでは、
+	 * 割り込まれたスレッドの接続が閉じられることがあるため）。
+	 * 実行中のクエリは、JDBCのクエリタイムアウトにより中断される
+	 * （cancel()では中断されない）。
+	 */
+	private class QueryTask<T> implements Runnable {
+
+		private final Work<T> work;
+		private final CompletableFuture<T> result = new CompletableFuture<T>();
+
+		QueryTask(Work<T> work) {
+			this.work = work;
+		}
+
+		public void run() {
+			if (result.isDone()) {
+				return;		// 実行を待つ間にキャンセルされた、またはタイムアウトした
+			}
+			EntityManager em = entityManagers.poll();
+			try {
+				result.complete(work.execute(em));
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			} finally {
+				em.clear();
+				entityManagers.add(em);
+			}
+		}
+	}
+
+	private static <T> List<T> resultList(TypedQuery<T> query, Map<String, ?> parameters,
+			long timeout, TimeUnit unit) {
+		for (Map.Entry<String, ?> parameter : parameters.entrySet()) {
+			query.setParameter(parameter.getKey(), parameter.getValue());
+		}
+		if (timeout > 0) {
+			query.setHint(QueryHints.SPEC_HINT_TIMEOUT, (int) Math.min(unit.toMillis(timeout), Integer.MAX_VALUE));
+		}
+		return Collections.unmodifiableList(query.getResultList());
+	}
+
+	/** 実行中のクエリの数 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/** 実行を待っているクエリの数 */
+	public int getQueuedCount() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * 新しいクエリの受付を停止し、実行を待っているクエリをキャンセルして、
+	 * スレッドとEntityManagerを解放する。
+	 */
+	public void close() {
+		timer.shutdownNow();
+		for (Runnable task : executor.shutdownNow()) {
+			((QueryTask<?>) task).result.cancel(false);
+		}
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		EntityManager em;
+		while ((em = entityManagers.poll()) != null) {
+			em.close();
+		}
+	}
+}
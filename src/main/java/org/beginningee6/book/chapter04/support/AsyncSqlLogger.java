@@ -0,0 +1,469 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * 実行したSQL文を、バインドしたパラメータの値と所要時間とともに
+ * バックグラウンドのスレッドでログ出力する（hibernate.show_sqlの代わり）。
+ *
+ * wrap()で包んだ接続では、Statementの実行ごとにSQL文、パラメータ、
+ * 所要時間（execute～()の呼び出しから戻るまで）を記録したエントリを作成し、
+ * ロックを使用しない固定長のリングバッファに追加する。ログの整形と出力は
+ * バックグラウンドのスレッドが行うため、JPAを呼び出したスレッドは待たされない。
+ * リングバッファが一杯の場合、エントリは破棄され（getDroppedCount()）、
+ * 呼び出したスレッドは待たされない。破棄した件数は、バッファが空になった
+ * 時点でWARNINGレベルのログとして出力される。
+ *
+ * sampleRate（0～1）の割合の実行だけを記録する。記録しない実行では、
+ * パラメータの値のコピーなども行わない。
+ *
+ * ログはjava.util.loggingのロガー"org.beginningee6.book.chapter04.sql"に
+ * INFOレベルで出力される。以下の形式となる。
+ *
+ *   main | 0.412 ms | select ... where customer05x0_.first_name=? | ['Vincent']
+ *   main | 1.050 ms | insert into address_ex05 ... | [...] | batch=50, rows=50
+ */
+public class AsyncSqlLogger implements Closeable {
+
+	/** ログを出力するロガーの名前 */
+	public static final String LOGGER_NAME = "org.beginningee6.book.chapter04.sql";
+
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+	/** 書き込むエントリがない場合に待機する最大の時間 */
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final double sampleRate;
+	private final RingBuffer buffer;
+	private final Thread writer;
+
+	private final AtomicLong offeredCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private volatile long writtenCount;
+
+	private volatile boolean writerWaiting;
+	private volatile boolean closed;
+
+	/**
+	 * @param bufferSize	リングバッファの大きさ（2のべき乗に切り上げる）
+	 * @param sampleRate	記録する実行の割合（0～1）
+	 */
+	public AsyncSqlLogger(int bufferSize, double sampleRate) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+		}
+		if (sampleRate < 0 || sampleRate > 1) {
+			throw new IllegalArgumentException("sampleRate must be between 0 and 1: " + sampleRate);
+		}
+		this.sampleRate = sampleRate;
+		int capacity = 1;
+		while (capacity < bufferSize) {
+			capacity <<= 1;
+		}
+		this.buffer = new RingBuffer(capacity);
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "sql-logger-" + threadNumber.incrementAndGet());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getBufferSize() {
+		return buffer.capacity();
+	}
+
+	/** リングバッファが一杯のために破棄したエントリの数 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/** ログに出力したエントリの数 */
+	public long getWrittenCount() {
+		return writtenCount;
+	}
+
+	/**
+	 * 接続を、実行したSQL文を記録する接続で包む。
+	 */
+	public Connection wrap(Connection connection) {
+		LoggingConnection handler = new LoggingConnection(connection);
+		handler.proxy = JdbcProxies.proxy(Connection.class, handler);
+		return handler.proxy;
+	}
+
+	/**
+	 * それまでに記録したエントリが全て出力されるまで待つ。
+	 *
+	 * @return	タイムアウトまでに出力された場合はtrue
+	 */
+	public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+		long target = offeredCount.get();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (writtenCount < target) {
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			LockSupport.unpark(writer);
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	/**
+	 * バッファに残っているエントリを出力してから、バックグラウンドの
+	 * スレッドを終了する。
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncSqlLogger [sampleRate=" + sampleRate
+				+ ", bufferSize=" + buffer.capacity()
+				+ ", written=" + getWrittenCount()
+				+ ", dropped=" + getDroppedCount() + "]";
+	}
+
+	private boolean sample() {
+		return sampleRate >= 1 || sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+	}
+
+	private void offer(Entry entry) {
+		if (!buffer.offer(entry)) {
+			droppedCount.incrementAndGet();
+			return;
+		}
+		offeredCount.incrementAndGet();
+		if (writerWaiting) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/** バックグラウンドのスレッドで、バッファのエントリを出力する */
+	private void drain() {
+		long reportedDrops = 0;
+		while (true) {
+			Entry entry = buffer.poll();
+			if (entry == null) {
+				long drops = droppedCount.get();
+				if (drops > reportedDrops) {
+					logger.warning((drops - reportedDrops) + " SQL log entries were dropped (buffer full)");
+					reportedDrops = drops;
+				}
+				if (closed) {
+					return;
+				}
+				writerWaiting = true;
+				entry = buffer.poll();		// 待機を通知する前に追加されたエントリ
+				if (entry == null) {
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					writerWaiting = false;
+					continue;
+				}
+				writerWaiting = false;
+			}
+			try {
+				write(entry);
+			} catch (RuntimeException e) {
+				// ハンドラの例外でスレッドを終了させない
+			}
+			writtenCount++;		// 書き込むのはこのスレッドのみ
+		}
+	}
+
+	private static void write(Entry entry) {
+		if (!logger.isLoggable(Level.INFO)) {
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(entry.threadName).append(" | ");
+		sb.append(String.format("%.3f ms", entry.nanos / 1000000.0));
+		sb.append(" | ").append(entry.sql);
+		if (entry.parameters != null && entry.parameters.length > 0) {
+			sb.append(" | [");
+			for (int i = 0; i < entry.parameters.length; i++) {
+				if (i > 0) {
+					sb.append(", ");
+				}
+				Object value = entry.parameters[i];
+				if (value instanceof String) {
+					sb.append('\'').append(value).append('\'');
+				} else {
+					sb.append(value);
+				}
+			}
+			sb.append(']');
+		}
+		if (entry.outcome != null) {
+			sb.append(" | ").append(entry.outcome);
+		}
+
+		LogRecord record = new LogRecord(Level.INFO, sb.toString());
+		record.setLoggerName(LOGGER_NAME);
+		record.setMillis(entry.timestamp);
+		logger.log(record);
+	}
+
+	/**
+	 * パラメータの値を、出力するまで変更されない形でコピーする。
+	 * 変更可能な値や大きな値は、その時点の文字列や型名に置き換える。
+	 */
+	private static Object capture(Object value) {
+		if (value == null || value instanceof String || value instanceof Number
+				|| value instanceof Boolean || value instanceof Character) {
+			return value;
+		}
+		if (value instanceof byte[]) {
+			return "byte[" + ((byte[]) value).length + "]";
+		}
+		if (value instanceof Date) {
+			return value.toString();
+		}
+		if (value instanceof InputStream || value instanceof Reader) {
+			return "<" + value.getClass().getSimpleName() + ">";
+		}
+		return String.valueOf(value);
+	}
+
+	/** 1回の実行の記録 */
+	private static final class Entry {
+		final long timestamp = System.currentTimeMillis();
+		final String threadName = Thread.currentThread().getName();
+		final String sql;
+		final Object[] parameters;
+		final long nanos;
+		final String outcome;
+
+		Entry(String sql, Object[] parameters, long nanos, String outcome) {
+			this.sql = sql;
+			this.parameters = parameters;
+			this.nanos = nanos;
+			this.outcome = outcome;
+		}
+	}
+
+	/**
+	 * 固定長のリングバッファ（複数のスレッドが追加し、1つのスレッドが取り出す）。
+	 *
+	 * スロットごとに、次に追加（または取り出し）できる位置を表す
+	 * シーケンス番号を持ち、追加する位置の確保だけをCASで行う。
+	 * 一杯の場合、offer()は待たずにfalseを返す。
+	 */
+	private static final class RingBuffer {
+
+		private final int mask;
+		private final AtomicReferenceArray<Entry> slots;
+		private final AtomicLongArray sequences;
+		private final AtomicLong tail = new AtomicLong();
+		private long head;		// 取り出すスレッドのみが参照する
+
+		RingBuffer(int capacity) {
+			mask = capacity - 1;
+			slots = new AtomicReferenceArray<Entry>(capacity);
+			sequences = new AtomicLongArray(capacity);
+			for (int i = 0; i < capacity; i++) {
+				sequences.set(i, i);
+			}
+		}
+
+		int capacity() {
+			return mask + 1;
+		}
+
+		boolean offer(Entry entry) {
+			long position = tail.get();
+			while (true) {
+				int index = (int) position & mask;
+				long difference = sequences.get(index) - position;
+				if (difference == 0) {
+					if (tail.compareAndSet(position, position + 1)) {
+						slots.set(index, entry);
+						sequences.set(index, position + 1);		// 取り出せる状態にする
+						return true;
+					}
+					position = tail.get();
+				} else if (difference < 0) {
+					return false;		// 一周前のエントリがまだ取り出されていない
+				} else {
+					position = tail.get();
+				}
+			}
+		}
+
+		Entry poll() {
+			int index = (int) head & mask;
+			if (sequences.get(index) != head + 1) {
+				return null;
+			}
+			Entry entry = slots.get(index);
+			slots.set(index, null);
+			sequences.set(index, head + mask + 1);		// 次の周で追加できる状態にする
+			head++;
+			return entry;
+		}
+	}
+
+	/** 作成したStatementを、実行を記録するStatementで包む接続 */
+	private final class LoggingConnection implements InvocationHandler {
+
+		private final Connection connection;
+		private Connection proxy;
+
+		LoggingConnection(Connection connection) {
+			this.connection = connection;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (JdbcProxies.isObjectMethod(method)) {
+				return JdbcProxies.invokeObjectMethod(proxy, method, args);
+			}
+			Object result = JdbcProxies.invoke(connection, method, args);
+			String name = method.getName();
+			if (result instanceof Statement && (name.equals("createStatement")
+					|| name.equals("prepareStatement") || name.equals("prepareCall"))) {
+				String sql = name.equals("createStatement") ? null : (String) args[0];
+				LoggingStatement handler = new LoggingStatement((Statement) result, sql, this.proxy);
+				handler.proxy = (Statement) JdbcProxies.proxy(method.getReturnType(), handler);
+				return handler.proxy;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * パラメータの値を保持し、実行を記録するStatement。
+	 * Statement、PreparedStatement、CallableStatementのいずれも包む。
+	 */
+	private final class LoggingStatement implements InvocationHandler {
+
+		private final Statement statement;
+		private final String sql;
+		private final Connection connection;
+		private Statement proxy;
+
+		private Object[] parameters = new Object[8];
+		private int parameterCount;
+		private int batchCount;
+
+		LoggingStatement(Statement statement, String sql, Connection connection) {
+			this.statement = statement;
+			this.sql = sql;
+			this.connection = connection;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (JdbcProxies.isObjectMethod(method)) {
+				return JdbcProxies.invokeObjectMethod(proxy, method, args);
+			}
+			String name = method.getName();
+			if (name.startsWith("execute")) {
+				return execute(method, args);
+			}
+			if (name.equals("getConnection")) {
+				return connection;
+			}
+
+			Object result = JdbcProxies.invoke(statement, method, args);
+			if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer
+					&& sql != null) {
+				setParameter((Integer) args[0], name.equals("setNull") ? null : args[1]);
+			} else if (name.equals("clearParameters")) {
+				parameterCount = 0;
+			} else if (name.equals("addBatch")) {
+				batchCount++;
+			} else if (name.equals("clearBatch")) {
+				batchCount = 0;
+			} else if (result instanceof ResultSet) {
+				return JdbcProxies.resultSet((ResultSet) result, this.proxy);
+			}
+			return result;
+		}
+
+		private void setParameter(int index, Object value) {
+			if (index > parameters.length) {
+				parameters = Arrays.copyOf(parameters, Math.max(index, parameters.length * 2));
+			}
+			parameters[index - 1] = value;
+			parameterCount = Math.max(parameterCount, index);
+		}
+
+		private Object execute(Method method, Object[] args) throws Throwable {
+			int batch = batchCount;
+			if (method.getName().equals("executeBatch")) {
+				batchCount = 0;
+			}
+			if (!sample()) {
+				Object result = JdbcProxies.invoke(statement, method, args);
+				return result instanceof ResultSet ? JdbcProxies.resultSet((ResultSet) result, proxy) : result;
+			}
+
+			String executed = sql != null ? sql : args != null && args.length > 0 ? (String) args[0] : "(batch)";
+			Object[] values = null;
+			if (sql != null) {
+				values = new Object[parameterCount];
+				for (int i = 0; i < parameterCount; i++) {
+					values[i] = capture(parameters[i]);
+				}
+			}
+
+			long start = System.nanoTime();
+			Object result;
+			try {
+				result = JdbcProxies.invoke(statement, method, args);
+			} catch (SQLException e) {
+				offer(new Entry(executed, values, System.nanoTime() - start,
+						"failed: SQLState=" + e.getSQLState()));
+				throw e;
+			}
+			long nanos = System.nanoTime() - start;
+
+			String outcome = null;
+			if (result instanceof int[]) {
+				int rows = 0;
+				for (int count : (int[]) result) {
+					rows += Math.max(count, 0);
+				}
+				outcome = "batch=" + batch + ", rows=" + rows;
+			} else if (result instanceof Integer) {
+				outcome = "rows=" + result;
+			}
+			offer(new Entry(executed, values, nanos, outcome));
+			return result instanceof ResultSet ? JdbcProxies.resultSet((ResultSet) result, proxy) : result;
+		}
+	}
+}
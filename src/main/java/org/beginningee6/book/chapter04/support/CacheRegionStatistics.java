@@ -0,0 +1,132 @@
+package org.beginningee6.book.chapter04.support;
+
+import javax.persistence.EntityManagerFactory;
+
+import net.sf.ehcache.Ehcache;
+
+import org.hibernate.cache.ehcache.internal.regions.EhcacheDataRegion;
+import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+
+/**
+ * エンティティの第2レベルキャッシュの領域ごとの統計情報。
+ *
+ * ヒット、ミス、格納の件数はHibernateの統計情報
+ * （hibernate.generate_statistics）から、最大数を超えたために
+ * 破棄（LRU）された件数と現在保持している件数はEhcacheの
+ * 統計情報から取得する。
+ *
+ * 取得した時点の値のスナップショットであり、以降の検索では更新されない。
+ */
+public class CacheRegionStatistics {
+
+	private final String regionName;
+	private final long hitCount;
+	private final long missCount;
+	private final long putCount;
+	private final long evictionCount;
+	private final long elementCount;
+	private final int maxElements;
+
+	private CacheRegionStatistics(String regionName, SecondLevelCacheStatistics statistics,
+			Ehcache cache) {
+		this.regionName = regionName;
+		this.hitCount = statistics.getHitCount();
+		this.missCount = statistics.getMissCount();
+		this.putCount = statistics.getPutCount();
+		this.evictionCount = cache.getStatistics().getEvictionCount();
+		this.elementCount = cache.getSize();
+		this.maxElements = cache.getCacheConfiguration().getMaxElementsInMemory();
+	}
+
+	/**
+	 * エンティティのキャッシュ領域の現在の統計情報を返す。
+	 *
+	 * @throws IllegalArgumentException	エンティティがキャッシュの対象でない場合
+	 */
+	public static CacheRegionStatistics of(EntityManagerFactory emf, Class<?> entityClass) {
+		SessionFactoryImplementor sessionFactory = sessionFactory(emf);
+		EhcacheDataRegion region = regionOf(sessionFactory, entityClass);
+		return new CacheRegionStatistics(region.getName(),
+				sessionFactory.getStatistics().getSecondLevelCacheStatistics(region.getName()),
+				region.getEhcache());
+	}
+
+	/**
+	 * エンティティのキャッシュ領域の統計情報をリセットする。
+	 * キャッシュされているエンティティは破棄しない。
+	 * Hibernateの統計情報は領域ごとにリセットできないため、全体がリセットされる。
+	 */
+	public static void clear(EntityManagerFactory emf, Class<?> entityClass) {
+		SessionFactoryImplementor sessionFactory = sessionFactory(emf);
+		EhcacheDataRegion region = regionOf(sessionFactory, entityClass);
+		sessionFactory.getStatistics().clear();
+		region.getEhcache().clearStatistics();
+	}
+
+	private static SessionFactoryImplementor sessionFactory(EntityManagerFactory emf) {
+		return (SessionFactoryImplementor) ((HibernateEntityManagerFactory) emf).getSessionFactory();
+	}
+
+	private static EhcacheDataRegion regionOf(SessionFactoryImplementor sessionFactory,
+			Class<?> entityClass) {
+		EntityRegionAccessStrategy access =
+				sessionFactory.getEntityPersister(entityClass.getName()).getCacheAccessStrategy();
+		if (access == null || !(access.getRegion() instanceof EhcacheDataRegion)) {
+			throw new IllegalArgumentException(
+					entityClass.getName() + " is not cached in the second-level cache");
+		}
+		return (EhcacheDataRegion) access.getRegion();
+	}
+
+	/** キャッシュ領域の名前 */
+	public String getRegionName() {
+		return regionName;
+	}
+
+	/** キャッシュから読み込まれた件数 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/** キャッシュになくデータベースから読み込まれた件数 */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/** キャッシュに格納された件数 */
+	public long getPutCount() {
+		return putCount;
+	}
+
+	/** 最大数を超えたために破棄された件数 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/** 現在キャッシュに保持されている件数 */
+	public long getElementCount() {
+		return elementCount;
+	}
+
+	/** キャッシュ領域に保持できる最大の件数 */
+	public int getMaxElements() {
+		return maxElements;
+	}
+
+	/** ヒット率（ヒットとミスの合計が0の場合は0） */
+	public double getHitRatio() {
+		long total = hitCount + missCount;
+		return total == 0 ? 0 : (double) hitCount / total;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheRegionStatistics [regionName=" + regionName
+				+ ", hitCount=" + hitCount + ", missCount=" + missCount
+				+ ", putCount=" + putCount + ", evictionCount=" + evictionCount
+				+ ", elementCount=" + elementCount + ", maxElements=" + maxElements + "]";
+	}
+}
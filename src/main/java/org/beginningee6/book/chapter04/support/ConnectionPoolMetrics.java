@@ -0,0 +1,130 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+/**
+ * HikariConnectionProviderのコネクションプールの状態と、
+ * 接続の取得にかかった時間などの統計情報。
+ *
+ * 使用中（active）、待機中（idle）の接続数と、接続の取得を待っている
+ * スレッドの数（waiting）は、呼び出した時点のプールの値を返す。
+ * 取得時間、使用時間、作成時間はLatencyHistogramに記録され、
+ * clear()を呼び出すまで累積される。
+ *
+ * HikariConnectionProvider.metricsOf()で取得する。
+ */
+public class ConnectionPoolMetrics implements MetricsTrackerFactory {
+
+	private final LatencyHistogram acquireTimes = new LatencyHistogram();
+	private final LatencyHistogram usageTimes = new LatencyHistogram();
+	private final LatencyHistogram creationTimes = new LatencyHistogram();
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	private volatile String poolName;
+	private volatile HikariPoolMXBean pool;
+
+	/**
+	 * プールの開始時にHikariCPから呼び出される。
+	 */
+	public IMetricsTracker create(String poolName, PoolStats poolStats) {
+		this.poolName = poolName;
+		return new IMetricsTracker() {
+			@Override
+			public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+				acquireTimes.record(elapsedAcquiredNanos);
+			}
+
+			@Override
+			public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+				usageTimes.record(elapsedBorrowedMillis, TimeUnit.MILLISECONDS);
+			}
+
+			@Override
+			public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+				creationTimes.record(connectionCreatedMillis, TimeUnit.MILLISECONDS);
+			}
+
+			@Override
+			public void recordConnectionTimeout() {
+				timeoutCount.incrementAndGet();
+			}
+		};
+	}
+
+	/**
+	 * 接続数を取得するプールを設定する（プールの開始後に呼び出す）。
+	 * PoolStatsの値は一定時間キャッシュされるため、プールから直接取得する。
+	 */
+	void setPool(HikariPoolMXBean pool) {
+		this.pool = pool;
+	}
+
+	public String getPoolName() {
+		return poolName;
+	}
+
+	/** 使用中の接続数 */
+	public int getActiveConnections() {
+		return pool == null ? 0 : pool.getActiveConnections();
+	}
+
+	/** 待機中（使用されていない）の接続数 */
+	public int getIdleConnections() {
+		return pool == null ? 0 : pool.getIdleConnections();
+	}
+
+	/** プールが保持している接続数（使用中と待機中の合計） */
+	public int getTotalConnections() {
+		return pool == null ? 0 : pool.getTotalConnections();
+	}
+
+	/** 接続の取得を待っているスレッドの数 */
+	public int getWaitingThreads() {
+		return pool == null ? 0 : pool.getThreadsAwaitingConnection();
+	}
+
+	/** getConnection()の呼び出しから接続を取得するまでの時間 */
+	public LatencyHistogram getAcquireTimes() {
+		return acquireTimes;
+	}
+
+	/** 接続を取得してからプールに返すまでの時間（ミリ秒の精度） */
+	public LatencyHistogram getUsageTimes() {
+		return usageTimes;
+	}
+
+	/** データベースへの接続を新しく作成した時間（ミリ秒の精度） */
+	public LatencyHistogram getCreationTimes() {
+		return creationTimes;
+	}
+
+	/** connectionTimeout以内に接続を取得できなかった回数 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	 * 累積した統計情報を破棄する。
+	 */
+	public void clear() {
+		acquireTimes.clear();
+		usageTimes.clear();
+		creationTimes.clear();
+		timeoutCount.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return poolName + " [active=" + getActiveConnections()
+				+ ", idle=" + getIdleConnections()
+				+ ", waiting=" + getWaitingThreads()
+				+ ", timeouts=" + getTimeoutCount()
+				+ ", acquire: " + acquireTimes + "]";
+	}
+}
@@ -0,0 +1,203 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.jdbc.Work;
+
+/**
+ * Apache Derbyの実行時統計（SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS）から
+ * 取得した、直前に実行したSQL文の実行計画。
+ *
+ * 実行時統計はJDBCの接続ごとに収集されるため、enable()から
+ * last()までを同じトランザクション内で実行すること
+ * （トランザクション内では同じ接続が使用される）。
+ *
+ * <pre>
+ * em.getTransaction().begin();
+ * DerbyQueryPlan.enable(em);
+ * query.getResultList();
+ * DerbyQueryPlan plan = DerbyQueryPlan.last(em);
+ * DerbyQueryPlan.disable(em);
+ * em.getTransaction().commit();
+ * </pre>
+ *
+ * 既に実行したSQL文の実行計画は、explain()で同じ接続で再実行して取得できる
+ * （SlowQueryDetectorで使用する）。
+ */
+public class DerbyQueryPlan {
+
+	private static final Pattern ROWS_VISITED = Pattern.compile("Number of rows visited=(\\d+)");
+	private static final Pattern TABLE_SCAN = Pattern.compile("Table Scan ResultSet for (\\S+)");
+	private static final Pattern INDEX_SCAN =
+			Pattern.compile("Index Scan ResultSet for (\\S+) using (?:index|constraint) (\\S+)");
+
+	private final String text;
+
+	public DerbyQueryPlan(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * 以降にこのEntityManagerで実行するSQL文の実行時統計を収集する。
+	 */
+	public static void enable(EntityManager em) {
+		setRuntimeStatistics(em, 1);
+	}
+
+	/**
+	 * 実行時統計の収集を終了する。
+	 */
+	public static void disable(EntityManager em) {
+		setRuntimeStatistics(em, 0);
+	}
+
+	private static void setRuntimeStatistics(EntityManager em, final int enabled) {
+		em.unwrap(Session.class).doWork(new Work() {
+			public void execute(Connection connection) throws SQLException {
+				setRuntimeStatistics(connection, enabled);
+			}
+		});
+	}
+
+	/**
+	 * このEntityManagerで直前に実行したSQL文の実行計画を返す。
+	 */
+	public static DerbyQueryPlan last(EntityManager em) {
+		return em.unwrap(Session.class).doReturningWork(new ReturningWork<DerbyQueryPlan>() {
+			public DerbyQueryPlan execute(Connection connection) throws SQLException {
+				Statement statement = connection.createStatement();
+				try {
+					ResultSet rs = statement.executeQuery(
+							"VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()");
+					rs.next();
+					return new DerbyQueryPlan(rs.getString(1));
+				} finally {
+					statement.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * SELECT文を、実行時統計を収集しながら接続で再実行し、その実行計画を返す。
+	 * 結果セットは全て読み込んでから閉じる。実行時統計の収集は終了時に無効にする。
+	 *
+	 * @param parameters	パラメータの値（nullの値はsetNull()で設定する）
+	 */
+	public static DerbyQueryPlan explain(Connection connection, String sql, Object[] parameters)
+			throws SQLException {
+		setRuntimeStatistics(connection, 1);
+		try {
+			PreparedStatement ps = connection.prepareStatement(sql);
+			try {
+				for (int i = 0; i < parameters.length; i++) {
+					if (parameters[i] == null) {
+						ps.setNull(i + 1, ps.getParameterMetaData().getParameterType(i + 1));
+					} else {
+						ps.setObject(i + 1, parameters[i]);
+					}
+				}
+				ResultSet rs = ps.executeQuery();
+				while (rs.next()) {
+					// 全ての行を読み込む（読み込んだ行数が統計に含まれる）
+				}
+				rs.close();
+			} finally {
+				ps.close();
+			}
+
+			Statement statement = connection.createStatement();
+			try {
+				ResultSet rs = statement.executeQuery(
+						"VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()");
+				rs.next();
+				return new DerbyQueryPlan(rs.getString(1));
+			} finally {
+				statement.close();
+			}
+		} finally {
+			setRuntimeStatistics(connection, 0);
+		}
+	}
+
+	private static void setRuntimeStatistics(Connection connection, int enabled) throws SQLException {
+		CallableStatement cs = connection.prepareCall(
+				"CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(?)");
+		try {
+			cs.setInt(1, enabled);
+			cs.execute();
+		} finally {
+			cs.close();
+		}
+	}
+
+	/** 実行計画のテキスト */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * 表や索引を走査した際に読み込んだ行数の合計。
+	 * 索引が使用される場合は条件に一致する行のみ、表全体を走査する
+	 * （Table Scan）場合は表の全ての行が読み込まれる。
+	 *
+	 * 削除された後にまだ領域が再利用されていない行も含まれるため、直前に
+	 * 行を削除した場合は、SYSCS_UTIL.SYSCS_COMPRESS_TABLEで領域を回収しておくこと。
+	 */
+	public long getRowsVisited() {
+		long rows = 0;
+		Matcher matcher = ROWS_VISITED.matcher(text);
+		while (matcher.find()) {
+			rows += Long.parseLong(matcher.group(1));
+		}
+		return rows;
+	}
+
+	/** 指定した名前の索引が使用されているかどうか */
+	public boolean usesIndex(String indexName) {
+		return text.toUpperCase().contains("USING INDEX " + indexName.toUpperCase());
+	}
+
+	/** 指定した表の全体を走査しているかどうか */
+	public boolean isTableScan(String tableName) {
+		return text.toUpperCase().contains("TABLE SCAN RESULTSET FOR " + tableName.toUpperCase());
+	}
+
+	/** 全体を走査している表（大文字） */
+	public List<String> getTableScans() {
+		List<String> tables = new ArrayList<String>();
+		Matcher matcher = TABLE_SCAN.matcher(text);
+		while (matcher.find()) {
+			tables.add(matcher.group(1));
+		}
+		return tables;
+	}
+
+	/** 使用されている索引（"表 using 索引"の形式、大文字） */
+	public List<String> getIndexScans() {
+		List<String> indexes = new ArrayList<String>();
+		Matcher matcher = INDEX_SCAN.matcher(text);
+		while (matcher.find()) {
+			indexes.add(matcher.group(1) + " using " + matcher.group(2));
+		}
+		return indexes;
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
@@ -0,0 +1,317 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.UnknownUnwrapTypeException;
+import org.hibernate.service.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.Stoppable;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * HikariCPのコネクションプールからデータベース接続を取得するConnectionProvider。
+ *
+ * persistence.xmlで以下のように指定する。
+ *
+ * hibernate.connection.provider_class = org.beginningee6.book.chapter04.support.HikariConnectionProvider
+ *
+ * 接続URL、JDBCドライバ、ユーザ、パスワード、自動コミット、分離レベルは
+ * 通常の設定（hibernate.connection.url など）から読み込む。
+ * プールの設定は「hibernate.hikari.」に続けてHikariConfigのプロパティ名で指定する。
+ *
+ * hibernate.hikari.minimumIdle				待機させておく接続の最小数
+ * hibernate.hikari.maximumPoolSize			接続の最大数
+ * hibernate.hikari.connectionTimeout		接続の取得を待つ最大の時間（ミリ秒）
+ * hibernate.hikari.validationTimeout		接続の検証（Connection.isValid()）の最大の時間（ミリ秒）
+ * hibernate.hikari.leakDetectionThreshold	接続がこの時間（ミリ秒）以上返却されない場合に
+ * 											リークとして警告のログを出力する（0は無効）
+ *
+ * 接続は、プールから払い出す前にConnection.isValid()（またはconnectionTestQuery）で
+ * 検証される。プールの状態と取得時間の統計情報はmetricsOf()で取得できる。
+ *
+ * hibernate.statement_cache.sizeに1以上の値を指定すると、接続ごとに最大その件数の
+ * PreparedStatementを再利用する（PreparedStatementCacheを参照）。
+ * ヒット率などの統計情報はstatementCacheOf()で取得できる。
+ *
+ * hibernate.sql_log.enabledをtrueにすると、実行したSQL文をパラメータの値と
+ * 所要時間とともにバックグラウンドのスレッドでログ出力する（AsyncSqlLoggerを参照）。
+ *
+ * hibernate.sql_log.sample_rate	記録する実行の割合（0～1、既定は1）
+ * hibernate.sql_log.buffer_size	出力を待つエントリの最大数（既定は1024）
+ *
+ * hibernate.slow_query.thresholdに1以上の値（ミリ秒）を指定すると、それ以上の
+ * 時間がかかったSELECT文の実行計画を記録する（SlowQueryDetectorを参照）。
+ * 記録はslowQueryDetectorOf()で取得できる。
+ *
+ * hibernate.slow_query.capacity	保持する記録の最大数（既定は100）
+ */
+public class HikariConnectionProvider implements ConnectionProvider, Configurable, Stoppable {
+
+	/** プールの設定のプロパティ名の接頭辞 */
+	public static final String CONFIG_PREFIX = "hibernate.hikari.";
+
+	/** 接続ごとにキャッシュするPreparedStatementの最大数のプロパティ名（0は無効） */
+	public static final String STATEMENT_CACHE_SIZE = "hibernate.statement_cache.size";
+
+	/** SQL文をAsyncSqlLoggerでログ出力するかどうかのプロパティ名 */
+	public static final String SQL_LOG_ENABLED = "hibernate.sql_log.enabled";
+
+	/** AsyncSqlLoggerで記録する実行の割合のプロパティ名 */
+	public static final String SQL_LOG_SAMPLE_RATE = "hibernate.sql_log.sample_rate";
+
+	/** AsyncSqlLoggerのリングバッファの大きさのプロパティ名 */
+	public static final String SQL_LOG_BUFFER_SIZE = "hibernate.sql_log.buffer_size";
+
+	/** SlowQueryDetectorのしきい値（ミリ秒）のプロパティ名（0は無効） */
+	public static final String SLOW_QUERY_THRESHOLD = "hibernate.slow_query.threshold";
+
+	/** SlowQueryDetectorが保持する記録の最大数のプロパティ名 */
+	public static final String SLOW_QUERY_CAPACITY = "hibernate.slow_query.capacity";
+
+	private final ConnectionPoolMetrics metrics = new ConnectionPoolMetrics();
+
+	private HikariDataSource dataSource;
+	private PreparedStatementCache statementCache;
+	private AsyncSqlLogger sqlLogger;
+	private SlowQueryDetector slowQueryDetector;
+
+	public void configure(@SuppressWarnings("rawtypes") Map configurationValues) {
+		Properties properties = new Properties();
+		for (Object entry : configurationValues.entrySet()) {
+			Object key = ((Map.Entry<?, ?>) entry).getKey();
+			Object value = ((Map.Entry<?, ?>) entry).getValue();
+			if (key instanceof String && ((String) key).startsWith(CONFIG_PREFIX)) {
+				properties.setProperty(((String) key).substring(CONFIG_PREFIX.length()), String.valueOf(value));
+			}
+		}
+
+		HikariConfig config;
+		try {
+			config = new HikariConfig(properties);
+		} catch (RuntimeException e) {
+			throw new HibernateException("Invalid connection pool configuration: " + properties, e);
+		}
+
+		String url = (String) configurationValues.get(Environment.URL);
+		if (url == null) {
+			throw new HibernateException("JDBC URL was not specified by property " + Environment.URL);
+		}
+		config.setJdbcUrl(url);
+
+		String driverClass = (String) configurationValues.get(Environment.DRIVER);
+		if (driverClass != null) {
+			config.setDriverClassName(driverClass);
+		}
+		String user = (String) configurationValues.get(Environment.USER);
+		if (user != null) {
+			config.setUsername(user);
+		}
+		String password = (String) configurationValues.get(Environment.PASS);
+		if (password != null) {
+			config.setPassword(password);
+		}
+
+		config.setAutoCommit(ConfigurationHelper.getBoolean(Environment.AUTOCOMMIT, configurationValues));
+		Integer isolation = ConfigurationHelper.getInteger(Environment.ISOLATION, configurationValues);
+		if (isolation != null) {
+			config.setTransactionIsolation(isolationName(isolation));
+		}
+
+		config.setMetricsTrackerFactory(metrics);
+
+		int statementCacheSize = ConfigurationHelper.getInt(STATEMENT_CACHE_SIZE, configurationValues, 0);
+		if (statementCacheSize > 0) {
+			statementCache = new PreparedStatementCache(statementCacheSize);
+		}
+
+		if (ConfigurationHelper.getBoolean(SQL_LOG_ENABLED, configurationValues, false)) {
+			double sampleRate = Double.parseDouble(
+					ConfigurationHelper.getString(SQL_LOG_SAMPLE_RATE, configurationValues, "1"));
+			int bufferSize = ConfigurationHelper.getInt(SQL_LOG_BUFFER_SIZE, configurationValues, 1024);
+			sqlLogger = new AsyncSqlLogger(bufferSize, sampleRate);
+		}
+
+		int slowQueryThreshold = ConfigurationHelper.getInt(SLOW_QUERY_THRESHOLD, configurationValues, 0);
+		if (slowQueryThreshold > 0) {
+			slowQueryDetector = new SlowQueryDetector(slowQueryThreshold, TimeUnit.MILLISECONDS,
+					ConfigurationHelper.getInt(SLOW_QUERY_CAPACITY, configurationValues, 100));
+		}
+
+		try {
+			dataSource = new HikariDataSource(config);
+		} catch (RuntimeException e) {
+			throw new HibernateException("Could not start connection pool for " + url, e);
+		}
+		metrics.setPool(dataSource.getHikariPoolMXBean());
+	}
+
+	private static String isolationName(int isolation) {
+		switch (isolation) {
+		case Connection.TRANSACTION_READ_UNCOMMITTED:
+			return "TRANSACTION_READ_UNCOMMITTED";
+		case Connection.TRANSACTION_READ_COMMITTED:
+			return "TRANSACTION_READ_COMMITTED";
+		case Connection.TRANSACTION_REPEATABLE_READ:
+			return "TRANSACTION_REPEATABLE_READ";
+		case Connection.TRANSACTION_SERIALIZABLE:
+			return "TRANSACTION_SERIALIZABLE";
+		default:
+			throw new HibernateException("Unknown transaction isolation level: " + isolation);
+		}
+	}
+
+	public Connection getConnection() throws SQLException {
+		Connection connection = dataSource.getConnection();
+		if (statementCache != null) {
+			try {
+				connection = statementCache.wrap(connection);
+			} catch (SQLException e) {
+				connection.close();
+				throw e;
+			}
+		}
+		if (slowQueryDetector != null) {
+			connection = slowQueryDetector.wrap(connection);
+		}
+		if (sqlLogger != null) {
+			connection = sqlLogger.wrap(connection);	// 実行計画の取得のための再実行は出力しない
+		}
+		return connection;
+	}
+
+	public void closeConnection(Connection connection) throws SQLException {
+		connection.close();
+	}
+
+	public boolean supportsAggressiveRelease() {
+		return false;
+	}
+
+	public void stop() {
+		if (dataSource != null) {
+			dataSource.close();
+		}
+		if (sqlLogger != null) {
+			sqlLogger.close();
+		}
+	}
+
+	public ConnectionPoolMetrics getMetrics() {
+		return metrics;
+	}
+
+	/** PreparedStatementのキャッシュ（使用しない場合はnull） */
+	public PreparedStatementCache getStatementCache() {
+		return statementCache;
+	}
+
+	/** SQL文のログ出力（使用しない場合はnull） */
+	public AsyncSqlLogger getSqlLogger() {
+		return sqlLogger;
+	}
+
+	/** 時間がかかったSELECT文の検出（使用しない場合はnull） */
+	public SlowQueryDetector getSlowQueryDetector() {
+		return slowQueryDetector;
+	}
+
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	public boolean isUnwrappableAs(Class unwrapType) {
+		return unwrapType.isAssignableFrom(getClass())
+				|| unwrapType.isAssignableFrom(HikariDataSource.class);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> T unwrap(Class<T> unwrapType) {
+		if (unwrapType.isAssignableFrom(getClass())) {
+			return (T) this;
+		}
+		if (unwrapType.isAssignableFrom(HikariDataSource.class)) {
+			return (T) dataSource;
+		}
+		throw new UnknownUnwrapTypeException(unwrapType);
+	}
+
+	/**
+	 * EntityManagerFactoryで使用されているHikariConnectionProviderの
+	 * 統計情報を返す。HikariConnectionProviderが使用されていない場合はnullを返す。
+	 */
+	public static ConnectionPoolMetrics metricsOf(EntityManagerFactory emf) {
+		ConnectionProvider provider = providerOf(emf);
+		if (provider instanceof HikariConnectionProvider) {
+			return ((HikariConnectionProvider) provider).getMetrics();
+		}
+		return null;
+	}
+
+	/**
+	 * EntityManagerFactoryで使用されているHikariConnectionProviderの
+	 * PreparedStatementのキャッシュを返す。HikariConnectionProviderが
+	 * 使用されていない場合や、キャッシュを使用しない設定の場合はnullを返す。
+	 */
+	public static PreparedStatementCache statementCacheOf(EntityManagerFactory emf) {
+		ConnectionProvider provider = providerOf(emf);
+		if (provider instanceof HikariConnectionProvider) {
+			return ((HikariConnectionProvider) provider).getStatementCache();
+		}
+		return null;
+	}
+
+	/**
+	 * EntityManagerFactoryで使用されているHikariConnectionProviderの
+	 * AsyncSqlLoggerを返す。HikariConnectionProviderが使用されていない場合や、
+	 * ログ出力しない設定の場合はnullを返す。
+	 */
+	public static AsyncSqlLogger sqlLoggerOf(EntityManagerFactory emf) {
+		ConnectionProvider provider = providerOf(emf);
+		if (provider instanceof HikariConnectionProvider) {
+			return ((HikariConnectionProvider) provider).getSqlLogger();
+		}
+		return null;
+	}
+
+	/**
+	 * EntityManagerFactoryで使用されているHikariConnectionProviderの
+	 * SlowQueryDetectorを返す。HikariConnectionProviderが使用されていない場合や、
+	 * 検出しない設定の場合はnullを返す。
+	 */
+	public static SlowQueryDetector slowQueryDetectorOf(EntityManagerFactory emf) {
+		ConnectionProvider provider = providerOf(emf);
+		if (provider instanceof HikariConnectionProvider) {
+			return ((HikariConnectionProvider) provider).getSlowQueryDetector();
+		}
+		return null;
+	}
+
+	/**
+	 * EntityManagerFactoryで使用されているHikariCPのDataSourceを返す。
+	 * HikariConnectionProviderが使用されていない場合はnullを返す。
+	 */
+	public static DataSource dataSourceOf(EntityManagerFactory emf) {
+		ConnectionProvider provider = providerOf(emf);
+		if (provider instanceof HikariConnectionProvider) {
+			return ((HikariConnectionProvider) provider).dataSource;
+		}
+		return null;
+	}
+
+	private static ConnectionProvider providerOf(EntityManagerFactory emf) {
+		SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor)
+				((HibernateEntityManagerFactory) emf).getSessionFactory();
+		return sessionFactory.getServiceRegistry().getService(ConnectionProvider.class);
+	}
+}
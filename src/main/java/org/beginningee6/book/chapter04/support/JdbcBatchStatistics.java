@@ -0,0 +1,178 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * JDBCのバッチ実行（PreparedStatement.executeBatch()）で実際に
+ * まとめて送信された行数（達成されたバッチサイズ）をSQL文ごとに
+ * 集計するクラス。
+ *
+ * ReportingBatchBuilderによって記録され、
+ * ReportingBatchBuilder.getStatistics()で取得できる。
+ */
+public class JdbcBatchStatistics {
+
+	private final ConcurrentMap<String, Entry> entries =
+			new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * 1回のバッチ実行を記録する。
+	 *
+	 * @param sql	バッチ実行されたSQL文
+	 * @param size	バッチ実行でまとめて送信された行数
+	 */
+	public void record(String sql, int size) {
+		Entry entry = entries.get(sql);
+		if (entry == null) {
+			Entry newEntry = new Entry(sql);
+			entry = entries.putIfAbsent(sql, newEntry);
+			if (entry == null) {
+				entry = newEntry;
+			}
+		}
+		entry.record(size);
+	}
+
+	/**
+	 * SQL文ごとの集計結果を返す。
+	 */
+	public List<Entry> getEntries() {
+		List<Entry> list = new ArrayList<Entry>(entries.values());
+		Collections.sort(list, new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				return e1.getSql().compareTo(e2.getSql());
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * 指定したSQL文の集計結果を返す。
+	 * 一度もバッチ実行されていない場合はnullを返す。
+	 */
+	public Entry getEntry(String sql) {
+		return entries.get(sql);
+	}
+
+	/**
+	 * 指定したテーブルに対するINSERT文の集計結果を返す。
+	 * 一度もバッチ実行されていない場合はnullを返す。
+	 */
+	public Entry getInsertEntry(String table) {
+		String prefix = "insert into " + table.toLowerCase() + " ";
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			if (e.getKey().toLowerCase().startsWith(prefix)) {
+				return e.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 全てのSQL文のバッチ実行の回数を返す。
+	 */
+	public long getBatchCount() {
+		long count = 0;
+		for (Entry entry : entries.values()) {
+			count += entry.getBatchCount();
+		}
+		return count;
+	}
+
+	/**
+	 * 全てのSQL文のバッチ実行で送信された行数の合計を返す。
+	 */
+	public long getRowCount() {
+		long count = 0;
+		for (Entry entry : entries.values()) {
+			count += entry.getRowCount();
+		}
+		return count;
+	}
+
+	/**
+	 * 集計結果をクリアする。
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("JdbcBatchStatistics [");
+		for (Entry entry : getEntries()) {
+			sb.append("\n  ").append(entry);
+		}
+		return sb.append("\n]").toString();
+	}
+
+	/**
+	 * 1つのSQL文に対するバッチ実行の集計結果。
+	 */
+	public static class Entry {
+
+		private final String sql;
+		private long batchCount;
+		private long rowCount;
+		private int minBatchSize;
+		private int maxBatchSize;
+
+		Entry(String sql) {
+			this.sql = sql;
+		}
+
+		synchronized void record(int size) {
+			if (batchCount == 0 || size < minBatchSize) {
+				minBatchSize = size;
+			}
+			if (size > maxBatchSize) {
+				maxBatchSize = size;
+			}
+			batchCount++;
+			rowCount += size;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		/** バッチ実行の回数（＝データベースとの往復の回数） */
+		public synchronized long getBatchCount() {
+			return batchCount;
+		}
+
+		/** バッチ実行で送信された行数の合計 */
+		public synchronized long getRowCount() {
+			return rowCount;
+		}
+
+		/** 1回のバッチ実行で送信された行数の最小値 */
+		public synchronized int getMinBatchSize() {
+			return minBatchSize;
+		}
+
+		/** 1回のバッチ実行で送信された行数の最大値 */
+		public synchronized int getMaxBatchSize() {
+			return maxBatchSize;
+		}
+
+		/** 1回のバッチ実行で送信された行数の平均値 */
+		public synchronized double getAverageBatchSize() {
+			return batchCount == 0 ? 0 : (double) rowCount / batchCount;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry [sql=" + sql + ", batchCount=" + getBatchCount()
+					+ ", rowCount=" + getRowCount() + ", minBatchSize="
+					+ getMinBatchSize() + ", maxBatchSize=" + getMaxBatchSize()
+					+ ", averageBatchSize=" + getAverageBatchSize() + "]";
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * JDBCのオブジェクトを包む動的プロキシの共通処理
+ * （PreparedStatementCache、AsyncSqlLoggerで使用する。
+ * PersistenceContextMonitorもEntityManagerとQueryを包むために使用する）。
+ */
+final class JdbcProxies {
+
+	private JdbcProxies() {
+	}
+
+	/** インタフェースを実装する動的プロキシを作成する */
+	static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(JdbcProxies.class.getClassLoader(),
+				new Class<?>[] {type}, handler));
+	}
+
+	/**
+	 * Objectのメソッド（equals()、hashCode()、toString()）かどうか。
+	 * これらはプロキシ自身の同一性で判断する
+	 * （HibernateはStatementやResultSetをHashMapのキーとして管理するため）。
+	 */
+	static boolean isObjectMethod(Method method) {
+		return method.getDeclaringClass() == Object.class;
+	}
+
+	static Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("equals")) {
+			return proxy == args[0];
+		}
+		if (name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		}
+		return proxy.getClass().getInterfaces()[0].getSimpleName() + "@"
+				+ Integer.toHexString(System.identityHashCode(proxy));
+	}
+
+	/** 包んでいるオブジェクトのメソッドを呼び出し、例外はそのままスローする */
+	static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * getStatement()がstatement（Statementのプロキシ）を返すように結果セットを包む
+	 * （Hibernateは結果セットのgetStatement()で取得したStatementを閉じるため）。
+	 */
+	static ResultSet resultSet(final ResultSet resultSet, final Statement statement) {
+		return proxy(ResultSet.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (isObjectMethod(method)) {
+					return invokeObjectMethod(proxy, method, args);
+				}
+				if (method.getName().equals("getStatement")) {
+					return statement;
+				}
+				return JdbcProxies.invoke(resultSet, method, args);
+			}
+		});
+	}
+}
@@ -0,0 +1,132 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 所要時間（ナノ秒）の分布を記録するヒストグラム。
+ *
+ * 値は2のべき乗ごとの区間（1ns未満、2ns未満、4ns未満、…）に数えるため、
+ * 記録する件数によらずメモリの使用量は一定で、複数のスレッドから
+ * ロックなしで記録できる。パーセンタイルは、その値を含む区間の
+ * 上限値（最大で実際の値の2倍）として返される。
+ */
+public class LatencyHistogram {
+
+	/** 区間の数（long型の正の値を全て含む） */
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * 所要時間を記録する。負の値は0として記録する。
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		totalNanos.addAndGet(value);
+
+		long max;
+		while (value > (max = maxNanos.get())) {
+			if (maxNanos.compareAndSet(max, value)) {
+				break;
+			}
+		}
+	}
+
+	public void record(long duration, TimeUnit unit) {
+		record(unit.toNanos(duration));
+	}
+
+	/** valueを含む区間（上限値が2^index） */
+	private static int bucketOf(long value) {
+		return value == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	private static long upperBoundOf(int bucket) {
+		return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+	}
+
+	/** 記録した件数 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/** 記録した値の最大値（ナノ秒） */
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/** 記録した値の平均値（ナノ秒）。記録がない場合は0 */
+	public double getMeanNanos() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) totalNanos.get() / n;
+	}
+
+	/**
+	 * 記録した値のうち、percentile（0～100）パーセントがこの値以下となる値
+	 * （区間の上限値、ナノ秒）を返す。記録がない場合は0を返す。
+	 */
+	public long getPercentileNanos(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+		}
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	/**
+	 * 件数が0でない区間ごとの件数を、区間の上限値（ナノ秒）の昇順に返す。
+	 */
+	public SortedMap<Long, Long> getBuckets() {
+		SortedMap<Long, Long> buckets = new TreeMap<Long, Long>();
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = counts.get(i);
+			if (n > 0) {
+				buckets.put(upperBoundOf(i), n);
+			}
+		}
+		return Collections.unmodifiableSortedMap(buckets);
+	}
+
+	/**
+	 * 記録した値を全て破棄する。
+	 * 記録中に呼び出した場合、その記録は一部のみ破棄されることがある。
+	 */
+	public void clear() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount()
+				+ ", mean=" + TimeUnit.NANOSECONDS.toMicros((long) getMeanNanos()) + "us"
+				+ ", p50=" + TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(50)) + "us"
+				+ ", p99=" + TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(99)) + "us"
+				+ ", max=" + TimeUnit.NANOSECONDS.toMicros(getMaxNanos()) + "us";
+	}
+}
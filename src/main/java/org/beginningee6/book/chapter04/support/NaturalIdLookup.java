@@ -0,0 +1,67 @@
+package org.beginningee6.book.chapter04.support;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.Session;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+
+/**
+ * 自然キー（＠NaturalId）によりエンティティを検索するためのユーティリティクラス。
+ *
+ * JPQLで自然キーの列を条件に検索する場合と異なり、自然キーから
+ * 主キーへの対応を以下の順に解決してから、主キーによりエンティティを
+ * 読み込む（EntityManager.find()と同様）。
+ *
+ * 1. 永続性コンテキスト（同じEntityManagerで読み込み済みのエンティティ）
+ * 2. 自然キーのキャッシュ（＠NaturalIdCacheを付与したエンティティ）
+ * 3. データベース（主キーのみを検索するSELECT文）
+ *
+ * エンティティ自身も第2レベルキャッシュの対象（＠Cacheable）であれば、
+ * 自然キーと主キーの対応とエンティティの両方がキャッシュにある場合は
+ * データベースにアクセスしない。
+ */
+public final class NaturalIdLookup {
+
+	private NaturalIdLookup() {}
+
+	/**
+	 * 単一の属性からなる自然キーによりエンティティを検索する。
+	 * 該当するエンティティがない場合はnullを返す。
+	 *
+	 * 例：NaturalIdLookup.find(em, Book05.class, "1-84023-742-2")
+	 */
+	public static <T> T find(EntityManager em, Class<T> entityClass, Object naturalId) {
+		return entityClass.cast(em.unwrap(Session.class)
+				.bySimpleNaturalId(entityClass)
+				.load(naturalId));
+	}
+
+	/**
+	 * キャッシュされている全ての自然キーから主キーへの対応を破棄する。
+	 * （EntityManagerFactory.getCache().evictAll()では破棄されない）
+	 */
+	public static void evictAll(EntityManagerFactory emf) {
+		((HibernateEntityManagerFactory) emf).getSessionFactory().getCache().evictNaturalIdRegions();
+	}
+
+	/** 自然キーから主キーへの対応がキャッシュから解決された回数 */
+	public static long getHitCount(EntityManagerFactory emf) {
+		return statistics(emf).getNaturalIdCacheHitCount();
+	}
+
+	/** 自然キーから主キーへの対応がキャッシュになかった回数 */
+	public static long getMissCount(EntityManagerFactory emf) {
+		return statistics(emf).getNaturalIdCacheMissCount();
+	}
+
+	/** 自然キーから主キーへの対応をデータベースで検索した回数 */
+	public static long getQueryExecutionCount(EntityManagerFactory emf) {
+		return statistics(emf).getNaturalIdQueryExecutionCount();
+	}
+
+	private static Statistics statistics(EntityManagerFactory emf) {
+		return ((HibernateEntityManagerFactory) emf).getSessionFactory().getStatistics();
+	}
+}
@@ -0,0 +1,222 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.EntityType;
+
+import org.hibernate.Session;
+
+/**
+ * エンティティの表全体を、主キー（id）の範囲で分割して複数のスレッドで
+ * 並行に走査するクラス。
+ *
+ * 表全体の走査（エクスポートや再計算など）を1つのスレッドと1つの
+ * EntityManagerで行うと、CPUのコアが1つしか使われない。このクラスでは、
+ * idの最小値から最大値までをpartitions個の連続した範囲（スライス）に
+ * 分割し、スライスごとに専用のスレッドとEntityManagerで走査する。
+ *
+ * 各スライスは、QueryScrollerによりidの昇順に1件ずつ読み込まれ、
+ * Accumulatorでスライスごとの結果に集計される。全てのスライスが終わると、
+ * スライスの結果をidの小さいスライスから順にCombinerで結合して返す。
+ *
+ * 以下の点に注意すること。
+ *
+ * ・主キーはLongであること（順序付けられた数値の範囲で分割するため）。
+ * ・各スライスの件数は、idの分布が一様な場合のみほぼ等しくなる。
+ * ・AccumulatorとCombinerは複数のスレッドから呼び出されるため、
+ *   共有する状態を持たないこと（スライスごとの結果はcreate()で作成する）。
+ * ・エンティティは読み取り専用として読み込まれ、次の1件を読み込むと
+ *   切り離される（QueryScrollerを参照）。
+ *
+ * 使用例（全てのCustomer05のageの合計）：
+ *
+ * PartitionedScanner&lt;Customer05&gt; scanner =
+ * 		new PartitionedScanner&lt;Customer05&gt;(emf, Customer05.class);
+ * Long total = scanner.scan(4, new Accumulator&lt;Customer05, Long&gt;() {...},
+ * 		new Combiner&lt;Long&gt;() {...});
+ */
+public class PartitionedScanner<T> {
+
+	/**
+	 * スライスごとに、エンティティを1件ずつ結果に集計する処理。
+	 */
+	public interface Accumulator<T, R> {
+
+		/** スライスの結果の初期値（スライスごとに呼び出される） */
+		R create();
+
+		/** エンティティを結果に集計し、集計後の結果を返す */
+		R accumulate(R result, T entity);
+	}
+
+	/**
+	 * 2つのスライスの結果を結合する処理。
+	 * leftはrightよりidの小さい範囲の結果となる。
+	 */
+	public interface Combiner<R> {
+		R combine(R left, R right);
+	}
+
+	private final EntityManagerFactory emf;
+	private final Class<T> entityClass;
+	private final String entityName;
+	private final String idName;
+
+	private int fetchSize = QueryScroller.DEFAULT_FETCH_SIZE;
+
+	public PartitionedScanner(EntityManagerFactory emf, Class<T> entityClass) {
+		EntityType<T> type = emf.getMetamodel().entity(entityClass);
+		if (type.getIdType().getJavaType() != Long.class) {
+			throw new IllegalArgumentException(
+					"id of " + entityClass.getName() + " must be Long: " + type.getIdType().getJavaType());
+		}
+		this.emf = emf;
+		this.entityClass = entityClass;
+		this.entityName = type.getName();
+		this.idName = type.getId(Long.class).getName();
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * 各スライスでデータベースから一度に読み込む件数を設定する。
+	 */
+	public void setFetchSize(int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("fetchSize must be positive: " + fetchSize);
+		}
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * 表全体をpartitions個のスライスに分割して並行に走査し、
+	 * 結合した結果を返す。表が空の場合はaccumulator.create()の値を返す。
+	 *
+	 * いずれかのスライスで例外が発生した場合は、残りのスライスを中断して
+	 * その例外（非チェック例外以外はIllegalStateExceptionで包む）をスローする。
+	 */
+	public <R> R scan(int partitions, final Accumulator<T, R> accumulator, Combiner<R> combiner) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("partitions must be positive: " + partitions);
+		}
+
+		List<long[]> slices = slices(partitions);
+		if (slices.isEmpty()) {
+			return accumulator.create();
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(slices.size());
+		try {
+			CompletionService<R> completion = new ExecutorCompletionService<R>(executor);
+			Map<Future<R>, Integer> indexes = new HashMap<Future<R>, Integer>();
+			for (final long[] slice : slices) {
+				indexes.put(completion.submit(new Callable<R>() {
+					public R call() throws Exception {
+						return scanSlice(slice[0], slice[1], accumulator);
+					}
+				}), indexes.size());
+			}
+
+			// 終わった順に結果を受け取り、例外が発生したスライスがあれば直ちに中断する
+			List<R> sliceResults = new ArrayList<R>(slices.size());
+			for (int i = 0; i < slices.size(); i++) {
+				sliceResults.add(null);
+			}
+			for (int i = 0; i < slices.size(); i++) {
+				Future<R> future = completion.take();
+				sliceResults.set(indexes.get(future), future.get());
+			}
+
+			R result = sliceResults.get(0);
+			for (int i = 1; i < sliceResults.size(); i++) {
+				result = combiner.combine(result, sliceResults.get(i));
+			}
+			return result;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * idの最小値から最大値までを、partitions個の連続した範囲
+	 * （{開始, 終了}、終了を含む）に分割する。表が空の場合は空のリストを返す。
+	 * 範囲の数はidの値の数を超えない。
+	 */
+	List<long[]> slices(int partitions) {
+		Object[] range;
+		EntityManager em = emf.createEntityManager();
+		try {
+			range = em.createQuery(
+					"SELECT MIN(e." + idName + "), MAX(e." + idName + ") FROM " + entityName + " e",
+					Object[].class).getSingleResult();
+		} finally {
+			em.close();
+		}
+
+		List<long[]> slices = new ArrayList<long[]>(partitions);
+		if (range[0] == null) {
+			return slices;
+		}
+
+		long min = (Long) range[0];
+		long max = (Long) range[1];
+		long width = (max - min) / partitions + 1;
+		for (long from = min; from <= max; from += width) {
+			slices.add(new long[] {from, Math.min(from + width - 1, max)});
+		}
+		return slices;
+	}
+
+	private <R> R scanSlice(long from, long to, Accumulator<T, R> accumulator) {
+		EntityManager em = emf.createEntityManager();
+		try {
+			Session session = em.unwrap(Session.class);
+			QueryScroller<T> entities = new QueryScroller<T>(session, session.createQuery(
+					"SELECT e FROM " + entityName + " e " +
+					"WHERE e." + idName + " BETWEEN :from AND :to " +
+					"ORDER BY e." + idName)
+					.setParameter("from", from)
+					.setParameter("to", to), entityClass, fetchSize);
+			try {
+				R result = accumulator.create();
+				while (entities.hasNext()) {
+					if (Thread.currentThread().isInterrupted()) {
+						throw new IllegalStateException("scan of " + entityName + " interrupted");
+					}
+					result = accumulator.accumulate(result, entities.next());
+				}
+				return result;
+			} finally {
+				entities.close();
+			}
+		} finally {
+			em.close();
+		}
+	}
+}
@@ -0,0 +1,466 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.hibernate.Session;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.Status;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+
+/**
+ * EntityManagerの永続性コンテキストが管理するエンティティの数と、
+ * その推定のヒープ使用量を監視する。
+ *
+ * 1つのEntityManagerで大量のエンティティを読み込んだり永続化したりすると、
+ * 永続性コンテキスト（第1レベルキャッシュ）は際限なく大きくなり、
+ * フラッシュのたびに全てのエンティティをスナップショットと比較する
+ * ダーティチェックも遅くなる。getEntityManager()が返すEntityManagerで
+ * 操作すると、エンティティを追加する操作（persist()、merge()、find()、
+ * getReference()、クエリの実行）の前に、しきい値を超えていないかを確認し、
+ * ポリシーに従って永続性コンテキストを小さくする。ピーク時の数と
+ * 推定ヒープ使用量は、操作の前と後の両方で記録する。
+ *
+ * ・NONE				監視のみ行う（ピーク時の数と推定ヒープ使用量を記録する）。
+ * ・FLUSH_AND_CLEAR	フラッシュしてからクリアする。それまでに取得した
+ * 					エンティティは全て切り離された状態となる。トランザクション外では、
+ * 					未フラッシュの変更がない場合にのみクリアする。
+ * ・EVICT_LEAST_RECENTLY_USED
+ * 					変更されていないエンティティを、このEntityManagerで最後に
+ * 					取得（または永続化）されたのが古いものから切り離し、しきい値の
+ * 					3/4まで減らす。変更されたエンティティと、まだINSERTされていない
+ * 					エンティティは切り離さない。関連から遅延ロードされたエンティティなど、
+ * 					このEntityManagerから直接取得されていないものを最初に切り離す。
+ * 					永続化するだけの処理では切り離せるエンティティがないため、
+ * 					FLUSH_AND_CLEARを使用すること。
+ *
+ * 推定ヒープ使用量は、エンティティのプロパティの値とスナップショットの
+ * 大きさに、永続性コンテキストの管理情報の大きさを加えたものである。
+ * 全てのエンティティを走査するため、操作ごとには計算せず、100回の操作ごとか、
+ * エンティティの数が前回の計算から1/4以上変わった場合に計算し直す
+ * （その間は1件あたりの平均から推定する）。
+ *
+ * このクラスはスレッドセーフではない（EntityManagerと同様に、1つのスレッドで使用する）。
+ *
+ * 使用例：
+ *
+ * PersistenceContextMonitor monitor = new PersistenceContextMonitor(
+ * 		em, PersistenceContextMonitor.Policy.FLUSH_AND_CLEAR, 1000, 0);
+ * EntityManager monitored = monitor.getEntityManager();
+ * for (Customer05 customer : customers) {
+ * 	monitored.persist(customer);
+ * }
+ */
+public class PersistenceContextMonitor {
+
+	/** しきい値を超えた場合のポリシー */
+	public enum Policy {
+		NONE, FLUSH_AND_CLEAR, EVICT_LEAST_RECENTLY_USED
+	}
+
+	private static final Logger logger = Logger.getLogger(PersistenceContextMonitor.class.getName());
+
+	/** 推定ヒープ使用量を計算し直す操作の回数 */
+	private static final int ESTIMATE_INTERVAL = 100;
+
+	/** エンティティ1件あたりの管理情報（EntityEntry、EntityKey、各Mapのエントリ）の推定の大きさ */
+	private static final int ENTRY_BYTES = 200;
+	private static final int OBJECT_HEADER_BYTES = 16;
+	private static final int REFERENCE_BYTES = 8;
+
+	private final EntityManager em;
+	private final EntityManager proxy;
+	private final Policy policy;
+	private final int maxEntities;
+	private final long maxEstimatedBytes;
+
+	/** 直接取得されたエンティティ（最後に取得されたのが古い順） */
+	private final LinkedHashMap<EntityKey, Object> recentlyUsed =
+			new LinkedHashMap<EntityKey, Object>(16, 0.75f, true);
+
+	private long operations;
+	private long operationsAtEstimate = -ESTIMATE_INTERVAL;
+	private int countAtEstimate;
+	private long bytesPerEntity;
+
+	private int peakEntityCount;
+	private long peakEstimatedBytes;
+	private long flushAndClearCount;
+	private long evictedCount;
+
+	/**
+	 * @param em				監視するEntityManager
+	 * @param policy			しきい値を超えた場合のポリシー
+	 * @param maxEntities		管理するエンティティの数のしきい値（0は制限しない）
+	 * @param maxEstimatedBytes	推定ヒープ使用量のしきい値（バイト、0は制限しない）
+	 */
+	public PersistenceContextMonitor(EntityManager em, Policy policy, int maxEntities,
+			long maxEstimatedBytes) {
+		if (maxEntities < 0 || maxEstimatedBytes < 0) {
+			throw new IllegalArgumentException("thresholds must not be negative: "
+					+ maxEntities + ", " + maxEstimatedBytes);
+		}
+		this.em = em;
+		this.policy = policy;
+		this.maxEntities = maxEntities;
+		this.maxEstimatedBytes = maxEstimatedBytes;
+		this.proxy = JdbcProxies.proxy(EntityManager.class, new MonitoringEntityManager());
+	}
+
+	/** 操作の前にしきい値を確認するEntityManager */
+	public EntityManager getEntityManager() {
+		return proxy;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/** 現在管理されているエンティティの数 */
+	public int getManagedEntityCount() {
+		return persistenceContext().getNumberOfManagedEntities();
+	}
+
+	/**
+	 * 現在の推定ヒープ使用量（バイト）。全てのエンティティを走査して計算する。
+	 */
+	public long estimateBytes() {
+		long bytes = 0;
+		for (Map.Entry<Object, EntityEntry> entry : persistenceContext().reentrantSafeEntityEntries()) {
+			bytes += sizeOf(entry.getKey(), entry.getValue());
+		}
+		return bytes;
+	}
+
+	/** エンティティを追加する操作の前後で、管理されていたエンティティの数の最大 */
+	public int getPeakEntityCount() {
+		return peakEntityCount;
+	}
+
+	/** エンティティを追加する操作の前後での、推定ヒープ使用量の最大 */
+	public long getPeakEstimatedBytes() {
+		return peakEstimatedBytes;
+	}
+
+	/** FLUSH_AND_CLEARでフラッシュ、クリアした回数 */
+	public long getFlushAndClearCount() {
+		return flushAndClearCount;
+	}
+
+	/** EVICT_LEAST_RECENTLY_USEDで切り離したエンティティの数 */
+	public long getEvictedCount() {
+		return evictedCount;
+	}
+
+	private SessionImplementor session() {
+		return (SessionImplementor) em.unwrap(Session.class);
+	}
+
+	private PersistenceContext persistenceContext() {
+		return session().getPersistenceContext();
+	}
+
+	/**
+	 * エンティティを追加する操作の前に呼び出され、しきい値を超えていれば
+	 * ポリシーに従って永続性コンテキストを小さくする。
+	 */
+	private void beforeOperation() {
+		operations++;
+		SessionImplementor session = session();
+		int count = session.getPersistenceContext().getNumberOfManagedEntities();
+		long bytes = estimatedBytes(count);
+		recordPeak(count, bytes);
+
+		if (policy == Policy.NONE || !exceeds(count, bytes, 1)) {
+			return;
+		}
+		if (policy == Policy.FLUSH_AND_CLEAR) {
+			flushAndClear(session, count, bytes);
+		} else {
+			evictLeastRecentlyUsed(session, count, bytes);
+		}
+		operationsAtEstimate = -ESTIMATE_INTERVAL;		// 次の操作で計算し直す
+	}
+
+	/**
+	 * エンティティを追加する操作の後に呼び出され、追加されたエンティティを
+	 * ピーク時の数と推定ヒープ使用量に含める。
+	 */
+	private void afterOperation() {
+		int count = persistenceContext().getNumberOfManagedEntities();
+		recordPeak(count, estimatedBytes(count));
+	}
+
+	private void recordPeak(int count, long bytes) {
+		peakEntityCount = Math.max(peakEntityCount, count);
+		peakEstimatedBytes = Math.max(peakEstimatedBytes, bytes);
+	}
+
+	private boolean exceeds(int count, long bytes, double ratio) {
+		return (maxEntities > 0 && count > maxEntities * ratio)
+				|| (maxEstimatedBytes > 0 && bytes > maxEstimatedBytes * ratio);
+	}
+
+	/** 推定ヒープ使用量。必要な場合のみ全てのエンティティを走査して計算し直す */
+	private long estimatedBytes(int count) {
+		if (operations - operationsAtEstimate >= ESTIMATE_INTERVAL
+				|| Math.abs(count - countAtEstimate) * 4 > countAtEstimate) {
+			long bytes = estimateBytes();
+			operationsAtEstimate = operations;
+			countAtEstimate = count;
+			bytesPerEntity = count == 0 ? 0 : bytes / count;
+			return bytes;
+		}
+		return count * bytesPerEntity;
+	}
+
+	private void flushAndClear(SessionImplementor session, int count, long bytes) {
+		if (em.getTransaction().isActive()) {
+			em.flush();
+		} else if (((Session) session).isDirty()) {
+			logger.fine("Unable to clear " + count + " entities with unflushed changes"
+					+ " outside a transaction");
+			return;
+		}
+		em.clear();
+		recentlyUsed.clear();
+		flushAndClearCount++;
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Flushed and cleared " + count + " entities (" + bytes + " bytes)");
+		}
+	}
+
+	private void evictLeastRecentlyUsed(SessionImplementor session, int count, long bytes) {
+		PersistenceContext context = session.getPersistenceContext();
+
+		// 直接取得されていないエンティティ、最後に取得されたのが古いエンティティの順
+		List<Object> candidates = new ArrayList<Object>();
+		for (Map.Entry<Object, EntityEntry> entry : context.reentrantSafeEntityEntries()) {
+			if (!recentlyUsed.containsKey(entry.getValue().getEntityKey())) {
+				candidates.add(entry.getKey());
+			}
+		}
+		for (Iterator<Object> i = recentlyUsed.values().iterator(); i.hasNext();) {
+			Object entity = i.next();
+			if (context.isEntryFor(entity)) {
+				candidates.add(entity);
+			} else {
+				i.remove();		// 既に切り離されている
+			}
+		}
+
+		int evicted = 0;
+		for (Object entity : candidates) {
+			if (!exceeds(count, bytes, 0.75)) {
+				break;
+			}
+			EntityEntry entry = context.getEntry(entity);
+			if (entry == null || !isClean(session, entity, entry)) {
+				continue;
+			}
+			long size = sizeOf(entity, entry);
+			recentlyUsed.remove(entry.getEntityKey());
+			((Session) session).evict(entity);
+			evicted++;
+			count = context.getNumberOfManagedEntities();
+			bytes -= size;
+		}
+		evictedCount += evicted;
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Evicted " + evicted + " entities, " + count + " entities remain");
+		}
+	}
+
+	/** データベースに存在し、読み込んだ時点から変更されていないかどうか */
+	private static boolean isClean(SessionImplementor session, Object entity, EntityEntry entry) {
+		if (!entry.isExistsInDatabase()
+				|| (entry.getStatus() != Status.MANAGED && entry.getStatus() != Status.READ_ONLY)) {
+			return false;
+		}
+		if (entry.getLoadedState() == null) {
+			return true;		// 読み取り専用（スナップショットを持たない）
+		}
+		EntityPersister persister = entry.getPersister();
+		return persister.findDirty(persister.getPropertyValues(entity),
+				entry.getLoadedState(), entity, session) == null;
+	}
+
+	/** 直接取得されたエンティティとして記録する */
+	private void used(Object entity) {
+		if (policy != Policy.EVICT_LEAST_RECENTLY_USED || entity == null) {
+			return;
+		}
+		EntityEntry entry = persistenceContext().getEntry(entity);
+		if (entry != null) {
+			recentlyUsed.put(entry.getEntityKey(), entity);
+		}
+	}
+
+	private void usedAll(Object result) {
+		if (result instanceof Collection<?>) {
+			for (Object element : (Collection<?>) result) {
+				usedAll(element);
+			}
+		} else if (result instanceof Object[]) {
+			for (Object element : (Object[]) result) {
+				used(element);
+			}
+		} else {
+			used(result);
+		}
+	}
+
+	/**
+	 * エンティティ1件の推定の大きさ。プロパティの値と、値が異なる（変更可能な型の）
+	 * スナップショットの値、管理情報の合計とする。
+	 */
+	private static long sizeOf(Object entity, EntityEntry entry) {
+		Object[] values = entry.getPersister().getPropertyValues(entity);
+		Object[] loadedState = entry.getLoadedState();
+		long bytes = ENTRY_BYTES + OBJECT_HEADER_BYTES + (long) REFERENCE_BYTES * values.length;
+		for (Object value : values) {
+			bytes += sizeOfValue(value);
+		}
+		if (loadedState != null) {
+			bytes += OBJECT_HEADER_BYTES + (long) REFERENCE_BYTES * loadedState.length;
+			for (int i = 0; i < loadedState.length && i < values.length; i++) {
+				if (loadedState[i] != values[i]) {
+					bytes += sizeOfValue(loadedState[i]);
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * プロパティの値の推定の大きさ。他のエンティティへの参照は、
+	 * そのエンティティ自身の大きさを含めない。
+	 */
+	private static long sizeOfValue(Object value) {
+		if (value == null) {
+			return 0;
+		}
+		if (value instanceof String) {
+			return 40 + 2L * ((String) value).length();
+		}
+		if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+			return value instanceof BigDecimal || value instanceof BigInteger ? 40 : 16;
+		}
+		if (value instanceof Date) {
+			return 24;
+		}
+		if (value instanceof byte[]) {
+			return OBJECT_HEADER_BYTES + ((byte[]) value).length;
+		}
+		if (value instanceof char[]) {
+			return OBJECT_HEADER_BYTES + 2L * ((char[]) value).length;
+		}
+		if (value instanceof PersistentCollection) {
+			PersistentCollection collection = (PersistentCollection) value;
+			int size = collection.wasInitialized() && value instanceof Collection<?>
+					? ((Collection<?>) value).size() : 0;
+			return 64 + (long) REFERENCE_BYTES * size;
+		}
+		if (value instanceof HibernateProxy) {
+			return 32;
+		}
+		return 0;		// 他のエンティティ、または埋め込み可能クラス
+	}
+
+	@Override
+	public String toString() {
+		return "PersistenceContextMonitor [policy=" + policy
+				+ ", maxEntities=" + maxEntities
+				+ ", maxEstimatedBytes=" + maxEstimatedBytes
+				+ ", peakEntityCount=" + peakEntityCount
+				+ ", peakEstimatedBytes=" + peakEstimatedBytes
+				+ ", flushAndClearCount=" + flushAndClearCount
+				+ ", evictedCount=" + evictedCount + "]";
+	}
+
+	/**
+	 * エンティティを追加する操作の前にしきい値を確認し、取得したエンティティを
+	 * 記録するEntityManager。作成したクエリも同様に包む。
+	 */
+	private final class MonitoringEntityManager implements InvocationHandler {
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (JdbcProxies.isObjectMethod(method)) {
+				return JdbcProxies.invokeObjectMethod(proxy, method, args);
+			}
+			String name = method.getName();
+			boolean adding = name.equals("persist") || name.equals("merge")
+					|| name.equals("find") || name.equals("getReference");
+			if (adding) {
+				beforeOperation();
+			}
+
+			Object result = JdbcProxies.invoke(em, method, args);
+			if (adding) {
+				afterOperation();
+			}
+			if (name.equals("persist")) {
+				used(args[0]);
+			} else if (adding) {
+				used(result);
+			} else if (name.equals("clear")) {
+				recentlyUsed.clear();
+			} else if (result instanceof Query) {
+				return monitoredQuery((Query) result, method.getReturnType());
+			}
+			return result;
+		}
+	}
+
+	private Object monitoredQuery(Query query, Class<?> type) {
+		return JdbcProxies.proxy(type, new MonitoringQuery(query));
+	}
+
+	/** 検索の前にしきい値を確認し、検索結果のエンティティを記録するQuery */
+	private final class MonitoringQuery implements InvocationHandler {
+
+		private final Query query;
+
+		MonitoringQuery(Query query) {
+			this.query = query;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (JdbcProxies.isObjectMethod(method)) {
+				return JdbcProxies.invokeObjectMethod(proxy, method, args);
+			}
+			String name = method.getName();
+			boolean querying = name.equals("getResultList") || name.equals("getSingleResult");
+			if (querying) {
+				beforeOperation();
+			}
+			Object result = JdbcProxies.invoke(query, method, args);
+			if (querying) {
+				afterOperation();
+				usedAll(result);
+			} else if (result == query) {
+				return proxy;		// setParameter()などのメソッドチェーン
+			}
+			return result;
+		}
+	}
+}
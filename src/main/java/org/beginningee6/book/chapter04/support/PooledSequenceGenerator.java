@@ -0,0 +1,64 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.util.Properties;
+
+import org.hibernate.MappingException;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+
+/**
+ * 主キーの値をデータベースのシーケンスからブロック単位でまとめて
+ * 取得する（pooledオプティマイザを使用する）ID生成クラス。
+ *
+ * ＠GeneratedValueのみを指定した場合、Derbyでは主キーがIDENTITY列と
+ * なるため、エンティティを1件永続化するたびにINSERT文を即座に発行して
+ * 採番された値を取得する必要があり、INSERT文のバッチ実行もできない。
+ *
+ * このクラスを＠GenericGeneratorで指定すると、シーケンスから1回値を取得する
+ * ごとにアロケーションサイズ分の主キーの値がメモリ上で払い出されるため、
+ * シーケンスへのアクセスはアロケーションサイズ件に1回となる。
+ *
+ * アロケーションサイズは以下の優先順位で決定される。
+ *
+ * 1．システムプロパティ「chapter04.id.allocation_size」の値
+ * 2．＠GenericGeneratorのパラメータ「increment_size」の値
+ * 3．DEFAULT_ALLOCATION_SIZE（50）
+ *
+ * なお、pooledオプティマイザではシーケンスの増分値とアロケーションサイズが
+ * 一致している必要があるため、アロケーションサイズを変更した場合は
+ * スキーマ（シーケンス）も再作成すること。
+ */
+public class PooledSequenceGenerator extends SequenceStyleGenerator {
+
+	/** ＠GenericGeneratorのstrategy属性に指定する、このクラスの完全修飾名 */
+	public static final String STRATEGY =
+			"org.beginningee6.book.chapter04.support.PooledSequenceGenerator";
+
+	/** アロケーションサイズを指定するシステムプロパティの名前 */
+	public static final String ALLOCATION_SIZE_PROPERTY = "chapter04.id.allocation_size";
+
+	/** アロケーションサイズの既定値 */
+	public static final int DEFAULT_ALLOCATION_SIZE = 50;
+
+	@Override
+	protected int determineIncrementSize(Properties params) {
+		String value = System.getProperty(ALLOCATION_SIZE_PROPERTY);
+		if (value == null) {
+			return ConfigurationHelper.getInt(
+					INCREMENT_PARAM, params, DEFAULT_ALLOCATION_SIZE);
+		}
+
+		int allocationSize;
+		try {
+			allocationSize = Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new MappingException(
+					"Invalid " + ALLOCATION_SIZE_PROPERTY + ": " + value, e);
+		}
+		if (allocationSize < 1) {
+			throw new MappingException(
+					ALLOCATION_SIZE_PROPERTY + " must be positive: " + value);
+		}
+		return allocationSize;
+	}
+}
@@ -0,0 +1,381 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * データベース接続ごとに、準備済みのPreparedStatementを再利用するキャッシュ。
+ *
+ * Hibernateは、名前付きクエリ、JPQL、ネイティブクエリを実行するたびに
+ * Connection.prepareStatement()でSQL文を準備し、実行後にclose()する。
+ * wrap()で包んだ接続では、close()されたPreparedStatementを閉じずに
+ * 物理的な接続ごとのキャッシュに戻し、同じSQL文（と結果セットの種類など）で
+ * 再び準備された場合はキャッシュのPreparedStatementを返す。
+ *
+ * キャッシュは接続ごとに最大maxStatements件で、超えた場合は最も長く
+ * 使用されていないPreparedStatementを閉じる（LRU）。ヒット、ミス、
+ * 破棄の件数は全ての接続について集計される。
+ *
+ * 以下の点に注意すること。
+ *
+ * ・PreparedStatementは、プールが払い出す接続（HikariCPのプロキシ）ではなく
+ *   物理的な接続で準備する（プロキシの接続は、返却時に準備された
+ *   PreparedStatementを全て閉じるため）。このため、キャッシュのPreparedStatementを
+ *   実行した後、コミットもロールバックもせずに返却された接続は、返却時にロールバックする。
+ * ・同じSQL文のPreparedStatementを同時に複数準備した場合、2つめ以降は
+ *   キャッシュせずにプールの接続で準備する（返却時のロールバックと
+ *   PreparedStatementを閉じる処理はプールが行う）。
+ * ・キャッシュに戻す際に、パラメータ、バッチ、警告と、最大行数、
+ *   タイムアウト、フェッチサイズの設定をクリアし、開いている結果セットを閉じる。
+ */
+public class PreparedStatementCache {
+
+	private final int maxStatements;
+
+	/** 物理的な接続ごとのキャッシュ */
+	private final ConcurrentMap<Connection, StatementMap> caches =
+			new ConcurrentHashMap<Connection, StatementMap>();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public PreparedStatementCache(int maxStatements) {
+		if (maxStatements < 1) {
+			throw new IllegalArgumentException("maxStatements must be positive: " + maxStatements);
+		}
+		this.maxStatements = maxStatements;
+	}
+
+	public int getMaxStatements() {
+		return maxStatements;
+	}
+
+	/**
+	 * プールから払い出された接続を、PreparedStatementをキャッシュする接続で包む。
+	 */
+	public Connection wrap(Connection pooled) throws SQLException {
+		Connection physical = pooled.unwrap(Connection.class);
+		StatementMap statements = caches.get(physical);
+		if (statements == null) {
+			// 新しい物理的な接続が作成された場合は、破棄された接続のキャッシュを取り除く
+			removeClosed();
+			statements = new StatementMap();
+			caches.put(physical, statements);
+		}
+		CachingConnection handler = new CachingConnection(pooled, physical, statements);
+		handler.proxy = JdbcProxies.proxy(Connection.class, handler);
+		return handler.proxy;
+	}
+
+	private void removeClosed() {
+		for (Iterator<Connection> i = caches.keySet().iterator(); i.hasNext();) {
+			Connection connection = i.next();
+			try {
+				if (connection.isClosed()) {
+					i.remove();
+				}
+			} catch (SQLException e) {
+				i.remove();
+			}
+		}
+	}
+
+	/** キャッシュのPreparedStatementが使用された回数 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/** キャッシュになく、SQL文を準備した回数 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/** キャッシュの上限を超えたために閉じた回数 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/** ヒット率（0～1）。準備した回数が0の場合は0 */
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/** 全ての接続でキャッシュされているPreparedStatementの数 */
+	public int getCachedStatementCount() {
+		int count = 0;
+		for (StatementMap statements : caches.values()) {
+			synchronized (statements) {
+				count += statements.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * ヒット、ミス、破棄の件数をリセットする。
+	 * キャッシュされているPreparedStatementは破棄しない。
+	 */
+	public void clearStatistics() {
+		hitCount.set(0);
+		missCount.set(0);
+		evictionCount.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "PreparedStatementCache [maxStatements=" + maxStatements
+				+ ", hits=" + getHitCount()
+				+ ", misses=" + getMissCount()
+				+ ", evictions=" + getEvictionCount() + "]";
+	}
+
+	/**
+	 * PreparedStatementを区別するキー（SQL文とprepareStatement()の引数）。
+	 */
+	private static final class Key {
+
+		private final String methodName;
+		private final Object[] args;
+
+		Key(String methodName, Object[] args) {
+			this.methodName = methodName;
+			this.args = args;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return methodName.equals(other.methodName) && Arrays.deepEquals(args, other.args);
+		}
+
+		@Override
+		public int hashCode() {
+			return methodName.hashCode() * 31 + Arrays.deepHashCode(args);
+		}
+	}
+
+	/**
+	 * 1つの物理的な接続のキャッシュ（最も長く使用されていないものから破棄する）。
+	 * 接続は同時に1つのスレッドでのみ使用されるが、統計情報の参照のため同期する。
+	 */
+	private final class StatementMap extends LinkedHashMap<Key, CachedStatement> {
+
+		private static final long serialVersionUID = 1L;
+
+		StatementMap() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, CachedStatement> eldest) {
+			if (size() <= maxStatements) {
+				return false;
+			}
+			evictionCount.incrementAndGet();
+			if (!eldest.getValue().inUse) {
+				eldest.getValue().closePhysically();	// 使用中の場合は、返却時に閉じる
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * prepareStatement()をキャッシュから返す接続。
+	 * それ以外のメソッドはプールの接続に委譲する。
+	 */
+	private final class CachingConnection implements InvocationHandler {
+
+		private final Connection pooled;
+		private final Connection physical;
+		private final StatementMap statements;
+		private Connection proxy;
+
+		/** キャッシュのPreparedStatementを、最後のコミットまたはロールバックの後に実行した */
+		private boolean dirty;
+
+		CachingConnection(Connection pooled, Connection physical, StatementMap statements) {
+			this.pooled = pooled;
+			this.physical = physical;
+			this.statements = statements;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (JdbcProxies.isObjectMethod(method)) {
+				return JdbcProxies.invokeObjectMethod(proxy, method, args);
+			}
+			String name = method.getName();
+			if (name.equals("prepareStatement")) {
+				return prepareStatement(method, args);
+			}
+			if (name.equals("unwrap") && args[0] == Connection.class) {
+				return physical;
+			}
+			if (name.equals("close")) {
+				close();
+				return null;
+			}
+			Object result = JdbcProxies.invoke(pooled, method, args);
+			if (name.equals("commit") || (name.equals("rollback") && args == null)
+					|| (name.equals("setAutoCommit") && Boolean.TRUE.equals(args[0]))) {
+				dirty = false;
+			}
+			return result;
+		}
+
+		/**
+		 * 完了していないトランザクションをロールバックしてから、プールに返却する。
+		 * キャッシュのPreparedStatementはプールのプロキシを経由しないため、
+		 * プールは返却時にロールバックが必要かどうかを判断できない。
+		 */
+		private void close() throws SQLException {
+			try {
+				if (dirty && !pooled.isClosed() && !pooled.getAutoCommit()) {
+					pooled.rollback();
+				}
+			} finally {
+				pooled.close();
+			}
+		}
+
+		private PreparedStatement prepareStatement(Method method, Object[] args)
+				throws Throwable {
+			Key key = new Key(Arrays.toString(method.getParameterTypes()), args);
+			CachedStatement cached;
+			synchronized (statements) {
+				cached = statements.get(key);
+				if (cached != null && !cached.inUse) {
+					cached.inUse = true;
+					cached.owner = this;
+					hitCount.incrementAndGet();
+					return cached.proxy;
+				}
+			}
+
+			missCount.incrementAndGet();
+			if (cached != null) {
+				// 同じSQL文のPreparedStatementを使用中のため、キャッシュせずにプールの接続で準備する
+				return (PreparedStatement) JdbcProxies.invoke(pooled, method, args);
+			}
+
+			PreparedStatement statement = (PreparedStatement) JdbcProxies.invoke(physical, method, args);
+			cached = new CachedStatement(statement, this, statements, key);
+			synchronized (statements) {
+				statements.put(key, cached);
+			}
+			return cached.proxy;
+		}
+	}
+
+	/**
+	 * キャッシュされたPreparedStatement。
+	 * close()では閉じずにキャッシュに戻し、再び使用できる状態にする。
+	 */
+	private final class CachedStatement implements InvocationHandler {
+
+		private final PreparedStatement statement;
+		private final StatementMap statements;
+		private final Key key;
+		private final PreparedStatement proxy;
+
+		/** 使用中の接続（キャッシュから取り出すたびに置き換える） */
+		private CachingConnection owner;
+		private boolean inUse = true;
+		private ResultSet resultSet;
+
+		CachedStatement(PreparedStatement statement, CachingConnection owner,
+				StatementMap statements, Key key) {
+			this.statement = statement;
+			this.owner = owner;
+			this.statements = statements;
+			this.key = key;
+			this.proxy = JdbcProxies.proxy(PreparedStatement.class, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (JdbcProxies.isObjectMethod(method)) {
+				return JdbcProxies.invokeObjectMethod(proxy, method, args);
+			}
+			String name = method.getName();
+			if (name.equals("close")) {
+				release();
+				return null;
+			}
+			if (name.equals("isClosed")) {
+				synchronized (statements) {
+					return !inUse || statement.isClosed();
+				}
+			}
+			if (name.equals("getConnection")) {
+				return owner.proxy;
+			}
+			if (name.startsWith("execute")) {
+				owner.dirty = true;
+			}
+			Object result = JdbcProxies.invoke(statement, method, args);
+			if (result instanceof ResultSet) {
+				resultSet = (ResultSet) result;
+				return JdbcProxies.resultSet(resultSet, this.proxy);
+			}
+			return result;
+		}
+
+		/** 次に使用できる状態に戻して、キャッシュに戻す */
+		private void release() throws SQLException {
+			synchronized (statements) {
+				if (!inUse) {
+					return;
+				}
+			}
+			try {
+				if (resultSet != null) {
+					resultSet.close();
+					resultSet = null;
+				}
+				statement.clearParameters();
+				statement.clearBatch();
+				statement.clearWarnings();
+				statement.setMaxRows(0);
+				statement.setQueryTimeout(0);
+				statement.setFetchSize(0);
+			} catch (SQLException e) {
+				// 再利用できないため、キャッシュから取り除いて閉じる
+				synchronized (statements) {
+					statements.remove(key);
+				}
+				closePhysically();
+				return;
+			}
+			synchronized (statements) {
+				inUse = false;
+				if (statements.get(key) != this) {
+					closePhysically();		// 使用中にキャッシュから破棄された
+				}
+			}
+		}
+
+		void closePhysically() {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				// 接続が既に閉じられている場合など（再利用しないため無視する）
+			}
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NamedNativeQueries;
+import javax.persistence.NamedNativeQuery;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.metadata.ClassMetadata;
+
+/**
+ * クエリごとの所要時間の分布、実行回数、返された行数、ロードされた
+ * エンティティの数を記録する。
+ *
+ * 記録はQueryMetricsStatistics（hibernate.stats.factoryに指定する）が
+ * Hibernateの統計情報から行うため、hibernate.generate_statisticsが
+ * trueの場合にのみ記録される。クエリは、空白をまとめ、文字列と数値の
+ * リテラルを"?"に置き換えたJPQL（ネイティブクエリの場合はSQL）で区別する。
+ * このため、リテラルだけが異なる動的クエリは1つのクエリとして集計される。
+ * 名前付きクエリは、エンティティクラスの＠NamedQueryなどで定義された
+ * JPQLと照合して名前を表示する。
+ *
+ * 統計情報はsnapshot()で取得するか、JMX（QueryMetricsMXBean）で参照する。
+ * EntityManagerFactoryのQueryMetricsはof()で取得できる。
+ */
+public class QueryMetrics implements QueryMetricsMXBean {
+
+	/** JMXに登録する名前のドメインとtype */
+	public static final String OBJECT_NAME_PREFIX = "org.beginningee6.book.chapter04:type=QueryMetrics,name=";
+
+	private static final AtomicInteger sequence = new AtomicInteger();
+
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+	private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+	private static final Pattern NUMERIC_LITERAL = Pattern.compile("(?<![\\w.?:])\\d+(?:\\.\\d+)?(?![\\w.])");
+
+	private final SessionFactoryImplementor sessionFactory;
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ObjectName objectName;
+
+	/** 正規化したJPQL→名前付きクエリの名前（最初に参照した時に作成する） */
+	private volatile Map<String, String> namedQueries;
+
+	QueryMetrics(SessionFactoryImplementor sessionFactory) {
+		this.sessionFactory = sessionFactory;
+		try {
+			this.objectName = new ObjectName(OBJECT_NAME_PREFIX + sequence.incrementAndGet());
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * EntityManagerFactoryのQueryMetricsを返す。
+	 * QueryMetricsStatisticsが使用されていない場合はnullを返す。
+	 */
+	public static QueryMetrics of(EntityManagerFactory emf) {
+		SessionFactoryImplementor sessionFactory =
+				(SessionFactoryImplementor) ((HibernateEntityManagerFactory) emf).getSessionFactory();
+		if (sessionFactory.getStatisticsImplementor() instanceof QueryMetricsStatistics) {
+			return ((QueryMetricsStatistics) sessionFactory.getStatisticsImplementor()).getQueryMetrics();
+		}
+		return null;
+	}
+
+	/** JMXに登録されている名前 */
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+
+	void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(this, objectName);
+		} catch (JMException e) {
+			throw new IllegalStateException("Unable to register " + objectName, e);
+		}
+	}
+
+	void unregister() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			// 既に登録が解除されている場合など（終了時のため無視する）
+		}
+	}
+
+	/**
+	 * クエリの実行を記録する。
+	 *
+	 * @param query		Hibernateが実行したJPQLまたはSQL（正規化する前のもの）
+	 * @param rows		返された行数
+	 * @param entities	実行中にロードされたエンティティの数
+	 * @param nanos		所要時間（ナノ秒）
+	 * @return			正規化したクエリ
+	 */
+	String record(String query, int rows, int entities, long nanos) {
+		String normalized = normalize(query);
+		Entry entry = entries.get(normalized);
+		if (entry == null) {
+			Entry created = new Entry();
+			entry = entries.putIfAbsent(normalized, created);
+			if (entry == null) {
+				entry = created;
+			}
+		}
+		entry.latencies.record(nanos);
+		entry.rowCount.addAndGet(rows);
+		entry.entityCount.addAndGet(entities);
+		return normalized;
+	}
+
+	/**
+	 * 空白をまとめ、文字列と数値のリテラルを"?"に置き換える。
+	 * パラメータ（":name"、"?1"）や識別子に含まれる数字は置き換えない。
+	 */
+	static String normalize(String query) {
+		String normalized = STRING_LITERAL.matcher(query).replaceAll("?");
+		normalized = NUMERIC_LITERAL.matcher(normalized).replaceAll("?");
+		return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+	}
+
+	public int getQueryCount() {
+		return entries.size();
+	}
+
+	public List<QueryMetricsSnapshot> getQueries() {
+		return snapshot();
+	}
+
+	/**
+	 * 全てのクエリの統計情報を、合計の所要時間の長い順に返す。
+	 */
+	public List<QueryMetricsSnapshot> snapshot() {
+		List<QueryMetricsSnapshot> snapshots = new ArrayList<QueryMetricsSnapshot>();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			snapshots.add(snapshotOf(entry.getKey(), entry.getValue()));
+		}
+		Collections.sort(snapshots, new Comparator<QueryMetricsSnapshot>() {
+			public int compare(QueryMetricsSnapshot o1, QueryMetricsSnapshot o2) {
+				return Double.compare(o2.getTotalMillis(), o1.getTotalMillis());
+			}
+		});
+		return snapshots;
+	}
+
+	/**
+	 * JPQL（またはSQL）の統計情報を返す。実行されていない場合はnullを返す。
+	 * リテラルは正規化されるため、どの値を指定しても同じ統計情報となる。
+	 */
+	public QueryMetricsSnapshot snapshot(String query) {
+		String normalized = normalize(query);
+		Entry entry = entries.get(normalized);
+		return entry == null ? null : snapshotOf(normalized, entry);
+	}
+
+	/**
+	 * 名前付きクエリの統計情報を返す。実行されていない場合はnullを返す。
+	 * 同じJPQLの名前付きクエリが複数ある場合、それらの合計となる。
+	 */
+	public QueryMetricsSnapshot snapshotOfNamedQuery(String name) {
+		for (Map.Entry<String, String> entry : namedQueries().entrySet()) {
+			if (("," + entry.getValue() + ",").contains("," + name + ",")) {
+				return snapshot(entry.getKey());
+			}
+		}
+		return null;
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	/** 正規化したクエリを定義している名前付きクエリの名前（カンマ区切り。ない場合は空文字列） */
+	String namesOf(String normalizedQuery) {
+		String names = namedQueries().get(normalizedQuery);
+		return names == null ? "" : names;
+	}
+
+	private QueryMetricsSnapshot snapshotOf(String query, Entry entry) {
+		LatencyHistogram latencies = entry.latencies;
+		return new QueryMetricsSnapshot(query, namesOf(query),
+				latencies.getCount(), entry.rowCount.get(), entry.entityCount.get(),
+				latencies.getMeanNanos() * latencies.getCount() / 1000000,
+				latencies.getMeanNanos() / 1000000,
+				latencies.getMaxNanos() / 1000000.0,
+				latencies.getPercentileNanos(50) / 1000000.0,
+				latencies.getPercentileNanos(95) / 1000000.0,
+				latencies.getPercentileNanos(99) / 1000000.0);
+	}
+
+	/**
+	 * エンティティクラスの＠NamedQuery、＠NamedNativeQueryから、
+	 * 正規化したクエリと名前の対応を作成する。
+	 */
+	private Map<String, String> namedQueries() {
+		Map<String, String> result = namedQueries;
+		if (result != null) {
+			return result;
+		}
+		result = new HashMap<String, String>();
+		for (ClassMetadata metadata : sessionFactory.getAllClassMetadata().values()) {
+			Class<?> entityClass = metadata.getMappedClass();
+			if (entityClass == null) {
+				continue;
+			}
+			NamedQueries queries = entityClass.getAnnotation(NamedQueries.class);
+			if (queries != null) {
+				for (NamedQuery query : queries.value()) {
+					addName(result, query.query(), query.name());
+				}
+			}
+			NamedQuery query = entityClass.getAnnotation(NamedQuery.class);
+			if (query != null) {
+				addName(result, query.query(), query.name());
+			}
+			NamedNativeQueries nativeQueries = entityClass.getAnnotation(NamedNativeQueries.class);
+			if (nativeQueries != null) {
+				for (NamedNativeQuery nativeQuery : nativeQueries.value()) {
+					addName(result, nativeQuery.query(), nativeQuery.name());
+				}
+			}
+			NamedNativeQuery nativeQuery = entityClass.getAnnotation(NamedNativeQuery.class);
+			if (nativeQuery != null) {
+				addName(result, nativeQuery.query(), nativeQuery.name());
+			}
+		}
+		namedQueries = result;
+		return result;
+	}
+
+	private static void addName(Map<String, String> names, String query, String name) {
+		String normalized = normalize(query);
+		String current = names.get(normalized);
+		names.put(normalized, current == null ? name : current + "," + name);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("QueryMetrics [").append(objectName).append("]");
+		for (QueryMetricsSnapshot snapshot : snapshot()) {
+			sb.append(System.getProperty("line.separator")).append("  ").append(snapshot);
+		}
+		return sb.toString();
+	}
+
+	/** 1つのクエリの統計情報 */
+	private static final class Entry {
+		final LatencyHistogram latencies = new LatencyHistogram();
+		final AtomicLong rowCount = new AtomicLong();
+		final AtomicLong entityCount = new AtomicLong();
+	}
+}
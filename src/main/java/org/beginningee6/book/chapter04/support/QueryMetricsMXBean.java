@@ -0,0 +1,22 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.util.List;
+
+/**
+ * クエリごとの統計情報をJMXで公開するためのインタフェース。
+ *
+ * QueryMetricsが実装し、EntityManagerFactoryごとに
+ * "org.beginningee6.book.chapter04:type=QueryMetrics,name=..."の名前で
+ * プラットフォームのMBeanServerに登録される。
+ */
+public interface QueryMetricsMXBean {
+
+	/** 統計情報を記録しているクエリの数 */
+	int getQueryCount();
+
+	/** 全てのクエリの統計情報（合計の所要時間の長い順） */
+	List<QueryMetricsSnapshot> getQueries();
+
+	/** 全てのクエリの統計情報をリセットする */
+	void clear();
+}
@@ -0,0 +1,106 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * 1つのクエリ（正規化したJPQLまたはSQL）の統計情報のスナップショット。
+ *
+ * 所要時間はHibernateが計測したミリ秒単位の値で、パーセンタイルは
+ * LatencyHistogramの区間の上限値（最大で実際の値の2倍）である。
+ * 取得した時点の値であり、以降の実行では更新されない。
+ *
+ * JMXでは、MXBeanの規則に従ってCompositeDataに変換される。
+ */
+public class QueryMetricsSnapshot {
+
+	private final String query;
+	private final String names;
+	private final long executionCount;
+	private final long rowCount;
+	private final long entityCount;
+	private final double totalMillis;
+	private final double meanMillis;
+	private final double maxMillis;
+	private final double p50Millis;
+	private final double p95Millis;
+	private final double p99Millis;
+
+	@ConstructorProperties({"query", "names", "executionCount", "rowCount", "entityCount",
+			"totalMillis", "meanMillis", "maxMillis", "p50Millis", "p95Millis", "p99Millis"})
+	public QueryMetricsSnapshot(String query, String names, long executionCount, long rowCount,
+			long entityCount, double totalMillis, double meanMillis, double maxMillis,
+			double p50Millis, double p95Millis, double p99Millis) {
+		this.query = query;
+		this.names = names;
+		this.executionCount = executionCount;
+		this.rowCount = rowCount;
+		this.entityCount = entityCount;
+		this.totalMillis = totalMillis;
+		this.meanMillis = meanMillis;
+		this.maxMillis = maxMillis;
+		this.p50Millis = p50Millis;
+		this.p95Millis = p95Millis;
+		this.p99Millis = p99Millis;
+	}
+
+	/** 正規化したJPQLまたはSQL（リテラルは"?"に置き換えられる） */
+	public String getQuery() {
+		return query;
+	}
+
+	/** このクエリを定義している名前付きクエリの名前（カンマ区切り。ない場合は空文字列） */
+	public String getNames() {
+		return names;
+	}
+
+	/** 実行回数（クエリキャッシュから返された場合は含まない） */
+	public long getExecutionCount() {
+		return executionCount;
+	}
+
+	/** 返された行数の合計 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/** 実行中にロードされたエンティティの数の合計 */
+	public long getEntityCount() {
+		return entityCount;
+	}
+
+	public double getTotalMillis() {
+		return totalMillis;
+	}
+
+	public double getMeanMillis() {
+		return meanMillis;
+	}
+
+	public double getMaxMillis() {
+		return maxMillis;
+	}
+
+	public double getP50Millis() {
+		return p50Millis;
+	}
+
+	public double getP95Millis() {
+		return p95Millis;
+	}
+
+	public double getP99Millis() {
+		return p99Millis;
+	}
+
+	@Override
+	public String toString() {
+		return "QueryMetricsSnapshot [query=" + query
+				+ (names.length() == 0 ? "" : ", names=" + names)
+				+ ", executions=" + executionCount
+				+ ", rows=" + rowCount
+				+ ", entities=" + entityCount
+				+ ", mean=" + meanMillis + "ms"
+				+ ", p95=" + p95Millis + "ms"
+				+ ", max=" + maxMillis + "ms]";
+	}
+}
@@ -0,0 +1,161 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.service.spi.Stoppable;
+import org.hibernate.stat.internal.ConcurrentStatisticsImpl;
+import org.hibernate.stat.spi.StatisticsFactory;
+import org.hibernate.stat.spi.StatisticsImplementor;
+
+/**
+ * Hibernateの統計情報に、クエリごとの統計情報（QueryMetrics）の記録を
+ * 加えたもの。
+ *
+ * persistence.xmlのhibernate.stats.factoryにFactoryを指定して使用する。
+ * 既存の統計情報（getStatistics()の値）は、Hibernateの標準の実装と同じである。
+ *
+ * Hibernateは、クエリの実行が終わるとqueryExecuted()を、実行中に
+ * エンティティを1件ロードするごとにloadEntity()を、同じスレッドで呼び出す。
+ * このため、前回のクエリの実行（またはセッションの開始）以降に同じスレッドで
+ * ロードされたエンティティの数を、そのクエリでロードされた数として記録する
+ * （em.find()でロードしたエンティティは、次のクエリに含まれる）。
+ *
+ * Hibernateがクエリに渡す所要時間はミリ秒単位で、1ミリ秒未満の実行が全て0と
+ * なるため、クエリがSQL文を準備（prepareStatement()）してから実行が終わるまでを
+ * System.nanoTime()で計測する。フラッシュやem.find()などクエリ以外で準備した
+ * SQL文は、その終了時（flush()、fetchEntity()、fetchCollection()）に計測を
+ * 取り消す。計測がHibernateの所要時間と矛盾する場合（クエリの外で準備した
+ * SQL文から計測していた場合）は、Hibernateの所要時間を使用する。
+ *
+ * また、実行中にSlowQueryDetectorが検出した実行に、クエリと名前付きクエリの
+ * 名前を記録する。Hibernateの所要時間から求めたクエリの開始より前に始まった
+ * 実行（em.find()など、クエリ以外のロードで検出したもの）には記録しない。
+ *
+ * SessionFactoryの終了時に、QueryMetricsのJMXの登録を解除する。
+ */
+public class QueryMetricsStatistics extends ConcurrentStatisticsImpl implements Stoppable {
+
+	/** hibernate.stats.factoryに指定するStatisticsFactory */
+	public static class Factory implements StatisticsFactory {
+		public StatisticsImplementor buildStatistics(SessionFactoryImplementor sessionFactory) {
+			return new QueryMetricsStatistics(sessionFactory);
+		}
+	}
+
+	/** スレッドごとの、実行中のクエリの状態 */
+	private static final ThreadLocal<QueryState> queryState = new ThreadLocal<QueryState>() {
+		@Override
+		protected QueryState initialValue() {
+			return new QueryState();
+		}
+	};
+
+	/** 実行中のクエリの状態 */
+	private static final class QueryState {
+		/** 前回のクエリの実行以降にロードされたエンティティの数 */
+		int loadedEntities;
+
+		/** 最初にSQL文を準備した時刻（System.nanoTime()） */
+		boolean started;
+		long startNanos;
+
+		void start() {
+			if (!started) {
+				started = true;
+				startNanos = System.nanoTime();
+			}
+		}
+
+		/**
+		 * 最初にSQL文を準備してからの時間（ナノ秒）を返し、計測を終了する。
+		 * 計測していない場合や、Hibernateの所要時間（millis）より1ミリ秒以上
+		 * 長い場合は、millisをナノ秒に変換して返す。
+		 */
+		long stop(long millis) {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+			if (started) {
+				long elapsed = System.nanoTime() - startNanos;
+				if (elapsed < TimeUnit.MILLISECONDS.toNanos(millis + 1)) {
+					nanos = elapsed;
+				}
+				started = false;
+			}
+			return nanos;
+		}
+	}
+
+	private final QueryMetrics queryMetrics;
+
+	public QueryMetricsStatistics(SessionFactoryImplementor sessionFactory) {
+		super(sessionFactory);
+		queryMetrics = new QueryMetrics(sessionFactory);
+		queryMetrics.register();
+	}
+
+	public QueryMetrics getQueryMetrics() {
+		return queryMetrics;
+	}
+
+	@Override
+	public void openSession() {
+		super.openSession();
+		QueryState state = queryState.get();
+		state.loadedEntities = 0;
+		state.started = false;
+		SlowQueryDetector.clearPending();
+	}
+
+	@Override
+	public void prepareStatement() {
+		super.prepareStatement();
+		queryState.get().start();
+	}
+
+	@Override
+	public void flush() {
+		super.flush();
+		queryState.get().started = false;
+	}
+
+	@Override
+	public void fetchEntity(String entityName) {
+		super.fetchEntity(entityName);
+		queryState.get().started = false;
+	}
+
+	@Override
+	public void fetchCollection(String role) {
+		super.fetchCollection(role);
+		queryState.get().started = false;
+	}
+
+	@Override
+	public void loadEntity(String entityName) {
+		super.loadEntity(entityName);
+		queryState.get().loadedEntities++;
+	}
+
+	@Override
+	public void queryExecuted(String hql, int rows, long time) {
+		// Hibernateの所要時間はミリ秒単位で切り捨てられているため、1ミリ秒前から開始したとみなす
+		long startNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(time + 1);
+		super.queryExecuted(hql, rows, time);
+		QueryState state = queryState.get();
+		String query = queryMetrics.record(hql, rows, state.loadedEntities, state.stop(time));
+		state.loadedEntities = 0;
+		SlowQueryDetector.queryExecuted(query, queryMetrics, startNanos);
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		if (queryMetrics != null) {		// スーパークラスのコンストラクタからも呼び出される
+			queryMetrics.clear();
+		}
+	}
+
+	public void stop() {
+		queryMetrics.unregister();
+	}
+}
@@ -0,0 +1,78 @@
+package org.beginningee6.book.chapter04.support;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.ejb.QueryHints;
+import org.hibernate.stat.Statistics;
+
+/**
+ * クエリの検索結果をキャッシュ（クエリキャッシュ）するためのユーティリティクラス。
+ *
+ * キャッシュするクエリは、検索結果がJPQL（SQL）とパラメータの値の組を
+ * キーとしてキャッシュされ、同じパラメータで再び検索した場合は
+ * データベースにアクセスしない。
+ *
+ * 検索結果は、検索対象のテーブルがエンティティの永続化、更新、削除や
+ * 一括更新、一括削除（UPDATE文、DELETE文）によって変更されると
+ * 自動的に無効となる。ネイティブクエリによる更新では、
+ * 変更されるテーブルが分からないため、全ての検索結果が無効となる。
+ *
+ * 検索結果として保持されるのはエンティティの主キーのみであり、
+ * エンティティの値は第2レベルキャッシュ（＠Cacheable）から読み込まれる。
+ * 第2レベルキャッシュの対象でないエンティティは、主キーにより1件ずつ
+ * データベースから読み込まれるため、キャッシュしないほうが速い。
+ *
+ * 名前付きクエリでは、＠NamedQueryのhints属性に
+ * ＠QueryHint(name = "org.hibernate.cacheable", value = "true")を
+ * 指定しても同じ効果が得られる（Customer05の"findWithParam"）。
+ */
+public final class QueryResultCache {
+
+	private QueryResultCache() {}
+
+	/**
+	 * クエリの検索結果をキャッシュする。
+	 */
+	public static <Q extends Query> Q setCacheable(Q query) {
+		query.setHint(QueryHints.HINT_CACHEABLE, Boolean.TRUE);
+		return query;
+	}
+
+	/**
+	 * クエリの検索結果を、指定したキャッシュ領域にキャッシュする。
+	 * 領域の大きさや有効期間はehcache.xmlで設定する。
+	 */
+	public static <Q extends Query> Q setCacheable(Q query, String region) {
+		setCacheable(query);
+		query.setHint(QueryHints.HINT_CACHE_REGION, region);
+		return query;
+	}
+
+	/**
+	 * キャッシュされている全ての検索結果を破棄する。
+	 */
+	public static void evictAll(EntityManagerFactory emf) {
+		((HibernateEntityManagerFactory) emf).getSessionFactory().getCache().evictQueryRegions();
+	}
+
+	/** キャッシュされた検索結果が使用された回数 */
+	public static long getHitCount(EntityManagerFactory emf) {
+		return statistics(emf).getQueryCacheHitCount();
+	}
+
+	/** 検索結果がキャッシュになく（または無効となっていて）データベースを検索した回数 */
+	public static long getMissCount(EntityManagerFactory emf) {
+		return statistics(emf).getQueryCacheMissCount();
+	}
+
+	/** 検索結果をキャッシュした回数 */
+	public static long getPutCount(EntityManagerFactory emf) {
+		return statistics(emf).getQueryCachePutCount();
+	}
+
+	private static Statistics statistics(EntityManagerFactory emf) {
+		return ((HibernateEntityManagerFactory) emf).getSessionFactory().getStatistics();
+	}
+}
@@ -0,0 +1,157 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+/**
+ * 名前付きクエリの検索結果を、JDBCのカーソルから1件ずつ読み込みながら
+ * 反復するためのクラス。
+ *
+ * TypedQuery.getResultList()では、全ての検索結果がエンティティとして
+ * 生成されてから返され、さらに全てのエンティティが永続性コンテキストに
+ * 管理されるため、テーブル全体を読み込むとその全件がヒープに載ってしまう。
+ *
+ * このクラスでは、HibernateのScrollableResults（FORWARD_ONLY）により
+ * 1件ずつエンティティを生成し、次の1件に進む際に永続性コンテキストを
+ * クリアして、直前のエンティティとその関連（遅延ロードのためのプロキシや
+ * 初期化された関連先のエンティティ）を切り離す。これにより、件数に
+ * 関係なく一定のメモリで全件を走査できる。
+ *
+ * 以下の点に注意すること。
+ *
+ * ・next()で返されたエンティティは、次にnext()を呼び出すまでの間のみ
+ *   管理状態であり、以降は切り離された状態となる。
+ * ・走査中に永続性コンテキストがクリアされるため、使用するEntityManagerには
+ *   未フラッシュの変更を残さないこと（走査専用のEntityManagerが望ましい）。
+ * ・エンティティは読み取り専用として読み込まれ、変更しても反映されない。
+ * ・走査が終わったら、必ずclose()でカーソルを閉じること。
+ *
+ * 使用例：
+ *
+ * QueryScroller<Customer05> customers = QueryScroller.ofNamedQuery(
+ * 		em, Customer05.FIND_ALL, Customer05.class, 500);
+ * try {
+ * 	while (customers.hasNext()) {
+ * 		Customer05 customer = customers.next();
+ * 		...
+ * 	}
+ * } finally {
+ * 	customers.close();
+ * }
+ */
+public class QueryScroller<T> implements Iterator<T>, Closeable {
+
+	/** フェッチサイズの既定値 */
+	public static final int DEFAULT_FETCH_SIZE = 500;
+
+	private final Session session;
+	private final Class<T> resultClass;
+	private final ScrollableResults results;
+
+	private T current;
+	private Boolean hasNext;
+	private long count;
+	private boolean closed;
+
+	/**
+	 * 名前付きクエリnameの検索結果を、fetchSize件ずつデータベースから
+	 * 読み込みながら反復するQueryScrollerを返す。
+	 */
+	public static <T> QueryScroller<T> ofNamedQuery(
+			EntityManager em, String name, Class<T> resultClass, int fetchSize) {
+		Session session = em.unwrap(Session.class);
+		return new QueryScroller<T>(session, session.getNamedQuery(name), resultClass, fetchSize);
+	}
+
+	/**
+	 * 名前付きクエリnameの検索結果を、DEFAULT_FETCH_SIZE件ずつデータベースから
+	 * 読み込みながら反復するQueryScrollerを返す。
+	 */
+	public static <T> QueryScroller<T> ofNamedQuery(
+			EntityManager em, String name, Class<T> resultClass) {
+		return ofNamedQuery(em, name, resultClass, DEFAULT_FETCH_SIZE);
+	}
+
+	/**
+	 * パラメータを設定済みのHibernateのQueryの検索結果を反復する。
+	 */
+	public QueryScroller(Session session, Query query, Class<T> resultClass, int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("fetchSize must be positive: " + fetchSize);
+		}
+		this.session = session;
+		this.resultClass = resultClass;
+		this.results = query
+				.setFetchSize(fetchSize)
+				.setReadOnly(true)				// スナップショットを保持しない
+				.setCacheMode(CacheMode.IGNORE)	// 2次キャッシュに読み込んだ結果を入れない
+				.scroll(ScrollMode.FORWARD_ONLY);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (closed) {
+			return false;
+		}
+		if (hasNext == null) {
+			release();
+			hasNext = Boolean.valueOf(results.next());
+		}
+		return hasNext.booleanValue();
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		hasNext = null;
+		current = resultClass.cast(results.get(0));
+		count++;
+		return current;
+	}
+
+	/**
+	 * 直前に返したエンティティとその関連を永続性コンテキストから切り離す。
+	 *
+	 * 関連先のエンティティはevict()ではカスケードされないため
+	 * （CascadeType.DETACHが指定されていない）、永続性コンテキスト全体を
+	 * クリアする。
+	 */
+	private void release() {
+		if (current != null) {
+			session.clear();
+			current = null;
+		}
+	}
+
+	/**
+	 * これまでにnext()で返した件数を返す。
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			release();
+			results.close();
+		}
+	}
+}
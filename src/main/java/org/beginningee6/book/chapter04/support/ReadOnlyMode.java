@@ -0,0 +1,104 @@
+package org.beginningee6.book.chapter04.support;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.ejb.QueryHints;
+
+/**
+ * 検索したエンティティを読み取り専用として扱うためのユーティリティクラス。
+ *
+ * 通常、検索したエンティティは、読み込んだ時点の全てのプロパティの値の
+ * コピー（スナップショット）とともに永続性コンテキストで管理され、
+ * フラッシュのたびにスナップショットと比較されて変更の有無が確認される
+ * （ダーティチェック）。
+ *
+ * 読み取り専用として読み込まれたエンティティはスナップショットを持たず、
+ * ダーティチェックの対象とならないため、1件あたりのヒープ使用量と
+ * フラッシュにかかる時間が削減される。ただし、読み取り専用のエンティティを
+ * 変更しても、その変更はデータベースに反映されない。
+ *
+ * ・クエリ単位		setReadOnly(Query)で、そのクエリの検索結果のみを
+ * 					読み取り専用とする（ヒント"org.hibernate.readOnly"）。
+ * ・EntityManager単位	setDefaultReadOnly(EntityManager, true)で、以降に
+ * 					そのEntityManagerで読み込まれる全てのエンティティを
+ * 					読み取り専用とする。
+ *
+ * ただし、Hibernate 4.2では＠NamedQueryで定義した名前付きクエリは
+ * 「読み取り専用ではない」ことが明示された状態で登録されるため、
+ * EntityManager単位の設定が適用されない。名前付きクエリは
+ * createNamedQuery(EntityManager, String, Class)で作成すること。
+ *
+ * なお、読み取り専用でもエンティティの削除（remove）はできる。
+ */
+public final class ReadOnlyMode {
+
+	private ReadOnlyMode() {}
+
+	/**
+	 * クエリの検索結果のエンティティを読み取り専用とする。
+	 *
+	 * 名前付きクエリでは、＠NamedQueryのhints属性に
+	 * ＠QueryHint(name = "org.hibernate.readOnly", value = "true")を
+	 * 指定しても同じ効果が得られる。
+	 */
+	public static <Q extends Query> Q setReadOnly(Q query) {
+		query.setHint(QueryHints.HINT_READONLY, Boolean.TRUE);
+		return query;
+	}
+
+	/**
+	 * 以降にこのEntityManagerで読み込まれるエンティティを、既定で
+	 * 読み取り専用とするかどうかを設定する。
+	 * すでに読み込まれているエンティティの状態は変わらない。
+	 */
+	public static void setDefaultReadOnly(EntityManager em, boolean readOnly) {
+		em.unwrap(Session.class).setDefaultReadOnly(readOnly);
+	}
+
+	/**
+	 * このEntityManagerで読み込まれるエンティティが、既定で
+	 * 読み取り専用となるかどうかを返す。
+	 */
+	public static boolean isDefaultReadOnly(EntityManager em) {
+		return em.unwrap(Session.class).isDefaultReadOnly();
+	}
+
+	/**
+	 * 名前付きクエリを作成する。EntityManagerが既定で読み取り専用の場合は、
+	 * クエリの検索結果も読み取り専用とする。
+	 */
+	public static <T> TypedQuery<T> createNamedQuery(
+			EntityManager em, String name, Class<T> resultClass) {
+		TypedQuery<T> query = em.createNamedQuery(name, resultClass);
+		if (isDefaultReadOnly(em)) {
+			setReadOnly(query);
+		}
+		return query;
+	}
+
+	/**
+	 * エンティティが読み取り専用として管理されているかどうかを返す。
+	 */
+	public static boolean isReadOnly(EntityManager em, Object entity) {
+		return em.unwrap(Session.class).isReadOnly(entity);
+	}
+
+	/**
+	 * 参照のみに使用するEntityManagerを生成する。
+	 *
+	 * 読み込まれる全てのエンティティが読み取り専用となり、さらに
+	 * 自動的なフラッシュ（クエリの実行前やコミット時）も行われない。
+	 */
+	public static EntityManager createEntityManager(EntityManagerFactory emf) {
+		EntityManager em = emf.createEntityManager();
+		Session session = em.unwrap(Session.class);
+		session.setDefaultReadOnly(true);
+		session.setFlushMode(FlushMode.MANUAL);
+		return em;
+	}
+}
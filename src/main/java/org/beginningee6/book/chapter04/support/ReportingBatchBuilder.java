@@ -0,0 +1,135 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.sql.PreparedStatement;
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.jdbc.batch.internal.BatchBuilderImpl;
+import org.hibernate.engine.jdbc.batch.internal.BatchingBatch;
+import org.hibernate.engine.jdbc.batch.spi.Batch;
+import org.hibernate.engine.jdbc.batch.spi.BatchBuilder;
+import org.hibernate.engine.jdbc.batch.spi.BatchKey;
+import org.hibernate.engine.jdbc.spi.JdbcCoordinator;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+
+/**
+ * JDBCのバッチ実行で実際にまとめて送信された行数を
+ * JdbcBatchStatisticsに記録するBatchBuilder。
+ *
+ * persistence.xmlで以下のように指定する。
+ *
+ * hibernate.jdbc.batch.builder = org.beginningee6.book.chapter04.support.ReportingBatchBuilder
+ * hibernate.jdbc.batch_size    = （1回のバッチ実行でまとめる最大の行数）
+ *
+ * 集計結果はEntityManagerFactoryごとに保持され、statisticsOf()で取得できる。
+ */
+public class ReportingBatchBuilder extends BatchBuilderImpl {
+
+	private final JdbcBatchStatistics statistics = new JdbcBatchStatistics();
+
+	private int jdbcBatchSize = 1;
+
+	@Override
+	public void configure(@SuppressWarnings("rawtypes") Map configurationValues) {
+		super.configure(configurationValues);
+		jdbcBatchSize = ConfigurationHelper.getInt(
+				Environment.STATEMENT_BATCH_SIZE, configurationValues, jdbcBatchSize);
+	}
+
+	@Override
+	public void setJdbcBatchSize(int jdbcBatchSize) {
+		super.setJdbcBatchSize(jdbcBatchSize);
+		this.jdbcBatchSize = jdbcBatchSize;
+	}
+
+	@Override
+	public Batch buildBatch(BatchKey key, JdbcCoordinator jdbcCoordinator) {
+		if (jdbcBatchSize > 1) {
+			return new ReportingBatch(key, jdbcCoordinator, jdbcBatchSize, statistics);
+		}
+		return super.buildBatch(key, jdbcCoordinator);
+	}
+
+	@Override
+	public Object getManagementBean() {
+		return statistics;
+	}
+
+	public JdbcBatchStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * EntityManagerFactoryで使用されているReportingBatchBuilderの集計結果を返す。
+	 * ReportingBatchBuilderが使用されていない場合はnullを返す。
+	 */
+	public static JdbcBatchStatistics statisticsOf(EntityManagerFactory emf) {
+		SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor)
+				((HibernateEntityManagerFactory) emf).getSessionFactory();
+		BatchBuilder builder =
+				sessionFactory.getServiceRegistry().getService(BatchBuilder.class);
+		if (builder instanceof ReportingBatchBuilder) {
+			return ((ReportingBatchBuilder) builder).getStatistics();
+		}
+		return null;
+	}
+
+	/**
+	 * バッチに追加された行数を数え、バッチ実行のたびに
+	 * その行数を記録するBatchingBatch。
+	 *
+	 * BatchingBatchは、追加された行数がバッチサイズに達した時点と、
+	 * 明示的に実行された時点（フラッシュ時や異なるSQL文への切り替え時）に
+	 * executeBatch()を実行する。
+	 */
+	static class ReportingBatch extends BatchingBatch {
+
+		private final int batchSize;
+		private final JdbcBatchStatistics statistics;
+
+		private String currentSql;
+		private int position;
+
+		ReportingBatch(BatchKey key, JdbcCoordinator jdbcCoordinator,
+				int batchSize, JdbcBatchStatistics statistics) {
+			super(key, jdbcCoordinator, batchSize);
+			this.batchSize = batchSize;
+			this.statistics = statistics;
+		}
+
+		@Override
+		public PreparedStatement getBatchStatement(String sql, boolean callable) {
+			currentSql = sql;
+			return super.getBatchStatement(sql, callable);
+		}
+
+		@Override
+		public void addToBatch() {
+			position++;
+			String sql = currentSql;
+			int size = position;
+			if (position == batchSize) {
+				// BatchingBatch.addToBatch()内でバッチ実行される
+				position = 0;
+			}
+			super.addToBatch();
+			if (size == batchSize) {
+				statistics.record(sql, size);
+			}
+		}
+
+		@Override
+		protected void doExecuteBatch() {
+			int size = position;
+			position = 0;
+			super.doExecuteBatch();
+			if (size > 0) {
+				statistics.record(currentSql, size);
+			}
+		}
+	}
+}
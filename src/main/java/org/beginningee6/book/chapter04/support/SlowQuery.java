@@ -0,0 +1,119 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SlowQueryDetectorが記録した、しきい値を超えたSQL文の実行。
+ *
+ * 実行計画（Derbyの実行時統計）と、表全体の走査、使用された索引、
+ * 読み込まれた行数を持つ。Hibernateのクエリ（JPQLまたはネイティブクエリ）から
+ * 実行された場合は、正規化したクエリと名前付きクエリの名前も持つ。
+ */
+public class SlowQuery {
+
+	private final long timestamp;
+	private final String threadName;
+	private final String sql;
+	private final List<Object> parameters;
+	private final double elapsedMillis;
+	private final DerbyQueryPlan plan;
+	private final String planError;
+
+	private volatile String query;
+	private volatile String names = "";
+
+	SlowQuery(String sql, Object[] parameters, double elapsedMillis, DerbyQueryPlan plan,
+			String planError) {
+		this.timestamp = System.currentTimeMillis();
+		this.threadName = Thread.currentThread().getName();
+		this.sql = sql;
+		this.parameters = Collections.unmodifiableList(Arrays.asList(parameters));
+		this.elapsedMillis = elapsedMillis;
+		this.plan = plan;
+		this.planError = planError;
+	}
+
+	void setQuery(String query, String names) {
+		this.query = query;
+		this.names = names;
+	}
+
+	/** 実行が終了した時刻（ミリ秒） */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getThreadName() {
+		return threadName;
+	}
+
+	/** 実行したSQL文 */
+	public String getSql() {
+		return sql;
+	}
+
+	/** バインドしたパラメータの値 */
+	public List<Object> getParameters() {
+		return parameters;
+	}
+
+	/** 実行を開始してからStatementを閉じるまでの時間（結果の読み込みを含む） */
+	public double getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * SQL文を実行したJPQL（またはネイティブクエリ）をQueryMetricsで正規化したもの。
+	 * Hibernateのクエリ以外から実行された場合はnull。
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/** SQL文を実行した名前付きクエリの名前（カンマ区切り。ない場合は空文字列） */
+	public String getNames() {
+		return names;
+	}
+
+	/** 実行計画。取得できなかった場合はnull（getPlanError()を参照） */
+	public DerbyQueryPlan getPlan() {
+		return plan;
+	}
+
+	/** 実行計画を取得できなかった理由 */
+	public String getPlanError() {
+		return planError;
+	}
+
+	/** 全体を走査した表（実行計画がない場合は空） */
+	public List<String> getTableScans() {
+		return plan == null ? Collections.<String>emptyList() : plan.getTableScans();
+	}
+
+	/** 使用された索引（実行計画がない場合は空） */
+	public List<String> getIndexScans() {
+		return plan == null ? Collections.<String>emptyList() : plan.getIndexScans();
+	}
+
+	/** 表や索引から読み込まれた行数（実行計画がない場合は-1） */
+	public long getRowsVisited() {
+		return plan == null ? -1 : plan.getRowsVisited();
+	}
+
+	@Override
+	public String toString() {
+		return "SlowQuery [" + String.format("%.3f ms", elapsedMillis)
+				+ (query == null ? "" : ", query=" + query)
+				+ (names.length() == 0 ? "" : ", names=" + names)
+				+ ", sql=" + sql
+				+ ", parameters=" + parameters
+				+ (plan == null
+						? ", plan unavailable: " + planError
+						: ", tableScans=" + getTableScans()
+								+ ", indexScans=" + getIndexScans()
+								+ ", rowsVisited=" + getRowsVisited())
+				+ "]";
+	}
+}
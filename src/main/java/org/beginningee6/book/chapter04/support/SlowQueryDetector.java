@@ -0,0 +1,307 @@
+package org.beginningee6.book.chapter04.support;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * 実行に時間がかかったSELECT文を検出し、Derbyの実行時統計で実行計画を記録する。
+ *
+ * wrap()で包んだ接続では、executeQuery()の呼び出しからStatementを閉じるまで
+ * （結果の読み込みを含む）の時間を計測する。しきい値を超えた場合は、
+ * Statementを閉じた後に、同じ接続でSYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICSを
+ * 有効にして同じSQL文とパラメータで再実行し、実行計画を取得する
+ * （DerbyQueryPlan.explain()）。同じSQL文を1分以内に再び検出した場合は、
+ * 再実行せずに前回の実行計画を使用する。
+ *
+ * 検出した実行はSlowQueryとして新しいものから最大capacity件を保持し、
+ * ロガー"org.beginningee6.book.chapter04.slowquery"にWARNINGレベルで出力する。
+ *
+ * Hibernateのクエリから実行された場合は、QueryMetricsStatisticsが
+ * クエリの終了時にqueryExecuted()を呼び出し、元のJPQLと名前付きクエリの
+ * 名前をSlowQueryに記録する。ただし、そのクエリの開始より前に始まった実行
+ * （直前のem.find()や遅延ロードなど、クエリ以外から実行されたもの）には
+ * 記録しない（getQuery()はnullのままとなる）。クエリと対応付けていない実行は
+ * スレッドごとに最大MAX_PENDING件を保持し、超えた場合は古いものから確定する。
+ */
+public class SlowQueryDetector {
+
+	/** 検出した実行を出力するロガーの名前 */
+	public static final String LOGGER_NAME = "org.beginningee6.book.chapter04.slowquery";
+
+	private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+
+	/** 同じSQL文の実行計画を再利用する期間 */
+	private static final long EXPLAIN_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	/** スレッドごとに保持する、クエリと対応付けていない実行の最大数 */
+	static final int MAX_PENDING = 100;
+
+	/** スレッドごとの、Hibernateのクエリと対応付けていない実行（古い順） */
+	private static final ThreadLocal<Deque<Pending>> pending = new ThreadLocal<Deque<Pending>>() {
+		@Override
+		protected Deque<Pending> initialValue() {
+			return new ArrayDeque<Pending>();
+		}
+	};
+
+	private final long thresholdNanos;
+	private final int capacity;
+	private final Deque<SlowQuery> slowQueries = new ArrayDeque<SlowQuery>();
+	private final ConcurrentMap<String, Explained> explained = new ConcurrentHashMap<String, Explained>();
+
+	public SlowQueryDetector(long threshold, TimeUnit unit, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		this.thresholdNanos = unit.toNanos(threshold);
+		this.capacity = capacity;
+	}
+
+	public long getThreshold(TimeUnit unit) {
+		return unit.convert(thresholdNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * 接続を、SELECT文の所要時間を計測する接続で包む。
+	 */
+	public Connection wrap(Connection connection) {
+		DetectingConnection handler = new DetectingConnection(connection);
+		handler.proxy = JdbcProxies.proxy(Connection.class, handler);
+		return handler.proxy;
+	}
+
+	/** 検出した実行（古いものから順） */
+	public List<SlowQuery> getSlowQueries() {
+		synchronized (slowQueries) {
+			return new ArrayList<SlowQuery>(slowQueries);
+		}
+	}
+
+	/** 検出した実行と、再利用する実行計画を破棄する */
+	public void clear() {
+		synchronized (slowQueries) {
+			slowQueries.clear();
+		}
+		explained.clear();
+	}
+
+	/**
+	 * Hibernateのクエリの実行が終わった時に、同じスレッドで呼び出される。
+	 * そのクエリの実行中に検出した実行に、クエリと名前付きクエリの名前を記録する。
+	 * startNanos（System.nanoTime()）より前に始まった実行はクエリの外で
+	 * 実行されたものとし、記録せずに確定する。
+	 *
+	 * @param startNanos	クエリが開始した時刻（これより前には開始していない時刻）
+	 */
+	static void queryExecuted(String query, QueryMetrics queryMetrics, long startNanos) {
+		Deque<Pending> queries = pending.get();
+		if (queries.isEmpty()) {
+			return;
+		}
+		String names = null;
+		for (Pending executed : queries) {
+			if (executed.startNanos - startNanos >= 0) {
+				if (names == null) {
+					names = queryMetrics.namesOf(query);
+				}
+				executed.slowQuery.setQuery(query, names);
+			}
+		}
+		queries.clear();
+	}
+
+	/** 対応付けていない実行を破棄する（セッションの開始時） */
+	static void clearPending() {
+		pending.get().clear();
+	}
+
+	/** このスレッドで、クエリと対応付けていない実行の数 */
+	static int getPendingCount() {
+		return pending.get().size();
+	}
+
+	private void detected(Connection connection, String sql, Object[] parameters,
+			long startNanos, long nanos) {
+		DerbyQueryPlan plan = null;
+		String planError = null;
+		long now = System.nanoTime();
+		Explained previous = explained.get(sql);
+		if (previous != null && now - previous.nanoTime < EXPLAIN_INTERVAL_NANOS) {
+			plan = previous.plan;
+		} else {
+			try {
+				// PreparedStatementCacheのPreparedStatementを再利用すると、実行時統計が
+				// 以前の実行と合算されるため、物理的な接続で新たに準備する
+				plan = DerbyQueryPlan.explain(connection.unwrap(Connection.class), sql, parameters);
+				explained.put(sql, new Explained(plan, now));
+			} catch (SQLException e) {
+				planError = e.getSQLState() + ": " + e.getMessage();
+			}
+		}
+
+		SlowQuery slowQuery = new SlowQuery(sql, parameters, nanos / 1000000.0, plan, planError);
+		synchronized (slowQueries) {
+			if (slowQueries.size() == capacity) {
+				slowQueries.removeFirst();
+			}
+			slowQueries.addLast(slowQuery);
+		}
+		// em.find()や遅延ロードだけを実行するスレッドでは、クエリの終了時に
+		// 破棄されないため、古いものから確定する
+		Deque<Pending> queries = pending.get();
+		if (queries.size() == MAX_PENDING) {
+			queries.removeFirst();
+		}
+		queries.addLast(new Pending(slowQuery, startNanos));
+		logger.warning(slowQuery.toString());
+	}
+
+	private static boolean isSelect(String sql) {
+		return sql.trim().toLowerCase(Locale.ENGLISH).startsWith("select");
+	}
+
+	/** クエリと対応付けていない実行と、実行を開始した時刻 */
+	private static final class Pending {
+		final SlowQuery slowQuery;
+		final long startNanos;
+
+		Pending(SlowQuery slowQuery, long startNanos) {
+			this.slowQuery = slowQuery;
+			this.startNanos = startNanos;
+		}
+	}
+
+	/** 取得した実行計画と、取得した時刻 */
+	private static final class Explained {
+		final DerbyQueryPlan plan;
+		final long nanoTime;
+
+		Explained(DerbyQueryPlan plan, long nanoTime) {
+			this.plan = plan;
+			this.nanoTime = nanoTime;
+		}
+	}
+
+	/** 作成したStatementを、所要時間を計測するStatementで包む接続 */
+	private final class DetectingConnection implements InvocationHandler {
+
+		private final Connection connection;
+		private Connection proxy;
+
+		DetectingConnection(Connection connection) {
+			this.connection = connection;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (JdbcProxies.isObjectMethod(method)) {
+				return JdbcProxies.invokeObjectMethod(proxy, method, args);
+			}
+			Object result = JdbcProxies.invoke(connection, method, args);
+			String name = method.getName();
+			if (name.equals("prepareStatement") || name.equals("createStatement")) {
+				String sql = name.equals("createStatement") ? null : (String) args[0];
+				DetectingStatement handler = new DetectingStatement((Statement) result, sql, this);
+				handler.proxy = (Statement) JdbcProxies.proxy(method.getReturnType(), handler);
+				return handler.proxy;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * パラメータの値を保持し、executeQuery()から次の実行またはclose()までの
+	 * 時間を計測するStatement。
+	 */
+	private final class DetectingStatement implements InvocationHandler {
+
+		private final Statement statement;
+		private final String sql;
+		private final DetectingConnection connection;
+		private Statement proxy;
+
+		private Object[] parameters = new Object[8];
+		private int parameterCount;
+
+		/** 計測中の実行（ない場合はnull） */
+		private String executedSql;
+		private Object[] executedParameters;
+		private long startNanos;
+
+		DetectingStatement(Statement statement, String sql, DetectingConnection connection) {
+			this.statement = statement;
+			this.sql = sql;
+			this.connection = connection;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (JdbcProxies.isObjectMethod(method)) {
+				return JdbcProxies.invokeObjectMethod(proxy, method, args);
+			}
+			String name = method.getName();
+			if (name.equals("getConnection")) {
+				return connection.proxy;
+			}
+			if (name.equals("close")) {
+				try {
+					return JdbcProxies.invoke(statement, method, args);
+				} finally {
+					finish();
+				}
+			}
+			if (name.startsWith("execute")) {
+				finish();
+				if (name.equals("executeQuery")) {
+					executedSql = sql != null ? sql : (String) args[0];
+					executedParameters = Arrays.copyOf(parameters, parameterCount);
+					startNanos = System.nanoTime();
+				}
+			}
+
+			Object result = JdbcProxies.invoke(statement, method, args);
+			if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer
+					&& sql != null) {
+				setParameter((Integer) args[0], name.equals("setNull") ? null : args[1]);
+			} else if (name.equals("clearParameters")) {
+				parameterCount = 0;
+			} else if (result instanceof ResultSet) {
+				return JdbcProxies.resultSet((ResultSet) result, this.proxy);
+			}
+			return result;
+		}
+
+		private void setParameter(int index, Object value) {
+			if (index > parameters.length) {
+				parameters = Arrays.copyOf(parameters, Math.max(index, parameters.length * 2));
+			}
+			parameters[index - 1] = value;
+			parameterCount = Math.max(parameterCount, index);
+		}
+
+		/** 計測中の実行を終了し、しきい値を超えていれば記録する */
+		private void finish() {
+			if (executedSql == null) {
+				return;
+			}
+			long nanos = System.nanoTime() - startNanos;
+			String executed = executedSql;
+			executedSql = null;
+			if (nanos >= thresholdNanos && isSelect(executed)) {
+				detected(connection.connection, executed, executedParameters, startNanos, nanos);
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.support.JdbcBatchStatistics;
+import org.beginningee6.book.chapter04.support.ReportingBatchBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JDBCのバッチサイズ（hibernate.jdbc.batch_size）ごとに、
+ * Customer05/Address05エンティティのINSERTのスループットを比較する
+ * ベンチマーク。
+ *
+ * 1回の呼び出しでCustomer05とAddress05の組をINSERTS_PER_TX件、
+ * 1つのトランザクションで永続化する。スコアは1組あたりの値となる。
+ * 計測終了時に、実際にまとめて送信された行数（JdbcBatchStatistics）を
+ * 標準出力に出力する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchInsertBenchmark {
+
+	private static final int INSERTS_PER_TX = 1000;
+
+	@Param({"1", "10", "50", "200"})
+	public int batchSize;
+
+	private EntityManagerFactory emf;
+	private EntityManager em;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.show_sql", "false");
+		properties.put("hibernate.jdbc.batch_size", String.valueOf(batchSize));
+
+		emf = Persistence.createEntityManagerFactory("test", properties);
+		em = emf.createEntityManager();
+
+		BenchmarkData.clear(em);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		JdbcBatchStatistics statistics = ReportingBatchBuilder.statisticsOf(emf);
+		if (statistics != null) {
+			System.out.println(statistics);
+		}
+
+		if (em != null) {
+			em.close();
+		}
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INSERTS_PER_TX)
+	public void persistCustomers() {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (int i = 0; i < INSERTS_PER_TX; i++) {
+			em.persist(BenchmarkData.newCustomer(next++));
+		}
+		tx.commit();
+		em.clear();
+	}
+}
@@ -0,0 +1,89 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.beginningee6.book.chapter04.ex05.Address05;
+import org.beginningee6.book.chapter04.ex05.Customer05;
+
+/**
+ * ベンチマーク用のCustomer05/Address05エンティティのデータを
+ * 準備するためのユーティリティクラス。
+ *
+ * firstNameはFIRST_NAMESの値を、address.countryはCOUNTRIESの値を
+ * 順番に割り当てるため、どのデータ件数でも各値の出現頻度は一定となる。
+ */
+public final class BenchmarkData {
+
+	/** データに割り当てるfirstNameの一覧 */
+	public static final String[] FIRST_NAMES = {
+		"Antony", "Vincent", "Sebastian", "Frederic", "David",
+		"Maria", "Paul", "Sophie", "Hugo", "Emma",
+		"Louis", "Chloe", "Lucas", "Alice", "Jules",
+		"Ines", "Adam", "Lea", "Arthur", "Manon"
+	};
+
+	/** データに割り当てるaddress.countryの一覧 */
+	public static final String[] COUNTRIES = {
+		"FR", "UK", "PT", "BR", "AU", "JP", "US", "DE", "IT", "ES"
+	};
+
+	/** 一度のトランザクションで永続化する件数 */
+	private static final int CHUNK_SIZE = 500;
+
+	private BenchmarkData() {}
+
+	/**
+	 * Customer05/Address05エンティティをデータベースから全て削除する。
+	 */
+	public static void clear(EntityManager em) {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+		tx.commit();
+		em.clear();
+	}
+
+	/**
+	 * 既存のデータを削除した上で、Customer05とAddress05エンティティの組を
+	 * rows件永続化する。
+	 *
+	 * 永続性コンテキストが肥大化しないよう、CHUNK_SIZE件ごとに
+	 * コミットしてクリアする。
+	 */
+	public static void populate(EntityManager em, int rows) {
+		clear(em);
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (int i = 0; i < rows; i++) {
+			em.persist(newCustomer(i));
+			if ((i + 1) % CHUNK_SIZE == 0) {
+				tx.commit();
+				em.clear();
+				tx.begin();
+			}
+		}
+		tx.commit();
+		em.clear();
+	}
+
+	/**
+	 * i番目のデータとなるCustomer05エンティティをAddress05エンティティと
+	 * 関連付けて生成する（永続化は行わない）。
+	 */
+	public static Customer05 newCustomer(int i) {
+		Customer05 customer = new Customer05(
+				FIRST_NAMES[i % FIRST_NAMES.length],
+				"Name" + i,
+				"customer" + i + "@mail.com",
+				Integer.valueOf(i % 90 + 10));
+		customer.setAddress(new Address05(
+				"Street " + i,
+				"City " + (i % 100),
+				String.valueOf(10000 + i),
+				COUNTRIES[i % COUNTRIES.length]));
+		return customer;
+	}
+}
@@ -0,0 +1,115 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.CustomerColumnSnapshot05;
+import org.beginningee6.book.chapter04.ex05.CustomerCountryCountDTO05;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 集計の検索をJPQLでDerbyに対して実行した場合と、CustomerColumnSnapshot05に
+ * 対して実行した場合のレイテンシを比較するベンチマーク。
+ *
+ * ・jpqlGroupBy / snapshotGroupBy		countryごとの数（DynamicQueryTest.testGROUP_BY）
+ * ・jpqlMinAge / snapshotMinAge		ageが最小のCustomer05のid（DynamicQueryTest.testSubquery）
+ *
+ * スナップショットはTrialの開始時に一度だけ作成する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColumnSnapshotBenchmark {
+
+	private static final String GROUP_BY =
+			"SELECT NEW org.beginningee6.book.chapter04.ex05.CustomerCountryCountDTO05(c.address.country, COUNT(c)) " +
+			"FROM Customer05 c " +
+			"GROUP BY c.address.country " +
+			"ORDER BY c.address.country ASC";
+
+	private static final String MIN_AGE =
+			"SELECT c.id FROM Customer05 c " +
+			"WHERE c.age = (SELECT MIN(cust.age) FROM Customer05 cust) " +
+			"ORDER BY c.id";
+
+	/** データベースに登録するCustomer05エンティティの件数 */
+	@Param({"1000", "10000"})
+	public int rows;
+
+	private EntityManagerFactory emf;
+	private EntityManager em;
+
+	private CustomerColumnSnapshot05 snapshot;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.show_sql", "false");
+
+		emf = Persistence.createEntityManagerFactory("test", properties);
+		em = emf.createEntityManager();
+
+		BenchmarkData.populate(em, rows);
+
+		snapshot = new CustomerColumnSnapshot05();
+		snapshot.refresh(em);
+		em.clear();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (em != null) {
+			em.close();
+		}
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Benchmark
+	public List<CustomerCountryCountDTO05> jpqlGroupBy() {
+		List<CustomerCountryCountDTO05> counts =
+				em.createQuery(GROUP_BY, CustomerCountryCountDTO05.class).getResultList();
+		em.clear();
+		return counts;
+	}
+
+	@Benchmark
+	public List<CustomerCountryCountDTO05> snapshotGroupBy() {
+		return snapshot.select().countByCountry();
+	}
+
+	@Benchmark
+	public List<Long> jpqlMinAge() {
+		List<Long> ids = em.createQuery(MIN_AGE, Long.class).getResultList();
+		em.clear();
+		return ids;
+	}
+
+	@Benchmark
+	public List<Long> snapshotMinAge() {
+		Integer minAge = snapshot.select().minAge();
+		return snapshot.select().ageBetween(minAge, minAge).ids();
+	}
+}
@@ -0,0 +1,113 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.support.ConnectionPoolMetrics;
+import org.beginningee6.book.chapter04.support.HikariConnectionProvider;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.service.jdbc.connections.spi.ConnectionProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 64スレッドが同時に接続を取得、使用、返却する場合のレイテンシを、
+ * コネクションプールの実装ごとに比較するベンチマーク。
+ *
+ * ・hikari			HikariConnectionProvider（persistence.xmlの設定）
+ * ・driver-manager	Hibernateの組み込みのプール（DriverManagerConnectionProviderImpl）
+ *
+ * どちらもプールの最大の接続数はpoolSizeとするため、スレッドの多くは
+ * 接続の返却を待つことになる。1回の操作では、接続を取得して
+ * 「VALUES 1」を実行し、接続を返却する。
+ *
+ * hikariでは、Trialの終了時にConnectionPoolMetricsの取得時間の分布を出力する。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class ConnectionPoolBenchmark {
+
+	private static final String DRIVER_MANAGER_PROVIDER =
+			"org.hibernate.service.jdbc.connections.internal.DriverManagerConnectionProviderImpl";
+
+	@Param({"hikari", "driver-manager"})
+	public String provider;
+
+	@Param({"20"})
+	public int poolSize;
+
+	private EntityManagerFactory emf;
+	private ConnectionProvider connectionProvider;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.show_sql", "false");
+		if (provider.equals("hikari")) {
+			properties.put("hibernate.hikari.minimumIdle", String.valueOf(poolSize));
+			properties.put("hibernate.hikari.maximumPoolSize", String.valueOf(poolSize));
+		} else {
+			properties.put("hibernate.connection.provider_class", DRIVER_MANAGER_PROVIDER);
+			properties.put("hibernate.connection.pool_size", String.valueOf(poolSize));
+		}
+
+		emf = Persistence.createEntityManagerFactory("test", properties);
+		connectionProvider = ((SessionFactoryImplementor) ((HibernateEntityManagerFactory) emf)
+				.getSessionFactory()).getServiceRegistry().getService(ConnectionProvider.class);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (emf != null) {
+			ConnectionPoolMetrics metrics = HikariConnectionProvider.metricsOf(emf);
+			if (metrics != null) {
+				System.out.println();
+				System.out.println(metrics);
+			}
+			emf.close();
+		}
+	}
+
+	@Benchmark
+	public int acquireAndRelease() throws SQLException {
+		Connection connection = connectionProvider.getConnection();
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				ResultSet rs = statement.executeQuery("VALUES 1");
+				rs.next();
+				return rs.getInt(1);
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connectionProvider.closeConnection(connection);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.TypedQuery;
+
+import org.apache.derby.drda.NetworkServerControl;
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Derbyへの接続方法ごとに、1文あたりのレイテンシを比較するベンチマーク。
+ *
+ * ・client		同一JavaVM内で起動したネットワークサーバにTCPで接続する
+ * ・embedded	組み込みモードでファイル上のデータベースに接続する
+ * ・memory		組み込みモードでインメモリデータベースに接続する
+ *
+ * clientとmemoryはどちらもインメモリデータベースを使用するため、
+ * 両者の差がネットワークサーバ経由の通信（TCPの往復）にかかる時間となる。
+ *
+ * 主キーによる検索（1文）と名前付きクエリ"findWithParam"（1文）を計測する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DerbyModeBenchmark {
+
+	private static final int SERVER_PORT = 15270;
+
+	private static final int ROWS = 100;
+
+	@Param({"client", "embedded", "memory"})
+	public String mode;
+
+	private NetworkServerControl server;
+	private EntityManagerFactory emf;
+	private EntityManager em;
+
+	private Long[] ids;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Map<String, String> properties = new HashMap<String, String>();
+
+		if ("client".equals(mode)) {
+			server = new NetworkServerControl(
+					InetAddress.getByName("localhost"), SERVER_PORT);
+			server.start(new PrintWriter(System.out));
+			waitForServer();
+
+			properties.put("hibernate.connection.driver_class",
+					"org.apache.derby.jdbc.ClientDriver");
+			properties.put("hibernate.connection.url",
+					"jdbc:derby://localhost:" + SERVER_PORT
+					+ "/memory:DerbyModeBenchmark;create=true");
+		} else if ("embedded".equals(mode)) {
+			properties.put("hibernate.connection.driver_class",
+					"org.apache.derby.jdbc.EmbeddedDriver");
+			properties.put("hibernate.connection.url",
+					"jdbc:derby:" + new File("target/derby/DerbyModeBenchmark").getAbsolutePath()
+					+ ";create=true");
+		} else {
+			properties.put("hibernate.connection.driver_class",
+					"org.apache.derby.jdbc.EmbeddedDriver");
+			properties.put("hibernate.connection.url",
+					"jdbc:derby:memory:DerbyModeBenchmark;create=true");
+		}
+		// 計測対象ではない標準出力へのSQLの出力を抑止する
+		properties.put("hibernate.show_sql", "false");
+
+		emf = Persistence.createEntityManagerFactory("test", properties);
+		em = emf.createEntityManager();
+
+		BenchmarkData.populate(em, ROWS);
+
+		List<Long> list = em.createQuery(
+				"SELECT c.id FROM Customer05 c", Long.class).getResultList();
+		ids = list.toArray(new Long[list.size()]);
+	}
+
+	private void waitForServer() throws Exception {
+		for (int i = 0; i < 50; i++) {
+			try {
+				server.ping();
+				return;
+			} catch (Exception e) {
+				Thread.sleep(100);
+			}
+		}
+		throw new IllegalStateException("Derby network server did not start");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+		if (emf != null) {
+			emf.close();
+		}
+		if (server != null) {
+			server.shutdown();
+		}
+	}
+
+	@Benchmark
+	public Customer05 findById() {
+		next = (next + 1) % ids.length;
+		Customer05 customer = em.find(Customer05.class, ids[next]);
+		em.clear();
+		return customer;
+	}
+
+	@Benchmark
+	public List<Customer05> findWithParam() {
+		next = (next + 1) % BenchmarkData.FIRST_NAMES.length;
+		TypedQuery<Customer05> query =
+				em.createNamedQuery("findWithParam", Customer05.class);
+		query.setParameter("fname", BenchmarkData.FIRST_NAMES[next]);
+		List<Customer05> customers = query.getResultList();
+		em.clear();
+		return customers;
+	}
+}
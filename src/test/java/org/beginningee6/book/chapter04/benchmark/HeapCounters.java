@@ -0,0 +1,74 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 1回の呼び出しでのヒープ使用量を、以下の補助カウンタ（MB単位）として
+ * 出力するための状態。SingleShotTimeのベンチマークで引数として受け取り、
+ * 計測したい時点でsampleLive()、呼び出しの最後にrecord()を呼び出す。
+ *
+ * ・peakHeapMb	呼び出し中のヒープ使用量のピークの増分（回収前のガベージを含む）
+ * ・liveHeapMb	sampleLive()でGCを実行した後のヒープ使用量の増分
+ * 				（その時点で到達可能なオブジェクトの量）
+ *
+ * 増分は、各呼び出しの前にGCを実行した時点のヒープ使用量を基準とする。
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class HeapCounters {
+
+	/** 呼び出し中のヒープ使用量のピークの増分（MB） */
+	public long peakHeapMb;
+
+	/** sampleLive()の時点でのGC後のヒープ使用量の増分（MB） */
+	public long liveHeapMb;
+
+	private long baseline;
+
+	@Setup(Level.Invocation)
+	public void reset() {
+		System.gc();
+		baseline = 0;
+		for (MemoryPoolMXBean pool : heapPools()) {
+			pool.resetPeakUsage();
+			baseline += pool.getUsage().getUsed();
+		}
+	}
+
+	public void sampleLive() {
+		System.gc();
+		long used = 0;
+		for (MemoryPoolMXBean pool : heapPools()) {
+			used += pool.getUsage().getUsed();
+		}
+		liveHeapMb = Math.max(liveHeapMb, (used - baseline) / (1024 * 1024));
+	}
+
+	public void record() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : heapPools()) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+		peakHeapMb = Math.max(peakHeapMb, (peak - baseline) / (1024 * 1024));
+	}
+
+	private static List<MemoryPoolMXBean> heapPools() {
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pools.add(pool);
+			}
+		}
+		return pools;
+	}
+}
@@ -0,0 +1,110 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.TypedQuery;
+
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.beginningee6.book.chapter04.ex05.CustomerKeysetPager05;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * N ページ目の取得にかかる時間を、setFirstResult()によるページングと
+ * CustomerKeysetPager05によるキーセット方式のページングとで比較する
+ * ベンチマーク。
+ *
+ * キーセット方式では、N-1ページ目のカーソルを準備の段階で求めておき、
+ * 計測ではN ページ目の1回の検索のみを行う。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeysetPaginationBenchmark {
+
+	private static final int ROWS = 20000;
+
+	private static final int PAGE_SIZE = 20;
+
+	@Param({"1", "10", "100", "900"})
+	public int page;
+
+	@Param({"FIRST_NAME", "AGE", "ZIPCODE"})
+	public CustomerKeysetPager05.Order order;
+
+	private EntityManagerFactory emf;
+	private EntityManager em;
+
+	private CustomerKeysetPager05 pager;
+	private CustomerKeysetPager05.Cursor cursor;
+	private String offsetJpql;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.show_sql", "false");
+
+		emf = Persistence.createEntityManagerFactory("test", properties);
+		em = emf.createEntityManager();
+
+		BenchmarkData.populate(em, ROWS);
+
+		pager = new CustomerKeysetPager05(em, order, PAGE_SIZE);
+		CustomerKeysetPager05.Page current = null;
+		for (int i = 1; i < page; i++) {
+			current = current == null ? pager.firstPage() : pager.nextPage(current.getNextCursor());
+			em.clear();
+		}
+		cursor = current == null ? null : current.getNextCursor();
+
+		offsetJpql = "SELECT c FROM Customer05 c " + order.getJoin()
+				+ "ORDER BY " + order.getPath() + ", " + order.getIdPath();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (em != null) {
+			em.close();
+		}
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Benchmark
+	public List<Customer05> offset() {
+		TypedQuery<Customer05> query = em.createQuery(offsetJpql, Customer05.class);
+		query.setFirstResult((page - 1) * PAGE_SIZE);
+		query.setMaxResults(PAGE_SIZE);
+		List<Customer05> customers = query.getResultList();
+		em.clear();
+		return customers;
+	}
+
+	@Benchmark
+	public List<Customer05> keyset() {
+		List<Customer05> customers = pager.nextPage(cursor).getCustomers();
+		em.clear();
+		return customers;
+	}
+}
@@ -0,0 +1,114 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.Book05;
+import org.beginningee6.book.chapter04.support.NaturalIdLookup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 新しいEntityManagerでBook05をisbnにより検索する場合のレイテンシを、
+ * 以下の2つの方法で比較するベンチマーク。
+ *
+ * ・jpql		JPQL（WHERE b.isbn = :isbn）で検索する
+ * ・naturalId	NaturalIdLookupで検索する（自然キーのキャッシュから主キーを解決する）
+ *
+ * いずれもisbnの一意制約の索引を使用できる。行数はキャッシュ領域の
+ * 最大数（pom.xmlのbook.cache.max.elements）以下とし、計測中は
+ * 全ての行がキャッシュにある状態となる。
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NaturalIdBenchmark {
+
+	/** データベースに登録するBook05エンティティの件数 */
+	private static final int ROWS = 1000;
+
+	private static final String JPQL = "SELECT b FROM Book05 b WHERE b.isbn = :isbn";
+
+	private EntityManagerFactory emf;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.show_sql", "false");
+
+		emf = Persistence.createEntityManagerFactory("test", properties);
+
+		EntityManager em = emf.createEntityManager();
+		try {
+			EntityTransaction tx = em.getTransaction();
+			tx.begin();
+			em.createQuery("DELETE FROM Book05").executeUpdate();
+			for (int i = 0; i < ROWS; i++) {
+				em.persist(new Book05("Title " + i, 10F, "Description " + i,
+						isbn(i), "Apress", 100, false));
+			}
+			tx.commit();
+		} finally {
+			em.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	private static String isbn(int i) {
+		return String.format("978-%09d", i);
+	}
+
+	private String nextIsbn() {
+		next = (next + 1) % ROWS;
+		return isbn(next);
+	}
+
+	@Benchmark
+	public Book05 jpql() {
+		EntityManager em = emf.createEntityManager();
+		try {
+			return em.createQuery(JPQL, Book05.class)
+					.setParameter("isbn", nextIsbn())
+					.getSingleResult();
+		} finally {
+			em.close();
+		}
+	}
+
+	@Benchmark
+	public Book05 naturalId() {
+		EntityManager em = emf.createEntityManager();
+		try {
+			return NaturalIdLookup.find(em, Book05.class, nextIsbn());
+		} finally {
+			em.close();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.beginningee6.book.chapter04.support.PartitionedScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PartitionedScannerでcustomer_ex05の全件を走査する場合の所要時間を、
+ * スライスの数（スレッドの数）ごとに比較するベンチマーク。
+ *
+ * partitions=1が、1つのスレッドと1つのEntityManagerで走査する場合に
+ * 相当する。所要時間は、スライスの数がCPUのコア数に達するか、
+ * データベースが飽和するまで短くなる。コア数を超えるスライスの数では
+ * 改善しないため、結果はRuntime.availableProcessors()と合わせて読むこと。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartitionedScanBenchmark {
+
+	private static final PartitionedScanner.Accumulator<Customer05, Long> SUM_OF_AGES =
+			new PartitionedScanner.Accumulator<Customer05, Long>() {
+				public Long create() {
+					return 0L;
+				}
+				public Long accumulate(Long result, Customer05 customer) {
+					return result + customer.getAge();
+				}
+			};
+
+	private static final PartitionedScanner.Combiner<Long> SUM =
+			new PartitionedScanner.Combiner<Long>() {
+				public Long combine(Long left, Long right) {
+					return left + right;
+				}
+			};
+
+	@Param({"50000"})
+	public int rows;
+
+	@Param({"1", "2", "4", "8"})
+	public int partitions;
+
+	private EntityManagerFactory emf;
+	private PartitionedScanner<Customer05> scanner;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.show_sql", "false");
+
+		emf = Persistence.createEntityManagerFactory("test", properties);
+
+		EntityManager em = emf.createEntityManager();
+		try {
+			BenchmarkData.populate(em, rows);
+		} finally {
+			em.close();
+		}
+
+		scanner = new PartitionedScanner<Customer05>(emf, Customer05.class);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Benchmark
+	public long scan() {
+		return scanner.scan(partitions, SUM_OF_AGES, SUM);
+	}
+}
@@ -0,0 +1,167 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Root;
+
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.hibernate.ejb.QueryHints;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Customer05エンティティをfirstNameで検索する同一の処理を、
+ * 以下の4つの方法で実行した場合の性能を比較するベンチマーク。
+ *
+ * ・名前付きクエリ（"findWithParam"）
+ * ・動的クエリ（JPQL文字列をその都度createQuery()に渡す）
+ * ・Criteria API
+ * ・ネイティブクエリ（SELECT * FROM customer_ex05 ...）
+ *
+ * スループット（Throughput）と、レイテンシのパーセンタイル（SampleTime）を
+ * 計測する。1オペレーションあたりの割り当てバイト数は、
+ * benchmarkプロファイルの既定の引数（-prof gc）により出力される。
+ *
+ * 検索結果が永続性コンテキストに蓄積されて以降の検索に影響しないよう、
+ * 各オペレーションの最後にEntityManager.clear()を実行する。
+ *
+ * "findWithParam"はクエリキャッシュの対象のため、namedQueryでは
+ * 他の方法と条件をそろえるためにキャッシュを使用しない。
+ * キャッシュを使用した場合はcachedNamedQueryで計測する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryStyleBenchmark {
+
+	private static final String DYNAMIC_JPQL =
+			"SELECT c FROM Customer05 c WHERE c.firstName = :fname";
+
+	private static final String NATIVE_SQL =
+			"SELECT * FROM customer_ex05 WHERE first_name = ?";
+
+	/** データベースに登録するCustomer05エンティティの件数 */
+	@Param({"100", "1000", "10000"})
+	public int rows;
+
+	private EntityManagerFactory emf;
+	private EntityManager em;
+
+	private CriteriaQuery<Customer05> criteria;
+	private ParameterExpression<String> fname;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+
+		BenchmarkData.populate(em, rows);
+
+		// Criteria APIによるクエリの定義は、JPQLの文字列と同様に
+		// 一度だけ組み立てておく
+		CriteriaBuilder cb = em.getCriteriaBuilder();
+		criteria = cb.createQuery(Customer05.class);
+		Root<Customer05> c = criteria.from(Customer05.class);
+		fname = cb.parameter(String.class, "fname");
+		criteria.select(c).where(cb.equal(c.get("firstName"), fname));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (em != null) {
+			em.close();
+		}
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	private String nextFirstName() {
+		next = (next + 1) % BenchmarkData.FIRST_NAMES.length;
+		return BenchmarkData.FIRST_NAMES[next];
+	}
+
+	@Benchmark
+	public List<Customer05> namedQuery() {
+		TypedQuery<Customer05> query =
+				em.createNamedQuery("findWithParam", Customer05.class);
+		query.setHint(QueryHints.HINT_CACHEABLE, Boolean.FALSE);
+		query.setParameter("fname", nextFirstName());
+		List<Customer05> customers = query.getResultList();
+		em.clear();
+		return customers;
+	}
+
+	/**
+	 * クエリキャッシュを使用する"findWithParam"。
+	 *
+	 * キャッシュされたエンティティは、キャッシュに格納された後に生成された
+	 * EntityManagerからのみ参照されるため、オペレーションごとに
+	 * 新しいEntityManagerで検索する。
+	 */
+	@Benchmark
+	public List<Customer05> cachedNamedQuery() {
+		EntityManager another = emf.createEntityManager();
+		try {
+			TypedQuery<Customer05> query =
+					another.createNamedQuery("findWithParam", Customer05.class);
+			query.setParameter("fname", nextFirstName());
+			return query.getResultList();
+		} finally {
+			another.close();
+		}
+	}
+
+	@Benchmark
+	public List<Customer05> dynamicQuery() {
+		TypedQuery<Customer05> query =
+				em.createQuery(DYNAMIC_JPQL, Customer05.class);
+		query.setParameter("fname", nextFirstName());
+		List<Customer05> customers = query.getResultList();
+		em.clear();
+		return customers;
+	}
+
+	@Benchmark
+	public List<Customer05> criteriaQuery() {
+		TypedQuery<Customer05> query = em.createQuery(criteria);
+		query.setParameter(fname, nextFirstName());
+		List<Customer05> customers = query.getResultList();
+		em.clear();
+		return customers;
+	}
+
+	@Benchmark
+	public List<Customer05> nativeQuery() {
+		@SuppressWarnings("unchecked")
+		List<Customer05> customers = em.createNativeQuery(NATIVE_SQL, Customer05.class)
+				.setParameter(1, nextFirstName())
+				.getResultList();
+		em.clear();
+		return customers;
+	}
+}
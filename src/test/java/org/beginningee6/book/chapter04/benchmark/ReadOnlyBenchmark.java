@@ -0,0 +1,137 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.TypedQuery;
+
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.beginningee6.book.chapter04.support.ReadOnlyMode;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 大量のCustomer05エンティティを検索してコミットする場合の
+ * ヒープ使用量とコミットにかかる時間を、既定のモードと
+ * 読み取り専用のモード（ReadOnlyMode）とで比較するベンチマーク。
+ *
+ * ・default		既定のモード（スナップショットを保持し、ダーティチェックする）
+ * ・query			クエリ単位で読み取り専用とする（ReadOnlyMode.setReadOnly）
+ * ・entityManager	EntityManager単位で読み取り専用とする（ReadOnlyMode.setDefaultReadOnly）
+ * ・manual			参照専用のEntityManagerを使用する（ReadOnlyMode.createEntityManager）
+ * 					読み取り専用に加えて、コミット時のフラッシュも行われない
+ *
+ * 1回の呼び出しで、トランザクション内で名前付きクエリCustomer05.FIND_ALLにより
+ * 全件を検索してコミットする。検索直後のヒープ使用量をHeapCountersの
+ * 補助カウンタ（liveHeapMb）として、コミット（フラッシュを含む）に
+ * かかった時間を補助カウンタcommitMillisとして出力する。
+ *
+ * 読み取り専用のエンティティはダーティチェックが省略されるが、フラッシュでは
+ * 永続性コンテキストの全てのエンティティに対するカスケードの処理などが
+ * 引き続き行われる。フラッシュそのものを省略できるのはmanualのみである。
+ *
+ * インメモリデータベースではデータ自体がヒープに載り計測を乱すため、
+ * 組み込みモードでファイル上のデータベース（target/derby）を使用する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ReadOnlyBenchmark {
+
+	@Param({"10000", "100000"})
+	public int rows;
+
+	@Param({"default", "query", "entityManager", "manual"})
+	public String mode;
+
+	private EntityManagerFactory emf;
+
+	/**
+	 * コミットにかかった時間を補助カウンタとして出力するための状態。
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class CommitCounters {
+
+		/** 直前の呼び出しでのコミットにかかった時間（ミリ秒） */
+		public double commitMillis;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.connection.driver_class",
+				"org.apache.derby.jdbc.EmbeddedDriver");
+		properties.put("hibernate.connection.url",
+				"jdbc:derby:" + new File("target/derby/ReadOnlyBenchmark").getAbsolutePath()
+				+ ";create=true");
+		properties.put("hibernate.show_sql", "false");
+
+		emf = Persistence.createEntityManagerFactory("test", properties);
+
+		EntityManager em = emf.createEntityManager();
+		try {
+			BenchmarkData.populate(em, rows);
+		} finally {
+			em.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Benchmark
+	public int findAllAndCommit(HeapCounters heap, CommitCounters commit) {
+		EntityManager em = "manual".equals(mode)
+				? ReadOnlyMode.createEntityManager(emf)
+				: emf.createEntityManager();
+		try {
+			if ("entityManager".equals(mode)) {
+				ReadOnlyMode.setDefaultReadOnly(em, true);
+			}
+			em.getTransaction().begin();
+
+			TypedQuery<Customer05> query =
+					ReadOnlyMode.createNamedQuery(em, Customer05.FIND_ALL, Customer05.class);
+			if ("query".equals(mode)) {
+				ReadOnlyMode.setReadOnly(query);
+			}
+			List<Customer05> customers = query.getResultList();
+			heap.sampleLive();
+
+			long start = System.nanoTime();
+			em.getTransaction().commit();
+			commit.commitMillis = (System.nanoTime() - start) / 1000000.0;
+
+			heap.record();
+			return customers.size();
+		} finally {
+			em.close();
+		}
+	}
+}
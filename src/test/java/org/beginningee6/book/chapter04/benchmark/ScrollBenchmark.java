@@ -0,0 +1,129 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.beginningee6.book.chapter04.support.QueryScroller;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 名前付きクエリCustomer05.FIND_ALLでcustomer_ex05の全件を走査する場合の
+ * 所要時間とヒープ使用量のピークを、getResultList()とQueryScrollerとで
+ * 比較するベンチマーク。
+ *
+ * 1回の呼び出しで全件を1回走査し（SingleShotTime）、ヒープ使用量を
+ * HeapCountersの補助カウンタとして出力する。liveHeapMbは、走査の途中
+ * （半分の件数を処理した時点）の値となる。
+ *
+ * インメモリデータベースではデータ自体がヒープに載り計測を乱すため、
+ * 組み込みモードでファイル上のデータベース（target/derby）を使用する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ScrollBenchmark {
+
+	@Param({"1000000"})
+	public int rows;
+
+	@Param({"500"})
+	public int fetchSize;
+
+	private EntityManagerFactory emf;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.connection.driver_class",
+				"org.apache.derby.jdbc.EmbeddedDriver");
+		properties.put("hibernate.connection.url",
+				"jdbc:derby:" + new File("target/derby/ScrollBenchmark").getAbsolutePath()
+				+ ";create=true");
+		properties.put("hibernate.show_sql", "false");
+
+		emf = Persistence.createEntityManagerFactory("test", properties);
+
+		EntityManager em = emf.createEntityManager();
+		try {
+			BenchmarkData.populate(em, rows);
+		} finally {
+			em.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Benchmark
+	public long getResultList(HeapCounters counters) {
+		EntityManager em = emf.createEntityManager();
+		try {
+			List<Customer05> customers = em.createNamedQuery(
+					Customer05.FIND_ALL, Customer05.class).getResultList();
+			long sum = 0;
+			int i = 0;
+			for (Customer05 customer : customers) {
+				sum += customer.getAge();
+				if (++i == rows / 2) {
+					counters.sampleLive();
+				}
+			}
+			counters.record();
+			return sum;
+		} finally {
+			em.close();
+		}
+	}
+
+	@Benchmark
+	public long scroll(HeapCounters counters) {
+		EntityManager em = emf.createEntityManager();
+		try {
+			QueryScroller<Customer05> customers = QueryScroller.ofNamedQuery(
+					em, Customer05.FIND_ALL, Customer05.class, fetchSize);
+			long sum = 0;
+			int i = 0;
+			try {
+				while (customers.hasNext()) {
+					sum += customers.next().getAge();
+					if (++i == rows / 2) {
+						counters.sampleLive();
+					}
+				}
+			} finally {
+				customers.close();
+			}
+			counters.record();
+			return sum;
+		} finally {
+			em.close();
+		}
+	}
+}
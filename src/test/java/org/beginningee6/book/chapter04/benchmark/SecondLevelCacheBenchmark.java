@@ -0,0 +1,108 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex06.Book06;
+import org.beginningee6.book.chapter04.support.CacheRegionStatistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 新しいEntityManagerでBook06を主キーにより検索（find()）する場合の
+ * レイテンシを、第2レベルキャッシュの状態ごとに比較するベンチマーク。
+ *
+ * ・warm		全ての行がキャッシュにある（ヒット）
+ * ・cold		検索の直前にキャッシュから破棄する（ミスしてデータベースから読み込む）
+ *
+ * coldの計測値には、キャッシュからの破棄とデータベースから読み込んだ
+ * エンティティのキャッシュへの格納も含まれる。
+ * 行数はキャッシュ領域の最大数（pom.xmlのbook.cache.max.elements）以下とする。
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecondLevelCacheBenchmark {
+
+	/** データベースに登録するBook06エンティティの件数 */
+	private static final int ROWS = 1000;
+
+	@Param({"warm", "cold"})
+	public String cache;
+
+	private EntityManagerFactory emf;
+
+	private Long[] ids;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.show_sql", "false");
+
+		emf = Persistence.createEntityManagerFactory("test", properties);
+
+		EntityManager em = emf.createEntityManager();
+		try {
+			EntityTransaction tx = em.getTransaction();
+			tx.begin();
+			em.createQuery("DELETE FROM Book06").executeUpdate();
+			ids = new Long[ROWS];
+			for (int i = 0; i < ROWS; i++) {
+				Book06 book = new Book06("Title " + i, 10F, "Description " + i,
+						"isbn-" + i, 100, false);
+				em.persist(book);
+				ids[i] = book.getId();
+			}
+			tx.commit();
+		} finally {
+			em.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (emf != null) {
+			System.out.println();
+			System.out.println(CacheRegionStatistics.of(emf, Book06.class));
+			emf.close();
+		}
+	}
+
+	@Benchmark
+	public Book06 find() {
+		next = (next + 1) % ROWS;
+		Long id = ids[next];
+
+		if ("cold".equals(cache)) {
+			emf.getCache().evict(Book06.class, id);
+		}
+
+		EntityManager em = emf.createEntityManager();
+		try {
+			return em.find(Book06.class, id);
+		} finally {
+			em.close();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package org.beginningee6.book.chapter04.benchmark;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.beginningee6.book.chapter04.support.HikariConnectionProvider;
+import org.beginningee6.book.chapter04.support.PreparedStatementCache;
+import org.hibernate.ejb.QueryHints;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 同じクエリを繰り返し実行する場合のレイテンシを、PreparedStatementCacheの
+ * 有無（cacheSize=0はキャッシュしない）で比較するベンチマーク。
+ *
+ * ・findWithParam	名前付きクエリ"findWithParam"（クエリキャッシュは使用しない）
+ * ・selectAll		ネイティブクエリ"SELECT * FROM customer_ex05"
+ *
+ * 1回の操作ではEntityManagerを作成してクエリを実行し、close()する
+ * （接続はその都度プールから取得、返却される）。結果の件数を小さくし、
+ * SQL文の準備にかかる時間の差が現れるようにしている。
+ *
+ * Derbyは、コンパイルしたSQL文をデータベース側でもキャッシュする
+ * （derby.language.statementCacheSize、既定は100）。このため、cacheSize=0でも
+ * SQL文の解析とコンパイルは繰り返されず、差はJDBCのPreparedStatementの
+ * 作成と解放にかかる時間に限られる。
+ *
+ * Trialの終了時にキャッシュのヒット率を出力する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatementCacheBenchmark {
+
+	@Param({"100"})
+	public int rows;
+
+	@Param({"0", "100"})
+	public int cacheSize;
+
+	private EntityManagerFactory emf;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.show_sql", "false");
+		properties.put(HikariConnectionProvider.STATEMENT_CACHE_SIZE, String.valueOf(cacheSize));
+
+		emf = Persistence.createEntityManagerFactory("test", properties);
+
+		EntityManager em = emf.createEntityManager();
+		try {
+			BenchmarkData.populate(em, rows);
+		} finally {
+			em.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (emf != null) {
+			PreparedStatementCache cache = HikariConnectionProvider.statementCacheOf(emf);
+			if (cache != null) {
+				System.out.println();
+				System.out.println(cache + ", hitRatio=" + cache.getHitRatio());
+			}
+			emf.close();
+		}
+	}
+
+	@Benchmark
+	public List<Customer05> findWithParam() {
+		EntityManager em = emf.createEntityManager();
+		try {
+			return em.createNamedQuery("findWithParam", Customer05.class)
+					.setParameter("fname", "Vincent")
+					.setHint(QueryHints.HINT_CACHEABLE, Boolean.FALSE)
+					.getResultList();
+		} finally {
+			em.close();
+		}
+	}
+
+	@Benchmark
+	public int selectAll() {
+		EntityManager em = emf.createEntityManager();
+		try {
+			return em.createNativeQuery("SELECT * FROM customer_ex05").getResultList().size();
+		} finally {
+			em.close();
+		}
+	}
+}
@@ -10,9 +10,11 @@ import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.Persistence;
 
+import org.beginningee6.book.chapter04.support.SqlStatementCounter;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
 
 /**
@@ -29,6 +31,9 @@ import org.junit.Test;
  * このエンティティに関連づけられるAddress02エンティティも明示的に永続化や
  * 削除を適切な順序で行う必要がある。
  * 
+ * 取得や更新の操作では、発行されたSQL文の数をSqlStatementCounterで
+ * 確認する。
+ * 
  */
 public class Customer02Test {
 	
@@ -37,6 +42,9 @@ public class Customer02Test {
 	private static EntityManagerFactory emf;
 	private static EntityManager em;
 	
+	@Rule
+	public SqlStatementCounter statements = new SqlStatementCounter();
+	
 	@BeforeClass
 	public static void setUpClass() throws Exception {
 		emf = Persistence.createEntityManagerFactory("test");
@@ -122,10 +130,16 @@ public class Customer02Test {
         				// 全てのエンティティをエンティティマネージャの
         				// 管理対象外とする
         
+        statements.reset();
+        
         // データベースからidをキーにCustomer02エンティティを取得
         Customer02 persistedCustomer = em.find(Customer02.class, customer.getId());
         // 取得したCustomer02エンティティからAddress02エンティティを取得
         Address02 persistedAddress = persistedCustomer.getAddress();
+        
+        // addressは＠OneToOneの既定により即時ロードされるため、
+        // Address02エンティティは外部結合した1回のSELECT文で取得される
+        statements.assertSelectCount(1);
 
         // IDの付番によってCustomer02エンティティが永続化されたことを確認
         assertThat(persistedCustomer, is(notNullValue()));
@@ -245,12 +259,14 @@ public class Customer02Test {
         						// PERSIST（永続化）操作に対するカスケードが設定
         						// されていないため、Address02エンティティのみに
         						// 対してINSERT文が1回発行される
+        statements.assertInsertCount(1);
         
         em.persist(customer);	// 次にCustomer02エンティティを永続化
         
         tx.commit();			// トランザクションをコミット
         						// 残りのCustomer02エンティティのみに対して
         						// INSERT文が1回発行される
+        statements.assertInsertCount(2);
 
         em.clear();
         
@@ -563,10 +579,18 @@ public class Customer02Test {
         customer.setFirstName("William");
         customer.setLastName("Blumentals");
         
+        statements.reset();
+        
         tx.begin();
         em.merge(customer);       	// エンティティの変更をデータベースへ
         							// 反映する（firstName,lastNameの反映）
         tx.commit();
+        
+        // マージでは、管理対象外のエンティティの状態を取得するSELECT文が
+        // Customer02とAddress02（即時ロード）について1回ずつ発行され、
+        // 変更を反映するUPDATE文が1回発行される
+        statements.assertSelectCount(2);
+        statements.assertUpdateCount(1);
 
 		///// 検証 /////
 		
@@ -605,10 +629,16 @@ public class Customer02Test {
         //em.clear()は行わない（管理対象のまま）
 		
 		///// テスト /////
+        statements.reset();
+        
         tx.begin();
         customer.setFirstName("William");	// エンティティに変更を加える
         customer.setLastName("Blumentals");
         tx.commit();
+        
+        // 管理対象のエンティティの変更はSELECT文なしで、1回のUPDATE文で反映される
+        statements.assertSelectCount(0);
+        statements.assertUpdateCount(1);
 
 		///// 検証 /////
 		
@@ -10,9 +10,11 @@ import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.Persistence;
 
+import org.beginningee6.book.chapter04.support.SqlStatementCounter;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
 
 /**
@@ -39,6 +41,9 @@ public class Customer03Test {
 	private static EntityManagerFactory emf;
 	private static EntityManager em;
 	
+	@Rule
+	public SqlStatementCounter statements = new SqlStatementCounter();
+	
 	@BeforeClass
 	public static void setUpClass() throws Exception {
 		emf = Persistence.createEntityManagerFactory("test");
@@ -113,6 +118,7 @@ public class Customer03Test {
         // 連鎖的に永続化されたことをIDの付番によって確認
         assertThat(customer.getId(), is(notNullValue()));
         assertThat(address.getId(), is(notNullValue()));
+        statements.assertInsertCount(2);
         
         // 永続化された2つのエンティティがEntityManagerの管理対象である
         // ことを確認する
@@ -123,9 +129,12 @@ public class Customer03Test {
         				// 全てのエンティティをエンティティマネージャの
         				// 管理対象外とする
         
+        statements.reset();
+        
         // データベースからidをキーにCustomer03エンティティを取得
         Customer03 persistedCustomer = em.find(Customer03.class, customer.getId());
         // 取得したCustomer03エンティティからAddress03エンティティを取得
+        // （addressは遅延ロードのため、まだ初期化されていないプロキシが返される）
         Address03 persistedAddress = persistedCustomer.getAddress();
 
         // IDの付番によってCustomer03エンティティが永続化されたことを確認
@@ -135,6 +144,10 @@ public class Customer03Test {
         // IDの付番によってAddress03エンティティが永続化されたことを確認
         assertThat(persistedAddress, is(notNullValue()));
         assertThat(persistedAddress.getId(), is(address.getId()));
+        
+        // Address03はフィールドでマッピングしているため、プロキシのgetId()でも
+        // 初期化される。SELECT文はCustomer03とAddress03の1回ずつとなる
+        statements.assertSelectCount(2);
 	}
 	
 	/**
@@ -168,6 +181,8 @@ public class Customer03Test {
 		
 		///// テスト /////
 		
+        statements.reset();
+        
         tx.begin();
         em.remove(customer);	// Customer03エンティティを削除
         //em.remove(address);	// Address03エンティティはCustomer03の削除に
@@ -175,6 +190,10 @@ public class Customer03Test {
         						// ため、明示的な削除は不要
         tx.commit();
         
+        // 管理対象のAddress03エンティティも、SELECT文なしで連鎖的に削除される
+        statements.assertSelectCount(0);
+        statements.assertDeleteCount(2);
+        
 		///// 検証 /////
         em.clear();
 		
@@ -319,6 +338,7 @@ public class Customer03Test {
 		
 		///// 検証 /////
         em.clear();
+        statements.reset();
 		
         // データベースからidをキーにCustomer03エンティティを取得
         Customer03 persistedCustomer = em.find(Customer03.class, customer.getId());
@@ -336,5 +356,9 @@ public class Customer03Test {
         // Address03エンティティは削除されずに残ったままとなる
         assertThat(persistedAddress1, is(notNullValue()));
         assertThat(persistedAddress2, is(notNullValue()));
+        
+        // Customer03、getId()で初期化されたaddress2のプロキシ、address1の
+        // 1回ずつSELECT文が発行される（address2のfind()では発行されない）
+        statements.assertSelectCount(3);
 	}
 }
@@ -0,0 +1,191 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex03.Address03;
+import org.beginningee6.book.chapter04.ex03.Customer03;
+import org.beginningee6.book.chapter04.ex04.Address04;
+import org.beginningee6.book.chapter04.ex04.Customer04;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * 遅延ロードのaddress（Address03～05）のプロキシが、
+ * hibernate.default_batch_fetch_size件ずつまとめて読み込まれることを
+ * 確認するテスト。
+ */
+public class BatchFetchTest {
+
+	private static final Logger logger = Logger.getLogger(BatchFetchTest.class.getName());
+
+	private static final int CUSTOMERS = 1000;
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	private static int batchFetchSize;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+
+		batchFetchSize = Integer.parseInt(
+				(String) emf.getProperties().get("hibernate.default_batch_fetch_size"));
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		for (String entity : new String[] {"Customer03", "Address03",
+				"Customer04", "Address04", "Customer05", "Address05"}) {
+			em.createQuery("DELETE FROM " + entity).executeUpdate();
+		}
+
+		tx.commit();
+		em.clear();
+	}
+
+	private static Statistics statistics() {
+		return ((HibernateEntityManagerFactory) emf).getSessionFactory().getStatistics();
+	}
+
+	/** 全ての行をbatchFetchSize件ずつ読み込む場合のSELECT文の数 */
+	private static long expectedBatches(int rows) {
+		return (rows + batchFetchSize - 1) / batchFetchSize;
+	}
+
+	/**
+	 * 1000件のCustomer05のaddressを参照した場合に、Address05が
+	 * 1件ずつではなくbatchFetchSize件ずつ読み込まれることを確認する。
+	 */
+	@Test
+	public void testBatchFetchAddress05() throws Exception {
+
+		///// 準備 /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (int i = 0; i < CUSTOMERS; i++) {
+			Customer05 customer = new Customer05("First" + i, "Last" + i, "mail" + i + "@mail.com", 20);
+			customer.setAddress(new Address05("Street " + i, "City " + i, "Zip" + i, "FR"));
+			em.persist(customer);
+		}
+		tx.commit();
+		em.clear();
+
+		statistics().clear();
+
+		///// テスト /////
+
+		List<Customer05> customers =
+				em.createNamedQuery(Customer05.FIND_ALL, Customer05.class).getResultList();
+		for (Customer05 customer : customers) {
+			assertThat(customer.getAddress().getCity(), is(notNullValue()));
+		}
+
+		///// 検証 /////
+
+		// Customer05の検索1回と、Address05の読み込み 1000／バッチサイズ 回
+		assertThat(statistics().getPrepareStatementCount(), is(1L + expectedBatches(CUSTOMERS)));
+		assertThat(statistics().getEntityLoadCount(), is(2L * CUSTOMERS));
+		em.clear();
+	}
+
+	/**
+	 * Customer03のaddress（Address03）もまとめて読み込まれることを確認する。
+	 */
+	@Test
+	public void testBatchFetchAddress03() throws Exception {
+
+		///// 準備 /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (int i = 0; i < CUSTOMERS; i++) {
+			Customer03 customer = new Customer03("First" + i, "Last" + i, "mail" + i + "@mail.com");
+			customer.setAddress(new Address03("Street " + i, "City " + i, "Zip" + i, "FR"));
+			em.persist(customer);	// Address03もカスケードにより永続化される
+		}
+		tx.commit();
+		em.clear();
+
+		statistics().clear();
+
+		///// テスト /////
+
+		List<Customer03> customers = em.createQuery(
+				"SELECT c FROM Customer03 c", Customer03.class).getResultList();
+		for (Customer03 customer : customers) {
+			assertThat(customer.getAddress().getCity(), is(notNullValue()));
+		}
+
+		///// 検証 /////
+
+		assertThat(statistics().getPrepareStatementCount(), is(1L + expectedBatches(CUSTOMERS)));
+		em.clear();
+	}
+
+	/**
+	 * Customer04のaddress（Address04）もまとめて読み込まれることを確認する。
+	 */
+	@Test
+	public void testBatchFetchAddress04() throws Exception {
+
+		///// 準備 /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (int i = 0; i < CUSTOMERS; i++) {
+			Address04 address = new Address04("Street " + i, "City " + i, "Zip" + i, "FR");
+			Customer04 customer = new Customer04("First" + i, "Last" + i, "mail" + i + "@mail.com");
+			customer.setAddress(address);
+			em.persist(address);	// カスケードの指定がないため、Address04も永続化する
+			em.persist(customer);
+		}
+		tx.commit();
+		em.clear();
+
+		statistics().clear();
+
+		///// テスト /////
+
+		List<Customer04> customers = em.createQuery(
+				"SELECT c FROM Customer04 c", Customer04.class).getResultList();
+		for (Customer04 customer : customers) {
+			assertThat(customer.getAddress().getCity(), is(notNullValue()));
+		}
+
+		///// 検証 /////
+
+		assertThat(statistics().getPrepareStatementCount(), is(1L + expectedBatches(CUSTOMERS)));
+		em.clear();
+	}
+}
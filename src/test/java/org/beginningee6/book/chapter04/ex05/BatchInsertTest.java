@@ -0,0 +1,111 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.support.JdbcBatchStatistics;
+import org.beginningee6.book.chapter04.support.ReportingBatchBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Customer05/Address05エンティティの組を大量に永続化した場合に、
+ * INSERT文がテーブルごとにまとめてバッチ実行されることを確認するテスト。
+ * 
+ * バッチサイズはpersistence.xmlのhibernate.jdbc.batch_size（既定で50）。
+ */
+public class BatchInsertTest {
+
+	private static final Logger logger = Logger.getLogger(BatchInsertTest.class.getName());
+
+	private static final int CUSTOMERS = 1000;
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		tx.commit();
+		em.clear();
+
+		ReportingBatchBuilder.statisticsOf(emf).clear();
+	}
+
+	/**
+	 * PERSIST操作のカスケードによってCustomer05とAddress05が交互に
+	 * 永続化される場合でも、INSERT文がテーブルごとに並べ替えられ、
+	 * バッチサイズ件ずつまとめて実行されることを確認する。
+	 */
+	@Test
+	public void testInsertsAreBatchedPerTable() throws Exception {
+
+		///// 準備 /////
+
+		int batchSize = Integer.parseInt(
+				(String) emf.getProperties().get("hibernate.jdbc.batch_size"));
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (int i = 0; i < CUSTOMERS; i++) {
+			Customer05 customer = new Customer05("First" + i, "Last" + i, "mail" + i + "@mail.com", 20);
+			customer.setAddress(new Address05("Street " + i, "City", "Zip" + i, "FR"));
+			em.persist(customer);	// Address05もカスケードにより永続化される
+		}
+		tx.commit();
+
+		///// 検証 /////
+
+		JdbcBatchStatistics statistics = ReportingBatchBuilder.statisticsOf(emf);
+		logger.info(statistics.toString());
+
+		long expectedBatches = (CUSTOMERS + batchSize - 1) / batchSize;
+
+		for (String table : new String[] {"customer_ex05", "address_ex05"}) {
+			JdbcBatchStatistics.Entry entry = statistics.getInsertEntry(table);
+
+			// 全ての行がバッチ実行で送信されている
+			assertThat(entry.getRowCount(), is((long) CUSTOMERS));
+			// データベースとの往復は 行数／バッチサイズ 回
+			assertThat(entry.getBatchCount(), is(expectedBatches));
+			assertThat(entry.getMaxBatchSize(), is(batchSize));
+		}
+
+		assertThat(em.createQuery("SELECT COUNT(c) FROM Customer05 c", Long.class)
+				.getSingleResult(), is((long) CUSTOMERS));
+	}
+}
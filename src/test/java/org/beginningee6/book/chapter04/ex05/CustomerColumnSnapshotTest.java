@@ -0,0 +1,238 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * CustomerColumnSnapshot05のテスト。
+ *
+ * DynamicQueryTestと同じデータに対して、スナップショットによる集計の
+ * 結果がJPQLによる検索結果と一致し、集計の際にSQL文が発行されない
+ * ことを確認する。
+ */
+public class CustomerColumnSnapshotTest {
+
+	private static final Logger logger = Logger.getLogger(CustomerColumnSnapshotTest.class.getName());
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	private CustomerColumnSnapshot05 snapshot;
+	private long statements;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		// DynamicQueryTestと同じデータ
+		persist("Antony", "Balla", "tballa@mail.com", 14, "AU");
+		persist("Vincent", "Johnson", "vj@mail.com", 45, "FR");
+		persist("Sebastian", "Twenty", "seb@yamail.com", 58, "UK");
+		persist("Frederic", "Riou", "fred@carmail.com", 41, "BR");
+		persist("Vincent", "Dubosc", "vd@mail.com", 16, "PT");
+		persist("David", "Chene", "dch@yahoo.com", 19, "AU");
+
+		tx.commit();
+		em.clear();
+
+		snapshot = new CustomerColumnSnapshot05();
+		snapshot.refresh(em);
+		em.clear();
+
+		statements = statistics().getPrepareStatementCount();
+	}
+
+	private static void persist(String firstName, String lastName, String email,
+			int age, String country) {
+		Customer05 customer = new Customer05(firstName, lastName, email, age);
+		customer.setAddress(new Address05("Street", "City", "Zip", country));
+		em.persist(customer);
+	}
+
+	private static Statistics statistics() {
+		return ((HibernateEntityManagerFactory) emf).getSessionFactory().getStatistics();
+	}
+
+	/** refresh()の後にSQL文が発行されていないことを確認する */
+	private void assertNoStatements() {
+		assertThat(statistics().getPrepareStatementCount(), is(statements));
+	}
+
+	private static List<String> toStrings(List<CustomerCountryCountDTO05> counts) {
+		List<String> strings = new ArrayList<String>();
+		for (CustomerCountryCountDTO05 count : counts) {
+			strings.add(count.getCountry() + "=" + count.getCount());
+		}
+		return strings;
+	}
+
+	/**
+	 * DynamicQueryTest.testSubqueryと同じ、ageが最小のCustomer05の検索。
+	 */
+	@Test
+	public void testMinAge() throws Exception {
+
+		///// テスト /////
+
+		Integer minAge = snapshot.select().minAge();
+		List<Long> youngest = snapshot.select().ageBetween(minAge, minAge).ids();
+
+		///// 検証 /////
+
+		assertNoStatements();
+
+		List<Long> expected = em.createQuery(
+				"SELECT c.id FROM Customer05 c " +
+				"WHERE c.age = (SELECT MIN(cust.age) FROM Customer05 cust) " +
+				"ORDER BY c.id", Long.class).getResultList();
+
+		assertThat(minAge, is(14));
+		assertThat(youngest, is(expected));
+		assertThat(snapshot.select().maxAge(), is(58));
+		assertThat(snapshot.select().averageAge(), is((14 + 45 + 58 + 41 + 16 + 19) / 6.0));
+	}
+
+	/**
+	 * DynamicQueryTest.testGROUP_BYと同じ、countryごとの数の集計。
+	 */
+	@Test
+	public void testCountByCountry() throws Exception {
+
+		///// テスト /////
+
+		List<String> counts = toStrings(snapshot.select().countByCountry());
+		List<String> adults = toStrings(snapshot.select().ageBetween(18, Integer.MAX_VALUE).countByCountry());
+
+		///// 検証 /////
+
+		assertNoStatements();
+
+		List<String> expected = toStrings(em.createQuery(
+				"SELECT NEW org.beginningee6.book.chapter04.ex05.CustomerCountryCountDTO05(c.address.country, COUNT(c)) " +
+				"FROM Customer05 c " +
+				"GROUP BY c.address.country " +
+				"ORDER BY c.address.country ASC", CustomerCountryCountDTO05.class).getResultList());
+
+		assertThat(counts, is(expected));
+		assertThat(adults.toString(), is("[AU=1, BR=1, FR=1, UK=1]"));
+	}
+
+	/**
+	 * SELECT DISTINCT c.firstNameと同じ結果となることを確認する。
+	 */
+	@Test
+	public void testDistinctFirstNames() throws Exception {
+
+		///// テスト /////
+
+		List<String> firstNames = snapshot.select().distinctFirstNames();
+		List<String> inAustralia = snapshot.select().countryIn("AU").distinctFirstNames();
+
+		///// 検証 /////
+
+		assertNoStatements();
+
+		List<String> expected = em.createQuery(
+				"SELECT DISTINCT c.firstName FROM Customer05 c ORDER BY c.firstName",
+				String.class).getResultList();
+
+		assertThat(firstNames, is(expected));
+		assertThat(inAustralia.toString(), is("[Antony, David]"));
+	}
+
+	/**
+	 * 条件の組み合わせと、ageの分布を確認する。
+	 */
+	@Test
+	public void testFilterAndHistogram() throws Exception {
+
+		///// テスト /////
+
+		// DynamicQueryTest.testWHERE_1と同じ条件
+		int vincentsInFrance = snapshot.select().firstNameIn("Vincent").countryIn("FR").count();
+		// DynamicQueryTest.testWHERE_4と同じ条件（辞書にない値を含む）
+		int inPortugalOrJapan = snapshot.select().countryIn("PT", "JP").count();
+		int unknown = snapshot.select().firstNameIn("Nobody").count();
+
+		///// 検証 /////
+
+		assertNoStatements();
+
+		assertThat(vincentsInFrance, is(1));
+		assertThat(inPortugalOrJapan, is(1));
+		assertThat(unknown, is(0));
+		assertThat(snapshot.select().ageHistogram(10).toString(), is("{10=3, 40=2, 50=1}"));
+		assertThat(snapshot.select().firstNameIn("Nobody").minAge(), is(nullValue()));
+	}
+
+	/**
+	 * refresh()を呼び出すまでは、データベースの変更が反映されないことを確認する。
+	 */
+	@Test
+	public void testRefresh() throws Exception {
+
+		///// 準備 /////
+
+		CustomerColumnSnapshot05.Selection before = snapshot.select();
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		persist("Hugo", "Martin", "hm@mail.com", 9, "JP");
+		tx.commit();
+		em.clear();
+
+		///// テスト /////
+
+		int stale = snapshot.select().count();
+		snapshot.refresh(em);
+
+		///// 検証 /////
+
+		assertThat(stale, is(6));
+		assertThat(snapshot.size(), is(7));
+		assertThat(snapshot.select().minAge(), is(9));
+		assertThat(snapshot.select().countryIn("JP").count(), is(1));
+
+		// refresh()の前に選択した行は、refresh()の前のスナップショットのまま
+		assertThat(before.count(), is(6));
+		assertThat(before.minAge(), is(14));
+	}
+}
@@ -0,0 +1,329 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * CustomerCountryCounter05のテスト。
+ *
+ * Customer05、Address05をさまざまな方法で変更した後に、集計結果が
+ * DynamicQueryTest.testGROUP_BYと同じGROUP BYの検索結果と一致することを
+ * 確認する。
+ */
+public class CustomerCountryCounterTest {
+
+	private static final Logger logger = Logger.getLogger(CustomerCountryCounterTest.class.getName());
+
+	private static final String GROUP_BY =
+			"SELECT NEW org.beginningee6.book.chapter04.ex05.CustomerCountryCountDTO05(c.address.country, COUNT(c)) " +
+			"FROM Customer05 c " +
+			"GROUP BY c.address.country " +
+			"ORDER BY c.address.country ASC";
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+	private static CustomerCountryCounter05 counter;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+		counter = CustomerCountryCounter05.register(emf);
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		counter.executeUpdate(em, em.createQuery("DELETE FROM Customer05"));
+		counter.executeUpdate(em, em.createQuery("DELETE FROM Address05"));
+
+		// DynamicQueryTestと同じデータ
+		persist("Antony", "Balla", "tballa@mail.com", 14, "AU");
+		persist("Vincent", "Johnson", "vj@mail.com", 45, "FR");
+		persist("Sebastian", "Twenty", "seb@yamail.com", 58, "UK");
+		persist("Frederic", "Riou", "fred@carmail.com", 41, "BR");
+		persist("Vincent", "Dubosc", "vd@mail.com", 16, "PT");
+		persist("David", "Chene", "dch@yahoo.com", 19, "AU");
+
+		tx.commit();
+		em.clear();
+
+		// 全体を集計しておき、以降の変更は差分で反映させる
+		assertThat(toStrings(counter.getCounts()).toString(),
+				is("[AU=2, BR=1, FR=1, PT=1, UK=1]"));
+	}
+
+	private static Customer05 persist(String firstName, String lastName, String email,
+			int age, String country) {
+		Customer05 customer = new Customer05(firstName, lastName, email, age);
+		customer.setAddress(new Address05("Street", "City", "Zip", country));
+		em.persist(customer);
+		return customer;
+	}
+
+	private static Customer05 findByFirstName(String firstName) {
+		return em.createQuery("SELECT c FROM Customer05 c WHERE c.firstName = :firstName", Customer05.class)
+				.setParameter("firstName", firstName)
+				.getSingleResult();
+	}
+
+	private static Statistics statistics() {
+		return ((HibernateEntityManagerFactory) emf).getSessionFactory().getStatistics();
+	}
+
+	/** 集計結果を"country=count"の形式の文字列のリストにする */
+	private static List<String> toStrings(List<CustomerCountryCountDTO05> counts) {
+		List<String> strings = new ArrayList<String>();
+		for (CustomerCountryCountDTO05 count : counts) {
+			strings.add(count.getCountry() + "=" + count.getCount());
+		}
+		return strings;
+	}
+
+	/**
+	 * CustomerCountryCounter05の集計結果。
+	 * 差分で更新されていれば、SQL文を発行しないことも確認する。
+	 */
+	private static List<String> counted() {
+		long statements = statistics().getPrepareStatementCount();
+		List<String> counts = toStrings(counter.getCounts());
+		assertThat(statistics().getPrepareStatementCount(), is(statements));
+		return counts;
+	}
+
+	/** GROUP BYにより集計した結果 */
+	private static List<String> groupBy() {
+		List<String> counts = toStrings(em.createQuery(
+				GROUP_BY, CustomerCountryCountDTO05.class).getResultList());
+		em.clear();
+		return counts;
+	}
+
+	/**
+	 * Customer05を永続化すると、集計結果に反映されることを確認する。
+	 */
+	@Test
+	public void testPersist() throws Exception {
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		persist("Hugo", "Martin", "hm@mail.com", 30, "JP");
+		persist("Emma", "Martin", "em@mail.com", 31, "FR");
+		tx.commit();
+		em.clear();
+
+		///// 検証 /////
+
+		assertThat(counted().toString(), is("[AU=2, BR=1, FR=2, JP=1, PT=1, UK=1]"));
+		assertThat(counted(), is(groupBy()));
+	}
+
+	/**
+	 * Customer05を削除する（Address05もカスケードにより削除される）と、
+	 * 集計結果から除かれることを確認する。
+	 */
+	@Test
+	public void testRemove() throws Exception {
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (Customer05 customer : em.createQuery(
+				"SELECT c FROM Customer05 c WHERE c.address.country IN ('AU', 'UK')",
+				Customer05.class).getResultList()) {
+			em.remove(customer);
+		}
+		tx.commit();
+		em.clear();
+
+		///// 検証 /////
+
+		assertThat(counted().toString(), is("[BR=1, FR=1, PT=1]"));
+		assertThat(counted(), is(groupBy()));
+	}
+
+	/**
+	 * Address05のcountryとCustomer05のaddressを変更すると、
+	 * 集計結果に反映されることを確認する。
+	 */
+	@Test
+	public void testUpdate() throws Exception {
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		// countryの変更
+		findByFirstName("Antony").getAddress().setCountry("FR");
+
+		// addressの変更（変更前のAddress05は参照されなくなる）
+		Address05 newAddress = new Address05("New Street", "Tokyo", "100-0001", "JP");
+		em.persist(newAddress);
+		findByFirstName("Sebastian").setAddress(newAddress);
+
+		// 集計に関係しない変更
+		findByFirstName("Frederic").setAge(42);
+
+		tx.commit();
+		em.clear();
+
+		///// 検証 /////
+
+		assertThat(counted().toString(), is("[AU=1, BR=1, FR=2, JP=1, PT=1]"));
+		assertThat(counted(), is(groupBy()));
+	}
+
+	/**
+	 * ロールバックされた変更は集計結果に反映されないことを確認する。
+	 */
+	@Test
+	public void testRollback() throws Exception {
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		persist("Hugo", "Martin", "hm@mail.com", 30, "JP");
+		findByFirstName("Antony").getAddress().setCountry("FR");
+		em.flush();
+		tx.rollback();
+		em.clear();
+
+		///// 検証 /////
+
+		assertThat(counted().toString(), is("[AU=2, BR=1, FR=1, PT=1, UK=1]"));
+		assertThat(counted(), is(groupBy()));
+	}
+
+	/**
+	 * BulkOperationTestと同様の一括更新、一括削除をexecuteUpdate()で実行すると、
+	 * コミット後に再集計されることを確認する。
+	 */
+	@Test
+	public void testBulkOperations() throws Exception {
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		int updated = counter.executeUpdate(em, em.createQuery(
+				"UPDATE Address05 a SET a.country = 'EU' WHERE a.country IN ('FR', 'PT', 'UK')"));
+		int deleted = counter.executeUpdate(em, em.createQuery(
+				"DELETE FROM Customer05 c WHERE c.age < 18"));
+		tx.commit();
+		em.clear();
+
+		///// 検証 /////
+
+		assertThat(updated, is(3));
+		assertThat(deleted, is(2));
+		assertThat(toStrings(counter.getCounts()).toString(), is("[AU=1, BR=1, EU=2]"));
+		assertThat(counted(), is(groupBy()));
+	}
+
+	/**
+	 * executeUpdate()を使わずに一括更新しても、コミット後の参照時に
+	 * 再集計されることを確認する。
+	 */
+	@Test
+	public void testBulkOperationsWithoutCounter() throws Exception {
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		em.createQuery("UPDATE Address05 a SET a.country = 'EU' WHERE a.country IN ('FR', 'PT', 'UK')")
+				.executeUpdate();
+		tx.commit();
+		em.clear();
+
+		///// 検証 /////
+
+		assertThat(toStrings(counter.getCounts()).toString(), is("[AU=2, BR=1, EU=3]"));
+		assertThat(counted(), is(groupBy()));
+	}
+
+	/**
+	 * executeUpdate()を使わない一括更新の後、参照する前にCustomer05を
+	 * 永続化しても、一括更新が集計結果に反映されることを確認する。
+	 */
+	@Test
+	public void testBulkOperationsWithoutCounterBeforePersist() throws Exception {
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		em.createNativeQuery("UPDATE address_ex05 SET country = 'EU' WHERE country IN ('FR', 'PT', 'UK')")
+				.executeUpdate();
+		tx.commit();
+
+		tx.begin();
+		persist("Hugo", "Martin", "hm@mail.com", 30, "JP");
+		tx.commit();
+		em.clear();
+
+		///// 検証 /////
+
+		assertThat(toStrings(counter.getCounts()).toString(), is("[AU=2, BR=1, EU=3, JP=1]"));
+		assertThat(counted(), is(groupBy()));
+	}
+
+	/**
+	 * HAVING句に相当する条件で集計結果を絞り込めることを確認する。
+	 */
+	@Test
+	public void testHaving() throws Exception {
+
+		///// テスト /////
+
+		// HAVING COUNT(c) >= 2
+		List<String> atLeastTwo = toStrings(counter.getCounts(CustomerCountryCounter05.minCount(2)));
+
+		// DynamicQueryTest.testHAVINGと同じ HAVING c.address.country <> 'PT'
+		List<String> exceptPT = toStrings(counter.getCounts(new CustomerCountryCounter05.Having() {
+			public boolean accept(String country, long count) {
+				return !"PT".equals(country);
+			}
+		}));
+
+		///// 検証 /////
+
+		assertThat(atLeastTwo.toString(), is("[AU=2]"));
+		assertThat(exceptPT.toString(), is("[AU=2, BR=1, FR=1, UK=1]"));
+	}
+}
@@ -0,0 +1,251 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.support.PersistenceContextMonitor;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * CustomerCsvImporter05によるCSVファイルの一括取り込みのテスト。
+ */
+public class CustomerCsvImporterTest {
+
+	private static final Logger logger = Logger.getLogger(CustomerCsvImporterTest.class.getName());
+
+	private static final String HEADER = "firstName,lastName,email,age,street1,city,zipcode,country";
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	private File csvFile;
+	private File checkpointFile;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		tx.commit();
+		em.clear();
+
+		csvFile = File.createTempFile("customers", ".csv");
+		checkpointFile = new File(csvFile.getPath() + ".checkpoint");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		csvFile.delete();
+		checkpointFile.delete();
+	}
+
+	private void writeCsv(int rows, int brokenRow) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(csvFile), "UTF-8");
+		try {
+			out.write(HEADER + "\n");
+			for (int i = 0; i < rows; i++) {
+				String age = i == brokenRow ? "unknown" : String.valueOf(20 + i % 50);
+				out.write("First" + i + ",Last" + i + ",mail" + i + "@mail.com," + age
+						+ ",\"Street " + i + ", Bldg \"\"A\"\"\",City,Zip" + i + ",FR\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private long countCustomers() {
+		return em.createQuery("SELECT COUNT(c) FROM Customer05 c", Long.class)
+				.getSingleResult();
+	}
+
+	/**
+	 * CSVファイルの全ての行が、チャンクサイズ件ずつコミットされて
+	 * Customer05/Address05エンティティの組として永続化されることを確認する。
+	 */
+	@Test
+	public void testImportFile() throws Exception {
+
+		///// 準備 /////
+
+		writeCsv(25, -1);
+
+		CustomerCsvImporter05 importer = new CustomerCsvImporter05(emf);
+		importer.setChunkSize(10);
+
+		///// テスト /////
+
+		CustomerCsvImporter05.Result result = importer.importFile(csvFile);
+
+		///// 検証 /////
+
+		assertThat(result.getImportedRows(), is(25L));
+		assertThat(result.getSkippedRows(), is(0L));
+		assertThat(result.getChunks(), is(3));
+		assertThat(result.getRowsPerSecond() > 0, is(true));
+
+		assertThat(countCustomers(), is(25L));
+
+		List<Customer05> customers = em.createQuery(
+				"SELECT c FROM Customer05 c JOIN c.address a WHERE c.firstName = 'First7'",
+				Customer05.class).getResultList();
+		assertThat(customers.size(), is(1));
+
+		Customer05 customer = customers.get(0);
+		assertThat(customer.getLastName(), is("Last7"));
+		assertThat(customer.getEmail(), is("mail7@mail.com"));
+		assertThat(customer.getAge(), is(27));
+		assertThat(customer.getAddress().getStreet1(), is("Street 7, Bldg \"A\""));
+		assertThat(customer.getAddress().getZipcode(), is("Zip7"));
+		assertThat(customer.getAddress().getCountry(), is("FR"));
+	}
+
+	/**
+	 * 取り込みの途中で不正な行があった場合、それまでにコミットしたチャンクは
+	 * 永続化されたままチェックポイントに記録され、不正な行を修正して
+	 * 再実行すると、コミット済みの行を読み飛ばして続きから取り込むことを
+	 * 確認する。
+	 */
+	@Test
+	public void testResumeFromCheckpoint() throws Exception {
+
+		///// 準備 /////
+
+		writeCsv(25, 17);	// 18行目のageが不正
+
+		CustomerCsvImporter05 importer = new CustomerCsvImporter05(emf);
+		importer.setChunkSize(10);
+		importer.setCheckpointFile(checkpointFile);
+
+		try {
+			importer.importFile(csvFile);
+			fail("IllegalArgumentException must be thrown");
+		} catch (IllegalArgumentException e) {
+			logger.info(e.getMessage());
+		}
+
+		// 最初のチャンク（10行）のみがコミットされている
+		assertThat(countCustomers(), is(10L));
+		assertThat(checkpointFile.exists(), is(true));
+
+		writeCsv(25, -1);	// 不正な行を修正
+
+		///// テスト /////
+
+		CustomerCsvImporter05.Result result = importer.importFile(csvFile);
+
+		///// 検証 /////
+
+		assertThat(result.getSkippedRows(), is(10L));
+		assertThat(result.getImportedRows(), is(15L));
+		assertThat(result.getChunks(), is(2));
+
+		// 重複も欠落もなく全ての行が永続化されている
+		assertThat(countCustomers(), is(25L));
+		assertThat(em.createQuery(
+				"SELECT COUNT(DISTINCT c.email) FROM Customer05 c", Long.class)
+				.getSingleResult(), is(25L));
+
+		// 取り込みが完了したのでチェックポイントは削除されている
+		assertThat(checkpointFile.exists(), is(false));
+	}
+
+	/**
+	 * チャンクのコミットごとに永続性コンテキストがクリアされ、
+	 * 取り込み中に管理対象のエンティティが蓄積されないことを確認する。
+	 */
+	@Test
+	public void testPersistenceContextIsClearedPerChunk() throws Exception {
+
+		///// 準備 /////
+
+		StringBuilder csv = new StringBuilder(HEADER).append('\n');
+		for (int i = 0; i < 5; i++) {
+			csv.append("First").append(i).append(",Last,mail").append(i)
+				.append("@mail.com,30,Street,City,Zip,FR\n");
+		}
+
+		final PersistenceContextMonitor[] monitor = new PersistenceContextMonitor[1];
+		CustomerCsvImporter05 importer = new CustomerCsvImporter05(emf) {
+			@Override
+			protected EntityManager createEntityManager() {
+				monitor[0] = new PersistenceContextMonitor(super.createEntityManager(),
+						PersistenceContextMonitor.Policy.NONE, 0, 0);
+				return monitor[0].getEntityManager();
+			}
+		};
+		importer.setChunkSize(2);
+
+		///// テスト /////
+
+		CustomerCsvImporter05.Result result = importer.importFrom(new StringReader(csv.toString()));
+
+		///// 検証 /////
+
+		assertThat(result.getImportedRows(), is(5L));
+		assertThat(result.getChunks(), is(3));
+
+		// 管理されているのは、最大でチャンクサイズ分のCustomer05とAddress05のみ
+		assertThat(monitor[0].getPeakEntityCount(), is(2 * 2));
+	}
+
+	/**
+	 * "で囲まれた項目の,と""が正しく扱われることを確認する。
+	 */
+	@Test
+	public void testParseLine() throws Exception {
+
+		///// テスト /////
+
+		List<String> fields = CustomerCsvImporter05.parseLine(
+				"a,\"b,c\",\"d\"\"e\",,f", 1);
+
+		///// 検証 /////
+
+		assertThat(fields.size(), is(5));
+		assertThat(fields.get(0), is("a"));
+		assertThat(fields.get(1), is("b,c"));
+		assertThat(fields.get(2), is("d\"e"));
+		assertThat(fields.get(3), is(""));
+		assertThat(fields.get(4), is("f"));
+	}
+}
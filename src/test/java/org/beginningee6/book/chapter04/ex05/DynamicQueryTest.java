@@ -13,8 +13,11 @@ import javax.persistence.Persistence;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 
+import org.beginningee6.book.chapter04.support.SqlStatementCounter;
 import org.junit.AfterClass;
+import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
@@ -115,6 +118,9 @@ public class DynamicQueryTest {
 		
 		private static EntityManagerFactory emf;
 		private static EntityManager em;
+		
+		@Rule
+		public SqlStatementCounter statements = new SqlStatementCounter();
 
 		@BeforeClass
 		public static void setUpClass() throws Exception {
@@ -137,6 +143,16 @@ public class DynamicQueryTest {
 			}
 		}
 		
+		/**
+		 * 検索したエンティティのリレーションシップ（address）が、行ごとに
+		 * SELECT文を発行していないことをSqlStatementCounterで確認するため、
+		 * persistData()で永続化したエンティティを管理対象外にしておく。
+		 */
+		@Before
+		public void setUp() throws Exception {
+			em.clear();
+		}
+		
 		/**
 		 * SELECT句の基本的な指定方法。
 		 * 
@@ -164,6 +180,9 @@ public class DynamicQueryTest {
 			///// 検証 /////
 			
 			assertThat(customers.size(), is(6));
+			
+			// addressは遅延ロードのため、6件のCustomer05は1回のSELECT文で取得される
+			statements.assertSelectCount(1);
 		}
 		
 		/**
@@ -259,6 +278,9 @@ public class DynamicQueryTest {
 			///// 検証 /////
 			
 			assertThat(addresses.size(), is(6));
+			
+			// Address05はCustomer05と結合した1回のSELECT文で取得される
+			statements.assertSelectCount(1);
 		}
 		
 		/**
@@ -331,6 +353,9 @@ public class DynamicQueryTest {
 			
 			assertThat(customers.size(), is(6));
 			assertThat(customers.get(0).getFirstName(), is("Antony"));
+			
+			// c.address.street1の参照は結合となり、SELECT文は1回のみ
+			statements.assertSelectCount(1);
 		}
 		
 		/**
@@ -393,6 +418,9 @@ public class DynamicQueryTest {
 		
 		private static EntityManagerFactory emf;
 		private static EntityManager em;
+		
+		@Rule
+		public SqlStatementCounter statements = new SqlStatementCounter();
 
 		@BeforeClass
 		public static void setUpClass() throws Exception {
@@ -415,6 +443,14 @@ public class DynamicQueryTest {
 			}
 		}
 		
+		/**
+		 * SELECT句のテストと同様に、永続化コンテキストを空にしておく。
+		 */
+		@Before
+		public void setUp() throws Exception {
+			em.clear();
+		}
+		
 		/**
 		 * 
 		 * AND条件により複数の条件を同時に満たすエンティティを検索する例
@@ -440,6 +476,9 @@ public class DynamicQueryTest {
 			
 			assertThat(customers.size(), is(1));
 			assertThat(customers.get(0).getLastName(), is("Dubosc"));
+			
+			// c.address.countryの条件は結合となり、addressは読み込まれない
+			statements.assertSelectCount(1);
 		}
 		
 		/**
@@ -852,6 +891,9 @@ public class DynamicQueryTest {
 		
 		private static EntityManagerFactory emf;
 		private static EntityManager em;
+		
+		@Rule
+		public SqlStatementCounter statements = new SqlStatementCounter();
 
 		@BeforeClass
 		public static void setUpClass() throws Exception {
@@ -873,6 +915,14 @@ public class DynamicQueryTest {
 				emf.close();
 			}
 		}
+		
+		/**
+		 * SELECT句のテストと同様に、永続化コンテキストを空にしておく。
+		 */
+		@Before
+		public void setUp() throws Exception {
+			em.clear();
+		}
 
 		/**
 		 * 
@@ -903,6 +953,7 @@ public class DynamicQueryTest {
 			///// 検証 /////
 			
 			assertThat(customers.size(), is(6));
+			statements.assertSelectCount(1);
 		}
 		
 		/**
@@ -989,6 +1040,7 @@ public class DynamicQueryTest {
 			
 			assertThat(customers.size(), is(1));
 			assertThat(customers.get(0).getLastName(), is("Dubosc"));
+			statements.assertSelectCount(1);
 		}
 		
 		/**
@@ -0,0 +1,229 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+import javax.persistence.TypedQuery;
+
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * 遅延ロードのaddressを、Customer05と同時に取得する名前付きクエリと
+ * フェッチプロファイルのテスト。
+ *
+ * 発行されたSQL文の数は、Hibernateの統計情報
+ * （persistence.xmlのhibernate.generate_statistics）で確認する。
+ */
+public class FetchJoinTest {
+
+	private static final Logger logger = Logger.getLogger(FetchJoinTest.class.getName());
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		tx.commit();
+		em.clear();
+	}
+
+	private static Statistics statistics() {
+		return ((HibernateEntityManagerFactory) emf).getSessionFactory().getStatistics();
+	}
+
+	/**
+	 * Customer05とAddress05の組を追加してtotal件にする。
+	 */
+	private void insertCustomers(int total) {
+		long count = em.createQuery("SELECT COUNT(c) FROM Customer05 c", Long.class)
+				.getSingleResult();
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (long i = count; i < total; i++) {
+			Customer05 customer = new Customer05(
+					i % 2 == 0 ? "Vincent" : "Antony", "Last" + i, "mail" + i + "@mail.com", 20);
+			customer.setAddress(new Address05("Street " + i, "City " + i, "Zip" + i, "FR"));
+			em.persist(customer);
+		}
+		tx.commit();
+		em.clear();
+	}
+
+	/**
+	 * 検索結果の全てのCustomer05についてaddressのプロパティを参照し、
+	 * その間に発行されたSQL文の数を返す。
+	 */
+	private long countStatements(TypedQuery<Customer05> query) {
+		statistics().clear();
+
+		List<Customer05> customers = query.getResultList();
+		for (Customer05 customer : customers) {
+			assertThat(customer.getAddress().getCity(), is(notNullValue()));
+		}
+		em.clear();
+
+		return statistics().getPrepareStatementCount();
+	}
+
+	/**
+	 * 既定の遅延ロードでは、addressを参照するとAddress05を読み込む
+	 * SELECT文が別に発行されることを確認する。
+	 * 
+	 * バッチフェッチ（hibernate.default_batch_fetch_size）により、
+	 * 未初期化のプロキシはバッチサイズ件ずつまとめて読み込まれる。
+	 */
+	@Test
+	public void testLazyAddressIsLoadedSeparately() throws Exception {
+
+		int batchFetchSize = Integer.parseInt(
+				(String) emf.getProperties().get("hibernate.default_batch_fetch_size"));
+
+		for (int rows : new int[] {10, 50, 200}) {
+
+			///// 準備 /////
+
+			insertCustomers(rows);
+
+			///// テスト /////
+
+			long statements = countStatements(
+					em.createNamedQuery(Customer05.FIND_ALL, Customer05.class));
+
+			///// 検証 /////
+
+			assertThat(statements, is(1L + (rows + batchFetchSize - 1) / batchFetchSize));
+		}
+	}
+
+	/**
+	 * Customer05.FIND_ALL_WITH_ADDRESSでは、件数に関係なく
+	 * 1つのSELECT文でaddressも取得されることを確認する。
+	 */
+	@Test
+	public void testFindAllWithAddress() throws Exception {
+
+		for (int rows : new int[] {10, 50, 200}) {
+
+			///// 準備 /////
+
+			insertCustomers(rows);
+
+			///// テスト /////
+
+			long statements = countStatements(
+					em.createNamedQuery(Customer05.FIND_ALL_WITH_ADDRESS, Customer05.class));
+
+			///// 検証 /////
+
+			assertThat(statements, is(1L));
+		}
+	}
+
+	/**
+	 * Customer05.FIND_WITH_PARAM_WITH_ADDRESSでは、件数に関係なく
+	 * 1つのSELECT文でaddressも取得されることを確認する。
+	 */
+	@Test
+	public void testFindWithParamWithAddress() throws Exception {
+
+		for (int rows : new int[] {10, 50, 200}) {
+
+			///// 準備 /////
+
+			insertCustomers(rows);
+
+			TypedQuery<Customer05> query = em.createNamedQuery(
+					Customer05.FIND_WITH_PARAM_WITH_ADDRESS, Customer05.class);
+			query.setParameter("fname", "Vincent");
+
+			///// テスト /////
+
+			long statements = countStatements(query);
+
+			///// 検証 /////
+
+			assertThat(statements, is(1L));
+		}
+	}
+
+	/**
+	 * フェッチプロファイルCustomer05.WITH_ADDRESSを有効にした場合のみ、
+	 * EntityManager.find()でaddressが結合して取得されることを確認する。
+	 */
+	@Test
+	public void testFetchProfile() throws Exception {
+
+		///// 準備 /////
+
+		insertCustomers(1);
+		Long id = em.createNamedQuery(Customer05.FIND_ALL, Customer05.class)
+				.getSingleResult().getId();
+		em.clear();
+
+		Session session = em.unwrap(Session.class);
+
+		///// テスト /////
+
+		Customer05 lazy = em.find(Customer05.class, id);
+		boolean lazyInitialized = Hibernate.isInitialized(lazy.getAddress());
+		em.clear();
+
+		session.enableFetchProfile(Customer05.WITH_ADDRESS);
+		Customer05 eager;
+		try {
+			statistics().clear();
+			eager = em.find(Customer05.class, id);
+		} finally {
+			session.disableFetchProfile(Customer05.WITH_ADDRESS);
+		}
+
+		///// 検証 /////
+
+		// 既定では遅延ロード
+		assertThat(lazyInitialized, is(false));
+
+		// フェッチプロファイルが有効な場合は1つのSELECT文で取得される
+		assertThat(Hibernate.isInitialized(eager.getAddress()), is(true));
+		assertThat(statistics().getPrepareStatementCount(), is(1L));
+		em.clear();
+	}
+}
@@ -0,0 +1,352 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+import javax.persistence.Query;
+
+import org.beginningee6.book.chapter04.support.DerbyQueryPlan;
+import org.hibernate.ejb.QueryHints;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Customer05、Address05の索引により、DynamicQueryTestなどの検索で
+ * 読み込まれる行数が表の行数に比例しなくなることを確認するテスト。
+ *
+ * 表の行数をSMALL件、LARGE件として同じ検索を実行し、Derbyの実行時統計
+ * （DerbyQueryPlan）で、使用された索引と読み込まれた行数を確認する。
+ * 各テストの前に行を削除した後、削除された行を表と索引から取り除くため、
+ * 読み込まれた行数（DerbyQueryPlan.getRowsVisited()）に削除された行は含まれない。
+ * 各検索の条件に一致する行は、表の行数によらずMATCHES件とする。
+ *
+ * 索引が使用される検索では、読み込まれる行数は一致する行のみとなり
+ * 表の行数によらず一定（索引の探索は表の行数の対数に比例する）となる。
+ * 一方、索引のない列（email）を条件とする検索では、表の全ての行が
+ * 読み込まれる。
+ */
+public class IndexScalingTest {
+
+	private static final Logger logger = Logger.getLogger(IndexScalingTest.class.getName());
+
+	private static final int SMALL = 1000;
+	private static final int LARGE = 10000;
+	private static final int MATCHES = 5;
+
+	private static final String[] OTHER_COUNTRIES = {"FR", "UK", "PT", "BR"};
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// 大量の行を永続化するため、SQL文のログ出力は行わない
+		emf = Persistence.createEntityManagerFactory("test",
+				Collections.singletonMap("hibernate.show_sql", "false"));
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		tx.commit();
+		em.clear();
+
+		// 削除された行は、領域が回収されるまで走査の際に読み込まれるため、
+		// 表と索引から削除された行を取り除く
+		tx.begin();
+		purge("CUSTOMER_EX05");
+		purge("ADDRESS_EX05");
+		tx.commit();
+	}
+
+	private void purge(String table) {
+		em.createNativeQuery("CALL SYSCS_UTIL.SYSCS_INPLACE_COMPRESS_TABLE('APP', '" + table + "', 1, 0, 0)")
+				.executeUpdate();
+	}
+
+	/**
+	 * Customer05とAddress05の組を追加してtotal件にする。
+	 *
+	 * 先頭のMATCHES件のみ、firstNameが"Vincent"、lastNameが"Johnson"、
+	 * ageが10、emailが"～@carmail.com"、address.countryが"AU"となる。
+	 */
+	private void insertCustomers(int total) {
+		long count = em.createQuery("SELECT COUNT(c) FROM Customer05 c", Long.class)
+				.getSingleResult();
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (long i = count; i < total; i++) {
+			boolean match = i < MATCHES;
+			Customer05 customer = new Customer05(
+					match ? "Vincent" : "First" + i,
+					match ? "Johnson" : "Last" + i,
+					match ? "mail" + i + "@carmail.com" : "mail" + i + "@mail.com",
+					match ? 10 : 20 + (int) (i % 50));
+			customer.setAddress(new Address05("Street " + i, "City " + i, "Zip" + i,
+					match ? "AU" : OTHER_COUNTRIES[(int) (i % OTHER_COUNTRIES.length)]));
+			em.persist(customer);
+			if (i % 500 == 0) {
+				em.flush();
+				em.clear();
+			}
+		}
+		tx.commit();
+		em.clear();
+
+		// 索引の統計情報は、Derbyがバックグラウンドで更新した時点の行数によって
+		// 異なり、選択される索引が変わるため、現在の行で更新しておく
+		tx.begin();
+		updateStatistics("CUSTOMER_EX05");
+		updateStatistics("ADDRESS_EX05");
+		tx.commit();
+	}
+
+	private void updateStatistics(String table) {
+		em.createNativeQuery("CALL SYSCS_UTIL.SYSCS_UPDATE_STATISTICS('APP', '" + table + "', NULL)")
+				.executeUpdate();
+	}
+
+	/**
+	 * クエリを実行し、その実行計画を返す。
+	 */
+	private DerbyQueryPlan planOf(Query query, int expectedResults) {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		try {
+			DerbyQueryPlan.enable(em);
+			List<?> results = query.getResultList();
+			DerbyQueryPlan plan = DerbyQueryPlan.last(em);
+			DerbyQueryPlan.disable(em);
+
+			assertThat(results.size(), is(expectedResults));
+			return plan;
+		} finally {
+			tx.commit();
+			em.clear();
+		}
+	}
+
+	/**
+	 * 表の行数をSMALL件、LARGE件としてクエリを実行し、
+	 * それぞれの実行計画を返す。
+	 */
+	private DerbyQueryPlan[] plansOf(String jpql, int expectedResults) {
+		DerbyQueryPlan[] plans = new DerbyQueryPlan[2];
+		int[] sizes = {SMALL, LARGE};
+		for (int i = 0; i < sizes.length; i++) {
+			insertCustomers(sizes[i]);
+			Query query = em.createQuery(jpql);
+			query.setHint(QueryHints.HINT_CACHEABLE, Boolean.FALSE);
+			plans[i] = planOf(query, expectedResults);
+			logger.info(sizes[i] + " rows: " + plans[i].getRowsVisited() + " rows visited");
+		}
+		return plans;
+	}
+
+	/**
+	 * 索引を使用し、表の行数が増えても読み込まれる行数が変わらないことを確認する。
+	 */
+	private void assertIndexed(DerbyQueryPlan[] plans, String indexName) {
+		for (DerbyQueryPlan plan : plans) {
+			assertThat(plan.toString(), plan.usesIndex(indexName), is(true));
+		}
+		assertThat(plans[1].getRowsVisited(), is(plans[0].getRowsVisited()));
+	}
+
+	/**
+	 * "findWithParam"と同じfirstNameによる検索では、
+	 * customer_ex05_first_name_idが使用されることを確認する。
+	 */
+	@Test
+	public void testFirstName() throws Exception {
+
+		///// テスト /////
+
+		DerbyQueryPlan[] plans = plansOf(
+				"SELECT c FROM Customer05 c WHERE c.firstName = 'Vincent'", MATCHES);
+
+		///// 検証 /////
+
+		assertIndexed(plans, "customer_ex05_first_name_id");
+	}
+
+	/**
+	 * lastNameによる検索では、customer_ex05_last_name_first_nameが
+	 * 使用されることを確認する。
+	 */
+	@Test
+	public void testLastName() throws Exception {
+
+		///// テスト /////
+
+		DerbyQueryPlan[] plans = plansOf(
+				"SELECT c FROM Customer05 c WHERE c.lastName = 'Johnson'", MATCHES);
+
+		///// 検証 /////
+
+		assertIndexed(plans, "customer_ex05_last_name_first_name");
+	}
+
+	/**
+	 * lastNameとfirstNameの両方による検索でも、表を走査せずに
+	 * 一致する行のみが読み込まれることを確認する。
+	 *
+	 * 複合索引customer_ex05_last_name_first_nameと、firstNameを先頭とする
+	 * customer_ex05_first_name_idのどちらを使用するかはDerbyの
+	 * オプティマイザが選択するため、読み込まれる行数は1行程度異なる。
+	 */
+	@Test
+	public void testLastNameAndFirstName() throws Exception {
+
+		///// テスト /////
+
+		DerbyQueryPlan[] plans = plansOf(
+				"SELECT c FROM Customer05 c " +
+				"WHERE c.lastName = 'Johnson' AND c.firstName = 'Vincent'", MATCHES);
+
+		///// 検証 /////
+
+		for (DerbyQueryPlan plan : plans) {
+			assertThat(plan.toString(), plan.isTableScan("customer_ex05"), is(false));
+			assertThat(plan.toString(), plan.getRowsVisited() <= MATCHES + 1, is(true));
+		}
+	}
+
+	/**
+	 * DynamicQueryTest.testWHERE_1と同じfirstNameとaddress.countryによる
+	 * 検索で、customer_ex05_first_name_idが使用され、どちらの表も走査しない
+	 * ことを確認する。
+	 *
+	 * address_ex05を主キーで結合するか、address_ex05_country_idとのハッシュ結合と
+	 * するかは表の行数によりDerbyのオプティマイザが選択するため、読み込まれる行数は
+	 * 1行程度異なるが、表の行数によらず一致する行の数に比例する。
+	 */
+	@Test
+	public void testFirstNameAndCountry() throws Exception {
+
+		///// テスト /////
+
+		DerbyQueryPlan[] plans = plansOf(
+				"SELECT c FROM Customer05 c " +
+				"WHERE c.firstName = 'Vincent' AND c.address.country = 'AU'", MATCHES);
+
+		///// 検証 /////
+
+		for (DerbyQueryPlan plan : plans) {
+			assertThat(plan.toString(), plan.usesIndex("customer_ex05_first_name_id"), is(true));
+			assertThat(plan.toString(), plan.isTableScan("address_ex05"), is(false));
+			assertThat(plan.toString(), plan.getRowsVisited() <= 3 * MATCHES, is(true));
+		}
+	}
+
+	/**
+	 * DynamicQueryTest.testWHERE_4と同じaddress.countryのIN句による検索では、
+	 * address_ex05_country_idが使用されることを確認する。
+	 */
+	@Test
+	public void testCountryIn() throws Exception {
+
+		///// テスト /////
+
+		DerbyQueryPlan[] plans = plansOf(
+				"SELECT c FROM Customer05 c WHERE c.address.country IN ('AU', 'JP')", MATCHES);
+
+		///// 検証 /////
+
+		assertIndexed(plans, "address_ex05_country_id");
+	}
+
+	/**
+	 * DynamicQueryTest.testSubqueryと同じageの最小値による検索では、
+	 * 最小値も一致する行もcustomer_ex05_age_idから読み込まれることを確認する。
+	 */
+	@Test
+	public void testSubquery() throws Exception {
+
+		///// テスト /////
+
+		DerbyQueryPlan[] plans = plansOf(
+				"SELECT c FROM Customer05 c " +
+				"WHERE c.age = (SELECT MIN(cust.age) FROM Customer05 cust) " +
+				"ORDER BY c.firstName", MATCHES);
+
+		///// 検証 /////
+
+		assertIndexed(plans, "customer_ex05_age_id");
+	}
+
+	/**
+	 * DynamicQueryTest.testGROUP_BYと同じaddress.countryによるグループ化では、
+	 * address_ex05はaddress_ex05_country_idのみから読み込まれ、表を
+	 * 走査しないことを確認する。
+	 *
+	 * ただし、グループ化では全ての行を集計するため、読み込まれる行数は
+	 * 表の行数に比例する。
+	 */
+	@Test
+	public void testGroupBy() throws Exception {
+
+		///// テスト /////
+
+		DerbyQueryPlan[] plans = plansOf(
+				"SELECT NEW org.beginningee6.book.chapter04.ex05.CustomerCountryCountDTO05(c.address.country, COUNT(c)) " +
+				"FROM Customer05 c " +
+				"GROUP BY c.address.country " +
+				"ORDER BY c.address.country ASC", 1 + OTHER_COUNTRIES.length);
+
+		///// 検証 /////
+
+		for (DerbyQueryPlan plan : plans) {
+			assertThat(plan.toString(), plan.usesIndex("address_ex05_country_id"), is(true));
+			assertThat(plan.toString(), plan.isTableScan("address_ex05"), is(false));
+		}
+	}
+
+	/**
+	 * 索引のないemailを条件とする検索（DynamicQueryTest.testWHERE_5）では、
+	 * 表の全ての行が読み込まれることを確認する（比較のため）。
+	 */
+	@Test
+	public void testUnindexedColumn() throws Exception {
+
+		///// テスト /////
+
+		DerbyQueryPlan[] plans = plansOf(
+				"SELECT c FROM Customer05 c WHERE c.email LIKE '%carmail.com'", MATCHES);
+
+		///// 検証 /////
+
+		assertThat(plans[0].isTableScan("customer_ex05"), is(true));
+		assertThat(plans[0].getRowsVisited(), is((long) SMALL));
+		assertThat(plans[1].getRowsVisited(), is((long) LARGE));
+	}
+}
@@ -0,0 +1,159 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * CustomerKeysetPager05によるキーセット方式のページングのテスト。
+ */
+public class KeysetPaginationTest {
+
+	private static final Logger logger = Logger.getLogger(KeysetPaginationTest.class.getName());
+
+	private static final int CUSTOMERS = 23;
+
+	private static final int PAGE_SIZE = 5;
+
+	private static final String[] FIRST_NAMES = {"Vincent", "Antony", "Sebastian"};
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		// ソートキーが同じ値の行やnullの行が、ページの境界をまたぐようにする
+		for (int i = 0; i < CUSTOMERS; i++) {
+			Customer05 customer = new Customer05(
+					FIRST_NAMES[i % FIRST_NAMES.length], "Last" + i, "mail" + i + "@mail.com",
+					i % 7 == 0 ? null : Integer.valueOf(20 + i % 4));
+			customer.setAddress(new Address05("Street " + i, "City",
+					i % 5 == 0 ? null : String.valueOf(75000 + i % 6), "FR"));
+			em.persist(customer);
+		}
+
+		tx.commit();
+		em.clear();
+	}
+
+	/**
+	 * 全てのページを順に取得した結果が、ORDER BY ソートキー, id で
+	 * 全件を取得した結果（ソートキーの値がnullの行は最後に並ぶ）と
+	 * 同じ順序で、重複も欠落もないことを確認する。
+	 */
+	@Test
+	public void testAllPagesMatchOrderedQuery() throws Exception {
+
+		for (CustomerKeysetPager05.Order order : CustomerKeysetPager05.Order.values()) {
+
+			///// 準備 /////
+
+			List<Long> expected = em.createQuery(
+					"SELECT c.id FROM Customer05 c " + order.getJoin()
+					+ "ORDER BY " + order.getPath() + ", " + order.getIdPath(),
+					Long.class).getResultList();
+
+			CustomerKeysetPager05 pager = new CustomerKeysetPager05(em, order, PAGE_SIZE);
+
+			///// テスト /////
+
+			List<Long> actual = new ArrayList<Long>();
+			int pages = 0;
+			CustomerKeysetPager05.Page page = pager.firstPage();
+			while (true) {
+				pages++;
+				for (Customer05 customer : page.getCustomers()) {
+					actual.add(customer.getId());
+				}
+				if (!page.hasNext()) {
+					break;
+				}
+				assertThat(page.getCustomers().size(), is(PAGE_SIZE));
+				page = pager.nextPage(page.getNextCursor());
+			}
+
+			///// 検証 /////
+
+			logger.info(order + ": " + actual);
+			assertThat(actual, is(expected));
+			assertThat(pages, is((CUSTOMERS + PAGE_SIZE - 1) / PAGE_SIZE));
+		}
+	}
+
+	/**
+	 * 件数がページサイズの倍数の場合、最後のページで
+	 * 次のページがないと判定されることを確認する。
+	 */
+	@Test
+	public void testLastPageHasNoNextCursor() throws Exception {
+
+		///// 準備 /////
+
+		CustomerKeysetPager05 pager = new CustomerKeysetPager05(
+				em, CustomerKeysetPager05.Order.FIRST_NAME, CUSTOMERS);
+
+		///// テスト /////
+
+		CustomerKeysetPager05.Page page = pager.firstPage();
+
+		///// 検証 /////
+
+		assertThat(page.getCustomers().size(), is(CUSTOMERS));
+		assertThat(page.hasNext(), is(false));
+		assertThat(page.getNextCursor(), is(nullValue()));
+	}
+
+	/**
+	 * 別のソートキーのカーソルを指定した場合に例外となることを確認する。
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCursorOfOtherOrder() throws Exception {
+
+		///// 準備 /////
+
+		CustomerKeysetPager05.Page page = new CustomerKeysetPager05(
+				em, CustomerKeysetPager05.Order.AGE, PAGE_SIZE).firstPage();
+
+		///// テスト /////
+
+		new CustomerKeysetPager05(em, CustomerKeysetPager05.Order.FIRST_NAME, PAGE_SIZE)
+				.nextPage(page.getNextCursor());
+	}
+}
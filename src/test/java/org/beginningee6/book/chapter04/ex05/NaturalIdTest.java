@@ -0,0 +1,249 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
+
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+
+import org.beginningee6.book.chapter04.ex06.Book06;
+import org.beginningee6.book.chapter04.support.NaturalIdLookup;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Book05、Book06の自然キー（isbn）による検索（NaturalIdLookup）のテスト。
+ *
+ * キャッシュの動作は、検索のたびに新しいEntityManagerを生成して確認する
+ * （SecondLevelCacheTestを参照）。
+ */
+public class NaturalIdTest {
+
+	private static final Logger logger = Logger.getLogger(NaturalIdTest.class.getName());
+
+	private static final String ISBN = "1-84023-742-2";
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Book05").executeUpdate();
+		em.createQuery("DELETE FROM Book06").executeUpdate();
+
+		em.persist(new Book05("The Hitchhiker's Guide to the Galaxy", 12F,
+				"The Hitchhiker's Guide to the Galaxy is a science fiction comedy series created by Douglas Adams.",
+				ISBN, "Apress", 354, false));
+		em.persist(new Book05("Java EE 6", 50F, "Learn about EE 6",
+				"2-84023-742-2", "Apress", 450, true));
+		em.persist(new Book06("The Hitchhiker's Guide to the Galaxy", 12.5F,
+				"The Hitchhiker's Guide to the Galaxy is a science fiction comedy series created by Douglas Adams.",
+				ISBN, 354, false));
+
+		tx.commit();
+		em.clear();
+
+		emf.getCache().evictAll();
+		NaturalIdLookup.evictAll(emf);
+		statistics().clear();
+	}
+
+	private static Statistics statistics() {
+		return ((HibernateEntityManagerFactory) emf).getSessionFactory().getStatistics();
+	}
+
+	/**
+	 * 新しいEntityManagerで自然キーにより検索する。
+	 */
+	private static <T> T findInNewEntityManager(Class<T> entityClass, String isbn) {
+		EntityManager another = emf.createEntityManager();
+		try {
+			return NaturalIdLookup.find(another, entityClass, isbn);
+		} finally {
+			another.close();
+		}
+	}
+
+	/**
+	 * isbnによりBook05を検索できること、2回目以降はキャッシュから
+	 * 解決されてデータベースにアクセスしないことを確認する。
+	 */
+	@Test
+	public void testFindBook05ByIsbn() throws Exception {
+
+		///// テスト /////
+
+		Book05 cold = findInNewEntityManager(Book05.class, ISBN);
+		long statementsOfCold = statistics().getPrepareStatementCount();
+
+		Book05 warm = findInNewEntityManager(Book05.class, ISBN);
+
+		///// 検証 /////
+
+		assertThat(cold.getTitle(), is("The Hitchhiker's Guide to the Galaxy"));
+		assertThat(warm.getId(), is(cold.getId()));
+
+		// 1回目は主キーの検索とエンティティの読み込みでSELECT文を2回発行する
+		assertThat(statementsOfCold, is(2L));
+		assertThat(NaturalIdLookup.getQueryExecutionCount(emf), is(1L));
+
+		// 2回目は自然キーのキャッシュとエンティティのキャッシュから取得される
+		assertThat(statistics().getPrepareStatementCount(), is(2L));
+		assertThat(NaturalIdLookup.getHitCount(emf), is(1L));
+	}
+
+	/**
+	 * isbnによりBook06を検索できること、バージョン番号も
+	 * 読み込まれることを確認する。
+	 */
+	@Test
+	public void testFindBook06ByIsbn() throws Exception {
+
+		///// テスト /////
+
+		Book06 cold = findInNewEntityManager(Book06.class, ISBN);
+		Book06 warm = findInNewEntityManager(Book06.class, ISBN);
+
+		///// 検証 /////
+
+		assertThat(cold.getPrice(), is(12.5F));
+		assertThat(cold.getVersion(), is(0));
+		assertThat(warm.getId(), is(cold.getId()));
+		assertThat(warm.getVersion(), is(0));
+		assertThat(NaturalIdLookup.getQueryExecutionCount(emf), is(1L));
+		assertThat(NaturalIdLookup.getHitCount(emf), is(1L));
+	}
+
+	/**
+	 * 同じEntityManagerで読み込み済みのエンティティは、キャッシュを
+	 * 使用しなくても永続性コンテキストから解決されることを確認する。
+	 */
+	@Test
+	public void testFindResolvedFromPersistenceContext() throws Exception {
+
+		///// 準備 /////
+
+		emf.getCache().evictAll();
+		NaturalIdLookup.evictAll(emf);
+
+		Book05 first = NaturalIdLookup.find(em, Book05.class, ISBN);
+		long statements = statistics().getPrepareStatementCount();
+
+		///// テスト /////
+
+		Book05 second = NaturalIdLookup.find(em, Book05.class, ISBN);
+
+		///// 検証 /////
+
+		assertThat(second, is(sameInstance(first)));
+		assertThat(statistics().getPrepareStatementCount(), is(statements));
+		em.clear();
+	}
+
+	/**
+	 * 該当するisbnのエンティティがない場合はnullを返すことを確認する。
+	 */
+	@Test
+	public void testFindUnknownIsbn() throws Exception {
+
+		///// テスト /////
+
+		Book05 book = findInNewEntityManager(Book05.class, "0-00000-000-0");
+
+		///// 検証 /////
+
+		assertThat(book, is(nullValue()));
+	}
+
+	/**
+	 * isbnには一意制約があり、同じisbnのBook05は永続化できないことを確認する。
+	 */
+	@Test
+	public void testIsbnIsUnique() throws Exception {
+
+		///// 準備 /////
+
+		Book05 duplicate = new Book05("Another Title", 20F, "Another description",
+				ISBN, "Apress", 100, false);
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		try {
+			em.persist(duplicate);
+			em.flush();
+			fail();
+		} catch (PersistenceException e) {
+
+			///// 検証 /////
+
+			logger.info(e.getMessage());
+		} finally {
+			tx.rollback();
+			em.clear();
+		}
+	}
+
+	/**
+	 * 永続化したエンティティのisbnは変更できないことを確認する。
+	 */
+	@Test
+	public void testIsbnIsImmutable() throws Exception {
+
+		///// 準備 /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		Book05 book = NaturalIdLookup.find(em, Book05.class, ISBN);
+
+		///// テスト /////
+
+		book.setIsbn("9-99999-999-9");
+		try {
+			em.flush();
+			fail();
+		} catch (PersistenceException e) {
+
+			///// 検証 /////
+
+			logger.info(e.getMessage());
+		} finally {
+			tx.rollback();
+			em.clear();
+		}
+
+		assertThat(findInNewEntityManager(Book05.class, ISBN), is(notNullValue()));
+	}
+}
@@ -0,0 +1,267 @@
+package org.beginningee6.book.chapter04.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+import javax.persistence.TypedQuery;
+
+import org.beginningee6.book.chapter04.support.QueryResultCache;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * クエリキャッシュ（QueryResultCache）のテスト。
+ *
+ * 検索結果がクエリとパラメータの値の組ごとにキャッシュされ、
+ * customer_ex05が変更されると無効となることを確認する。
+ *
+ * キャッシュの動作は、検索のたびに新しいEntityManagerを生成して確認する
+ * （SecondLevelCacheTestを参照）。
+ */
+public class QueryCacheTest {
+
+	private static final Logger logger = Logger.getLogger(QueryCacheTest.class.getName());
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		persist(new Customer05("Antony", "Balla", "tballa@mail.com", 14));
+		persist(new Customer05("Vincent", "Johnson", "vj@mail.com", 45));
+		persist(new Customer05("Sebastian", "Twenty", "seb@mail.com", 58));
+		persist(new Customer05("Frederic", "Riou", "fred@mail.com", 41));
+		persist(new Customer05("Vincent", "Dubosc", "vd@mail.com", 16));
+
+		tx.commit();
+		em.clear();
+
+		emf.getCache().evictAll();
+		QueryResultCache.evictAll(emf);
+		statistics().clear();
+	}
+
+	private static void persist(Customer05 customer) {
+		customer.setAddress(new Address05("Street", "Paris", "75000", "FR"));
+		em.persist(customer);
+	}
+
+	private static Statistics statistics() {
+		return ((HibernateEntityManagerFactory) emf).getSessionFactory().getStatistics();
+	}
+
+	/**
+	 * 新しいEntityManagerで名前付きクエリ"findWithParam"を実行する。
+	 */
+	private static List<Customer05> findWithParam(String fname) {
+		EntityManager another = emf.createEntityManager();
+		try {
+			TypedQuery<Customer05> query = another.createNamedQuery("findWithParam", Customer05.class);
+			query.setParameter("fname", fname);
+			return query.getResultList();
+		} finally {
+			another.close();
+		}
+	}
+
+	/**
+	 * 同じパラメータで2回目に実行した"findWithParam"は、
+	 * SELECT文を発行せずにキャッシュされた検索結果を返すことを確認する。
+	 */
+	@Test
+	public void testNamedQueryIsCached() throws Exception {
+
+		///// テスト /////
+
+		List<Customer05> first = findWithParam("Vincent");
+		long statementsOfFirst = statistics().getPrepareStatementCount();
+		List<Customer05> second = findWithParam("Vincent");
+
+		///// 検証 /////
+
+		assertThat(first.size(), is(2));
+		assertThat(second.size(), is(2));
+		assertThat(second.get(0).getId(), is(first.get(0).getId()));
+
+		// 2回目はクエリキャッシュとCustomer05のキャッシュから取得される
+		assertThat(statementsOfFirst, is(1L));
+		assertThat(statistics().getPrepareStatementCount(), is(1L));
+		assertThat(QueryResultCache.getMissCount(emf), is(1L));
+		assertThat(QueryResultCache.getPutCount(emf), is(1L));
+		assertThat(QueryResultCache.getHitCount(emf), is(1L));
+	}
+
+	/**
+	 * パラメータの値が異なる場合は、別の検索結果としてキャッシュされることを確認する。
+	 */
+	@Test
+	public void testCacheIsKeyedByParameter() throws Exception {
+
+		///// テスト /////
+
+		List<Customer05> vincents = findWithParam("Vincent");
+		List<Customer05> antonys = findWithParam("Antony");
+		List<Customer05> vincentsAgain = findWithParam("Vincent");
+		List<Customer05> antonysAgain = findWithParam("Antony");
+
+		///// 検証 /////
+
+		assertThat(vincents.size(), is(2));
+		assertThat(antonys.size(), is(1));
+		assertThat(vincentsAgain.size(), is(2));
+		assertThat(antonysAgain.size(), is(1));
+		assertThat(antonysAgain.get(0).getFirstName(), is("Antony"));
+
+		assertThat(QueryResultCache.getMissCount(emf), is(2L));
+		assertThat(QueryResultCache.getHitCount(emf), is(2L));
+	}
+
+	/**
+	 * 動的クエリもQueryResultCache.setCacheable()でキャッシュされることを確認する。
+	 */
+	@Test
+	public void testTypedQueryIsCached() throws Exception {
+
+		///// テスト /////
+
+		for (int i = 0; i < 3; i++) {
+			EntityManager another = emf.createEntityManager();
+			try {
+				TypedQuery<Customer05> query = QueryResultCache.setCacheable(another.createQuery(
+						"SELECT c FROM Customer05 c WHERE c.age > :age", Customer05.class));
+				query.setParameter("age", 40);
+				assertThat(query.getResultList().size(), is(3));
+			} finally {
+				another.close();
+			}
+		}
+
+		///// 検証 /////
+
+		assertThat(QueryResultCache.getMissCount(emf), is(1L));
+		assertThat(QueryResultCache.getHitCount(emf), is(2L));
+		assertThat(statistics().getPrepareStatementCount(), is(1L));
+	}
+
+	/**
+	 * Customer05を永続化すると、キャッシュされた検索結果が無効となり、
+	 * 次の検索では永続化したCustomer05も含まれることを確認する。
+	 */
+	@Test
+	public void testPersistInvalidatesCache() throws Exception {
+
+		///// 準備 /////
+
+		assertThat(findWithParam("Vincent").size(), is(2));
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		persist(new Customer05("Vincent", "Newcomer", "vn@mail.com", 30));
+		tx.commit();
+		em.clear();
+
+		List<Customer05> customers = findWithParam("Vincent");
+
+		///// 検証 /////
+
+		assertThat(customers.size(), is(3));
+		assertThat(QueryResultCache.getMissCount(emf), is(2L));
+		assertThat(QueryResultCache.getHitCount(emf), is(0L));
+	}
+
+	/**
+	 * BulkOperationTestと同じ一括更新（UPDATE文）を実行すると、
+	 * キャッシュされた検索結果が無効となることを確認する。
+	 */
+	@Test
+	public void testBulkUpdateInvalidatesCache() throws Exception {
+
+		///// 準備 /////
+
+		assertThat(findWithParam("Vincent").size(), is(2));
+		assertThat(findWithParam("TOO YOUNG").size(), is(0));
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		int updated = em.createQuery(
+				"UPDATE Customer05 c SET c.firstName = 'TOO YOUNG' WHERE c.age < 18")
+				.executeUpdate();
+		tx.commit();
+
+		List<Customer05> vincents = findWithParam("Vincent");
+		List<Customer05> tooYoung = findWithParam("TOO YOUNG");
+
+		///// 検証 /////
+
+		assertThat(updated, is(2));
+		assertThat(vincents.size(), is(1));
+		assertThat(tooYoung.size(), is(2));
+		assertThat(QueryResultCache.getHitCount(emf), is(0L));
+	}
+
+	/**
+	 * BulkOperationTestと同じ一括削除（DELETE文）を実行すると、
+	 * キャッシュされた検索結果が無効となることを確認する。
+	 */
+	@Test
+	public void testBulkDeleteInvalidatesCache() throws Exception {
+
+		///// 準備 /////
+
+		assertThat(findWithParam("Antony").size(), is(1));
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		int deleted = em.createQuery("DELETE FROM Customer05 c WHERE c.age < 18").executeUpdate();
+		tx.commit();
+
+		List<Customer05> antonys = findWithParam("Antony");
+
+		///// 検証 /////
+
+		assertThat(deleted, is(2));
+		assertThat(antonys.size(), is(0));
+		assertThat(QueryResultCache.getHitCount(emf), is(0L));
+	}
+}
@@ -0,0 +1,301 @@
+package org.beginningee6.book.chapter04.ex06;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
+
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Persistence;
+import javax.persistence.RollbackException;
+
+import org.beginningee6.book.chapter04.ex05.Book05;
+import org.beginningee6.book.chapter04.support.CacheRegionStatistics;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Book05、Book06の第2レベルキャッシュのテスト。
+ *
+ * キャッシュのヒット、ミス、破棄の件数はCacheRegionStatisticsで、
+ * 発行されたSQL文の数はHibernateの統計情報で確認する。
+ */
+public class SecondLevelCacheTest {
+
+	private static final Logger logger = Logger.getLogger(SecondLevelCacheTest.class.getName());
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Book05").executeUpdate();
+		em.createQuery("DELETE FROM Book06").executeUpdate();
+
+		tx.commit();
+		em.clear();
+
+		emf.getCache().evictAll();
+		CacheRegionStatistics.clear(emf, Book05.class);
+		CacheRegionStatistics.clear(emf, Book06.class);
+	}
+
+	private static Statistics statistics() {
+		return ((HibernateEntityManagerFactory) emf).getSessionFactory().getStatistics();
+	}
+
+	/**
+	 * 新しいEntityManagerでエンティティを検索する。
+	 *
+	 * READ_WRITEのキャッシュでは、EntityManager（Session）を生成した時点より
+	 * 後にキャッシュに格納されたエンティティはそのEntityManagerからは
+	 * 参照されないため、キャッシュの動作は新しいEntityManagerで確認する。
+	 */
+	private static <T> T findInNewEntityManager(Class<T> entityClass, Long id) {
+		EntityManager another = emf.createEntityManager();
+		try {
+			return another.find(entityClass, id);
+		} finally {
+			another.close();
+		}
+	}
+
+	private Book06 persistBook06() {
+		Book06 book = new Book06(
+				"The Hitchhiker's Guide to the Galaxy",
+				12.5F,
+				"The Hitchhiker's Guide to the Galaxy is a science fiction comedy series created by Douglas Adams.",
+				"1-84023-742-2",
+				354,
+				false);
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		em.persist(book);
+		tx.commit();
+		em.clear();
+
+		return book;
+	}
+
+	/**
+	 * 永続化したBook05を別のEntityManagerでfind()した場合に、
+	 * SELECT文を発行せずにキャッシュから読み込まれることを確認する。
+	 */
+	@Test
+	public void testFindFromCacheInAnotherEntityManager() throws Exception {
+
+		///// 準備 /////
+
+		Book05 book = new Book05(
+				"The Hitchhiker's Guide to the Galaxy",
+				12.5F,
+				"The Hitchhiker's Guide to the Galaxy is a science fiction comedy series created by Douglas Adams.",
+				"1-84023-742-2",
+				"Apress",
+				354,
+				false);
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		em.persist(book);
+		tx.commit();
+		em.clear();
+
+		statistics().clear();
+
+		///// テスト /////
+
+		Book05 found = findInNewEntityManager(Book05.class, book.getId());
+
+		///// 検証 /////
+
+		assertThat(found.getTitle(), is(book.getTitle()));
+		assertThat(statistics().getPrepareStatementCount(), is(0L));
+
+		CacheRegionStatistics cache = CacheRegionStatistics.of(emf, Book05.class);
+		assertThat(cache.getHitCount(), is(1L));
+		assertThat(cache.getMissCount(), is(0L));
+	}
+
+	/**
+	 * キャッシュにないBook06はデータベースから読み込まれ、
+	 * 以降はキャッシュから読み込まれることを確認する。
+	 */
+	@Test
+	public void testMissThenHit() throws Exception {
+
+		///// 準備 /////
+
+		Book06 book = persistBook06();
+		emf.getCache().evict(Book06.class, book.getId());
+		CacheRegionStatistics.clear(emf, Book06.class);
+
+		///// テスト /////
+
+		Book06 cold = findInNewEntityManager(Book06.class, book.getId());
+		Book06 warm = findInNewEntityManager(Book06.class, book.getId());
+
+		///// 検証 /////
+
+		assertThat(cold.getTitle(), is(book.getTitle()));
+		assertThat(warm.getTitle(), is(book.getTitle()));
+
+		CacheRegionStatistics cache = CacheRegionStatistics.of(emf, Book06.class);
+		assertThat(cache.getMissCount(), is(1L));
+		assertThat(cache.getPutCount(), is(1L));
+		assertThat(cache.getHitCount(), is(1L));
+		assertThat(cache.getHitRatio(), is(0.5));
+	}
+
+	/**
+	 * Book06を更新した後は、キャッシュから新しいバージョン番号とともに
+	 * 読み込まれ、更新前に読み込んだエンティティによる更新は
+	 * バージョン番号のチェックにより失敗することを確認する。
+	 */
+	@Test
+	public void testVersionStaysConsistent() throws Exception {
+
+		///// 準備 /////
+
+		Book06 book = persistBook06();
+
+		EntityManager em1 = emf.createEntityManager();
+		EntityManager em2 = emf.createEntityManager();
+		try {
+			// 両方ともキャッシュから読み込む（バージョン番号は0）
+			Book06 book1 = em1.find(Book06.class, book.getId());
+			Book06 book2 = em2.find(Book06.class, book.getId());
+
+			assertThat(book1.getVersion(), is(0));
+			assertThat(book2.getVersion(), is(0));
+
+			///// テスト /////
+
+			em2.getTransaction().begin();
+			book2.raisePriceByFiveDollars();
+			em2.getTransaction().commit();
+
+			statistics().clear();
+
+			Book06 book3 = findInNewEntityManager(Book06.class, book.getId());
+
+			///// 検証 /////
+
+			// 更新後の値とバージョン番号がキャッシュから読み込まれる
+			assertThat(statistics().getPrepareStatementCount(), is(0L));
+			assertThat(book3.getVersion(), is(1));
+			assertThat(book3.getPrice(), is(17.5F));
+
+			// 古いバージョン番号のエンティティによる更新は失敗する
+			em1.getTransaction().begin();
+			book1.raisePriceByTwoDollars();
+			try {
+				em1.getTransaction().commit();
+				fail();
+			} catch (RollbackException e) {
+				assertThat(e.getCause(), is(instanceOf(OptimisticLockException.class)));
+			}
+		} finally {
+			em1.close();
+			em2.close();
+		}
+
+		// 失敗した更新はキャッシュに反映されない
+		Book06 found = findInNewEntityManager(Book06.class, book.getId());
+		assertThat(found.getVersion(), is(1));
+		assertThat(found.getPrice(), is(17.5F));
+	}
+
+	/**
+	 * 一括更新（UPDATE文）を実行すると、Book06のキャッシュ領域の
+	 * エンティティが破棄され、次のfind()でデータベースから
+	 * 新しい値が読み込まれることを確認する。
+	 */
+	@Test
+	public void testBulkUpdateInvalidatesRegion() throws Exception {
+
+		///// 準備 /////
+
+		Book06 book = persistBook06();
+		assertThat(emf.getCache().contains(Book06.class, book.getId()), is(true));
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		em.createQuery("UPDATE Book06 b SET b.price = 20.0, b.version = b.version + 1")
+				.executeUpdate();
+		tx.commit();
+
+		///// 検証 /////
+
+		assertThat(emf.getCache().contains(Book06.class, book.getId()), is(false));
+
+		Book06 found = findInNewEntityManager(Book06.class, book.getId());
+		assertThat(found.getPrice(), is(20.0F));
+		assertThat(found.getVersion(), is(1));
+	}
+
+	/**
+	 * キャッシュ領域の最大数を超えてBook05を永続化した場合に、
+	 * 古いものから破棄され、最大数を超えて保持されないことを確認する。
+	 */
+	@Test
+	public void testEvictionWhenRegionIsFull() throws Exception {
+
+		///// 準備 /////
+
+		int maxElements = CacheRegionStatistics.of(emf, Book05.class).getMaxElements();
+		int books = maxElements + 100;
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (int i = 0; i < books; i++) {
+			em.persist(new Book05("Title " + i, 10F, "Description " + i,
+					"isbn-" + i, "Apress", 100, false));
+		}
+		tx.commit();
+		em.clear();
+
+		///// 検証 /////
+
+		CacheRegionStatistics cache = CacheRegionStatistics.of(emf, Book05.class);
+		logger.info(cache.toString());
+
+		assertThat(cache.getPutCount(), is((long) books));
+		assertThat(cache.getElementCount(), is((long) maxElements));
+		assertThat(cache.getEvictionCount(), is(100L));
+	}
+}
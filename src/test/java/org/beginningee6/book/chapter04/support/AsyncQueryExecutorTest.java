@@ -0,0 +1,293 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.Address05;
+import org.beginningee6.book.chapter04.ex05.Book05;
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * AsyncQueryExecutorによる非同期のクエリ実行のテスト。
+ */
+public class AsyncQueryExecutorTest {
+
+	private static final Logger logger = Logger.getLogger(AsyncQueryExecutorTest.class.getName());
+
+	private static final Map<String, Object> NO_PARAMETERS = Collections.emptyMap();
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	private AsyncQueryExecutor executor;
+
+	/** テスト中の処理をブロックするためのラッチ */
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+		em.createQuery("DELETE FROM Book05").executeUpdate();
+
+		persist("Antony", "Balla", "tballa@mail.com", 14, "AU");
+		persist("Vincent", "Johnson", "vj@mail.com", 45, "FR");
+		persist("Sebastian", "Twenty", "seb@yamail.com", 58, "UK");
+		persist("Vincent", "Dubosc", "vd@mail.com", 16, "PT");
+		em.persist(new Book05("The Hitchhiker's Guide to the Galaxy", 12.5F, "Scifi book",
+				"1-84023-742-2", "Apress", 354, false));
+		em.persist(new Book05("Beginning Java EE 6", 49.99F, "Java EE book",
+				"978-1-4302-1954-5", "Apress", 536, true));
+
+		tx.commit();
+		em.clear();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		release.countDown();
+		if (executor != null) {
+			executor.close();
+		}
+	}
+
+	private static void persist(String firstName, String lastName, String email,
+			int age, String country) {
+		Customer05 customer = new Customer05(firstName, lastName, email, age);
+		customer.setAddress(new Address05("Street", "City", "Zip", country));
+		em.persist(customer);
+	}
+
+	/** release.countDown()が呼び出されるまでブロックする処理 */
+	private AsyncQueryExecutor.Work<Void> blocking() {
+		return new AsyncQueryExecutor.Work<Void>() {
+			public Void execute(EntityManager em) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return null;
+			}
+		};
+	}
+
+	/** 実行された回数を数える処理 */
+	private static AsyncQueryExecutor.Work<Integer> counting(final AtomicInteger count) {
+		return new AsyncQueryExecutor.Work<Integer>() {
+			public Integer execute(EntityManager em) {
+				return count.incrementAndGet();
+			}
+		};
+	}
+
+	private static Throwable causeOf(CompletableFuture<?> future) throws Exception {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail();
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+	}
+
+	/**
+	 * Customer05とBook05の検索を並行に実行し、全ての結果を待ち合わせる。
+	 */
+	@Test
+	public void testFanOut() throws Exception {
+
+		///// 準備 /////
+
+		executor = new AsyncQueryExecutor(emf, 3, 10);
+
+		///// テスト /////
+
+		CompletableFuture<List<Customer05>> vincents = executor.namedQuery(
+				"findWithParam", Customer05.class,
+				Collections.singletonMap("fname", "Vincent"), 5, TimeUnit.SECONDS);
+		CompletableFuture<List<Customer05>> withAddress = executor.namedQuery(
+				Customer05.FIND_ALL_WITH_ADDRESS, Customer05.class,
+				NO_PARAMETERS, 5, TimeUnit.SECONDS);
+		CompletableFuture<List<Book05>> books = executor.query(
+				"SELECT b FROM Book05 b WHERE b.editor = :editor ORDER BY b.title", Book05.class,
+				Collections.singletonMap("editor", "Apress"), 5, TimeUnit.SECONDS);
+
+		CompletableFuture.allOf(vincents, withAddress, books).get(10, TimeUnit.SECONDS);
+
+		///// 検証 /////
+
+		assertThat(vincents.get().size(), is(2));
+		assertThat(vincents.get().get(0).getFirstName(), is("Vincent"));
+
+		// JOIN FETCHで取得した関連は、切り離された後も参照できる
+		assertThat(withAddress.get().size(), is(4));
+		for (Customer05 customer : withAddress.get()) {
+			assertThat(customer.getAddress().getCountry(), is(notNullValue()));
+		}
+
+		assertThat(books.get().size(), is(2));
+		assertThat(books.get().get(0).getTitle(), is("Beginning Java EE 6"));
+
+		Book05 book = executor.find(Book05.class, books.get().get(1).getId(), 5, TimeUnit.SECONDS)
+				.get(10, TimeUnit.SECONDS);
+		assertThat(book.getIsbn(), is("1-84023-742-2"));
+
+		// キャッシュされないエンティティは、タイムアウトを指定したクエリで検索される
+		Customer05 expected = withAddress.get().get(0);
+		Customer05 customer = executor.find(Customer05.class, expected.getId(), 5, TimeUnit.SECONDS)
+				.get(10, TimeUnit.SECONDS);
+		assertThat(customer.getEmail(), is(expected.getEmail()));
+		assertThat(executor.find(Customer05.class, -1L, 5, TimeUnit.SECONDS)
+				.get(10, TimeUnit.SECONDS), is(nullValue()));
+	}
+
+	/**
+	 * タイムアウトした場合は、TimeoutExceptionで例外終了し、
+	 * 実行を待っていた処理は実行されないことを確認する。
+	 */
+	@Test
+	public void testTimeout() throws Exception {
+
+		///// 準備 /////
+
+		executor = new AsyncQueryExecutor(emf, 1, 10);
+		executor.submit(blocking(), 0, TimeUnit.SECONDS);
+		AtomicInteger count = new AtomicInteger();
+
+		///// テスト /////
+
+		CompletableFuture<Integer> timedOut = executor.submit(counting(count), 100, TimeUnit.MILLISECONDS);
+
+		///// 検証 /////
+
+		assertThat(causeOf(timedOut), is(instanceOf(TimeoutException.class)));
+		assertThat(executor.getQueuedCount(), is(0));
+
+		release.countDown();
+		assertThat(executor.submit(counting(count), 5, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS), is(1));
+	}
+
+	/**
+	 * キャンセルした処理は実行されないことを確認する。
+	 */
+	@Test
+	public void testCancel() throws Exception {
+
+		///// 準備 /////
+
+		executor = new AsyncQueryExecutor(emf, 1, 10);
+		executor.submit(blocking(), 0, TimeUnit.SECONDS);
+		AtomicInteger count = new AtomicInteger();
+
+		CompletableFuture<Integer> cancelled = executor.submit(counting(count), 0, TimeUnit.SECONDS);
+		assertThat(executor.getQueuedCount(), is(1));
+
+		///// テスト /////
+
+		cancelled.cancel(true);
+
+		///// 検証 /////
+
+		assertThat(cancelled.isCancelled(), is(true));
+		assertThat(executor.getQueuedCount(), is(0));
+
+		release.countDown();
+		assertThat(executor.submit(counting(count), 5, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS), is(1));
+	}
+
+	/**
+	 * 実行を待つ処理が上限を超えた場合は、RejectedExecutionExceptionで
+	 * 例外終了することを確認する。
+	 */
+	@Test
+	public void testRejected() throws Exception {
+
+		///// 準備 /////
+
+		executor = new AsyncQueryExecutor(emf, 1, 1);
+		executor.submit(blocking(), 0, TimeUnit.SECONDS);
+		CompletableFuture<Void> queued = executor.submit(blocking(), 0, TimeUnit.SECONDS);
+
+		///// テスト /////
+
+		CompletableFuture<Void> rejected = executor.submit(blocking(), 0, TimeUnit.SECONDS);
+
+		///// 検証 /////
+
+		assertThat(causeOf(rejected), is(instanceOf(RejectedExecutionException.class)));
+
+		release.countDown();
+		assertThat(queued.get(10, TimeUnit.SECONDS), is(nullValue()));
+	}
+
+	/**
+	 * クエリの実行で発生した例外で例外終了し、EntityManagerは
+	 * 引き続き使用できることを確認する。
+	 */
+	@Test
+	public void testFailure() throws Exception {
+
+		///// 準備 /////
+
+		executor = new AsyncQueryExecutor(emf, 1, 10);
+
+		///// テスト /////
+
+		CompletableFuture<List<Customer05>> failed = executor.query(
+				"SELECT c FROM Customer05 c WHERE c.unknown = 1", Customer05.class,
+				NO_PARAMETERS, 5, TimeUnit.SECONDS);
+
+		///// 検証 /////
+
+		assertThat(causeOf(failed), is(instanceOf(IllegalArgumentException.class)));
+
+		List<Customer05> all = executor.namedQuery("findAll", Customer05.class,
+				NO_PARAMETERS, 5, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS);
+		assertThat(all.size(), is(4));
+	}
+}
@@ -0,0 +1,250 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.Address05;
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.hibernate.ejb.QueryHints;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * AsyncSqlLoggerによるSQL文のログ出力のテスト。
+ */
+public class AsyncSqlLoggerTest {
+
+	private static EntityManagerFactory emf;
+
+	private final Logger logger = Logger.getLogger(AsyncSqlLogger.LOGGER_NAME);
+	private final List<LogRecord> records = new ArrayList<LogRecord>();
+	private final CountDownLatch blocked = new CountDownLatch(1);
+	private volatile boolean blocking;
+
+	private final Handler handler = new Handler() {
+		@Override
+		public void publish(LogRecord record) {
+			synchronized (records) {
+				records.add(record);
+			}
+			if (blocking) {
+				try {
+					blocked.await();	// 出力が追いつかない状態にする
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		@Override
+		public void flush() {}
+		@Override
+		public void close() {}
+	};
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		logger.addHandler(handler);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		blocked.countDown();
+		logger.removeHandler(handler);
+	}
+
+	private List<String> messages(Level level) {
+		List<String> messages = new ArrayList<String>();
+		synchronized (records) {
+			for (LogRecord record : records) {
+				if (record.getLevel().equals(level)) {
+					messages.add(record.getMessage());
+				}
+			}
+		}
+		return messages;
+	}
+
+	private static String find(List<String> messages, String part) {
+		for (String message : messages) {
+			if (message.contains(part)) {
+				return message;
+			}
+		}
+		return null;
+	}
+
+	private static int executeQueries(Connection connection, int times) throws Exception {
+		PreparedStatement statement = connection.prepareStatement("VALUES CAST(? AS INTEGER)");
+		try {
+			int total = 0;
+			for (int i = 0; i < times; i++) {
+				statement.setInt(1, i);
+				ResultSet rs = statement.executeQuery();
+				rs.next();
+				total += rs.getInt(1);
+				rs.close();
+			}
+			return total;
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * persistence.xmlの設定で、JPAが実行したSQL文がパラメータの値、
+	 * 所要時間、更新した行数とともに出力されることを確認する。
+	 */
+	@Test
+	public void testLogging() throws Exception {
+
+		///// 準備 /////
+
+		AsyncSqlLogger sqlLogger = HikariConnectionProvider.sqlLoggerOf(emf);
+		assertThat(sqlLogger, is(notNullValue()));
+
+		///// テスト /////
+
+		EntityManager em = emf.createEntityManager();
+		try {
+			EntityTransaction tx = em.getTransaction();
+			tx.begin();
+			em.createQuery("DELETE FROM Customer05").executeUpdate();
+			em.createQuery("DELETE FROM Address05").executeUpdate();
+			for (String firstName : new String[] {"Vincent", "Antony"}) {
+				Customer05 customer = new Customer05(firstName, "Johnson", "vj@mail.com", 45);
+				customer.setAddress(new Address05("Street", "City", "Zip", "FR"));
+				em.persist(customer);
+			}
+			tx.commit();
+
+			em.createNamedQuery("findWithParam", Customer05.class)
+					.setParameter("fname", "Vincent")
+					.setHint(QueryHints.HINT_CACHEABLE, Boolean.FALSE)
+					.getResultList();
+		} finally {
+			em.close();
+		}
+		assertThat(sqlLogger.flush(5, TimeUnit.SECONDS), is(true));
+
+		///// 検証 /////
+
+		List<String> messages = messages(Level.INFO);
+
+		String select = find(messages, "where customer05x0_.first_name=?");
+		assertThat(select, containsString(" | ['Vincent']"));
+		assertThat(select, containsString(" ms | select "));
+		assertThat(select, startsWith(Thread.currentThread().getName() + " | "));
+
+		String insert = find(messages, "insert into customer_ex05");
+		assertThat(insert, containsString("'Johnson'"));
+		assertThat(insert, containsString("batch=2, rows=2"));
+
+		assertThat(sqlLogger.getDroppedCount(), is(0L));
+	}
+
+	/**
+	 * sampleRateの割合の実行だけが記録されることを確認する。
+	 */
+	@Test
+	public void testSampling() throws Exception {
+
+		///// 準備 /////
+
+		AsyncSqlLogger none = new AsyncSqlLogger(64, 0);
+		AsyncSqlLogger all = new AsyncSqlLogger(64, 1);
+		AsyncSqlLogger half = new AsyncSqlLogger(1024, 0.5);
+		Connection connection = HikariConnectionProvider.dataSourceOf(emf).getConnection();
+
+		///// テスト /////
+
+		try {
+			executeQueries(none.wrap(connection), 10);
+			executeQueries(all.wrap(connection), 10);
+			executeQueries(half.wrap(connection), 1000);
+			none.flush(5, TimeUnit.SECONDS);
+			all.flush(5, TimeUnit.SECONDS);
+			half.flush(5, TimeUnit.SECONDS);
+		} finally {
+			connection.close();
+			none.close();
+			all.close();
+			half.close();
+		}
+
+		///// 検証 /////
+
+		assertThat(none.getWrittenCount(), is(0L));
+		assertThat(all.getWrittenCount(), is(10L));
+		assertThat(half.getWrittenCount() > 350 && half.getWrittenCount() < 650, is(true));
+		assertThat(find(messages(Level.INFO), "VALUES CAST(? AS INTEGER) | [9]"), is(notNullValue()));
+	}
+
+	/**
+	 * 出力が追いつかない場合、呼び出したスレッドは待たされずに
+	 * エントリが破棄され、破棄した件数が警告として出力されることを確認する。
+	 */
+	@Test
+	public void testBackpressure() throws Exception {
+
+		///// 準備 /////
+
+		AsyncSqlLogger sqlLogger = new AsyncSqlLogger(4, 1);
+		Connection connection = HikariConnectionProvider.dataSourceOf(emf).getConnection();
+		blocking = true;
+
+		///// テスト /////
+
+		try {
+			executeQueries(sqlLogger.wrap(connection), 100);
+
+			///// 検証 /////
+
+			// 出力中の1件とバッファの4件以外は破棄される
+			assertThat(sqlLogger.getBufferSize(), is(4));
+			assertThat(sqlLogger.getDroppedCount() >= 95, is(true));
+
+			blocking = false;
+			blocked.countDown();
+			assertThat(sqlLogger.flush(5, TimeUnit.SECONDS), is(true));
+			assertThat(sqlLogger.getWrittenCount() + sqlLogger.getDroppedCount(), is(100L));
+		} finally {
+			connection.close();
+			sqlLogger.close();
+		}
+
+		String warning = find(messages(Level.WARNING), "dropped");
+		assertThat(warning, is(notNullValue()));
+	}
+}
@@ -0,0 +1,253 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * HikariConnectionProviderによるコネクションプールのテスト。
+ *
+ * プールの設定を変えるため、テストごとにEntityManagerFactoryを作成する。
+ */
+public class HikariConnectionProviderTest {
+
+	private EntityManagerFactory emf;
+	private final List<Connection> connections = new ArrayList<Connection>();
+
+	@After
+	public void tearDown() throws Exception {
+		for (Connection connection : connections) {
+			connection.close();
+		}
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	private void createEntityManagerFactory(String... properties) {
+		Map<String, String> map = new HashMap<String, String>();
+		map.put("hibernate.show_sql", "false");
+		for (int i = 0; i < properties.length; i += 2) {
+			map.put(HikariConnectionProvider.CONFIG_PREFIX + properties[i], properties[i + 1]);
+		}
+		emf = Persistence.createEntityManagerFactory("test", map);
+	}
+
+	private Connection borrow() throws SQLException {
+		Connection connection = HikariConnectionProvider.dataSourceOf(emf).getConnection();
+		connections.add(connection);
+		return connection;
+	}
+
+	private static int valuesOne(Connection connection) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet rs = statement.executeQuery("VALUES 1");
+			rs.next();
+			return rs.getInt(1);
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * persistence.xmlの設定でHikariCPのプールが使用され、
+	 * 接続の取得が記録されることを確認する。
+	 */
+	@Test
+	public void testMetrics() throws Exception {
+
+		///// 準備 /////
+
+		createEntityManagerFactory();
+		ConnectionPoolMetrics metrics = HikariConnectionProvider.metricsOf(emf);
+		metrics.clear();
+
+		///// テスト /////
+
+		// EntityManagerは、最初に取得した接続をclose()まで使用し続ける
+		for (int i = 0; i < 10; i++) {
+			EntityManager em = emf.createEntityManager();
+			try {
+				em.getTransaction().begin();
+				em.createQuery("SELECT COUNT(c) FROM Customer05 c").getSingleResult();
+				em.getTransaction().commit();
+			} finally {
+				em.close();
+			}
+		}
+
+		///// 検証 /////
+
+		assertThat(metrics, is(notNullValue()));
+		assertThat(metrics.getAcquireTimes().getCount(), is(10L));
+		assertThat(metrics.getUsageTimes().getCount(), is(10L));
+		assertThat(metrics.getActiveConnections(), is(0));
+		assertThat(metrics.getTotalConnections() >= 1, is(true));
+		assertThat(metrics.getTimeoutCount(), is(0L));
+	}
+
+	/**
+	 * 使用中、待機中の接続数、接続を待っているスレッドの数と、
+	 * 接続を取得できずにタイムアウトした回数を確認する。
+	 */
+	@Test
+	public void testActiveIdleAndWaiting() throws Exception {
+
+		///// 準備 /////
+
+		createEntityManagerFactory(
+				"minimumIdle", "2", "maximumPoolSize", "2", "connectionTimeout", "2000");
+		ConnectionPoolMetrics metrics = HikariConnectionProvider.metricsOf(emf);
+		final DataSource dataSource = HikariConnectionProvider.dataSourceOf(emf);
+
+		///// テスト・検証 /////
+
+		Connection first = borrow();
+		borrow();
+		assertThat(metrics.getActiveConnections(), is(2));
+		assertThat(metrics.getIdleConnections(), is(0));
+
+		// 3つめの接続は、いずれかが返却されるまで待たされる
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Integer> waiting = executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					Connection connection = dataSource.getConnection();
+					try {
+						return valuesOne(connection);
+					} finally {
+						connection.close();
+					}
+				}
+			});
+			for (int i = 0; i < 100 && metrics.getWaitingThreads() == 0; i++) {
+				Thread.sleep(10);
+			}
+			assertThat(metrics.getWaitingThreads(), is(1));
+
+			connections.remove(first);
+			first.close();
+			assertThat(waiting.get(5, TimeUnit.SECONDS), is(1));
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// connectionTimeout以内に取得できない場合は例外となる
+		borrow();
+		try {
+			borrow();
+			fail();
+		} catch (SQLTransientConnectionException e) {
+			assertThat(metrics.getTimeoutCount(), is(1L));
+		}
+	}
+
+	/**
+	 * leakDetectionThresholdを超えて返却されない接続について、
+	 * 警告のログが出力されることを確認する。
+	 */
+	@Test
+	public void testLeakDetection() throws Exception {
+
+		///// 準備 /////
+
+		createEntityManagerFactory("leakDetectionThreshold", "2000");
+
+		final List<LogRecord> warnings = new ArrayList<LogRecord>();
+		Handler handler = new Handler() {
+			@Override
+			public void publish(LogRecord record) {
+				if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+					synchronized (warnings) {
+						warnings.add(record);
+					}
+				}
+			}
+			@Override
+			public void flush() {}
+			@Override
+			public void close() {}
+		};
+		Logger logger = Logger.getLogger("com.zaxxer.hikari.pool.ProxyLeakTask");
+		logger.addHandler(handler);
+
+		///// テスト /////
+
+		try {
+			borrow();
+			Thread.sleep(3000);
+		} finally {
+			logger.removeHandler(handler);
+		}
+
+		///// 検証 /////
+
+		synchronized (warnings) {
+			assertThat(warnings.size(), is(1));
+			assertThat(warnings.get(0).getMessage(), containsString("leak"));
+		}
+	}
+
+	/**
+	 * 切断された接続はプールから取り除かれ、新しい接続に
+	 * 置き換えられることを確認する。
+	 */
+	@Test
+	public void testValidation() throws Exception {
+
+		///// 準備 /////
+
+		createEntityManagerFactory("minimumIdle", "1", "maximumPoolSize", "1");
+		ConnectionPoolMetrics metrics = HikariConnectionProvider.metricsOf(emf);
+
+		Connection connection = borrow();
+		connection.unwrap(Connection.class).close();		// プールを経由せずに切断する
+		connections.remove(connection);
+		metrics.clear();
+
+		// 返却時に切断が検出され、接続はプールから取り除かれる
+		try {
+			connection.close();
+			fail();
+		} catch (SQLException e) {
+			assertThat(e.getSQLState(), is("08003"));
+		}
+
+		///// テスト /////
+
+		int value = valuesOne(borrow());
+
+		///// 検証 /////
+
+		assertThat(value, is(1));
+		assertThat(metrics.getCreationTimes().getCount(), is(1L));
+	}
+}
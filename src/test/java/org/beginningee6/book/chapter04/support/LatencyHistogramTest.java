@@ -0,0 +1,69 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * LatencyHistogramのテスト。
+ */
+public class LatencyHistogramTest {
+
+	/**
+	 * 件数、平均値、最大値と、2のべき乗ごとの区間の件数を確認する。
+	 */
+	@Test
+	public void testRecord() throws Exception {
+
+		///// 準備 /////
+
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		///// テスト /////
+
+		histogram.record(0);
+		histogram.record(3);
+		histogram.record(100);
+		histogram.record(1, TimeUnit.MICROSECONDS);
+		histogram.record(-5);
+
+		///// 検証 /////
+
+		assertThat(histogram.getCount(), is(5L));
+		assertThat(histogram.getMaxNanos(), is(1000L));
+		assertThat(histogram.getMeanNanos(), is(1103 / 5.0));
+		assertThat(histogram.getBuckets().toString(), is("{1=2, 4=1, 128=1, 1024=1}"));
+	}
+
+	/**
+	 * パーセンタイルが、その値を含む区間の上限値（最大値を超えない）
+	 * となることを確認する。
+	 */
+	@Test
+	public void testPercentile() throws Exception {
+
+		///// 準備 /////
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertThat(histogram.getPercentileNanos(99), is(0L));
+
+		for (int i = 0; i < 99; i++) {
+			histogram.record(1000);		// 512以上1024未満
+		}
+		histogram.record(5000);			// 4096以上8192未満
+
+		///// テスト・検証 /////
+
+		assertThat(histogram.getPercentileNanos(0), is(1024L));
+		assertThat(histogram.getPercentileNanos(50), is(1024L));
+		assertThat(histogram.getPercentileNanos(99), is(1024L));
+		assertThat(histogram.getPercentileNanos(100), is(5000L));
+
+		histogram.clear();
+		assertThat(histogram.getCount(), is(0L));
+		assertThat(histogram.getBuckets().isEmpty(), is(true));
+	}
+}
@@ -0,0 +1,309 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.Address05;
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * PartitionedScannerによる並行した表全体の走査のテスト。
+ */
+public class PartitionedScannerTest {
+
+	private static final Logger logger = Logger.getLogger(PartitionedScannerTest.class.getName());
+
+	private static final int CUSTOMERS = 1000;
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	private PartitionedScanner<Customer05> scanner;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		tx.commit();
+		em.clear();
+
+		scanner = new PartitionedScanner<Customer05>(emf, Customer05.class);
+		scanner.setFetchSize(50);
+	}
+
+	private void insertCustomers(int count) {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (int i = 0; i < count; i++) {
+			Customer05 customer = new Customer05("First" + i, "Last" + i, "mail" + i + "@mail.com", i % 100);
+			customer.setAddress(new Address05("Street " + i, "City", "Zip", "FR"));
+			em.persist(customer);
+		}
+		tx.commit();
+		em.clear();
+	}
+
+	/** ageの合計 */
+	private static final PartitionedScanner.Accumulator<Customer05, Long> SUM_OF_AGES =
+			new PartitionedScanner.Accumulator<Customer05, Long>() {
+				public Long create() {
+					return 0L;
+				}
+				public Long accumulate(Long result, Customer05 customer) {
+					return result + customer.getAge();
+				}
+			};
+
+	private static final PartitionedScanner.Combiner<Long> SUM =
+			new PartitionedScanner.Combiner<Long>() {
+				public Long combine(Long left, Long right) {
+					return left + right;
+				}
+			};
+
+	/** 読み込んだ順のid */
+	private static final PartitionedScanner.Accumulator<Customer05, List<Long>> IDS =
+			new PartitionedScanner.Accumulator<Customer05, List<Long>>() {
+				public List<Long> create() {
+					return new ArrayList<Long>();
+				}
+				public List<Long> accumulate(List<Long> result, Customer05 customer) {
+					result.add(customer.getId());
+					return result;
+				}
+			};
+
+	private static final PartitionedScanner.Combiner<List<Long>> CONCAT =
+			new PartitionedScanner.Combiner<List<Long>>() {
+				public List<Long> combine(List<Long> left, List<Long> right) {
+					left.addAll(right);
+					return left;
+				}
+			};
+
+	/**
+	 * スライスの数によらず、1つのスレッドで集計した場合と同じ結果となることを確認する。
+	 */
+	@Test
+	public void testScan() throws Exception {
+
+		///// 準備 /////
+
+		insertCustomers(CUSTOMERS);
+
+		long expected = em.createQuery("SELECT SUM(c.age) FROM Customer05 c", Long.class)
+				.getSingleResult();
+
+		for (int partitions : new int[] {1, 2, 3, 8}) {
+
+			///// テスト /////
+
+			Long total = scanner.scan(partitions, SUM_OF_AGES, SUM);
+
+			///// 検証 /////
+
+			assertThat("partitions=" + partitions, total, is(expected));
+		}
+	}
+
+	/**
+	 * スライスの結果がidの順に結合され、全ての行が1度ずつ読み込まれることを確認する。
+	 */
+	@Test
+	public void testCombineInIdOrder() throws Exception {
+
+		///// 準備 /////
+
+		insertCustomers(CUSTOMERS);
+
+		List<Long> expected = em.createQuery("SELECT c.id FROM Customer05 c ORDER BY c.id", Long.class)
+				.getResultList();
+
+		///// テスト /////
+
+		List<Long> ids = scanner.scan(4, IDS, CONCAT);
+
+		///// 検証 /////
+
+		assertThat(ids, is(expected));
+	}
+
+	/**
+	 * スライスが、それぞれ別のスレッドで走査されることを確認する。
+	 */
+	@Test
+	public void testEachSliceOnItsOwnThread() throws Exception {
+
+		///// 準備 /////
+
+		insertCustomers(CUSTOMERS);
+
+		///// テスト /////
+
+		Set<String> threads = scanner.scan(4,
+				new PartitionedScanner.Accumulator<Customer05, Set<String>>() {
+					public Set<String> create() {
+						return new HashSet<String>();
+					}
+					public Set<String> accumulate(Set<String> result, Customer05 customer) {
+						result.add(Thread.currentThread().getName());
+						return result;
+					}
+				},
+				new PartitionedScanner.Combiner<Set<String>>() {
+					public Set<String> combine(Set<String> left, Set<String> right) {
+						left.addAll(right);
+						return left;
+					}
+				});
+
+		///// 検証 /////
+
+		assertThat(threads.size(), is(4));
+		assertThat(threads.contains(Thread.currentThread().getName()), is(false));
+	}
+
+	/**
+	 * 表が空の場合や、行数よりスライスの数が多い場合を確認する。
+	 */
+	@Test
+	public void testFewRows() throws Exception {
+
+		///// テスト・検証 /////
+
+		assertThat(scanner.scan(4, SUM_OF_AGES, SUM), is(0L));
+		assertThat(scanner.slices(4).size(), is(0));
+
+		insertCustomers(2);
+
+		assertThat(scanner.scan(8, IDS, CONCAT).size(), is(2));
+		assertThat(scanner.slices(8).size() <= 2, is(true));
+	}
+
+	/**
+	 * スライスで発生した例外が呼び出し元にスローされることを確認する。
+	 */
+	@Test
+	public void testFailure() throws Exception {
+
+		///// 準備 /////
+
+		insertCustomers(CUSTOMERS);
+
+		final Long failingId = Collections.max(scanner.scan(1, IDS, CONCAT));
+
+		///// テスト /////
+
+		try {
+			scanner.scan(4, new PartitionedScanner.Accumulator<Customer05, Long>() {
+				public Long create() {
+					return 0L;
+				}
+				public Long accumulate(Long result, Customer05 customer) {
+					if (customer.getId().equals(failingId)) {
+						throw new IllegalArgumentException("failed at " + failingId);
+					}
+					return result + 1;
+				}
+			}, SUM);
+			fail();
+
+		///// 検証 /////
+
+		} catch (IllegalArgumentException e) {
+			assertThat(e.getMessage(), is("failed at " + failingId));
+		}
+	}
+
+	/**
+	 * スライスで例外が発生すると、idの小さいスライスの終了を待たずに
+	 * 例外がスローされ、残りのスライスが中断されることを確認する。
+	 */
+	@Test
+	public void testFailureInterruptsOtherSlices() throws Exception {
+
+		///// 準備 /////
+
+		insertCustomers(CUSTOMERS);
+
+		List<Long> ids = scanner.scan(1, IDS, CONCAT);
+		final Long blockingId = Collections.min(ids);
+		final Long failingId = Collections.max(ids);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+
+		///// テスト /////
+
+		long start = System.nanoTime();
+		try {
+			scanner.scan(4, new PartitionedScanner.Accumulator<Customer05, Long>() {
+				public Long create() {
+					return 0L;
+				}
+				public Long accumulate(Long result, Customer05 customer) {
+					if (customer.getId().equals(blockingId)) {
+						// 最初のスライスは中断されるまで終わらない
+						try {
+							Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+						} catch (InterruptedException e) {
+							interrupted.countDown();
+							Thread.currentThread().interrupt();
+						}
+					}
+					if (customer.getId().equals(failingId)) {
+						throw new IllegalArgumentException("failed at " + failingId);
+					}
+					return result + 1;
+				}
+			}, SUM);
+			fail();
+
+		///// 検証 /////
+
+		} catch (IllegalArgumentException e) {
+			assertThat(e.getMessage(), is("failed at " + failingId));
+		}
+		assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 30, is(true));
+		assertThat(interrupted.await(10, TimeUnit.SECONDS), is(true));
+	}
+}
@@ -0,0 +1,262 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.Address05;
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * PersistenceContextMonitorによる永続性コンテキストの監視と、
+ * しきい値を超えた場合のポリシーのテスト。
+ */
+public class PersistenceContextMonitorTest {
+
+	private static final Logger logger = Logger.getLogger(PersistenceContextMonitorTest.class.getName());
+
+	private static final int CUSTOMERS = 100;
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		tx.commit();
+		em.clear();
+	}
+
+	private static Customer05 newCustomer(int i) {
+		Customer05 customer = new Customer05("First" + i, "Last" + i, "mail" + i + "@mail.com", 20);
+		customer.setAddress(new Address05("Street " + i, "City", "Zip" + i, "FR"));
+		return customer;
+	}
+
+	/** Customer05とAddress05をCUSTOMERS件ずつ永続化する */
+	private static void persistCustomers(EntityManager em) {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (int i = 0; i < CUSTOMERS; i++) {
+			em.persist(newCustomer(i));
+		}
+		tx.commit();
+	}
+
+	private static long countCustomers() {
+		return em.createQuery("SELECT COUNT(c) FROM Customer05 c", Long.class).getSingleResult();
+	}
+
+	/**
+	 * 監視のみのポリシーで、管理されているエンティティの数と推定ヒープ使用量が
+	 * 記録されることを確認する。読み取り専用のエンティティはスナップショットを
+	 * 持たないため、推定ヒープ使用量が小さくなる。
+	 */
+	@Test
+	public void testMonitoring() throws Exception {
+
+		///// 準備 /////
+
+		PersistenceContextMonitor monitor = new PersistenceContextMonitor(
+				em, PersistenceContextMonitor.Policy.NONE, 10, 0);
+
+		///// テスト /////
+
+		persistCustomers(monitor.getEntityManager());
+		long bytesOfPersisted = monitor.estimateBytes();
+
+		em.clear();
+		long bytesOfCleared = monitor.estimateBytes();
+
+		List<Customer05> customers = monitor.getEntityManager()
+				.createQuery("SELECT c FROM Customer05 c JOIN FETCH c.address", Customer05.class)
+				.getResultList();
+		long bytesOfLoaded = monitor.estimateBytes();
+
+		em.clear();
+		ReadOnlyMode.setReadOnly(monitor.getEntityManager()
+				.createQuery("SELECT c FROM Customer05 c JOIN FETCH c.address", Customer05.class))
+				.getResultList();
+		long bytesOfReadOnly = monitor.estimateBytes();
+
+		///// 検証 /////
+
+		assertThat(customers.size(), is(CUSTOMERS));
+
+		// しきい値を超えても何もしない
+		// （最後のpersist()の後に、100件のCustomer05とAddress05が管理されている）
+		assertThat(monitor.getPeakEntityCount(), is(CUSTOMERS * 2));
+		assertThat(monitor.getFlushAndClearCount(), is(0L));
+		assertThat(monitor.getEvictedCount(), is(0L));
+		assertThat(monitor.getManagedEntityCount(), is(CUSTOMERS * 2));
+
+		assertThat(bytesOfCleared, is(0L));
+		assertThat(bytesOfPersisted > 0, is(true));
+		assertThat(bytesOfLoaded > bytesOfReadOnly, is(true));
+		assertThat(monitor.getPeakEstimatedBytes() > 0, is(true));
+	}
+
+	/**
+	 * 最後の検索で読み込まれたエンティティも、ピーク時の数に含まれることを確認する。
+	 */
+	@Test
+	public void testPeakAfterLastQuery() throws Exception {
+
+		///// 準備 /////
+
+		persistCustomers(em);
+		em.clear();
+
+		PersistenceContextMonitor monitor = new PersistenceContextMonitor(
+				em, PersistenceContextMonitor.Policy.NONE, 0, 0);
+
+		///// テスト /////
+
+		monitor.getEntityManager()
+				.createQuery("SELECT c FROM Customer05 c JOIN FETCH c.address", Customer05.class)
+				.getResultList();
+
+		///// 検証 /////
+
+		assertThat(monitor.getPeakEntityCount(), is(CUSTOMERS * 2));
+		assertThat(monitor.getPeakEstimatedBytes(), is(monitor.estimateBytes()));
+	}
+
+	/**
+	 * エンティティの数がしきい値を超えると、フラッシュしてクリアされ、
+	 * 全ての永続化がデータベースに反映されることを確認する。
+	 */
+	@Test
+	public void testFlushAndClear() throws Exception {
+
+		///// 準備 /////
+
+		PersistenceContextMonitor monitor = new PersistenceContextMonitor(
+				em, PersistenceContextMonitor.Policy.FLUSH_AND_CLEAR, 50, 0);
+
+		///// テスト /////
+
+		persistCustomers(monitor.getEntityManager());
+
+		///// 検証 /////
+
+		// 1件の永続化でCustomer05とAddress05が追加されるため、
+		// 26件ごと（52エンティティ）にフラッシュしてクリアされる
+		assertThat(monitor.getFlushAndClearCount(), is(3L));
+		assertThat(monitor.getPeakEntityCount(), is(52));
+		assertThat(monitor.getManagedEntityCount(), is((CUSTOMERS - 26 * 3) * 2));
+
+		em.clear();
+		assertThat(countCustomers(), is((long) CUSTOMERS));
+	}
+
+	/**
+	 * 推定ヒープ使用量のしきい値でも、フラッシュしてクリアされることを確認する。
+	 */
+	@Test
+	public void testEstimatedBytesThreshold() throws Exception {
+
+		///// 準備 /////
+
+		PersistenceContextMonitor monitor = new PersistenceContextMonitor(
+				em, PersistenceContextMonitor.Policy.FLUSH_AND_CLEAR, 0, 20000);
+
+		///// テスト /////
+
+		persistCustomers(monitor.getEntityManager());
+
+		///// 検証 /////
+
+		assertThat(monitor.toString(), monitor.getFlushAndClearCount() > 0, is(true));
+		assertThat(monitor.getManagedEntityCount() < CUSTOMERS * 2, is(true));
+
+		em.clear();
+		assertThat(countCustomers(), is((long) CUSTOMERS));
+	}
+
+	/**
+	 * しきい値を超えると、変更されていないエンティティが最後に取得されたのが
+	 * 古いものから切り離され、変更されたエンティティは残ることを確認する。
+	 */
+	@Test
+	public void testEvictLeastRecentlyUsed() throws Exception {
+
+		///// 準備 /////
+
+		persistCustomers(em);
+		em.clear();
+		List<Long> ids = em.createQuery(
+				"SELECT c.id FROM Customer05 c ORDER BY c.id", Long.class).getResultList();
+
+		PersistenceContextMonitor monitor = new PersistenceContextMonitor(
+				em, PersistenceContextMonitor.Policy.EVICT_LEAST_RECENTLY_USED, 40, 0);
+		EntityManager monitored = monitor.getEntityManager();
+
+		///// テスト /////
+
+		EntityTransaction tx = monitored.getTransaction();
+		tx.begin();
+
+		Customer05 modified = monitored.find(Customer05.class, ids.get(0));
+		modified.setFirstName("Modified");
+		Customer05 oldest = monitored.find(Customer05.class, ids.get(1));
+		Customer05 reused = monitored.find(Customer05.class, ids.get(2));
+
+		Customer05 last = null;
+		for (int i = 3; i < CUSTOMERS; i++) {
+			last = monitored.find(Customer05.class, ids.get(i));
+			monitored.find(Customer05.class, ids.get(2));		// 最近取得されたものとする
+		}
+
+		///// 検証 /////
+
+		assertThat(monitor.getEvictedCount() > 0, is(true));
+		assertThat(monitor.getPeakEntityCount(), is(41));
+		assertThat(monitor.getManagedEntityCount() <= 41, is(true));
+
+		assertThat(em.contains(modified), is(true));		// 変更されている
+		assertThat(em.contains(oldest), is(false));
+		assertThat(em.contains(reused), is(true));
+		assertThat(em.contains(last), is(true));
+
+		tx.commit();
+		em.clear();
+
+		// 変更されたエンティティは切り離されずに、変更が反映される
+		assertThat(em.find(Customer05.class, ids.get(0)).getFirstName(), is("Modified"));
+	}
+}
@@ -0,0 +1,138 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex01.Book01;
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.hibernate.Session;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.spi.ActionQueue;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * PooledSequenceGeneratorによる主キーの採番のテスト。
+ */
+public class PooledSequenceGeneratorTest {
+
+	private static final Logger logger = Logger.getLogger(PooledSequenceGeneratorTest.class.getName());
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Book01").executeUpdate();
+
+		tx.commit();
+	}
+
+	private static IdentifierGenerator generatorOf(Class<?> entityClass) {
+		SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor)
+				((HibernateEntityManagerFactory) emf).getSessionFactory();
+		return sessionFactory.getIdentifierGenerator(entityClass.getName());
+	}
+
+	/**
+	 * ＠GenericGeneratorで指定したPooledSequenceGeneratorが使用され、
+	 * 既定のアロケーションサイズ（50）のpooledオプティマイザが
+	 * 設定されていることを確認する。
+	 */
+	@Test
+	public void testGeneratorIsPooled() throws Exception {
+
+		///// テスト＆検証 /////
+
+		for (Class<?> entityClass : new Class<?>[] {Book01.class, Customer05.class}) {
+			IdentifierGenerator generator = generatorOf(entityClass);
+
+			assertThat(generator, is(instanceOf(PooledSequenceGenerator.class)));
+
+			SequenceStyleGenerator sequenceStyle = (SequenceStyleGenerator) generator;
+			assertThat(sequenceStyle.getOptimizer().getIncrementSize(),
+					is(PooledSequenceGenerator.DEFAULT_ALLOCATION_SIZE));
+			assertThat(sequenceStyle.getDatabaseStructure().getIncrementSize(),
+					is(PooledSequenceGenerator.DEFAULT_ALLOCATION_SIZE));
+		}
+	}
+
+	/**
+	 * 主キーはメモリ上のブロックから払い出されるため、persist()の時点では
+	 * INSERT文は発行されず、フラッシュ（コミット）までキューに蓄積される
+	 * ことを確認する。
+	 * 
+	 * （IDENTITY列による採番では、主キーを得るためにpersist()の時点で
+	 * 　INSERT文が発行されるため、キューには蓄積されない）
+	 */
+	@Test
+	public void testPersistDefersInsert() throws Exception {
+
+		///// 準備 /////
+
+		List<Book01> books = new ArrayList<Book01>();
+		for (int i = 0; i < 10; i++) {
+			books.add(new Book01("Title " + i, 10F, "Description", "isbn-" + i, 100, false));
+		}
+
+		///// テスト /////
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (Book01 book : books) {
+			em.persist(book);
+		}
+
+		///// 検証 /////
+
+		// 主キーは払い出し済み
+		for (Book01 book : books) {
+			assertThat(book.getId(), is(notNullValue()));
+		}
+		// INSERT文はまだ発行されていない
+		ActionQueue actionQueue = ((EventSource) em.unwrap(Session.class)).getActionQueue();
+		assertThat(actionQueue.numberOfInsertions(), is(10));
+
+		tx.commit();
+
+		assertThat(actionQueue.numberOfInsertions(), is(0));
+		assertThat(em.createQuery("SELECT COUNT(b) FROM Book01 b", Long.class).getSingleResult(),
+				is(10L));
+	}
+}
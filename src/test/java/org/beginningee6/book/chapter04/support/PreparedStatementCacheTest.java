@@ -0,0 +1,266 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.Address05;
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.ejb.QueryHints;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.service.jdbc.connections.spi.ConnectionProvider;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * PreparedStatementCacheによるPreparedStatementの再利用のテスト。
+ *
+ * キャッシュの大きさやプールの接続数を変えるため、テストごとに
+ * EntityManagerFactoryを作成する。接続を1つに限定し、全ての
+ * クエリが同じ物理的な接続のキャッシュを使用するようにする。
+ */
+public class PreparedStatementCacheTest {
+
+	private EntityManagerFactory emf;
+	private PreparedStatementCache cache;
+
+	@After
+	public void tearDown() throws Exception {
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	private void createEntityManagerFactory(int statementCacheSize) {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.show_sql", "false");
+		properties.put(HikariConnectionProvider.STATEMENT_CACHE_SIZE, String.valueOf(statementCacheSize));
+		properties.put("hibernate.hikari.minimumIdle", "1");
+		properties.put("hibernate.hikari.maximumPoolSize", "1");
+		emf = Persistence.createEntityManagerFactory("test", properties);
+
+		EntityManager em = emf.createEntityManager();
+		try {
+			EntityTransaction tx = em.getTransaction();
+			tx.begin();
+			persist(em, "Antony", "Balla", "tballa@mail.com", 14);
+			persist(em, "Vincent", "Johnson", "vj@mail.com", 45);
+			persist(em, "Sebastian", "Twenty", "seb@yamail.com", 58);
+			persist(em, "Vincent", "Dubosc", "vd@mail.com", 16);
+			tx.commit();
+		} finally {
+			em.close();
+		}
+
+		cache = HikariConnectionProvider.statementCacheOf(emf);
+		cache.clearStatistics();
+	}
+
+	private static void persist(EntityManager em, String firstName, String lastName,
+			String email, int age) {
+		Customer05 customer = new Customer05(firstName, lastName, email, age);
+		customer.setAddress(new Address05("Street", "City", "Zip", "FR"));
+		em.persist(customer);
+	}
+
+	/** "findWithParam"を実行する（クエリキャッシュは使用しない） */
+	private List<Customer05> findWithParam(String firstName) {
+		EntityManager em = emf.createEntityManager();
+		try {
+			return em.createNamedQuery("findWithParam", Customer05.class)
+					.setParameter("fname", firstName)
+					.setHint(QueryHints.HINT_CACHEABLE, Boolean.FALSE)
+					.getResultList();
+		} finally {
+			em.close();
+		}
+	}
+
+	private int countNative() {
+		EntityManager em = emf.createEntityManager();
+		try {
+			return em.createNativeQuery("SELECT * FROM customer_ex05").getResultList().size();
+		} finally {
+			em.close();
+		}
+	}
+
+	private Connection connection() throws Exception {
+		return ((SessionFactoryImplementor) ((HibernateEntityManagerFactory) emf).getSessionFactory())
+				.getServiceRegistry().getService(ConnectionProvider.class).getConnection();
+	}
+
+	/**
+	 * 名前付きクエリとネイティブクエリのSQL文が、EntityManagerをまたいで
+	 * 再利用され、パラメータの値が正しく置き換えられることを確認する。
+	 */
+	@Test
+	public void testReuse() throws Exception {
+
+		///// 準備 /////
+
+		createEntityManagerFactory(10);
+
+		///// テスト /////
+
+		int vincents = 0;
+		int antonys = 0;
+		for (int i = 0; i < 5; i++) {
+			vincents = findWithParam("Vincent").size();
+			antonys = findWithParam("Antony").size();
+		}
+		int all = countNative();
+		int allAgain = countNative();
+
+		///// 検証 /////
+
+		assertThat(vincents, is(2));
+		assertThat(antonys, is(1));
+		assertThat(all, is(4));
+		assertThat(allAgain, is(4));
+
+		assertThat(cache.getMissCount(), is(2L));
+		assertThat(cache.getHitCount(), is(10L));
+		assertThat(cache.getHitRatio(), is(10 / 12.0));
+		assertThat(cache.getCachedStatementCount(), is(6));		// 準備のシーケンスとINSERT文を含む
+	}
+
+	/**
+	 * キャッシュの上限を超えた場合は、最も長く使用されていない
+	 * PreparedStatementが破棄されることを確認する。
+	 */
+	@Test
+	public void testEviction() throws Exception {
+
+		///// 準備 /////
+
+		createEntityManagerFactory(1);
+
+		///// テスト /////
+
+		findWithParam("Vincent");
+		countNative();
+		int vincents = findWithParam("Vincent").size();
+
+		///// 検証 /////
+
+		assertThat(vincents, is(2));
+		assertThat(cache.getMissCount(), is(3L));
+		assertThat(cache.getHitCount(), is(0L));
+		assertThat(cache.getEvictionCount(), is(3L));		// 準備で登録したINSERT文を含む
+		assertThat(cache.getCachedStatementCount(), is(1));
+	}
+
+	/**
+	 * 同じSQL文を同時に複数準備した場合と、キャッシュに戻す際に
+	 * 設定がクリアされることを確認する。
+	 */
+	@Test
+	public void testConcurrentUseAndReset() throws Exception {
+
+		///// 準備 /////
+
+		createEntityManagerFactory(10);
+		String sql = "SELECT first_name FROM customer_ex05 WHERE age > ?";
+
+		Connection connection = connection();
+		try {
+
+			///// テスト・検証 /////
+
+			PreparedStatement first = connection.prepareStatement(sql);
+			PreparedStatement second = connection.prepareStatement(sql);		// 使用中のため別に準備される
+			first.setInt(1, 40);
+			first.setMaxRows(1);
+			second.setInt(1, 0);
+
+			ResultSet rs = first.executeQuery();
+			int rows = 0;
+			while (rs.next()) {
+				rows++;
+			}
+			assertThat(rows, is(1));
+			assertThat(count(second), is(4));
+
+			first.close();
+			second.close();
+			assertThat(first.isClosed(), is(true));
+			assertThat(cache.getMissCount(), is(2L));
+
+			PreparedStatement reused = connection.prepareStatement(sql);
+			assertThat(cache.getHitCount(), is(1L));
+			assertThat(reused.getMaxRows(), is(0));
+			reused.setInt(1, 40);
+			assertThat(count(reused), is(2));
+			reused.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * 使用中のため別に準備されたPreparedStatementで更新した場合も、
+	 * コミットせずに返却した接続ではロールバックされることを確認する。
+	 */
+	@Test
+	public void testRollbackUncachedStatement() throws Exception {
+
+		///// 準備 /////
+
+		createEntityManagerFactory(10);
+		String sql = "UPDATE customer_ex05 SET age = ? WHERE first_name = ?";
+
+		///// テスト /////
+
+		Connection connection = connection();
+		try {
+			connection.setAutoCommit(false);
+			PreparedStatement first = connection.prepareStatement(sql);
+			PreparedStatement second = connection.prepareStatement(sql);		// 使用中のため別に準備される
+			second.setInt(1, 99);
+			second.setString(2, "Vincent");
+			assertThat(second.executeUpdate(), is(2));
+			assertThat(second.getConnection(), is(not(connection.unwrap(Connection.class))));
+			first.close();
+		} finally {
+			connection.close();		// コミットせずに返却する
+		}
+
+		///// 検証 /////
+
+		connection = connection();
+		try {
+			PreparedStatement statement = connection.prepareStatement(
+					"SELECT first_name FROM customer_ex05 WHERE age = 99");
+			assertThat(count(statement), is(0));
+			statement.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static int count(PreparedStatement statement) throws Exception {
+		ResultSet rs = statement.executeQuery();
+		try {
+			int rows = 0;
+			while (rs.next()) {
+				rows++;
+			}
+			return rows;
+		} finally {
+			rs.close();
+		}
+	}
+}
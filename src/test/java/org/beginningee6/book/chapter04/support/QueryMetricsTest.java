@@ -0,0 +1,206 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.Address05;
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.hibernate.ejb.QueryHints;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * QueryMetricsによるクエリごとの統計情報のテスト。
+ */
+public class QueryMetricsTest {
+
+	private static final Logger logger = Logger.getLogger(QueryMetricsTest.class.getName());
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	private QueryMetrics metrics;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		persist("Antony", "Balla", "tballa@mail.com", 14);
+		persist("Vincent", "Johnson", "vj@mail.com", 45);
+		persist("Sebastian", "Twenty", "seb@yamail.com", 58);
+		persist("Vincent", "Dubosc", "vd@mail.com", 16);
+
+		tx.commit();
+		em.clear();
+
+		metrics = QueryMetrics.of(emf);
+		metrics.clear();
+	}
+
+	private static void persist(String firstName, String lastName, String email, int age) {
+		Customer05 customer = new Customer05(firstName, lastName, email, age);
+		customer.setAddress(new Address05("Street", "City", "Zip", "FR"));
+		em.persist(customer);
+	}
+
+	/**
+	 * 名前付きクエリごとに、実行回数、行数、ロードされたエンティティの数と
+	 * 所要時間が記録されることを確認する。
+	 */
+	@Test
+	public void testNamedQueries() throws Exception {
+
+		///// テスト /////
+
+		for (int i = 0; i < 3; i++) {
+			em.createNamedQuery("findAll", Customer05.class).getResultList();
+			em.clear();
+		}
+		for (int i = 0; i < 2; i++) {
+			em.createNamedQuery("findWithParam", Customer05.class)
+					.setParameter("fname", "Vincent")
+					.setHint(QueryHints.HINT_CACHEABLE, Boolean.FALSE)
+					.getResultList();
+		}
+
+		///// 検証 /////
+
+		QueryMetricsSnapshot findAll = metrics.snapshotOfNamedQuery("findAll");
+		assertThat(findAll.getQuery(), is("SELECT c FROM Customer05 c"));
+		assertThat(findAll.getNames(), is("findAll," + Customer05.FIND_ALL));
+		assertThat(findAll.getExecutionCount(), is(3L));
+		assertThat(findAll.getRowCount(), is(12L));
+		assertThat(findAll.getEntityCount(), is(12L));
+		assertThat(findAll.getMaxMillis() >= findAll.getMeanMillis(), is(true));
+		assertThat(findAll.getP99Millis() >= findAll.getP50Millis(), is(true));
+
+		// 2回めはエンティティが既に永続性コンテキストにあるため、ロードされない
+		QueryMetricsSnapshot findWithParam = metrics.snapshotOfNamedQuery("findWithParam");
+		assertThat(findWithParam.getExecutionCount(), is(2L));
+		assertThat(findWithParam.getRowCount(), is(4L));
+		assertThat(findWithParam.getEntityCount(), is(2L));
+
+		// 1ミリ秒未満で終わる実行も、0ではなくナノ秒単位で記録される
+		assertThat(findWithParam.toString(), findWithParam.getMeanMillis() > 0, is(true));
+		assertThat(findWithParam.getMaxMillis() < 1000, is(true));
+
+		assertThat(metrics.snapshotOfNamedQuery("findVincent"), is(nullValue()));
+		assertThat(metrics.getQueryCount(), is(2));
+	}
+
+	/**
+	 * リテラルだけが異なる動的クエリが1つのクエリとして集計され、
+	 * ネイティブクエリも記録されることを確認する。
+	 */
+	@Test
+	public void testNormalizedQueries() throws Exception {
+
+		///// テスト /////
+
+		em.createQuery("SELECT c FROM Customer05 c WHERE c.age > 40").getResultList();
+		em.createQuery("SELECT c FROM Customer05 c\n  WHERE c.age > 10 AND c.firstName <> 'Antony'")
+				.getResultList();
+		em.createQuery("SELECT c FROM Customer05 c WHERE c.age > 20").getResultList();
+		em.createNativeQuery("SELECT * FROM customer_ex05").getResultList();
+
+		///// 検証 /////
+
+		assertThat(QueryMetrics.normalize("SELECT c FROM Customer05 c WHERE c.age > 40 AND c.id = ?1"),
+				is("SELECT c FROM Customer05 c WHERE c.age > ? AND c.id = ?1"));
+
+		QueryMetricsSnapshot byAge = metrics.snapshot("SELECT c FROM Customer05 c WHERE c.age > 99");
+		assertThat(byAge.getQuery(), is("SELECT c FROM Customer05 c WHERE c.age > ?"));
+		assertThat(byAge.getNames(), is(""));
+		assertThat(byAge.getExecutionCount(), is(2L));
+		assertThat(byAge.getRowCount(), is(4L));		// 2件 + 2件
+
+		QueryMetricsSnapshot byAgeAndName = metrics.snapshot(
+				"SELECT c FROM Customer05 c WHERE c.age > 0 AND c.firstName <> 'x'");
+		assertThat(byAgeAndName.getExecutionCount(), is(1L));
+		assertThat(byAgeAndName.getRowCount(), is(3L));
+
+		QueryMetricsSnapshot nativeQuery = metrics.snapshot("SELECT * FROM customer_ex05");
+		assertThat(nativeQuery.getExecutionCount(), is(1L));
+		assertThat(nativeQuery.getRowCount(), is(4L));
+		assertThat(nativeQuery.getEntityCount(), is(0L));
+
+		assertThat(metrics.snapshot().size(), is(3));
+	}
+
+	/**
+	 * 統計情報がJMXで参照でき、EntityManagerFactoryの終了時に
+	 * 登録が解除されることを確認する。
+	 */
+	@Test
+	public void testJmx() throws Exception {
+
+		///// 準備 /////
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = metrics.getObjectName();
+		em.createNamedQuery("findVincent", Customer05.class).getResultList();
+
+		///// テスト・検証 /////
+
+		assertThat(server.isRegistered(name), is(true));
+		assertThat((Integer) server.getAttribute(name, "QueryCount"), is(1));
+
+		CompositeData[] queries = (CompositeData[]) server.getAttribute(name, "Queries");
+		assertThat(queries.length, is(1));
+		assertThat((String) queries[0].get("names"), is("findVincent"));
+		assertThat((Long) queries[0].get("rowCount"), is(2L));
+
+		QueryMetricsMXBean proxy = JMX.newMXBeanProxy(server, name, QueryMetricsMXBean.class);
+		List<QueryMetricsSnapshot> snapshots = proxy.getQueries();
+		assertThat(snapshots.get(0).getQuery(), is("SELECT c FROM Customer05 c WHERE c.firstName = ?"));
+		assertThat(snapshots.get(0).getExecutionCount(), is(1L));
+
+		proxy.clear();
+		assertThat(metrics.getQueryCount(), is(0));
+
+		// 別のEntityManagerFactoryは別の名前で登録され、終了時に解除される
+		EntityManagerFactory other = Persistence.createEntityManagerFactory("test");
+		ObjectName otherName = QueryMetrics.of(other).getObjectName();
+		assertThat(otherName.equals(name), is(false));
+		assertThat(server.isRegistered(otherName), is(true));
+		other.close();
+		assertThat(server.isRegistered(otherName), is(false));
+	}
+}
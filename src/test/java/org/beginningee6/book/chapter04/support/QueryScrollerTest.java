@@ -0,0 +1,145 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.Address05;
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.hibernate.Session;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * QueryScrollerによる名前付きクエリの検索結果の反復のテスト。
+ */
+public class QueryScrollerTest {
+
+	private static final Logger logger = Logger.getLogger(QueryScrollerTest.class.getName());
+
+	private static final int CUSTOMERS = 100;
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		for (int i = 0; i < CUSTOMERS; i++) {
+			Customer05 customer = new Customer05("First" + i, "Last" + i, "mail" + i + "@mail.com", 20);
+			customer.setAddress(new Address05("Street " + i, "City", "Zip" + i, "FR"));
+			em.persist(customer);
+		}
+
+		tx.commit();
+		em.clear();
+	}
+
+	/**
+	 * 名前付きクエリ"findAll"とCustomer05.FIND_ALLの全ての検索結果が
+	 * 重複なく1件ずつ返され、反復中の永続性コンテキストには
+	 * 現在のエンティティ（とその関連）しか管理されないことを確認する。
+	 */
+	@Test
+	public void testScrollFindAll() throws Exception {
+
+		for (String name : new String[] {"findAll", Customer05.FIND_ALL}) {
+
+			///// 準備 /////
+
+			Session session = em.unwrap(Session.class);
+			Set<Long> ids = new HashSet<Long>();
+			int maxManaged = 0;
+
+			///// テスト /////
+
+			QueryScroller<Customer05> customers =
+					QueryScroller.ofNamedQuery(em, name, Customer05.class, 10);
+			try {
+				while (customers.hasNext()) {
+					Customer05 customer = customers.next();
+					ids.add(customer.getId());
+
+					// 遅延ロードされる関連も、反復中の現在のエンティティからは参照できる
+					assertThat(customer.getAddress().getZipcode(), is(notNullValue()));
+
+					maxManaged = Math.max(maxManaged, session.getStatistics().getEntityCount());
+				}
+			} finally {
+				customers.close();
+			}
+
+			///// 検証 /////
+
+			assertThat(customers.getCount(), is((long) CUSTOMERS));
+			assertThat(ids.size(), is(CUSTOMERS));
+
+			// 同時に管理されるのは現在のCustomer05とAddress05のみ
+			assertThat(maxManaged <= 2, is(true));
+			assertThat(session.getStatistics().getEntityCount(), is(0));
+		}
+	}
+
+	/**
+	 * 次のエンティティに進むと、直前のエンティティが永続性コンテキストから
+	 * 切り離されることを確認する。
+	 */
+	@Test
+	public void testPreviousEntityIsDetached() throws Exception {
+
+		///// 準備 /////
+
+		QueryScroller<Customer05> customers =
+				QueryScroller.ofNamedQuery(em, "findAll", Customer05.class);
+		try {
+
+			///// テスト /////
+
+			Customer05 first = customers.next();
+			boolean managedWhileCurrent = em.contains(first);
+			customers.next();
+
+			///// 検証 /////
+
+			assertThat(managedWhileCurrent, is(true));
+			assertThat(em.contains(first), is(false));
+		} finally {
+			customers.close();
+		}
+
+		assertThat(customers.hasNext(), is(false));
+	}
+}
@@ -0,0 +1,223 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+import javax.persistence.TypedQuery;
+
+import org.beginningee6.book.chapter04.ex05.Address05;
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * ReadOnlyModeによる読み取り専用の検索のテスト。
+ */
+public class ReadOnlyModeTest {
+
+	private static final Logger logger = Logger.getLogger(ReadOnlyModeTest.class.getName());
+
+	private static final int CUSTOMERS = 10;
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		emf = Persistence.createEntityManagerFactory("test");
+		em = emf.createEntityManager();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		for (int i = 0; i < CUSTOMERS; i++) {
+			Customer05 customer = new Customer05("First" + i, "Last" + i, "mail" + i + "@mail.com", 20);
+			customer.setAddress(new Address05("Street " + i, "City", "Zip" + i, "FR"));
+			em.persist(customer);
+		}
+
+		tx.commit();
+		em.clear();
+	}
+
+	/** 永続性コンテキストが保持しているエンティティのスナップショット */
+	private static Object[] snapshotOf(EntityManager em, Object entity) {
+		EntityEntry entry = ((SessionImplementor) em.unwrap(Session.class))
+				.getPersistenceContext().getEntry(entity);
+		return entry.getLoadedState();
+	}
+
+	/**
+	 * 検索結果のエンティティを全て変更してコミットし、
+	 * 変更された（firstNameが"Changed"の）行の数を返す。
+	 */
+	private int changeAndCommit(EntityManager em, List<Customer05> customers) {
+		for (Customer05 customer : customers) {
+			customer.setFirstName("Changed");
+		}
+		em.getTransaction().commit();
+		em.clear();
+
+		return this.em.createQuery(
+				"SELECT COUNT(c) FROM Customer05 c WHERE c.firstName = 'Changed'", Long.class)
+				.getSingleResult().intValue();
+	}
+
+	/**
+	 * 既定では、検索結果のエンティティはスナップショットを持ち、
+	 * 変更がコミット時に反映されることを確認する。
+	 */
+	@Test
+	public void testDefaultMode() throws Exception {
+
+		///// 準備 /////
+
+		em.getTransaction().begin();
+
+		///// テスト /////
+
+		List<Customer05> customers =
+				em.createNamedQuery(Customer05.FIND_ALL, Customer05.class).getResultList();
+
+		///// 検証 /////
+
+		assertThat(ReadOnlyMode.isReadOnly(em, customers.get(0)), is(false));
+		assertThat(snapshotOf(em, customers.get(0)), is(notNullValue()));
+		assertThat(changeAndCommit(em, customers), is(CUSTOMERS));
+	}
+
+	/**
+	 * setReadOnly()を指定したクエリの検索結果のエンティティは
+	 * スナップショットを持たず、変更してもコミット時に反映されないことを
+	 * 確認する。
+	 */
+	@Test
+	public void testReadOnlyQuery() throws Exception {
+
+		///// 準備 /////
+
+		em.getTransaction().begin();
+
+		TypedQuery<Customer05> query = ReadOnlyMode.setReadOnly(
+				em.createNamedQuery(Customer05.FIND_ALL, Customer05.class));
+
+		///// テスト /////
+
+		List<Customer05> customers = query.getResultList();
+
+		///// 検証 /////
+
+		assertThat(ReadOnlyMode.isReadOnly(em, customers.get(0)), is(true));
+		assertThat(snapshotOf(em, customers.get(0)), is(nullValue()));
+		assertThat(changeAndCommit(em, customers), is(0));
+
+		// 同じEntityManagerの他のクエリには影響しない
+		assertThat(ReadOnlyMode.isDefaultReadOnly(em), is(false));
+	}
+
+	/**
+	 * setDefaultReadOnly()を指定したEntityManagerで検索したエンティティは、
+	 * クエリにヒントを指定しなくても読み取り専用となることを確認する。
+	 * （名前付きクエリはReadOnlyMode.createNamedQuery()で作成する）
+	 */
+	@Test
+	public void testDefaultReadOnlyEntityManager() throws Exception {
+
+		///// 準備 /////
+
+		EntityManager readOnlyEm = emf.createEntityManager();
+		try {
+			ReadOnlyMode.setDefaultReadOnly(readOnlyEm, true);
+			readOnlyEm.getTransaction().begin();
+
+			///// テスト /////
+
+			// 動的クエリ
+			Customer05 dynamic = readOnlyEm.createQuery(
+					"SELECT c FROM Customer05 c WHERE c.firstName = 'First0'", Customer05.class)
+					.getSingleResult();
+			boolean dynamicReadOnly = ReadOnlyMode.isReadOnly(readOnlyEm, dynamic);
+			readOnlyEm.clear();
+
+			// 主キーによる検索
+			Customer05 found = readOnlyEm.find(Customer05.class, dynamic.getId());
+			boolean foundReadOnly = ReadOnlyMode.isReadOnly(readOnlyEm, found);
+			Object[] foundSnapshot = snapshotOf(readOnlyEm, found);
+			readOnlyEm.clear();
+
+			// 名前付きクエリ
+			List<Customer05> customers = ReadOnlyMode.createNamedQuery(
+					readOnlyEm, "findAll", Customer05.class).getResultList();
+
+			///// 検証 /////
+
+			assertThat(dynamicReadOnly, is(true));
+			assertThat(foundReadOnly, is(true));
+			assertThat(foundSnapshot, is(nullValue()));
+			assertThat(ReadOnlyMode.isReadOnly(readOnlyEm, customers.get(0)), is(true));
+			assertThat(changeAndCommit(readOnlyEm, customers), is(0));
+		} finally {
+			readOnlyEm.close();
+		}
+	}
+
+	/**
+	 * createEntityManager()で生成したEntityManagerでは、遅延ロードされる
+	 * 関連先のエンティティも読み取り専用となり、フラッシュも行われないことを
+	 * 確認する。
+	 */
+	@Test
+	public void testCreateEntityManager() throws Exception {
+
+		///// 準備 /////
+
+		EntityManager readOnlyEm = ReadOnlyMode.createEntityManager(emf);
+		try {
+			readOnlyEm.getTransaction().begin();
+
+			///// テスト /////
+
+			List<Customer05> customers = ReadOnlyMode.createNamedQuery(
+					readOnlyEm, Customer05.FIND_ALL, Customer05.class).getResultList();
+			Address05 address = customers.get(0).getAddress();
+			address.getCity();		// 遅延ロード
+
+			///// 検証 /////
+
+			assertThat(ReadOnlyMode.isReadOnly(readOnlyEm, address), is(true));
+			assertThat(changeAndCommit(readOnlyEm, customers), is(0));
+		} finally {
+			readOnlyEm.close();
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.beginningee6.book.chapter04.ex05.Address05;
+import org.beginningee6.book.chapter04.ex05.Customer05;
+import org.hibernate.ejb.QueryHints;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * SlowQueryDetectorによる、時間がかかったSELECT文の実行計画の記録のテスト。
+ *
+ * しきい値を1ミリ秒とし、数千件のCustomer05を読み込むクエリが
+ * 必ず検出されるようにする。
+ */
+public class SlowQueryDetectorTest {
+
+	private static final Logger logger = Logger.getLogger(SlowQueryDetectorTest.class.getName());
+
+	private static final int ROWS = 4000;
+
+	/** VincentはVINCENTS件に1件とし、他は全て異なる名前とする（索引が使用される） */
+	private static final int VINCENTS = 50;
+
+	private static EntityManagerFactory emf;
+	private static EntityManager em;
+
+	private SlowQueryDetector detector;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.show_sql", "false");
+		properties.put("hibernate.sql_log.enabled", "false");
+		properties.put(HikariConnectionProvider.SLOW_QUERY_THRESHOLD, "1");
+		emf = Persistence.createEntityManagerFactory("test", properties);
+		em = emf.createEntityManager();
+
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+
+		logger.info("Dumping old records...");
+		em.createQuery("DELETE FROM Customer05").executeUpdate();
+		em.createQuery("DELETE FROM Address05").executeUpdate();
+
+		for (int i = 0; i < ROWS; i++) {
+			String firstName = i % VINCENTS == 0 ? "Vincent" : "First" + i;
+			Customer05 customer = new Customer05(firstName,
+					"Name" + i, "customer" + i + "@mail.com", i % 80);
+			customer.setAddress(new Address05("Street", "City", "Zip", "FR"));
+			em.persist(customer);
+		}
+
+		tx.commit();
+		em.clear();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		if (em != null) {
+			em.close();
+		}
+
+		if (emf != null) {
+			emf.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		em.clear();
+		detector = HikariConnectionProvider.slowQueryDetectorOf(emf);
+		detector.clear();
+	}
+
+	private SlowQuery find(String query) {
+		for (SlowQuery slowQuery : detector.getSlowQueries()) {
+			if (query.equals(slowQuery.getQuery())) {
+				return slowQuery;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 索引のない列で検索するJPQLについて、表全体の走査と
+	 * 読み込まれた行数が、元のJPQLとともに記録されることを確認する。
+	 */
+	@Test
+	public void testTableScan() throws Exception {
+
+		///// テスト /////
+
+		List<Customer05> customers = em.createQuery(
+				"SELECT c FROM Customer05 c WHERE c.email LIKE :email", Customer05.class)
+				.setParameter("email", "%@mail.com")
+				.getResultList();
+
+		///// 検証 /////
+
+		assertThat(customers.size(), is(ROWS));
+
+		SlowQuery slowQuery = find("SELECT c FROM Customer05 c WHERE c.email LIKE :email");
+		assertThat(slowQuery, is(notNullValue()));
+		assertThat(slowQuery.getElapsedMillis() >= 1, is(true));
+		assertThat(slowQuery.getSql(), containsString("from customer_ex05"));
+		assertThat(slowQuery.getParameters().toString(), is("[%@mail.com]"));
+		assertThat(slowQuery.getNames(), is(""));
+
+		assertThat(slowQuery.getPlan(), is(notNullValue()));
+		assertThat(slowQuery.getTableScans().contains("CUSTOMER_EX05"), is(true));
+		assertThat(slowQuery.getIndexScans().isEmpty(), is(true));
+		assertThat(slowQuery.getRowsVisited(), is((long) ROWS));
+	}
+
+	/**
+	 * 名前付きクエリについて、使用された索引と名前が記録されることを確認する。
+	 */
+	@Test
+	public void testIndexScanOfNamedQuery() throws Exception {
+
+		///// テスト /////
+
+		List<Customer05> vincents = em.createNamedQuery("findWithParam", Customer05.class)
+				.setParameter("fname", "Vincent")
+				.setHint(QueryHints.HINT_CACHEABLE, Boolean.FALSE)
+				.getResultList();
+
+		///// 検証 /////
+
+		assertThat(vincents.size(), is(ROWS / VINCENTS));
+
+		SlowQuery slowQuery = find("SELECT c FROM Customer05 c WHERE c.firstName = :fname");
+		assertThat(slowQuery, is(notNullValue()));
+		assertThat(slowQuery.getNames(), is("findWithParam"));
+		assertThat(slowQuery.getParameters().toString(), is("[Vincent]"));
+
+		assertThat(slowQuery.toString(), slowQuery.getTableScans().isEmpty(), is(true));
+		assertThat(slowQuery.getIndexScans().toString(),
+				is("[CUSTOMER_EX05 using CUSTOMER_EX05_FIRST_NAME_ID]"));
+		assertThat(slowQuery.getRowsVisited(), is((long) ROWS / VINCENTS));
+	}
+
+	/**
+	 * しきい値未満の実行は記録されず、同じSQL文を再び検出した場合は
+	 * 前回の実行計画が使用されることを確認する。
+	 */
+	@Test
+	public void testThresholdAndPlanReuse() throws Exception {
+
+		///// 準備 /////
+
+		String sql = "SELECT id FROM customer_ex05 WHERE age >= ?";
+		SlowQueryDetector never = new SlowQueryDetector(1, TimeUnit.HOURS, 10);
+		SlowQueryDetector always = new SlowQueryDetector(0, TimeUnit.MILLISECONDS, 2);
+		Connection connection = HikariConnectionProvider.dataSourceOf(emf).getConnection();
+
+		///// テスト /////
+
+		try {
+			assertThat(count(never.wrap(connection), sql, 40), is(ROWS / 2));
+			Connection wrapped = always.wrap(connection);
+			assertThat(count(wrapped, sql, 40), is(ROWS / 2));
+			assertThat(count(wrapped, sql, 60), is(ROWS / 4));
+		} finally {
+			connection.close();
+		}
+
+		///// 検証 /////
+
+		assertThat(never.getSlowQueries().isEmpty(), is(true));
+
+		List<SlowQuery> slowQueries = always.getSlowQueries();
+		assertThat(slowQueries.size(), is(2));
+		SlowQuery first = slowQueries.get(0);
+		SlowQuery second = slowQueries.get(1);
+		assertThat(first.getQuery(), is(nullValue()));		// Hibernateのクエリではない
+		assertThat(first.getParameters().toString(), is("[40]"));
+		assertThat(second.getParameters().toString(), is("[60]"));
+		assertThat(second.getPlan(), is(sameInstance(first.getPlan())));	// 再実行しない
+	}
+
+	/**
+	 * クエリ以外から実行され、検出された実行には、その後に同じスレッドで
+	 * 実行したクエリが記録されないことを確認する。
+	 */
+	@Test
+	public void testNotLabelledOutsideQuery() throws Exception {
+
+		///// 準備 /////
+
+		String sql = "SELECT id FROM customer_ex05 WHERE age >= ?";
+		SlowQueryDetector always = new SlowQueryDetector(0, TimeUnit.MILLISECONDS, 10);
+		Long id = em.createQuery("SELECT MIN(c.id) FROM Customer05 c", Long.class).getSingleResult();
+		em.clear();
+		Connection connection = HikariConnectionProvider.dataSourceOf(emf).getConnection();
+
+		///// テスト /////
+
+		try {
+			count(always.wrap(connection), sql, 40);		// 同じスレッドでクエリ以外から実行される
+		} finally {
+			connection.close();
+		}
+		Customer05 customer = em.find(Customer05.class, id);
+		em.createQuery("SELECT c FROM Customer05 c WHERE c.email LIKE :email", Customer05.class)
+				.setParameter("email", "%@mail.com")
+				.getResultList();
+
+		///// 検証 /////
+
+		assertThat(customer, is(notNullValue()));
+		List<SlowQuery> slowQueries = always.getSlowQueries();
+		assertThat(slowQueries.size(), is(1));
+		assertThat(slowQueries.get(0).getQuery(), is(nullValue()));
+
+		// クエリ自身の実行には記録される
+		assertThat(find("SELECT c FROM Customer05 c WHERE c.email LIKE :email"), is(notNullValue()));
+	}
+
+	/**
+	 * クエリ以外からの実行を繰り返し検出しても、クエリと対応付けていない
+	 * 実行は上限を超えて保持されないことを確認する。
+	 */
+	@Test
+	public void testPendingIsBounded() throws Exception {
+
+		///// 準備 /////
+
+		String sql = "SELECT id FROM customer_ex05 WHERE age >= ?";
+		SlowQueryDetector always = new SlowQueryDetector(0, TimeUnit.MILLISECONDS, 10);
+		SlowQueryDetector.clearPending();
+		Connection connection = HikariConnectionProvider.dataSourceOf(emf).getConnection();
+
+		///// テスト /////
+
+		try {
+			Connection detecting = always.wrap(connection);
+			for (int i = 0; i < SlowQueryDetector.MAX_PENDING + 20; i++) {
+				count(detecting, sql, 40);
+			}
+		} finally {
+			connection.close();
+		}
+
+		///// 検証 /////
+
+		assertThat(SlowQueryDetector.getPendingCount(), is(SlowQueryDetector.MAX_PENDING));
+		assertThat(always.getSlowQueries().size(), is(10));
+		SlowQueryDetector.clearPending();
+	}
+
+	private static int count(Connection connection, String sql, int age) throws Exception {
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			statement.setInt(1, age);
+			ResultSet rs = statement.executeQuery();
+			int rows = 0;
+			while (rs.next()) {
+				rows++;
+			}
+			rs.close();
+			return rows;
+		} finally {
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package org.beginningee6.book.chapter04.support;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.hibernate.EmptyInterceptor;
+import org.junit.rules.ExternalResource;
+
+/**
+ * テストメソッドの実行中にHibernateが発行したSQL文を、種類ごとに数えるJUnitのルール。
+ *
+ * <pre>
+ * ＠Rule
+ * public SqlStatementCounter statements = new SqlStatementCounter();
+ *
+ * statements.reset();
+ * Customer03 customer = em.find(Customer03.class, id);
+ * statements.assertSelectCount(1);
+ * </pre>
+ *
+ * 遅延ロードされるリレーションシップが行ごとにSELECT文を発行する（N+1問題）ような
+ * 変更で、テストが失敗するようにするために使用する。
+ *
+ * SQL文はpersistence.xmlのhibernate.ejb.interceptorに指定した
+ * CountingInterceptorが、PreparedStatementを準備する時に数える。
+ * このため、JDBCバッチでまとめて実行された同じSQL文は1つと数えられる
+ * （StatisticsのgetPrepareStatementCount()と同じ数え方）。
+ * 数え始めるのはテストメソッド（＠Beforeを含む）の開始時で、
+ * reset()で数え直すことができる。
+ */
+public class SqlStatementCounter extends ExternalResource {
+
+	/** SQL文の種類 */
+	public enum Kind {
+		SELECT, INSERT, UPDATE, DELETE,
+		/** それ以外（シーケンスの値の取得、プロシージャの呼び出しなど） */
+		OTHER;
+
+		static Kind of(String sql) {
+			String trimmed = sql.trim().toUpperCase(Locale.ENGLISH);
+			for (Kind kind : values()) {
+				if (trimmed.startsWith(kind.name())) {
+					return kind;
+				}
+			}
+			return OTHER;
+		}
+	}
+
+	/** 現在実行中のテストのルール（ない場合はnull） */
+	private static volatile SqlStatementCounter active;
+
+	/** CountingInterceptorが作成されたかどうか */
+	private static volatile boolean installed;
+
+	private final List<String> statements = new ArrayList<String>();
+
+	@Override
+	protected void before() throws Throwable {
+		reset();
+		active = this;
+	}
+
+	@Override
+	protected void after() {
+		active = null;
+	}
+
+	/** これまでに数えたSQL文を破棄し、数え直す */
+	public void reset() {
+		synchronized (statements) {
+			statements.clear();
+		}
+	}
+
+	private void record(String sql) {
+		synchronized (statements) {
+			statements.add(sql);
+		}
+	}
+
+	/** 発行されたSQL文（発行された順） */
+	public List<String> getStatements() {
+		synchronized (statements) {
+			return new ArrayList<String>(statements);
+		}
+	}
+
+	/** 発行されたSQL文の数 */
+	public int count() {
+		return getStatements().size();
+	}
+
+	/** 発行された、指定した種類のSQL文の数 */
+	public int count(Kind kind) {
+		int count = 0;
+		for (String sql : getStatements()) {
+			if (Kind.of(sql) == kind) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 指定した種類のSQL文の数を検証する。
+	 * 失敗した場合は、発行された全てのSQL文をメッセージに含める。
+	 */
+	public void assertCount(Kind kind, int expected) {
+		if (!installed) {
+			throw new IllegalStateException(
+					"hibernate.ejb.interceptor is not " + CountingInterceptor.class.getName());
+		}
+		assertThat(kind + " statements in " + describe(), count(kind), is(expected));
+	}
+
+	public void assertSelectCount(int expected) {
+		assertCount(Kind.SELECT, expected);
+	}
+
+	public void assertInsertCount(int expected) {
+		assertCount(Kind.INSERT, expected);
+	}
+
+	public void assertUpdateCount(int expected) {
+		assertCount(Kind.UPDATE, expected);
+	}
+
+	public void assertDeleteCount(int expected) {
+		assertCount(Kind.DELETE, expected);
+	}
+
+	private String describe() {
+		StringBuilder sb = new StringBuilder("[");
+		for (String sql : getStatements()) {
+			sb.append(System.getProperty("line.separator")).append("  ").append(sql);
+		}
+		return sb.append("]").toString();
+	}
+
+	/**
+	 * 準備されるSQL文を、実行中のテストのSqlStatementCounterに記録する
+	 * Interceptor（persistence.xmlのhibernate.ejb.interceptorに指定する）。
+	 */
+	public static class CountingInterceptor extends EmptyInterceptor {
+
+		private static final long serialVersionUID = 1L;
+
+		public CountingInterceptor() {
+			installed = true;
+		}
+
+		@Override
+		public String onPrepareStatement(String sql) {
+			SqlStatementCounter counter = active;
+			if (counter != null) {
+				counter.record(sql);
+			}
+			return sql;
+		}
+	}
+}